@@ -1,32 +1,82 @@
 package simpledb;
 
+import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
- * The Aggregation operator that computes an aggregate (e.g., sum, avg, max,
- * min). Note that we only support aggregates over a single column, grouped by a
- * single column.
+ * The Aggregation operator that computes aggregates (e.g., sum, avg, max,
+ * min), such as SELECT g, h, SUM(a), COUNT(*), MAX(b) ... GROUP BY g, h. All
+ * of the aggregates are computed in a single pass over the child by a
+ * {@link GroupAggregator}.
+ * <p>
+ * When the child is a sequential scan of a heap file, the aggregates can be
+ * computed in parallel (see {@link #setParallelism}): worker threads take
+ * pages of the file in turn, each aggregating the tuples of its pages into
+ * a table of its own, and the tables are merged at the end.
+ * <p>
+ * Otherwise the groups are kept in memory only up to a budget. When their
+ * state outgrows it, the partial state of every group is written to one of
+ * NUM_PARTITIONS spill files, chosen by a hash of its group-by fields, and
+ * the table is emptied. Once the child is exhausted, each partition is
+ * aggregated on its own, with the same budget, and its results returned
+ * before the next one is read; a partition whose groups still do not fit
+ * is partitioned again with another hash function. Groups with sketches
+ * (the APPROX_ aggregates) cannot be written to disk, and are always kept in
+ * memory.
+ * <p>
+ * If the child returns the tuples of each group one after the other, as it
+ * does when it is sorted on the group by fields, the aggregates can instead
+ * be streamed (see {@link #setStreaming}): only the current group is kept,
+ * and its results are returned as soon as a tuple of another group is read.
  */
 public class Aggregate extends Operator {
 
     private static final long serialVersionUID = 1L;
+
+    /** The number of threads the planner aggregates a large heap file with */
+    public static final int DEFAULT_PARALLELISM = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * The number of pages below which the planner does not aggregate a heap
+     * file in parallel, since starting the threads would cost more than it
+     * saves
+     */
+    public static final int PARALLEL_MIN_PAGES = 64;
+
+    /** Default memory budget of the groups, in pages */
+    public static final int DEFAULT_MEMORY_PAGES = 1024;
+
+    /** Number of partitions the groups are spilled to */
+    static final int NUM_PARTITIONS = 16;
+
+    /** Partitions this many levels deep are aggregated in memory */
+    static final int MAX_DEPTH = 4;
+
     private DbIterator child;
-    private int afield;
-    private int gfield;
-    private Aggregator.Op aop;
-    private Aggregator aggregator;
-    private String gFieldName;
-    private String aFieldName;
+    private int[] afields;
+    private int[] gfields;
+    private Aggregator.Op[] aops;
+    private Type[] gtypes;
+    private Type[] atypes;
+    private int parallelism = 1;
+    private int memoryBytes;
+    private boolean streaming;
+    // when streaming, the first tuple of the current group
+    private Tuple groupStart;
+    private GroupAggregator aggregator;
     private DbIterator aggIterator;
     private TupleDesc newTd;
 
+    // the partitions of spilled groups, in the order their results are
+    // returned; null if all the groups fit in memory
+    private transient ArrayList<Partition> partitions;
+    private long spilledBytes;
+    private int passes;
+
     /**
-     * Constructor.
-     * 
-     * Implementation hint: depending on the type of afield, you will want to
-     * construct an {@link IntAggregator} or {@link StringAggregator} to help
-     * you with your implementation of readNext().
-     * 
+     * Constructor for a single aggregate, grouped by at most one field.
      * 
      * @param child
      *            The DbIterator that is feeding us tuples.
@@ -39,42 +89,105 @@ public class Aggregate extends Operator {
      *            The aggregation operator to use
      */
     public Aggregate(DbIterator child, int afield, int gfield, Aggregator.Op aop) {
+        this(child, new int[] { afield }, new Aggregator.Op[] { aop },
+                gfield == Aggregator.NO_GROUPING ? new int[0] : new int[] { gfield });
+    }
+
+    /**
+     * Constructor for several aggregates, grouped by any number of fields.
+     *
+     * @param child
+     *            The DbIterator that is feeding us tuples.
+     * @param afields
+     *            For each aggregate, the column over which it is computed.
+     * @param aops
+     *            For each aggregate, the aggregation operator to use.
+     * @param gfields
+     *            The columns over which we are grouping the result, or an
+     *            empty array if there is no grouping
+     * @throws IllegalArgumentException
+     *             if an aggregate is not supported over its column
+     */
+    public Aggregate(DbIterator child, int[] afields, Aggregator.Op[] aops, int[] gfields) {
+        this(child, afields, aops, gfields, DEFAULT_MEMORY_PAGES * BufferPool.getPageSize());
+    }
+
+    /**
+     * Constructor for several aggregates, grouped by any number of fields,
+     * with a memory budget.
+     *
+     * @param child
+     *            The DbIterator that is feeding us tuples.
+     * @param afields
+     *            For each aggregate, the column over which it is computed.
+     * @param aops
+     *            For each aggregate, the aggregation operator to use.
+     * @param gfields
+     *            The columns over which we are grouping the result, or an
+     *            empty array if there is no grouping
+     * @param memoryBytes
+     *            How many bytes the state of the groups may take; beyond
+     *            that, groups are spilled to disk
+     * @throws IllegalArgumentException
+     *             if an aggregate is not supported over its column, or the
+     *             budget is not positive
+     */
+    public Aggregate(DbIterator child, int[] afields, Aggregator.Op[] aops, int[] gfields,
+            int memoryBytes) {
+        if (memoryBytes <= 0)
+            throw new IllegalArgumentException("memory budget must be positive");
+        this.memoryBytes = memoryBytes;
         this.child = child;
-        this.afield = afield;
-        this.gfield = gfield;
-        this.aop = aop;
+        this.afields = afields.clone();
+        this.aops = aops.clone();
+        this.gfields = gfields.clone();
         this.aggIterator = null;
 
         TupleDesc fedTupleDesc = child.getTupleDesc();
-        Type gbFieldType;
-        this.aFieldName = fedTupleDesc.getFieldName(afield);
-        if (gfield != -1) {
-            this.gFieldName = fedTupleDesc.getFieldName(gfield);
-            gbFieldType = fedTupleDesc.getFieldType(gfield);
-        } else {
-            this.gFieldName = null;
-            gbFieldType = null;
-        }
-
-        Type aFieldType = fedTupleDesc.getFieldType(afield);
-        if (aFieldType == Type.INT_TYPE) {
-            if (gfield == -1) {
-                this.aggregator = new IntegerAggregator(Aggregator.NO_GROUPING, null, afield, aop);
-                newTd = new TupleDesc(new Type[]{aFieldType}, new String[]{aop.toString()});
-            } else {
-                this.aggregator = new IntegerAggregator(gfield, gbFieldType, afield, aop);
-                newTd = new TupleDesc(new Type[]{gbFieldType, aFieldType}, new String[]{"AGG_Value", aop.toString()});
-            }
-        } else {
-            if (gfield == -1) {
-                this.aggregator = new StringAggregator(Aggregator.NO_GROUPING, null, afield, aop);
-                newTd = new TupleDesc(new Type[]{aFieldType}, new String[]{aop.toString()});
+        gtypes = new Type[gfields.length];
+        atypes = new Type[afields.length];
+        for (int i = 0; i < gfields.length; i++)
+            gtypes[i] = fedTupleDesc.getFieldType(gfields[i]);
+        for (int i = 0; i < afields.length; i++)
+            atypes[i] = fedTupleDesc.getFieldType(afields[i]);
+        this.aggregator = new GroupAggregator(gfields, gtypes, afields, atypes, aops);
+        this.newTd = resultTupleDesc();
+    }
+
+    /**
+     * @return the schema of the results: the types of the results of the
+     *         aggregator, with the group by fields named as in the child, and
+     *         the aggregates after their operator and field; a SUM_COUNT has
+     *         two fields
+     */
+    private TupleDesc resultTupleDesc() {
+        return resultTupleDesc(child.getTupleDesc(), aggregator, afields, aops, gfields);
+    }
+
+    /**
+     * @return the schema of the results of aggregator over the tuples of
+     *         fedTupleDesc, named as the results of an Aggregate
+     */
+    static TupleDesc resultTupleDesc(TupleDesc fedTupleDesc, GroupAggregator aggregator,
+            int[] afields, Aggregator.Op[] aops, int[] gfields) {
+        TupleDesc aggTd = aggregator.getTupleDesc();
+        Type[] types = new Type[aggTd.numFields()];
+        String[] names = new String[types.length];
+        for (int i = 0; i < types.length; i++)
+            types[i] = aggTd.getFieldType(i);
+        for (int i = 0; i < gfields.length; i++)
+            names[i] = fedTupleDesc.getFieldName(gfields[i]);
+        int field = gfields.length;
+        for (int i = 0; i < afields.length; i++) {
+            String aname = "(" + fedTupleDesc.getFieldName(afields[i]) + ")";
+            if (aops[i] == Aggregator.Op.SUM_COUNT) {
+                names[field++] = Aggregator.Op.SUM + aname;
+                names[field++] = Aggregator.Op.COUNT + aname;
             } else {
-                this.aggregator = new StringAggregator(gfield, gbFieldType, afield, aop);
-                newTd = new TupleDesc(new Type[]{gbFieldType, aFieldType}, new String[]{"AGG_Value", aop.toString()});
+                names[field++] = aops[i] + aname;
             }
         }
-
+        return new TupleDesc(types, names);
     }
 
     /**
@@ -83,7 +196,7 @@ public class Aggregate extends Operator {
      *         {@link simpledb.Aggregator#NO_GROUPING}
      * */
     public int groupField() {
-	    return (this.gfield == -1) ? Aggregator.NO_GROUPING : this.gfield;
+	    return gfields.length == 0 ? Aggregator.NO_GROUPING : gfields[0];
     }
 
     /**
@@ -92,14 +205,31 @@ public class Aggregate extends Operator {
      *         null;
      * */
     public String groupFieldName() {
-	    return gFieldName;
+	    return gfields.length == 0 ? null : newTd.getFieldName(0);
+    }
+
+    /**
+     * @return the group by fields in the <b>INPUT</b> tuples, which are the
+     *         first fields of the output tuples; empty if there is no
+     *         grouping
+     */
+    public int[] groupFields() {
+        return gfields.clone();
     }
 
     /**
      * @return the aggregate field
      * */
     public int aggregateField() {
-	    return afield;
+	    return afields[0];
+    }
+
+    /**
+     * @return the field of each aggregate, in the order they appear after
+     *         the group by fields in the output tuples
+     */
+    public int[] aggregateFields() {
+        return afields.clone();
     }
 
     /**
@@ -107,14 +237,148 @@ public class Aggregate extends Operator {
      *         tuples
      * */
     public String aggregateFieldName() {
-	    return aFieldName;
+	    return newTd.getFieldName(gfields.length);
     }
 
     /**
      * @return return the aggregate operator
      * */
     public Aggregator.Op aggregateOp() {
-	    return aop;
+	    return aops[0];
+    }
+
+    /**
+     * @return the operator of each aggregate
+     */
+    public Aggregator.Op[] aggregateOps() {
+        return aops.clone();
+    }
+
+    /**
+     * Set the error of the APPROX_ aggregates; see
+     * {@link GroupAggregator#setSketchErrors}. This must be done before the
+     * operator is opened.
+     *
+     * @param distinctError
+     *            the relative standard error of APPROX_COUNT_DISTINCT
+     * @param rankError
+     *            the rank error of the percentiles, as a fraction of the
+     *            number of values in a group
+     */
+    public void setSketchErrors(double distinctError, double rankError) {
+        aggregator.setSketchErrors(distinctError, rankError);
+    }
+
+    /**
+     * Choose whether sums and counts are returned as longs, the default, or
+     * as ints; see {@link GroupAggregator#setLongResults}. This changes the
+     * schema of the results, so it must be done before the operator is
+     * opened and before the schema is used by a parent.
+     */
+    public void setLongResults(boolean longResults) {
+        aggregator.setLongResults(longResults);
+        newTd = resultTupleDesc();
+    }
+
+    /**
+     * Compute the aggregates with the specified number of threads, if the
+     * child is a SeqScan of a HeapFile; otherwise, or with one thread, the
+     * child is read by the thread that opens this operator.
+     *
+     * @param threads
+     *            the number of worker threads
+     */
+    public void setParallelism(int threads) {
+        if (threads < 1)
+            throw new IllegalArgumentException("need at least one thread");
+        this.parallelism = threads;
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * @return true if the aggregates will be computed by several threads
+     */
+    public boolean isParallel() {
+        return !streaming && parallelism > 1 && heapFileOf(child) != null;
+    }
+
+    /**
+     * Compute the aggregates of one group at a time, returning each group
+     * as soon as the child moves on to the next one. The child must return
+     * all the tuples of a group together, or a group will be returned more
+     * than once; see {@link #isGroupedOn}. This takes precedence over
+     * parallel aggregation.
+     */
+    public void setStreaming(boolean streaming) {
+        this.streaming = streaming;
+    }
+
+    /**
+     * @return true if the aggregates are computed one group at a time
+     */
+    public boolean isStreaming() {
+        return streaming;
+    }
+
+    /**
+     * @return true if plan is known to return the tuples of each group
+     *         together, when they are grouped by the specified fields: it is
+     *         sorted on the only group by field, or it is an OrderBy (or a
+     *         filter over one) whose first keys are the group by fields, in
+     *         any order and direction
+     */
+    public static boolean isGroupedOn(DbIterator plan, int[] gfields) {
+        if (gfields.length == 0)
+            return false;
+        if (plan instanceof Filter)
+            return isGroupedOn(((Filter) plan).getChildren()[0], gfields);
+        if (plan instanceof OrderBy) {
+            int[] keys = ((OrderBy) plan).getOrderByFields();
+            if (keys.length < gfields.length)
+                return false;
+            for (int gfield : gfields) {
+                boolean found = false;
+                for (int i = 0; i < gfields.length; i++)
+                    found |= keys[i] == gfield;
+                if (!found)
+                    return false;
+            }
+            return true;
+        }
+        return gfields.length == 1 && JoinOptimizer.sortedField(plan) == gfields[0];
+    }
+
+    /**
+     * @return the heap file scanned by plan, if it is a SeqScan of a
+     *         HeapFile, or null
+     */
+    static HeapFile heapFileOf(DbIterator plan) {
+        if (!(plan instanceof SeqScan))
+            return null;
+        DbFile f = Database.getCatalog().getDatabaseFile(
+                Database.getCatalog().getTableId(((SeqScan) plan).getTableName()));
+        return f instanceof HeapFile ? (HeapFile) f : null;
+    }
+
+    /**
+     * @return the number of bytes of partial states written to disk since
+     *         the aggregate was opened, at any level of partitioning
+     */
+    public long spilledBytes() {
+        return spilledBytes;
+    }
+
+    /**
+     * @return the number of passes over spilled groups: 0 if all the groups
+     *         fit in memory, 1 if each partition was aggregated once, and
+     *         one more for each level of partitions that had to be
+     *         partitioned again
+     */
+    public int numPasses() {
+        return passes;
     }
 
     public static String nameOfAggregatorOp(Aggregator.Op aop) {
@@ -126,48 +390,230 @@ public class Aggregate extends Operator {
         super.open();
         child.open();
 
-        Tuple childTuple;
+        if (streaming) {
+            aggregator.clear();
+            groupStart = null;
+            return;
+        }
         if (aggIterator == null) {
-            // merge all child tuples
-            while(child.hasNext()) {
-                childTuple = child.next();
-                aggregator.mergeTupleIntoGroup(childTuple);
+            if (isParallel()) {
+                aggregateInParallel();
+                aggIterator = aggregator.iterator(newTd);
+            } else {
+                // merge all child tuples
+                spilledBytes = 0;
+                passes = 0;
+                partitions = aggregate(child, aggregator, 0);
+                if (partitions == null)
+                    aggIterator = aggregator.iterator(newTd);
+                else
+                    aggIterator = new SpilledResults();
             }
-            aggIterator = aggregator.iterator();
         }
         aggIterator.open();
 
     }
 
     /**
-     * Returns the next tuple. If there is a group by field, then the first
-     * field is the field by which we are grouping, and the second field is the
-     * result of computing the aggregate, If there is no group by field, then
-     * the result tuple should contain one field representing the result of the
-     * aggregate. Should return null if there are no more tuples.
+     * Aggregate the pages of the scanned heap file with parallelism worker
+     * threads, each into its own GroupAggregator, and merge them into
+     * aggregator.
+     */
+    private void aggregateInParallel() throws DbException, TransactionAbortedException {
+        final HeapFile file = heapFileOf(child);
+        final TransactionId tid = ((SeqScan) child).getTransactionId();
+        final int numPages = file.numPages();
+        final AtomicInteger nextPage = new AtomicInteger();
+        int threads = Math.min(parallelism, Math.max(1, numPages));
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        ArrayList<Future<GroupAggregator>> workers = new ArrayList<Future<GroupAggregator>>();
+        try {
+            for (int i = 0; i < threads; i++) {
+                final GroupAggregator local = aggregator.emptyCopy();
+                workers.add(pool.submit(new Callable<GroupAggregator>() {
+                    public GroupAggregator call() throws Exception {
+                        // pages are handed out one at a time, so that a
+                        // slow worker does not hold up the others
+                        int pgno;
+                        while ((pgno = nextPage.getAndIncrement()) < numPages) {
+                            HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid,
+                                    new HeapPageId(file.getId(), pgno), Permissions.READ_ONLY);
+                            Iterator<Tuple> it = page.iterator();
+                            while (it.hasNext())
+                                local.mergeTupleIntoGroup(it.next());
+                        }
+                        return local;
+                    }
+                }));
+            }
+            for (Future<GroupAggregator> worker : workers)
+                aggregator.merge(worker.get());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DbException("interrupted while aggregating");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof TransactionAbortedException)
+                throw (TransactionAbortedException) cause;
+            if (cause instanceof DbException)
+                throw (DbException) cause;
+            throw new RuntimeException(cause);
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Merge the tuples of input into agg. If the groups outgrow the memory
+     * budget, depth is less than MAX_DEPTH, and agg has no sketches, their
+     * partial states are
+     * moved to partitions on disk, chosen by the hash function for depth,
+     * and agg is emptied.
+     *
+     * @return the non-empty partitions holding all the groups, with agg
+     *         empty, or null if the groups fit in memory and are in agg
+     */
+    private ArrayList<Partition> aggregate(DbIterator input, GroupAggregator agg, int depth)
+            throws DbException, TransactionAbortedException {
+        SpillFile[] spills = null;
+        boolean canSpill = depth < MAX_DEPTH && agg.hasPartialTuples();
+        int seen = 0;
+        while (input.hasNext()) {
+            agg.mergeTupleIntoGroup(input.next());
+            // the state only grows with new groups; a single group is
+            // never worth spilling
+            int n = agg.numGroups();
+            if (n == seen)
+                continue;
+            seen = n;
+            if (n > 1 && canSpill && agg.memoryBytes() > memoryBytes) {
+                if (spills == null)
+                    spills = new SpillFile[NUM_PARTITIONS];
+                spillGroups(agg, spills, depth);
+                agg.clear();
+                seen = 0;
+            }
+        }
+        if (spills == null)
+            return null;
+
+        spillGroups(agg, spills, depth);
+        agg.clear();
+        ArrayList<Partition> parts = new ArrayList<Partition>();
+        for (SpillFile f : spills) {
+            if (f == null)
+                continue;
+            try {
+                f.finish();
+            } catch (IOException e) {
+                throw new DbException("could not write spill file: " + e);
+            }
+            spilledBytes += f.length();
+            parts.add(new Partition(f, depth));
+        }
+        return parts;
+    }
+
+    /**
+     * Append the partial state of each group of agg to its partition.
+     */
+    private void spillGroups(GroupAggregator agg, SpillFile[] spills, int depth)
+            throws DbException, TransactionAbortedException {
+        DbIterator it = agg.partialIterator();
+        it.open();
+        try {
+            while (it.hasNext()) {
+                Tuple t = it.next();
+                int part = partition(t, gfields.length, depth);
+                if (spills[part] == null)
+                    spills[part] = new SpillFile(t.getTupleDesc());
+                spills[part].add(t);
+            }
+        } catch (IOException e) {
+            throw new DbException("could not write spill file: " + e);
+        } finally {
+            it.close();
+        }
+    }
+
+    /**
+     * @return the partition of the group whose key is the first numKeyFields
+     *         fields of t, at the specified level of partitioning
+     */
+    static int partition(Tuple t, int numKeyFields, int depth) {
+        int h = 0;
+        for (int i = 0; i < numKeyFields; i++)
+            h = 31 * h + t.getField(i).hashCode();
+        return HashEquiJoin.partition(new IntField(h), depth);
+    }
+
+    private void deleteSpills() {
+        if (partitions == null)
+            return;
+        for (Partition part : partitions)
+            part.file.delete();
+        partitions = null;
+    }
+
+    /**
+     * Returns the next tuple. The first fields are the fields by which we are
+     * grouping, if any, and the following ones are the results of computing
+     * the aggregates. Should return null if there are no more tuples.
      */
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        if (streaming)
+            return nextGroup();
         if (aggIterator.hasNext()) {
             return aggIterator.next();
         }
 	    return null;
     }
 
+    /**
+     * @return the results of the next group of the child, read up to and
+     *         including the first tuple of the group after it, or null if
+     *         there are no more groups
+     */
+    private Tuple nextGroup() throws TransactionAbortedException, DbException {
+        while (child.hasNext()) {
+            Tuple t = child.next();
+            if (groupStart != null && !sameGroup(groupStart, t)) {
+                Tuple result = aggregator.getResult(0, newTd);
+                aggregator.clear();
+                aggregator.mergeTupleIntoGroup(t);
+                groupStart = t;
+                return result;
+            }
+            if (groupStart == null)
+                groupStart = t;
+            aggregator.mergeTupleIntoGroup(t);
+        }
+        if (groupStart == null)
+            return null;
+        Tuple result = aggregator.getResult(0, newTd);
+        aggregator.clear();
+        groupStart = null;
+        return result;
+    }
+
+    private boolean sameGroup(Tuple t1, Tuple t2) {
+        for (int gfield : gfields)
+            if (!t1.getField(gfield).equals(t2.getField(gfield)))
+                return false;
+        return true;
+    }
+
     public void rewind() throws DbException, TransactionAbortedException {
         close();
         open();
     }
 
     /**
-     * Returns the TupleDesc of this Aggregate. If there is no group by field,
-     * this will have one field - the aggregate column. If there is a group by
-     * field, the first field will be the group by field, and the second will be
-     * the aggregate value column.
-     * 
-     * The name of an aggregate column should be informative. For example:
-     * "aggName(aop) (child_td.getFieldName(afield))" where aop and afield are
-     * given in the constructor, and child_td is the TupleDesc of the child
-     * iterator.
+     * Returns the TupleDesc of this Aggregate: the group by fields, if any,
+     * with their names in the child, followed by one integer field for each
+     * aggregate, named "aop(child_td.getFieldName(afield))", or two for a
+     * SUM_COUNT.
      */
     public TupleDesc getTupleDesc() {
 	    return newTd;
@@ -179,6 +625,12 @@ public class Aggregate extends Operator {
         if (aggIterator != null) {
             aggIterator.close();
         }
+        if (partitions != null) {
+            // the spilled groups are not kept between runs: they are
+            // aggregated again from the child when the operator is reopened
+            deleteSpills();
+            aggIterator = null;
+        }
     }
 
     @Override
@@ -190,5 +642,92 @@ public class Aggregate extends Operator {
     public void setChildren(DbIterator[] children) {
         child = children[0];
     }
-    
+
+    /**
+     * A partition of spilled partial states, written with the hash function
+     * for depth.
+     */
+    private static class Partition {
+        SpillFile file;
+        int depth;
+
+        Partition(SpillFile file, int depth) {
+            this.file = file;
+            this.depth = depth;
+        }
+    }
+
+    /**
+     * The results of spilled groups: each partition is aggregated in turn,
+     * and its results returned before the next one is read. A partition
+     * that does not fit in memory is replaced in the list by the partitions
+     * it is split into.
+     */
+    private class SpilledResults implements DbIterator {
+
+        private static final long serialVersionUID = 1L;
+        // the index in partitions of the next partition to aggregate
+        private int next;
+        private DbIterator results;
+
+        public void open() {
+            next = 0;
+            results = null;
+        }
+
+        public boolean hasNext() throws DbException, TransactionAbortedException {
+            while (results == null || !results.hasNext()) {
+                if (results != null)
+                    results.close();
+                results = null;
+                if (partitions == null || next == partitions.size())
+                    return false;
+
+                Partition part = partitions.get(next);
+                passes = Math.max(passes, part.depth + 1);
+                // the final aggregator has the fields of newTd: a SUM_COUNT
+                // sums the spilled sums and counts into a sum and a count
+                GroupAggregator agg = aggregator.finalAggregator();
+                DbIterator in = part.file.iterator();
+                in.open();
+                ArrayList<Partition> split;
+                try {
+                    split = aggregate(in, agg, part.depth + 1);
+                } finally {
+                    in.close();
+                }
+                if (split == null) {
+                    next++;
+                    results = agg.iterator(newTd);
+                    results.open();
+                } else {
+                    partitions.remove(next);
+                    part.file.delete();
+                    partitions.addAll(next, split);
+                }
+            }
+            return true;
+        }
+
+        public Tuple next() throws DbException, TransactionAbortedException {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            return results.next();
+        }
+
+        public void rewind() {
+            close();
+            open();
+        }
+
+        public TupleDesc getTupleDesc() {
+            return newTd;
+        }
+
+        public void close() {
+            if (results != null)
+                results.close();
+            results = null;
+        }
+    }
 }
@@ -10,22 +10,47 @@ public interface Aggregator extends Serializable {
     static final int NO_GROUPING = -1;
 
     /**
-     * SUM_COUNT and SC_AVG will
-     * only be used in lab7, you are not required
-     * to implement them until then.
+     * SUM_COUNT and SC_AVG are the two phases of an AVG computed over
+     * parts of the input separately; see {@link GroupAggregator#partial}.
+     * The APPROX_ operators are estimated with sketches whose error can be
+     * set with {@link GroupAggregator#setSketchErrors}.
      * */
     public enum Op implements Serializable {
         MIN, MAX, SUM, AVG, COUNT,
         /**
-         * SUM_COUNT: compute sum and count simultaneously, will be
-         * needed to compute distributed avg in lab7.
+         * SUM_COUNT: compute sum and count simultaneously, as two
+         * fields of the result.
          * */
         SUM_COUNT,
         /**
-         * SC_AVG: compute the avg of a set of SUM_COUNT tuples,
-         * will be used to compute distributed avg in lab7.
+         * SC_AVG: compute the avg of a set of SUM_COUNT tuples, whose
+         * sum is the aggregate field and whose count is the field after it.
          * */
-        SC_AVG;
+        SC_AVG,
+        /**
+         * APPROX_COUNT_DISTINCT: estimate the number of distinct values
+         * with a {@link HyperLogLog} sketch.
+         * */
+        APPROX_COUNT_DISTINCT,
+        /**
+         * APPROX_MEDIAN, APPROX_P90 and APPROX_P99: estimate the 50th, 90th
+         * and 99th percentiles with a {@link KllSketch}.
+         * */
+        APPROX_MEDIAN, APPROX_P90, APPROX_P99;
+
+        /**
+         * @return the quantile estimated by a percentile operator, or -1
+         *         for the other operators
+         */
+        public double quantile() {
+            if (this == APPROX_MEDIAN)
+                return 0.5;
+            if (this == APPROX_P90)
+                return 0.9;
+            if (this == APPROX_P99)
+                return 0.99;
+            return -1;
+        }
 
         /**
          * Interface to access operations by a string containing an integer
@@ -63,6 +88,14 @@ public interface Aggregator extends Serializable {
         		return "count";
         	if (this==SC_AVG)
     			return "sc_avg";
+        	if (this==APPROX_COUNT_DISTINCT)
+        		return "approx_count_distinct";
+        	if (this==APPROX_MEDIAN)
+        		return "approx_median";
+        	if (this==APPROX_P90)
+        		return "approx_p90";
+        	if (this==APPROX_P99)
+        		return "approx_p99";
         	throw new IllegalStateException("impossible to reach here");
         }
     }
@@ -25,6 +25,24 @@ public class BTreeFile implements DbFile {
 	private final int tableid ;
 	private int keyField;
 
+	// leaf pages are rebalanced as soon as a delete leaves them with fewer tuples than this
+	// fraction of their capacity; pages between it and half full wait for rebalance()
+	private volatile double minLeafFill = 0.5;
+	private final Set<BTreePageId> underfullLeaves = Collections.synchronizedSet(new HashSet<BTreePageId>());
+
+	// the file grows by whole extents. Pages of the last extent which are not in use yet are
+	// filled with UNUSED_PAGE_BYTE, which no live page can consist of, since a live page never
+	// holds a page pointer of -1
+	static final int EXTENT_PAGES = 16;
+	private static final byte UNUSED_PAGE_BYTE = (byte) 0xFF;
+	private int unusedPages = -1;
+
+	// the free pages recorded in the header pages, and the ids of the header pages in order.
+	// Both are loaded from the header pages on first use and kept up to date by 
+	// getEmptyPageNo and setEmptyPage
+	private TreeSet<Integer> freePages = null;
+	private ArrayList<BTreePageId> headerIds = null;
+
 	/**
 	 * Constructs a B+ tree file backed by the specified file.
 	 * 
@@ -165,7 +183,45 @@ public class BTreeFile implements DbFile {
 	 */
 	public int numPages() {
 		// we only ever write full pages
-		return (int) ((f.length() - BTreeRootPtrPage.getPageSize())/ BufferPool.getPageSize());
+		int filePages = (int) ((f.length() - BTreeRootPtrPage.getPageSize())/ BufferPool.getPageSize());
+		synchronized(this) {
+			if(unusedPages < 0) {
+				unusedPages = countUnusedPages(filePages);
+			}
+			return filePages - unusedPages;
+		}
+	}
+
+	/**
+	 * Count the pages at the end of the file which were preallocated but never used
+	 * 
+	 * @param filePages - the number of pages in the file
+	 */
+	private int countUnusedPages(int filePages) {
+		int count = 0;
+		try {
+			RandomAccessFile rf = new RandomAccessFile(f, "r");
+			try {
+				byte[] pageBuf = new byte[BufferPool.getPageSize()];
+				for(int pgNo = filePages; pgNo >= 1; pgNo--) {
+					rf.seek(BTreeRootPtrPage.getPageSize() + (long) (pgNo-1) * BufferPool.getPageSize());
+					rf.readFully(pageBuf);
+					for(byte b : pageBuf) {
+						if(b != UNUSED_PAGE_BYTE) {
+							return count;
+						}
+					}
+					count++;
+				}
+			} finally {
+				rf.close();
+			}
+		} catch (FileNotFoundException e) {
+			// a file which does not exist yet has no pages
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		return count;
 	}
 
 	/**
@@ -246,6 +302,52 @@ public class BTreeFile implements DbFile {
 		return findLeafPage(tid, new HashMap<PageId, Page>(), pid, perm, f);
 	}
 
+	/**
+	 * Recursive function which finds and locks the leaf page in the B+ tree corresponding to
+	 * the right-most page possibly containing the key field f. It locks all internal
+	 * nodes along the path to the leaf node with READ_ONLY permission, and locks the
+	 * leaf node with permission perm.
+	 *
+	 * If f is null, it finds the right-most leaf page -- used for descending iterators
+	 *
+	 * @param tid - the transaction id
+	 * @param pid - the current page being searched
+	 * @param perm - the permissions with which to lock the leaf page
+	 * @param f - the field to search for
+	 * @return the right-most leaf page possibly containing the key field f
+	 * @see #findLeafPage(TransactionId, BTreePageId, Permissions, Field)
+	 */
+	BTreeLeafPage findLastLeafPage(TransactionId tid, BTreePageId pid, Permissions perm,
+			Field f)
+					throws DbException, TransactionAbortedException {
+		if (pid.pgcateg() == BTreePageId.LEAF) {
+			return (BTreeLeafPage) Database.getBufferPool().getPage(tid, pid, perm);
+
+		} else if (pid.pgcateg() == BTreePageId.INTERNAL) {
+
+			// tuples equal to an entry's key may live in its right child, so only go
+			// left when the field is strictly less than the key
+			BTreeInternalPage internalPage = (BTreeInternalPage) Database.getBufferPool().getPage(
+					tid, pid, Permissions.READ_ONLY);
+			Iterator<BTreeEntry> iterator = internalPage.iterator();
+			BTreeEntry currentEntry = null;
+
+			while(iterator.hasNext()) {
+				currentEntry = iterator.next();
+				if (f != null && f.compare(Op.LESS_THAN, currentEntry.getKey())) {
+					return findLastLeafPage(tid, currentEntry.getLeftChild(), perm, f);
+				} else if (!iterator.hasNext()) {
+					return findLastLeafPage(tid, currentEntry.getRightChild(), perm, f);
+				}
+			}
+
+		} else {
+			throw new DbException("Wasn't LEAF or INTERNAL node...");
+		}
+
+		throw new DbException("Iterator did not have a first element, should not be possible");
+	}
+
 	/**
 	 * Split a leaf page to make room for new tuples and recursively split the parent node
 	 * as needed to accommodate a new entry. The new entry should have a key matching the key field
@@ -303,7 +405,8 @@ public class BTreeFile implements DbFile {
 		newPage.setLeftSiblingId(page.getId());
 		page.setRightSiblingId(newPage.getId());
 
-		// Set new entry in parent
+		// Set new entry in parent, using the shortest key which still separates the two pages
+		middleField = getSeparatorKey(middleField, newPage.iterator().next().getField(keyField()));
 		BTreeEntry parentEntry = new BTreeEntry(middleField, page.getId(), newPage.getId());
 		
 		BTreeInternalPage parent = getParentWithEmptySlots(tid, dirtypages, page.getParentId(), middleField);
@@ -323,6 +426,33 @@ public class BTreeFile implements DbFile {
 		
 	}
 	
+	/**
+	 * Compute the key to copy up into the parent when splitting a leaf page. For string keys
+	 * this is the shortest prefix of the first key in the right-hand page which is still
+	 * greater than or equal to the last key in the left-hand page ("suffix truncation"),
+	 * which keeps the compact internal pages small. Other keys are returned unchanged.
+	 * 
+	 * @param leftKey - the last key in the left-hand page
+	 * @param rightKey - the first key in the right-hand page
+	 * @return a key k such that leftKey <= k <= rightKey
+	 */
+	private Field getSeparatorKey(Field leftKey, Field rightKey) {
+		if(leftKey.getType() != Type.STRING_TYPE) {
+			return leftKey;
+		}
+		String left = ((StringField) leftKey).getValue();
+		String right = ((StringField) rightKey).getValue();
+		int prefix = 0;
+		while(prefix < left.length() && prefix < right.length() && left.charAt(prefix) == right.charAt(prefix)) {
+			prefix++;
+		}
+		if(prefix == left.length()) {
+			// the left key is a prefix of the right key, so it is already as short as possible
+			return leftKey;
+		}
+		return new StringField(right.substring(0, prefix + 1), Type.STRING_LEN);
+	}
+
 	/**
 	 * Split an internal page to make room for new entries and recursively split its parent page
 	 * as needed to accommodate a new entry. The new entry for the parent should have a key matching 
@@ -629,7 +759,7 @@ public class BTreeFile implements DbFile {
 	 * @param leftEntry - the entry in the parent pointing to the given page and its left-sibling
 	 * @param rightEntry - the entry in the parent pointing to the given page and its right-sibling
 	 * @see #mergeLeafPages(TransactionId, HashMap, BTreeLeafPage, BTreeLeafPage, BTreeInternalPage, BTreeEntry)
-	 * @see #stealFromLeafPage(BTreeLeafPage, BTreeLeafPage, BTreeInternalPage,  BTreeEntry, boolean)
+	 * @see #stealFromLeafPage(TransactionId, HashMap, BTreeLeafPage, BTreeLeafPage, BTreeInternalPage,  BTreeEntry, boolean)
 	 * 
 	 * @throws DbException
 	 * @throws IOException
@@ -646,43 +776,60 @@ public class BTreeFile implements DbFile {
 		int maxEmptySlots = page.getMaxTuples() - page.getMaxTuples()/2; // ceiling
 		if(leftSiblingId != null) {
 			BTreeLeafPage leftSibling = (BTreeLeafPage) getPage(tid, dirtypages, leftSiblingId, Permissions.READ_WRITE);
-			// if the left sibling is at minimum occupancy, merge with it. Otherwise
-			// steal some tuples from it
-			if(leftSibling.getNumEmptySlots() >= maxEmptySlots) {
+			// if the left sibling is at minimum occupancy, or the two pages don't have enough
+			// tuples to both be half full, merge with it. Otherwise steal some tuples from it
+			if(leftSibling.getNumEmptySlots() >= maxEmptySlots || !canRedistribute(page, leftSibling)) {
 				mergeLeafPages(tid, dirtypages, leftSibling, page, parent, leftEntry);
 			}
 			else {
-				stealFromLeafPage(page, leftSibling, parent, leftEntry, false);				
+				stealFromLeafPage(tid, dirtypages, page, leftSibling, parent, leftEntry, false);				
 			}
 		}
 		else if(rightSiblingId != null) {	
 			BTreeLeafPage rightSibling = (BTreeLeafPage) getPage(tid, dirtypages, rightSiblingId, Permissions.READ_WRITE);
-			// if the right sibling is at minimum occupancy, merge with it. Otherwise
-			// steal some tuples from it
-			if(rightSibling.getNumEmptySlots() >= maxEmptySlots) {
+			// if the right sibling is at minimum occupancy, or the two pages don't have enough
+			// tuples to both be half full, merge with it. Otherwise steal some tuples from it
+			if(rightSibling.getNumEmptySlots() >= maxEmptySlots || !canRedistribute(page, rightSibling)) {
 				mergeLeafPages(tid, dirtypages, page, rightSibling, parent, rightEntry);
 			}
 			else {
-				stealFromLeafPage(page, rightSibling, parent, rightEntry, true);				
+				stealFromLeafPage(tid, dirtypages, page, rightSibling, parent, rightEntry, true);				
 			}
 		}
 	}
 	
+	/**
+	 * Returns true if two leaf pages hold enough tuples between them that both can be at
+	 * least half full. A page only falls this far below half full when its rebalancing was
+	 * deferred, since it is otherwise rebalanced as soon as it drops one tuple below.
+	 */
+	private boolean canRedistribute(BTreeLeafPage page, BTreeLeafPage sibling) {
+		return page.getNumTuples() + sibling.getNumTuples() >= 2 * (page.getMaxTuples()/2);
+	}
+
 	/**
 	 * Steal tuples from a sibling and copy them to the given page so that both pages are at least
 	 * half full.  Update the parent's entry so that the key matches the key field of the first
-	 * tuple in the right-hand page.
+	 * tuple in the right-hand page, or for string keys the shortest key which still separates
+	 * the two pages, as when a leaf page is split.
 	 * 
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
 	 * @param page - the leaf page which is less than half full
 	 * @param sibling - the sibling which has tuples to spare
 	 * @param parent - the parent of the two leaf pages
 	 * @param entry - the entry in the parent pointing to the two leaf pages
 	 * @param isRightSibling - whether the sibling is a right-sibling
+	 * @see #getSeparatorKey(Field, Field)
+	 * @see #updateParentEntry(TransactionId, HashMap, BTreeInternalPage, BTreeEntry, Field)
 	 * 
 	 * @throws DbException
+	 * @throws IOException
+	 * @throws TransactionAbortedException
 	 */
-	protected void stealFromLeafPage(BTreeLeafPage page, BTreeLeafPage sibling,
-			BTreeInternalPage parent, BTreeEntry entry, boolean isRightSibling) throws DbException {
+	protected void stealFromLeafPage(TransactionId tid, HashMap<PageId, Page> dirtypages, 
+			BTreeLeafPage page, BTreeLeafPage sibling, BTreeInternalPage parent, BTreeEntry entry, 
+			boolean isRightSibling) throws DbException, IOException, TransactionAbortedException {
 		// some code goes here
         //
         // Move some of the tuples from the sibling to the page so
@@ -698,10 +845,6 @@ public class BTreeFile implements DbFile {
 				sibling.deleteTuple(leftTuple);
 				page.insertTuple(leftTuple);
 			}
-			leftTuple = tupleIter.next();
-			entry.setKey(leftTuple.getField(keyField));
-			parent.updateEntry(entry);
-
 		} else {
 			// Left sibling logic 
 			Iterator<Tuple> tupleIter = sibling.reverseIterator();
@@ -711,10 +854,48 @@ public class BTreeFile implements DbFile {
 				sibling.deleteTuple(rightTuple);
 				page.insertTuple(rightTuple);
 			}
-			entry.setKey(rightTuple.getField(keyField));
+		}
+		BTreeLeafPage leftPage = isRightSibling ? page : sibling;
+		BTreeLeafPage rightPage = isRightSibling ? sibling : page;
+		Field key = rightPage.iterator().next().getField(keyField);
+		if(key.getType() == Type.STRING_TYPE) {
+			key = getSeparatorKey(leftPage.reverseIterator().next().getField(keyField), key);
+		}
+		updateParentEntry(tid, dirtypages, parent, entry, key);
+	}
+
+	/**
+	 * Replace the key of a parent entry after the tuples or entries of its two children were
+	 * redistributed. A longer key may not fit on a compact parent page, in which case the entry
+	 * is taken out and inserted again with the new key, splitting the parent as an insert would.
+	 * 
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param parent - the parent of the two pages
+	 * @param entry - the entry in the parent pointing to the two pages
+	 * @param key - the new key of the entry
+	 * @see #splitInternalPage(TransactionId, HashMap, BTreeInternalPage, Field)
+	 * 
+	 * @throws DbException
+	 * @throws IOException
+	 * @throws TransactionAbortedException
+	 */
+	private void updateParentEntry(TransactionId tid, HashMap<PageId, Page> dirtypages, 
+			BTreeInternalPage parent, BTreeEntry entry, Field key) 
+					throws DbException, IOException, TransactionAbortedException {
+		boolean fits = parent.canUpdateKey(entry, key);
+		entry.setKey(key);
+		if(fits) {
 			parent.updateEntry(entry);
-			
+			return;
 		}
+		parent.deleteKeyAndRightChild(entry);
+		if(parent.getNumEmptySlots() == 0) {
+			parent = splitInternalPage(tid, dirtypages, parent, key);
+		}
+		parent.insertEntry(entry);
+		updateParentPointers(tid, dirtypages, parent);
+		dirtypages.put(parent.getId(), parent);
 	}
 
 	/**
@@ -744,12 +925,11 @@ public class BTreeFile implements DbFile {
 		if(leftEntry != null) leftSiblingId = leftEntry.getLeftChild();
 		if(rightEntry != null) rightSiblingId = rightEntry.getRightChild();
 		
-		int maxEmptySlots = page.getMaxEntries() - page.getMaxEntries()/2; // ceiling
 		if(leftSiblingId != null) {
 			BTreeInternalPage leftSibling = (BTreeInternalPage) getPage(tid, dirtypages, leftSiblingId, Permissions.READ_WRITE);
 			// if the left sibling is at minimum occupancy, merge with it. Otherwise
 			// steal some entries from it
-			if(leftSibling.getNumEmptySlots() >= maxEmptySlots) {
+			if(leftSibling.isAtMinimumOccupancy()) {
 				mergeInternalPages(tid, dirtypages, leftSibling, page, parent, leftEntry);
 			}
 			else {
@@ -760,7 +940,7 @@ public class BTreeFile implements DbFile {
 			BTreeInternalPage rightSibling = (BTreeInternalPage) getPage(tid, dirtypages, rightSiblingId, Permissions.READ_WRITE);
 			// if the right sibling is at minimum occupancy, merge with it. Otherwise
 			// steal some entries from it
-			if(rightSibling.getNumEmptySlots() >= maxEmptySlots) {
+			if(rightSibling.isAtMinimumOccupancy()) {
 				mergeInternalPages(tid, dirtypages, page, rightSibling, parent, rightEntry);
 			}
 			else {
@@ -791,21 +971,24 @@ public class BTreeFile implements DbFile {
 			BTreeInternalPage page, BTreeInternalPage leftSibling, BTreeInternalPage parent,
 			BTreeEntry parentEntry) throws DbException, IOException, TransactionAbortedException {
 		// some code goes here
-		int numSteal = (leftSibling.getNumEntries() - page.getNumEntries()) / 2;
+		// rotate entries while that evens out the bytes the two pages use. With fixed-width
+		// keys this moves half the difference in entries
 		Iterator<BTreeEntry> entryIter = leftSibling.reverseIterator();
-		BTreeEntry leftEntry = null;
 		BTreeEntry middleEntry = new BTreeEntry(parentEntry.getKey(), null, page.iterator().next().getLeftChild());
-		for (int i=0; i < numSteal; i++) {
-			leftEntry = entryIter.next();
+		while (entryIter.hasNext()) {
+			BTreeEntry leftEntry = entryIter.next();
+			if (leftSibling.getUsedBytes() - page.getUsedBytes() < 
+					page.getEntrySize(middleEntry.getKey()) + leftSibling.getEntrySize(leftEntry.getKey())) {
+				break;
+			}
 			middleEntry.setLeftChild(leftEntry.getRightChild());
 			page.insertEntry(middleEntry);
 			middleEntry = new BTreeEntry(leftEntry.getKey(), null, leftEntry.getRightChild());
 			leftSibling.deleteKeyAndRightChild(leftEntry);
 		}
-		parentEntry.setKey(middleEntry.getKey());
-		parent.updateEntry(parentEntry);
 		updateParentPointers(tid, dirtypages, page);
 		updateParentPointers(tid, dirtypages, leftSibling);
+		updateParentEntry(tid, dirtypages, parent, parentEntry, middleEntry.getKey());
 	}
 	
 	/**
@@ -834,21 +1017,24 @@ public class BTreeFile implements DbFile {
 		// that the entries are evenly distributed. Be sure to update
 		// the corresponding parent entry. Be sure to update the parent
 		// pointers of all children in the entries that were moved.
-		int numSteal = (rightSibling.getNumEntries() - page.getNumEntries()) / 2;
+		// rotate entries while that evens out the bytes the two pages use. With fixed-width
+		// keys this moves half the difference in entries
 		Iterator<BTreeEntry> entryIter = rightSibling.iterator();
-		BTreeEntry rightEntry = null;
 		BTreeEntry middleEntry = new BTreeEntry(parentEntry.getKey(), page.reverseIterator().next().getRightChild(), null);
-		for (int i=0; i < numSteal; i++) {
-			rightEntry = entryIter.next();
+		while (entryIter.hasNext()) {
+			BTreeEntry rightEntry = entryIter.next();
+			if (rightSibling.getUsedBytes() - page.getUsedBytes() < 
+					page.getEntrySize(middleEntry.getKey()) + rightSibling.getEntrySize(rightEntry.getKey())) {
+				break;
+			}
 			middleEntry.setRightChild(rightEntry.getLeftChild());
 			page.insertEntry(middleEntry);
 			middleEntry = new BTreeEntry(rightEntry.getKey(), rightEntry.getLeftChild(), null);
 			rightSibling.deleteKeyAndLeftChild(rightEntry);
 		}
-		parentEntry.setKey(middleEntry.getKey());
-		parent.updateEntry(parentEntry);
 		updateParentPointers(tid, dirtypages, page);
 		updateParentPointers(tid, dirtypages, rightSibling);
+		updateParentEntry(tid, dirtypages, parent, parentEntry, middleEntry.getKey());
 	}
 	
 	/**
@@ -879,6 +1065,30 @@ public class BTreeFile implements DbFile {
 		// the sibling pointers, and make the right page available for reuse.
 		// Delete the entry in the parent corresponding to the two pages that are merging -
 		// deleteParentEntry() will be useful here
+		ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+		Iterator<Tuple> tupleIter = rightPage.iterator();
+		while(tupleIter.hasNext()) {
+			tuples.add(tupleIter.next());
+		}
+		for(Tuple t : tuples) {
+			rightPage.deleteTuple(t);
+			leftPage.insertTuple(t);
+		}
+		// two pages left under-full by deferred rebalancing may still be under-full together
+		int maxEmptySlots = leftPage.getMaxTuples() - leftPage.getMaxTuples()/2; // ceiling
+		if(minLeafFill < 0.5 && leftPage.getNumEmptySlots() > maxEmptySlots) {
+			underfullLeaves.add(leftPage.getId());
+		}
+
+		BTreePageId rightSiblingId = rightPage.getRightSiblingId();
+		leftPage.setRightSiblingId(rightSiblingId);
+		if(rightSiblingId != null) {
+			BTreeLeafPage rightSibling = (BTreeLeafPage) getPage(tid, dirtypages, rightSiblingId, Permissions.READ_WRITE);
+			rightSibling.setLeftSiblingId(leftPage.getId());
+		}
+
+		setEmptyPage(tid, dirtypages, rightPage.getId().pageNumber());
+		deleteParentEntry(tid, dirtypages, leftPage, parent, parentEntry);
 	}
 
 	/**
@@ -912,6 +1122,25 @@ public class BTreeFile implements DbFile {
 		// and make the right page available for reuse
 		// Delete the entry in the parent corresponding to the two pages that are merging -
 		// deleteParentEntry() will be useful here
+		ArrayList<BTreeEntry> entries = new ArrayList<BTreeEntry>();
+		Iterator<BTreeEntry> entryIter = rightPage.iterator();
+		while(entryIter.hasNext()) {
+			entries.add(entryIter.next());
+		}
+
+		// pull the parent key down between the last child of the left page and
+		// the first child of the right page
+		BTreeEntry middleEntry = new BTreeEntry(parentEntry.getKey(), 
+				leftPage.reverseIterator().next().getRightChild(), entries.get(0).getLeftChild());
+		leftPage.insertEntry(middleEntry);
+		for(BTreeEntry e : entries) {
+			rightPage.deleteKeyAndLeftChild(e);
+			leftPage.insertEntry(e);
+		}
+		updateParentPointers(tid, dirtypages, leftPage);
+
+		setEmptyPage(tid, dirtypages, rightPage.getId().pageNumber());
+		deleteParentEntry(tid, dirtypages, leftPage, parent, parentEntry);
 	}
 	
 	/**
@@ -940,8 +1169,7 @@ public class BTreeFile implements DbFile {
 		// the parent is below minimum occupancy, get some tuples from its siblings
 		// or merge with one of the siblings
 		parent.deleteKeyAndRightChild(parentEntry);
-		int maxEmptySlots = parent.getMaxEntries() - parent.getMaxEntries()/2; // ceiling
-		if(parent.getNumEmptySlots() == parent.getMaxEntries()) {
+		if(parent.getNumEntries() == 0) {
 			// This was the last entry in the parent.
 			// In this case, the parent (root node) should be deleted, and the merged 
 			// page will become the new root
@@ -956,7 +1184,7 @@ public class BTreeFile implements DbFile {
 			// release the parent page for reuse
 			setEmptyPage(tid, dirtypages, parent.getId().pageNumber());
 		}
-		else if(parent.getNumEmptySlots() > maxEmptySlots) { 
+		else if(parent.isLessThanHalfFull()) { 
 			handleMinOccupancyPage(tid, dirtypages, parent);
 		}
 	}
@@ -982,10 +1210,95 @@ public class BTreeFile implements DbFile {
 		page.deleteTuple(t);
 
 		// if the page is below minimum occupancy, get some tuples from its siblings
-		// or merge with one of the siblings
+		// or merge with one of the siblings. With deferred rebalancing, a page which is
+		// still above the minimum fill is only remembered for the next rebalance()
 		int maxEmptySlots = page.getMaxTuples() - page.getMaxTuples()/2; // ceiling
 		if(page.getNumEmptySlots() > maxEmptySlots) { 
-			handleMinOccupancyPage(tid, dirtypages, page);
+			if(page.getNumTuples() > 0 && page.getNumTuples() >= minLeafFill * page.getMaxTuples()) {
+				underfullLeaves.add(pageId);
+			}
+			else {
+				handleMinOccupancyPage(tid, dirtypages, page);
+			}
+		}
+
+		ArrayList<Page> dirtyPagesArr = new ArrayList<Page>();
+		dirtyPagesArr.addAll(dirtypages.values());
+		return dirtyPagesArr;
+	}
+
+	/**
+	 * Set the fill below which deleteTuple rebalances a leaf page right away. The default
+	 * of 0.5 rebalances every leaf page as soon as it becomes less than half full. A lower
+	 * fill defers rebalancing of pages which are still above it until {@link #rebalance},
+	 * so a stream of deletes does not steal from and merge the same pages over and over.
+	 * Until then such pages are allowed to stay less than half full.
+	 * 
+	 * @param minFill - the minimum fraction of a leaf page's slots which must be used,
+	 *            greater than 0 and at most 0.5
+	 * @throws IllegalArgumentException if minFill is out of range
+	 */
+	public void setMinLeafFill(double minFill) {
+		if(minFill <= 0 || minFill > 0.5) {
+			throw new IllegalArgumentException("minimum leaf fill must be in (0, 0.5]");
+		}
+		this.minLeafFill = minFill;
+	}
+
+	/**
+	 * Returns the fill below which deleteTuple rebalances a leaf page right away
+	 * @see #setMinLeafFill(double)
+	 */
+	public double getMinLeafFill() {
+		return minLeafFill;
+	}
+
+	/**
+	 * Returns the number of less than half full leaf pages waiting for {@link #rebalance}
+	 */
+	public int numUnderfullLeaves() {
+		return underfullLeaves.size();
+	}
+
+	/**
+	 * Rebalance the leaf pages which deleteTuple left less than half full because of deferred
+	 * rebalancing, by stealing from or merging with their siblings as deleteTuple would have.
+	 * Intended to be called at the end of a batch of deletes; the pages are visited in page 
+	 * number order, and pages which have since been refilled or freed are skipped.
+	 * 
+	 * @param tid - the transaction id
+	 * @return a list of all pages that were dirtied by this operation
+	 * @see #setMinLeafFill(double)
+	 * @see #handleMinOccupancyPage(TransactionId, HashMap, BTreePage)
+	 */
+	public ArrayList<Page> rebalance(TransactionId tid) 
+			throws DbException, IOException, TransactionAbortedException {
+		HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
+
+		// merging two under-full pages can leave another under-full page behind, so
+		// repeat until none are left. Every merge frees a page, so this terminates
+		while(!underfullLeaves.isEmpty()) {
+			ArrayList<BTreePageId> pending;
+			synchronized(underfullLeaves) {
+				pending = new ArrayList<BTreePageId>(underfullLeaves);
+			}
+			Collections.sort(pending, new Comparator<BTreePageId>() {
+				public int compare(BTreePageId a, BTreePageId b) {
+					return a.pageNumber() - b.pageNumber();
+				}
+			});
+
+			for(BTreePageId pid : pending) {
+				// merging an earlier page may have freed this one
+				if(!underfullLeaves.remove(pid)) {
+					continue;
+				}
+				BTreeLeafPage page = (BTreeLeafPage) getPage(tid, dirtypages, pid, Permissions.READ_WRITE);
+				int maxEmptySlots = page.getMaxTuples() - page.getMaxTuples()/2; // ceiling
+				if(page.getNumEmptySlots() > maxEmptySlots) {
+					handleMinOccupancyPage(tid, dirtypages, page);
+				}
+			}
 		}
 
 		ArrayList<Page> dirtyPagesArr = new ArrayList<Page>();
@@ -1025,6 +1338,8 @@ public class BTreeFile implements DbFile {
 	/**
 	 * Get the page number of the first empty page in this BTreeFile.
 	 * Creates a new page if none of the existing pages are empty.
+	 * The empty pages are kept in memory, so the header pages are only
+	 * read the first time this is called, not searched on every call.
 	 * 
 	 * @param tid - the transaction id
 	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
@@ -1036,50 +1351,83 @@ public class BTreeFile implements DbFile {
 	 */
 	protected int getEmptyPageNo(TransactionId tid, HashMap<PageId, Page> dirtypages) 
 			throws DbException, IOException, TransactionAbortedException {
-		// get a read lock on the root pointer page and use it to locate the first header page
-		BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages);
-		BTreePageId headerId = rootPtr.getHeaderId();
-		int emptyPageNo = 0;
+		loadFreePages(tid, dirtypages);
 
-		if(headerId != null) {
-			BTreeHeaderPage headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_ONLY);
-			int headerPageCount = 0;
-			// try to find a header page with an empty slot
-			while(headerPage != null && headerPage.getEmptySlot() == -1) {
-				headerId = headerPage.getNextPageId();
-				if(headerId != null) {
-					headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_ONLY);
-					headerPageCount++;
-				}
-				else {
-					headerPage = null;
-				}
-			}
+		Integer emptyPageNo;
+		synchronized(this) {
+			emptyPageNo = freePages.pollFirst();
+		}
 
-			// if headerPage is not null, it must have an empty slot
-			if(headerPage != null) {
-				headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_WRITE);
-				int emptySlot = headerPage.getEmptySlot();
-				headerPage.markSlotUsed(emptySlot, true);
-				emptyPageNo = headerPageCount * BTreeHeaderPage.getNumSlots() + emptySlot;
-			}
+		if(emptyPageNo != null) {
+			// mark the page as used in its header page
+			int numSlots = BTreeHeaderPage.getNumSlots();
+			BTreeHeaderPage headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, 
+					headerIds.get(emptyPageNo / numSlots), Permissions.READ_WRITE);
+			headerPage.markSlotUsed(emptyPageNo % numSlots, true);
+			return emptyPageNo;
 		}
 
-		// at this point if headerId is null, either there are no header pages 
-		// or there are no free slots
-		if(headerId == null) {		
-			synchronized(this) {
-				// create the new page
-				BufferedOutputStream bw = new BufferedOutputStream(
-						new FileOutputStream(f, true));
-				byte[] emptyData = BTreeInternalPage.createEmptyPageData();
-				bw.write(emptyData);
-				bw.close();
-				emptyPageNo = numPages();
+		// there are no free pages, so take the next page at the end of the file
+		return allocatePage();
+	}
+
+	/**
+	 * Take the next page at the end of the file, growing the file by an extent of
+	 * EXTENT_PAGES pages if all of the pages already in the file are in use
+	 * 
+	 * @return the page number of the new page
+	 * @throws IOException
+	 */
+	private synchronized int allocatePage() throws IOException {
+		int usedPages = numPages();
+		if(unusedPages == 0) {
+			byte[] extent = new byte[EXTENT_PAGES * BufferPool.getPageSize()];
+			Arrays.fill(extent, UNUSED_PAGE_BYTE);
+			RandomAccessFile rf = new RandomAccessFile(f, "rw");
+			rf.seek(BTreeRootPtrPage.getPageSize() + (long) usedPages * BufferPool.getPageSize());
+			rf.write(extent);
+			rf.close();
+			unusedPages = EXTENT_PAGES;
+		}
+		unusedPages--;
+		return usedPages + 1;
+	}
+
+	/**
+	 * Load the free pages recorded in the header pages of this file into memory, along 
+	 * with the ids of the header pages. Does nothing if they have already been loaded.
+	 * 
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * 
+	 * @throws DbException
+	 * @throws IOException
+	 * @throws TransactionAbortedException
+	 */
+	private synchronized void loadFreePages(TransactionId tid, HashMap<PageId, Page> dirtypages)
+			throws DbException, IOException, TransactionAbortedException {
+		if(freePages != null) {
+			return;
+		}
+		TreeSet<Integer> free = new TreeSet<Integer>();
+		ArrayList<BTreePageId> ids = new ArrayList<BTreePageId>();
+		int numSlots = BTreeHeaderPage.getNumSlots();
+
+		BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages);
+		BTreePageId headerId = rootPtr.getHeaderId();
+		while(headerId != null) {
+			BTreeHeaderPage headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_ONLY);
+			for(int slot = 0; slot < numSlots; slot++) {
+				if(!headerPage.isSlotUsed(slot)) {
+					free.add(ids.size() * numSlots + slot);
+				}
 			}
+			ids.add(headerId);
+			headerId = headerPage.getNextPageId();
 		}
 
-		return emptyPageNo; 
+		headerIds = ids;
+		freePages = free;
 	}
 	
 	/**
@@ -1153,54 +1501,41 @@ public class BTreeFile implements DbFile {
 //			}
 //		}
 
-		// otherwise, get a read lock on the root pointer page and use it to locate 
-		// the first header page
-		BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages);
-		BTreePageId headerId = rootPtr.getHeaderId();
-		BTreePageId prevId = null;
-		int headerPageCount = 0;
+		// otherwise, find the header page containing the slot corresponding to emptyPageNo
+		loadFreePages(tid, dirtypages);
+		int numSlots = BTreeHeaderPage.getNumSlots();
+		int headerIndex = emptyPageNo / numSlots;
 
-		// if there are no header pages, create the first header page and update
-		// the header pointer in the BTreeRootPtrPage
-		if(headerId == null) {
-			rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_WRITE);
-			
+		// add header pages until there is one with a slot corresponding to emptyPageNo.
+		// The first header page is pointed to by the BTreeRootPtrPage
+		while(headerIds.size() <= headerIndex) {
 			BTreeHeaderPage headerPage = (BTreeHeaderPage) getEmptyPage(tid, dirtypages, BTreePageId.HEADER);
-			headerId = headerPage.getId();
 			headerPage.init();
-			rootPtr.setHeaderId(headerId);
-		}
-
-		// iterate through all the existing header pages to find the one containing the slot
-		// corresponding to emptyPageNo
-		while(headerId != null && (headerPageCount + 1) * BTreeHeaderPage.getNumSlots() < emptyPageNo) {
-			BTreeHeaderPage headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_ONLY);
-			prevId = headerId;
-			headerId = headerPage.getNextPageId();
-			headerPageCount++;
+			if(headerIds.isEmpty()) {
+				BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, 
+						BTreeRootPtrPage.getId(tableid), Permissions.READ_WRITE);
+				rootPtr.setHeaderId(headerPage.getId());
+			}
+			else {
+				BTreePageId prevId = headerIds.get(headerIds.size() - 1);
+				BTreeHeaderPage prevPage = (BTreeHeaderPage) getPage(tid, dirtypages, prevId, Permissions.READ_WRITE);
+				headerPage.setPrevPageId(prevId);
+				prevPage.setNextPageId(headerPage.getId());
+			}
+			synchronized(this) {
+				headerIds.add(headerPage.getId());
+			}
 		}
 
-		// at this point headerId should either be null or set with 
-		// the headerPage containing the slot corresponding to emptyPageNo.
-		// Add header pages until we have one with a slot corresponding to emptyPageNo
-		while((headerPageCount + 1) * BTreeHeaderPage.getNumSlots() < emptyPageNo) {
-			BTreeHeaderPage prevPage = (BTreeHeaderPage) getPage(tid, dirtypages, prevId, Permissions.READ_WRITE);
-			
-			BTreeHeaderPage headerPage = (BTreeHeaderPage) getEmptyPage(tid, dirtypages, BTreePageId.HEADER);
-			headerId = headerPage.getId();
-			headerPage.init();
-			headerPage.setPrevPageId(prevId);
-			prevPage.setNextPageId(headerId);
-			
-			headerPageCount++;
-			prevId = headerId;
+		BTreeHeaderPage headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, 
+				headerIds.get(headerIndex), Permissions.READ_WRITE);
+		headerPage.markSlotUsed(emptyPageNo % numSlots, false);
+		synchronized(this) {
+			freePages.add(emptyPageNo);
 		}
 
-		// now headerId should be set with the headerPage containing the slot corresponding to 
-		// emptyPageNo
-		BTreeHeaderPage headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_WRITE);
-		int emptySlot = emptyPageNo - headerPageCount * BTreeHeaderPage.getNumSlots();
-		headerPage.markSlotUsed(emptySlot, false);
+		// a freed page no longer needs rebalancing
+		underfullLeaves.remove(new BTreePageId(tableid, emptyPageNo, BTreePageId.LEAF));
 	}
 
 	/**
@@ -1217,6 +1552,66 @@ public class BTreeFile implements DbFile {
 		return new BTreeSearchIterator(this, tid, ipred);
 	}
 
+	/**
+	 * Get the tuples from the file whose key lies between two bounds, on behalf of the
+	 * specified transaction. The iterator seeks directly to the first leaf page within
+	 * range and stops as soon as a key falls outside the range, so a bounded scan only
+	 * touches the leaf pages that overlap it. This method will acquire a read lock on the
+	 * affected pages of the file, and may block until the lock can be acquired.
+	 *
+	 * @param tid - the transaction id
+	 * @param lower - the lower bound, either GREATER_THAN or GREATER_THAN_OR_EQ. If null,
+	 *            the range is unbounded below
+	 * @param upper - the upper bound, either LESS_THAN or LESS_THAN_OR_EQ. If null, the
+	 *            range is unbounded above
+	 * @param descending - whether to return the tuples in descending key order
+	 * @return an iterator for the tuples within the range
+	 * @throws IllegalArgumentException if a bound uses an unsupported operation
+	 */
+	public DbFileIterator rangeIterator(TransactionId tid, IndexPredicate lower, IndexPredicate upper,
+			boolean descending) {
+		checkRangeBounds(lower, upper);
+		return new BTreeRangeIterator(this, tid, lower, upper, descending, false);
+	}
+
+	/**
+	 * Get an iterator over only the key field of the tuples whose key lies between two
+	 * bounds. Each tuple returned has the TupleDesc given by {@link #getKeyTupleDesc()}
+	 * and the RecordId of the tuple it was read from, so queries which only need the key
+	 * (covered projections and counts) never copy or project the other fields.
+	 * 
+	 * @param tid - the transaction id
+	 * @param lower - the lower bound, or null if the range is unbounded below
+	 * @param upper - the upper bound, or null if the range is unbounded above
+	 * @param descending - whether to return the keys in descending order
+	 * @return an iterator for the keys within the range
+	 * @throws IllegalArgumentException if a bound uses an unsupported operation
+	 * @see #rangeIterator(TransactionId, IndexPredicate, IndexPredicate, boolean)
+	 */
+	public DbFileIterator keyIterator(TransactionId tid, IndexPredicate lower, IndexPredicate upper,
+			boolean descending) {
+		checkRangeBounds(lower, upper);
+		return new BTreeRangeIterator(this, tid, lower, upper, descending, true);
+	}
+
+	/**
+	 * Returns the TupleDesc of the tuples returned by {@link #keyIterator}, which holds
+	 * just the key field of this file
+	 */
+	public TupleDesc getKeyTupleDesc() {
+		return new TupleDesc(new Type[] {td.getFieldType(keyField)}, 
+				new String[] {td.getFieldName(keyField)});
+	}
+
+	private void checkRangeBounds(IndexPredicate lower, IndexPredicate upper) {
+		if(lower != null && lower.getOp() != Op.GREATER_THAN && lower.getOp() != Op.GREATER_THAN_OR_EQ) {
+			throw new IllegalArgumentException("lower bound must be GREATER_THAN or GREATER_THAN_OR_EQ");
+		}
+		if(upper != null && upper.getOp() != Op.LESS_THAN && upper.getOp() != Op.LESS_THAN_OR_EQ) {
+			throw new IllegalArgumentException("upper bound must be LESS_THAN or LESS_THAN_OR_EQ");
+		}
+	}
+
 	/**
 	 * Get an iterator for all tuples in this B+ tree file in sorted order. This method 
 	 * will acquire a read lock on the affected pages of the file, and may block until 
@@ -1413,4 +1808,131 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 		super.close();
 		it = null;
 	}
-}
\ No newline at end of file
+}
+/**
+ * Helper class that implements the DbFileIterator for range scans on a
+ * B+ Tree File. Tuples (or just their keys) are returned in ascending or
+ * descending key order and the scan ends at the first key outside of the range.
+ */
+class BTreeRangeIterator extends AbstractDbFileIterator {
+
+	Iterator<Tuple> it = null;
+	BTreeLeafPage curp = null;
+
+	TransactionId tid;
+	BTreeFile f;
+	IndexPredicate lower;
+	IndexPredicate upper;
+	boolean descending;
+	TupleDesc keyTd;
+
+	/**
+	 * Constructor for this iterator
+	 * @param f - the BTreeFile containing the tuples
+	 * @param tid - the transaction id
+	 * @param lower - the lower bound of the range, or null if unbounded
+	 * @param upper - the upper bound of the range, or null if unbounded
+	 * @param descending - whether to iterate in descending key order
+	 * @param keyOnly - whether to return only the key field of each tuple
+	 */
+	public BTreeRangeIterator(BTreeFile f, TransactionId tid, IndexPredicate lower,
+			IndexPredicate upper, boolean descending, boolean keyOnly) {
+		this.f = f;
+		this.tid = tid;
+		this.lower = lower;
+		this.upper = upper;
+		this.descending = descending;
+		this.keyTd = keyOnly ? f.getKeyTupleDesc() : null;
+	}
+
+	/**
+	 * Open this iterator by seeking to the leaf page containing the bound
+	 * the scan starts from: the lower bound for ascending scans and the
+	 * upper bound for descending scans
+	 */
+	public void open() throws DbException, TransactionAbortedException {
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
+				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
+		BTreePageId root = rootPtr.getRootId();
+		if(descending) {
+			curp = f.findLastLeafPage(tid, root, Permissions.READ_ONLY,
+					upper == null ? null : upper.getField());
+			it = curp.reverseIterator();
+		}
+		else {
+			curp = f.findLeafPage(tid, root, Permissions.READ_ONLY,
+					lower == null ? null : lower.getField());
+			it = curp.iterator();
+		}
+	}
+
+	/**
+	 * @return true if the key satisfies the given bound (or the bound is null)
+	 */
+	private boolean satisfies(Field key, IndexPredicate bound) {
+		return bound == null || key.compare(bound.getOp(), bound.getField());
+	}
+
+	/**
+	 * Read the next tuple within the range either from the current page or from
+	 * the next page by following the right (or, when descending, left) sibling pointer.
+	 * 
+	 * @return the next tuple within the range, or null if none exists
+	 */
+	@Override
+	protected Tuple readNext() throws TransactionAbortedException, DbException {
+		// the bound the scan starts from is only used to skip leading tuples,
+		// the other bound ends the scan
+		IndexPredicate start = descending ? upper : lower;
+		IndexPredicate stop = descending ? lower : upper;
+		while (it != null) {
+
+			while (it.hasNext()) {
+				Tuple t = it.next();
+				Field key = t.getField(f.keyField());
+				if (!satisfies(key, stop)) {
+					it = null;
+					return null;
+				}
+				if (satisfies(key, start)) {
+					if (keyTd == null)
+						return t;
+					Tuple kt = new Tuple(keyTd);
+					kt.setField(0, key);
+					kt.setRecordId(t.getRecordId());
+					return kt;
+				}
+			}
+
+			BTreePageId nextp = descending ? curp.getLeftSiblingId() : curp.getRightSiblingId();
+			// if there are no more pages in the scan direction, end the iteration
+			if(nextp == null) {
+				it = null;
+			}
+			else {
+				curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
+						nextp, Permissions.READ_ONLY);
+				it = descending ? curp.reverseIterator() : curp.iterator();
+			}
+		}
+
+		return null;
+	}
+
+	/**
+	 * rewind this iterator back to the beginning of the range
+	 */
+	public void rewind() throws DbException, TransactionAbortedException {
+		close();
+		open();
+	}
+
+	/**
+	 * close the iterator
+	 */
+	public void close() {
+		super.close();
+		it = null;
+		curp = null;
+	}
+}
@@ -629,6 +629,10 @@ public class BTreeFileEncoder {
 		int pointerbytes = 2 * BTreeLeafPage.INDEX_SIZE + 1; 
 		int nentries = (npagebytes * 8 - pointerbytes * 8 - 1) /  (nentrybytes * 8 + 1);  //floor comes for free
 
+		if(BTreeInternalPage.isCompact(keyType)) {
+			return convertToCompactInternalPage(entries, npagebytes, nentries, childPageCategory);
+		}
+
 		//  per entry, we need one bit; there are nentries per page, so we need
 		// nentries bits, plus 1 for the extra child pointer.
 		int nheaderbytes = (nentries + 1) / 8;
@@ -697,6 +701,57 @@ public class BTreeFileEncoder {
 
 	}
 
+	/**
+	 * Convert a set of entries to a byte array in the compact format of a BTreeInternalPage
+	 * used for string keys. At most nentries entries are written, which is the number of
+	 * fixed-width entries fitting on a page, so the entries always fit.
+	 * 
+	 * @param entries - the set of entries
+	 * @param npagebytes - number of bytes per page
+	 * @param nentries - the maximum number of entries to write
+	 * @param childPageCategory - the category of the child pages (either internal or leaf)
+	 * @return a byte array which can be passed to the BTreeInternalPage constructor
+	 * @throws IOException
+	 */
+	private static byte[] convertToCompactInternalPage(ArrayList<BTreeEntry> entries, int npagebytes,
+			int nentries, int childPageCategory)
+					throws IOException {
+		int nslots = BTreeInternalPage.getMaxEntries(Type.STRING_TYPE) + 1;
+		int nheaderbytes = nslots / 8;
+		if (nheaderbytes * 8 < nslots)
+			nheaderbytes++;  //ceiling
+
+		ByteArrayOutputStream baos = new ByteArrayOutputStream(npagebytes);
+		DataOutputStream dos = new DataOutputStream(baos);
+
+		int entrycount = entries.size();
+		if (entrycount > nentries)
+			entrycount = nentries;
+
+		dos.writeInt(0); // parent pointer
+		dos.writeByte((byte) childPageCategory);
+
+		// the used slots are the extra child pointer and the first entrycount entries
+		byte[] header = new byte[nheaderbytes];
+		for (int i=0; i<entrycount + 1; i++)
+			header[i / 8] |= (1 << (i % 8));
+		dos.write(header);
+
+		Collections.sort(entries, new EntryComparator());
+		dos.writeInt(entries.get(0).getLeftChild().pageNumber());
+		for(int e = 0; e < entrycount; e++) {
+			String key = ((StringField) entries.get(e).getKey()).getValue();
+			dos.writeInt(entries.get(e).getRightChild().pageNumber());
+			dos.writeByte(key.length());
+			dos.writeBytes(key);
+		}
+
+		// pad the rest of the page with zeroes
+		dos.write(new byte[npagebytes - dos.size()]);
+
+		return baos.toByteArray();
+	}
+
 	/**
 	 * Create a byte array in the format of a BTreeRootPtrPage
 	 * 
@@ -18,6 +18,10 @@ public class BTreeInternalPage extends BTreePage {
 	private final Field keys[];
 	private final int children[];
 	private final int numSlots;
+	// the number of used entry slots, and on a compact page the number of bytes their
+	// entries occupy, counted when the page is read and kept up to date as it changes
+	private int numEntries;
+	private int compactUsedBytes;
 	
 	private int childCategory; // either leaf or internal
 
@@ -37,7 +41,7 @@ public class BTreeInternalPage extends BTreePage {
 		}
 
 		if (checkOccupancy && depth > 0) {
-			assert (getNumEntries() >= getMaxEntries() / 2);
+			assert (!isLessThanHalfFull());
 		}
 	}
 	
@@ -57,6 +61,12 @@ public class BTreeInternalPage extends BTreePage {
 	 * <p>
 	 *      ceiling((no. entry slots + 1) / 8)
 	 * <p>
+	 * Pages keyed on a STRING_TYPE field use a compact, variable-length format instead,
+	 * since a fixed-width string key would leave room for only a few dozen entries.
+	 * After the header, the extra child pointer is followed by each used entry in slot
+	 * order, stored as its child pointer, a one-byte key length and the key bytes. The
+	 * number of entry slots is computed as above with an empty key, and the page is
+	 * full once there is no longer room for an entry with a key of the maximum length.
 	 * @see Database#getCatalog
 	 * @see Catalog#getTupleDesc
 	 * @see BufferPool#getPageSize()
@@ -85,8 +95,19 @@ public class BTreeInternalPage extends BTreePage {
 		header = new byte[getHeaderSize()];
 		for (int i=0; i<header.length; i++)
 			header[i] = dis.readByte();
+		for (int i=1; i<numSlots; i++)
+			if (isSlotUsed(i))
+				numEntries++;
 
 		keys = new Field[numSlots];
+		children = new int[numSlots];
+		if(isCompact()) {
+			readCompactEntries(dis);
+			dis.close();
+			setBeforeImage();
+			return;
+		}
+
 		try{
 			// allocate and read the keys of this page
 			// start from 1 because the first key slot is not used
@@ -98,7 +119,6 @@ public class BTreeInternalPage extends BTreePage {
 			e.printStackTrace();
 		}
 
-		children = new int[numSlots];
 		try{
 			// allocate and read the child pointers of this page
 			for (int i=0; i<children.length; i++)
@@ -115,7 +135,16 @@ public class BTreeInternalPage extends BTreePage {
 	 * Retrieve the maximum number of entries this page can hold. (The number of keys)
  	 */
 	public int getMaxEntries() {        
-		int keySize = td.getFieldType(keyField).getLen();
+		return getMaxEntries(td.getFieldType(keyField));
+	}
+
+	/**
+	 * Retrieve the maximum number of entries a page keyed on the given type can hold.
+	 * @param keyType - the type of the key field
+	 */
+	static int getMaxEntries(Type keyType) {
+		// compact pages store a one byte length instead of a fixed-width key
+		int keySize = isCompact(keyType) ? 1 : keyType.getLen();
 		int bitsPerEntryIncludingHeader = keySize * 8 + INDEX_SIZE * 8 + 1;
 		// extraBits are: one parent pointer, 1 byte for child page category, 
 		// one extra child pointer (node with m entries has m+1 pointers to children), 1 bit for extra header
@@ -124,6 +153,123 @@ public class BTreeInternalPage extends BTreePage {
 		return entriesPerPage;
 	}
 
+	/**
+	 * @return true if pages keyed on the given type use the compact, variable-length format
+	 * @param keyType - the type of the key field
+	 */
+	static boolean isCompact(Type keyType) {
+		return keyType == Type.STRING_TYPE;
+	}
+
+	/**
+	 * @return true if this page uses the compact, variable-length format
+	 */
+	public boolean isCompact() {
+		return isCompact(td.getFieldType(keyField));
+	}
+
+	/**
+	 * @return the number of bytes an entry with the given key occupies in the compact format
+	 */
+	private static int getCompactEntrySize(Field key) {
+		return INDEX_SIZE + 1 + ((StringField) key).getValue().length();
+	}
+
+	/**
+	 * @return the number of bytes available for entries on a compact page
+	 */
+	private int getCompactCapacity() {
+		return BufferPool.getPageSize() - (2 * INDEX_SIZE + 1 + getHeaderSize());
+	}
+
+	/**
+	 * @return the number of bytes used by the entries on a compact page, not counting
+	 * the extra child pointer
+	 */
+	private int getCompactUsedBytes() {
+		return compactUsedBytes;
+	}
+
+	/**
+	 * Read the entries of a compact page. Only used slots are stored, in slot order.
+	 */
+	private void readCompactEntries(DataInputStream dis) throws IOException {
+		for (int i=0; i<numSlots; i++) {
+			if (!isSlotUsed(i)) {
+				children[i] = -1;
+				continue;
+			}
+			children[i] = dis.readInt();
+			if (i > 0) {
+				byte bs[] = new byte[dis.readUnsignedByte()];
+				dis.readFully(bs);
+				keys[i] = new StringField(new String(bs), Type.STRING_LEN);
+				compactUsedBytes += getCompactEntrySize(keys[i]);
+			}
+		}
+	}
+
+	/**
+	 * Write the entries of a compact page, followed by padding up to the page size.
+	 */
+	private void writeCompactEntries(DataOutputStream dos) throws IOException {
+		int written = 0;
+		for (int i=0; i<numSlots; i++) {
+			if (!isSlotUsed(i))
+				continue;
+			dos.writeInt(children[i]);
+			written += INDEX_SIZE;
+			if (i > 0) {
+				String s = ((StringField) keys[i]).getValue();
+				dos.writeByte(s.length());
+				dos.writeBytes(s);
+				written += 1 + s.length();
+			}
+		}
+		dos.write(new byte[BufferPool.getPageSize() - (INDEX_SIZE + 1 + header.length + written)]);
+	}
+
+	/**
+	 * @return the number of bytes an entry with the given key occupies on this page
+	 */
+	public int getEntrySize(Field key) {
+		if (isCompact())
+			return getCompactEntrySize(key);
+		return INDEX_SIZE + td.getFieldType(keyField).getLen();
+	}
+
+	/**
+	 * @return the number of bytes used by the entries on this page, not counting the
+	 * extra child pointer
+	 */
+	public int getUsedBytes() {
+		if (isCompact())
+			return getCompactUsedBytes();
+		return getNumEntries() * (INDEX_SIZE + td.getFieldType(keyField).getLen());
+	}
+
+	/**
+	 * Returns true if this page is less than half full. Compact pages measure
+	 * occupancy in bytes rather than in entries.
+	 */
+	public boolean isLessThanHalfFull() {
+		if (isCompact())
+			return getCompactUsedBytes() * 2 < getCompactCapacity();
+		return getNumEntries() < getMaxEntries() / 2;
+	}
+
+	/**
+	 * Returns true if this page has no entries to spare, so a less than half full
+	 * sibling should be merged with it rather than steal from it. A compact page
+	 * counts as such only if a merge is guaranteed to fit, including the key pulled
+	 * down from the parent.
+	 */
+	public boolean isAtMinimumOccupancy() {
+		if (isCompact())
+			return getCompactUsedBytes() + INDEX_SIZE + 1 + Type.STRING_LEN <= getCompactCapacity() / 2;
+		return getNumEntries() <= getMaxEntries() / 2;
+	}
+
 	/**
 	 * Computes the number of bytes in the header of a B+ internal page with each entry occupying entrySize bytes
 	 * @return the number of bytes in the header
@@ -262,6 +408,16 @@ public class BTreeInternalPage extends BTreePage {
 			}
 		}
 
+		if (isCompact()) {
+			try {
+				writeCompactEntries(dos);
+				dos.flush();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			return baos.toByteArray();
+		}
+
 		// create the keys
 		// start from 1 because the first key slot is not used
 		// since a node with m keys has m+1 pointers
@@ -352,6 +508,8 @@ public class BTreeInternalPage extends BTreePage {
 			throw new DbException("tried to delete entry on invalid page or table");
 		if (!isSlotUsed(rid.tupleno()))
 			throw new DbException("tried to delete null entry.");
+		if(isCompact())
+			compactUsedBytes -= getCompactEntrySize(keys[rid.tupleno()]);
 		if(deleteRightChild) {
 			markSlotUsed(rid.tupleno(), false); 
 		}
@@ -429,10 +587,31 @@ public class BTreeInternalPage extends BTreePage {
 				break;
 			}	
 		}
+		if(!canUpdateKey(e, e.getKey())) {
+			throw new DbException("attempt to update entry with key " + e.getKey() + 
+					" which does not fit on the page");
+		}
+		if(isCompact())
+			compactUsedBytes += getCompactEntrySize(e.getKey()) - getCompactEntrySize(keys[rid.tupleno()]);
 		children[rid.tupleno()] = e.getRightChild().pageNumber(); 
 		keys[rid.tupleno()] = e.getKey();
 	}
 
+	/**
+	 * Returns true if the key of an entry on this page can be replaced by the given key
+	 * without overflowing the page. Only a compact page can overflow this way, when the
+	 * new key is longer than the old one.
+	 * @param e - an entry on this page, whose record id locates it
+	 * @param key - the new key
+	 */
+	public boolean canUpdateKey(BTreeEntry e, Field key) {
+		if(!isCompact())
+			return true;
+		int tupleno = e.getRecordId().tupleno();
+		return getCompactUsedBytes() - getCompactEntrySize(keys[tupleno]) + 
+				getCompactEntrySize(key) <= getCompactCapacity();
+	}
+
 	/**
 	 * Adds the specified entry to the page; the entry's recordId should be updated to 
 	 * reflect that it is now stored on this page.
@@ -456,13 +635,18 @@ public class BTreeInternalPage extends BTreePage {
 		else if(e.getLeftChild().pgcateg() != childCategory || e.getRightChild().pgcateg() != childCategory)
 			throw new DbException("child page category mismatch in insertEntry");
 
+		if(isCompact() && getCompactUsedBytes() + getCompactEntrySize(e.getKey()) > getCompactCapacity())
+			throw new DbException("called insertEntry on page with no room for the key.");
+
 		// if this is the first entry, add it and return
-		if(getNumEmptySlots() == getMaxEntries()) {
+		if(getNumEntries() == 0) {
 			children[0] = e.getLeftChild().pageNumber();
 			children[1] = e.getRightChild().pageNumber();
 			keys[1] = e.getKey();
 			markSlotUsed(0, true);
 			markSlotUsed(1, true);
+			if(isCompact())
+				compactUsedBytes += getCompactEntrySize(e.getKey());
 			e.setRecordId(new RecordId(pid, 1));
 			return;
 		}
@@ -543,6 +727,8 @@ public class BTreeInternalPage extends BTreePage {
 		keys[goodSlot] = e.getKey();
 		children[goodSlot] = e.getRightChild().pageNumber();
 		e.setRecordId(new RecordId(pid, goodSlot));
+		if(isCompact())
+			compactUsedBytes += getCompactEntrySize(e.getKey());
 	}
 
 	/**
@@ -562,20 +748,28 @@ public class BTreeInternalPage extends BTreePage {
 	 * Returns the number of entries (keys) currently stored on this page
 	 */
 	public int getNumEntries() {
-		return numSlots - getNumEmptySlots() - 1;
+		return numEntries;
 	}
 	
 	/**
-	 * Returns the number of empty slots on this page.
+	 * Returns the number of empty slots on this page. For compact pages this is the
+	 * number of entries with a maximum length key which are guaranteed to fit.
 	 */
 	public int getNumEmptySlots() {
-		int cnt = 0;
-		// start from 1 because the first key slot is not used
-		// since a node with m keys has m+1 pointers
-		for(int i=1; i<numSlots; i++)
-			if(!isSlotUsed(i))
-				cnt++;
-		return cnt;
+		if (isCompact()) {
+			int maxEntrySize = INDEX_SIZE + 1 + Type.STRING_LEN;
+			return Math.min(getNumFreeSlots(), 
+					(getCompactCapacity() - getCompactUsedBytes()) / maxEntrySize);
+		}
+		return getNumFreeSlots();
+	}
+
+	/**
+	 * Returns the number of unused entry slots on this page.
+	 */
+	private int getNumFreeSlots() {
+		// the first key slot is not used since a node with m keys has m+1 pointers
+		return numSlots - 1 - numEntries;
 	}
 
 	/**
@@ -595,6 +789,8 @@ public class BTreeInternalPage extends BTreePage {
 		int headerbyte = (i - headerbit) / 8;
 
 		Debug.log(1, "BTreeInternalPage.setSlot: setting slot %d to %b", i, value);
+		if(i > 0 && value != isSlotUsed(i))
+			numEntries += value ? 1 : -1;
 		if(value)
 			header[headerbyte] |= 1 << headerbit;
 		else
@@ -0,0 +1,130 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * BTreeKeyScan is an operator which reads only the key field of a B+ tree
+ * in sorted order, optionally restricted to a range of keys. The planner uses
+ * it for index-only scans, when a query needs nothing from a table but its key.
+ */
+public class BTreeKeyScan implements DbIterator {
+
+	private static final long serialVersionUID = 1L;
+
+	private boolean isOpen = false;
+	private TransactionId tid;
+	private TupleDesc myTd;
+	private IndexPredicate lower;
+	private IndexPredicate upper;
+	private transient DbFileIterator it;
+	private String tablename;
+	private String alias;
+
+	/**
+	 * Creates a key-only scan over the specified B+ tree as a part of the
+	 * specified transaction.
+	 *
+	 * @param tid
+	 *            The transaction this scan is running as a part of.
+	 * @param tableid
+	 *            the table to scan. It must be stored in a BTreeFile.
+	 * @param tableAlias
+	 *            the alias of this table (needed by the parser); the returned
+	 *            tupleDesc has a single field named tableAlias.keyFieldName
+	 * @param lower
+	 *            The lower bound of the keys to return (GREATER_THAN or
+	 *            GREATER_THAN_OR_EQ). If null, the scan is unbounded below
+	 * @param upper
+	 *            The upper bound of the keys to return (LESS_THAN or
+	 *            LESS_THAN_OR_EQ). If null, the scan is unbounded above
+	 */
+	public BTreeKeyScan(TransactionId tid, int tableid, String tableAlias,
+			IndexPredicate lower, IndexPredicate upper) {
+		this.tid = tid;
+		this.lower = lower;
+		this.upper = upper;
+		reset(tableid, tableAlias);
+	}
+
+	public BTreeKeyScan(TransactionId tid, int tableid, IndexPredicate lower, IndexPredicate upper) {
+		this(tid, tableid, Database.getCatalog().getTableName(tableid), lower, upper);
+	}
+
+	/**
+	 * @return
+	 *       return the table name of the table the operator scans. This should
+	 *       be the actual name of the table in the catalog of the database
+	 * */
+	public String getTableName() {
+		return this.tablename;
+	}
+
+	/**
+	 * @return Return the alias of the table this operator scans.
+	 * */
+	public String getAlias()
+	{
+		return this.alias;
+	}
+
+	/**
+	 * Reset the tableid, and tableAlias of this operator.
+	 * @param tableid
+	 *            the table to scan.
+	 * @param tableAlias
+	 *            the alias of this table (needed by the parser)
+	 */
+	public void reset(int tableid, String tableAlias) {
+		this.isOpen = false;
+		this.alias = tableAlias;
+		this.tablename = Database.getCatalog().getTableName(tableid);
+		BTreeFile f = (BTreeFile) Database.getCatalog().getDatabaseFile(tableid);
+		this.it = f.keyIterator(tid, lower, upper, false);
+		TupleDesc keyTd = f.getKeyTupleDesc();
+		myTd = new TupleDesc(new Type[] {keyTd.getFieldType(0)},
+				new String[] {tableAlias + "." + keyTd.getFieldName(0)});
+	}
+
+	public void open() throws DbException, TransactionAbortedException {
+		if (isOpen)
+			throw new DbException("double open on one DbIterator.");
+
+		it.open();
+		isOpen = true;
+	}
+
+	/**
+	 * Returns a TupleDesc with the key field of the underlying BTreeFile,
+	 * prefixed with the tableAlias string from the constructor.
+	 */
+	public TupleDesc getTupleDesc() {
+		return myTd;
+	}
+
+	public boolean hasNext() throws TransactionAbortedException, DbException {
+		if (!isOpen)
+			throw new IllegalStateException("iterator is closed");
+		return it.hasNext();
+	}
+
+	public Tuple next() throws NoSuchElementException,
+	TransactionAbortedException, DbException {
+		if (!isOpen)
+			throw new IllegalStateException("iterator is closed");
+
+		Tuple t = it.next();
+		t.resetTupleDesc(myTd);
+		return t;
+	}
+
+	public void close() {
+		it.close();
+		isOpen = false;
+	}
+
+	public void rewind() throws DbException, NoSuchElementException,
+	TransactionAbortedException {
+		close();
+		open();
+	}
+}
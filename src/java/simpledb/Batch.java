@@ -0,0 +1,305 @@
+package simpledb;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * Batch holds up to a few thousand rows of a TupleDesc as column vectors,
+ * for operators that process a batch of rows per call instead of a Tuple at
+ * a time. Integer columns are int[], long columns are long[], and other
+ * columns are arrays of their Fields, so that reading or writing an
+ * integer value neither allocates nor goes through a Field.
+ * <p>
+ * Rows 0 to numRows() - 1 of the columns are filled. Of those, only the
+ * rows in the selection vector are part of the batch: a filter removes rows
+ * by shrinking the selection rather than by moving values. When every row
+ * is selected there is no selection vector, and row i of the batch is row
+ * i of the columns.
+ */
+public class Batch implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /** The number of rows operators put in a batch */
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    private final TupleDesc td;
+    // columns[c] is an int[], a long[] or a Field[], by the type of field c
+    private final Object[] columns;
+    private int capacity;
+    private int numRows;
+    // the selected rows in increasing order, or null if all rows are
+    // selected; size is the number of selected rows
+    private int[] selection;
+    private int size;
+    // the array selection uses when it is set, reused across batches
+    private int[] selectionBuffer;
+
+    /**
+     * Create an empty batch of DEFAULT_CAPACITY rows.
+     */
+    public Batch(TupleDesc td) {
+        this(td, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Create an empty batch.
+     *
+     * @param td
+     *            the schema of the rows
+     * @param capacity
+     *            the number of rows the columns have room for
+     */
+    public Batch(TupleDesc td, int capacity) {
+        if (capacity <= 0)
+            throw new IllegalArgumentException("capacity must be positive");
+        this.td = td;
+        this.capacity = capacity;
+        this.columns = new Object[td.numFields()];
+        for (int c = 0; c < columns.length; c++)
+            columns[c] = newColumn(td.getFieldType(c), capacity);
+    }
+
+    /**
+     * Create a batch over some columns of another one, sharing their arrays
+     * and selection.
+     */
+    private Batch(TupleDesc td, Batch source, int[] cols) {
+        this.td = td;
+        this.capacity = source.capacity;
+        this.columns = new Object[cols.length];
+        for (int c = 0; c < cols.length; c++)
+            columns[c] = source.columns[cols[c]];
+        this.numRows = source.numRows;
+        this.selection = source.selection;
+        this.size = source.size;
+        this.selectionBuffer = source.selectionBuffer();
+    }
+
+    private static Object newColumn(Type type, int capacity) {
+        if (type == Type.INT_TYPE)
+            return new int[capacity];
+        if (type == Type.LONG_TYPE)
+            return new long[capacity];
+        return new Field[capacity];
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    /** @return the number of rows the columns have room for */
+    public int capacity() {
+        return capacity;
+    }
+
+    /** @return the number of filled rows of the columns, selected or not */
+    public int numRows() {
+        return numRows;
+    }
+
+    /** @return the number of selected rows, which make up the batch */
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /** @return true if no more rows can be added without growing */
+    public boolean isFull() {
+        return numRows == capacity;
+    }
+
+    /**
+     * @return the row of the columns that is row i of the batch
+     * @param i
+     *            a row of the batch, less than size()
+     */
+    public int row(int i) {
+        return selection == null ? i : selection[i];
+    }
+
+    /**
+     * @return the selection vector, whose first size() entries are the
+     *         selected rows in increasing order, or null if every filled row
+     *         is selected
+     */
+    public int[] selection() {
+        return selection;
+    }
+
+    /**
+     * @return an array of capacity() entries in which to build a new
+     *         selection for {@link #select}. It may be the current selection
+     *         vector, so a selection must be refined in place, writing each
+     *         entry at or before the one it was read from.
+     */
+    public int[] selectionBuffer() {
+        if (selectionBuffer == null || selectionBuffer.length < capacity)
+            selectionBuffer = new int[capacity];
+        return selectionBuffer;
+    }
+
+    /**
+     * Select the rows in the first size entries of selectionBuffer().
+     */
+    public void select(int size) {
+        this.selection = selectionBuffer();
+        this.size = size;
+    }
+
+    /**
+     * Remove all rows, keeping the columns for reuse.
+     */
+    public void clear() {
+        numRows = 0;
+        size = 0;
+        selection = null;
+        for (Object col : columns)
+            if (col instanceof Field[])
+                Arrays.fill((Field[]) col, null);
+    }
+
+    /**
+     * Set the number of filled rows after writing the columns directly, and
+     * select all of them.
+     */
+    public void setNumRows(int numRows) {
+        if (numRows < 0 || numRows > capacity)
+            throw new IllegalArgumentException("bad number of rows " + numRows);
+        this.numRows = numRows;
+        this.size = numRows;
+        this.selection = null;
+    }
+
+    /** @return the values of integer column c */
+    public int[] getInts(int c) {
+        return (int[]) columns[c];
+    }
+
+    /** @return the values of long column c */
+    public long[] getLongs(int c) {
+        return (long[]) columns[c];
+    }
+
+    /** @return the values of column c, of a type other than int or long */
+    public Field[] getFields(int c) {
+        return (Field[]) columns[c];
+    }
+
+    /**
+     * @return the value of column c at row row of the columns, as a Field
+     */
+    public Field getField(int c, int row) {
+        Object col = columns[c];
+        if (col instanceof int[])
+            return new IntField(((int[]) col)[row]);
+        if (col instanceof long[])
+            return new LongField(((long[]) col)[row]);
+        return ((Field[]) col)[row];
+    }
+
+    /**
+     * @return a new Tuple with the values of row row of the columns
+     */
+    public Tuple getTuple(int row) {
+        Tuple t = new Tuple(td);
+        for (int c = 0; c < columns.length; c++)
+            t.setField(c, getField(c, row));
+        return t;
+    }
+
+    /**
+     * Append the fields of a tuple as a new, selected row.
+     *
+     * @throws IllegalStateException
+     *             if the batch is full, or not every row is selected
+     */
+    public void addTuple(Tuple t) {
+        if (numRows == capacity)
+            throw new IllegalStateException("batch is full");
+        if (selection != null)
+            throw new IllegalStateException("cannot add rows to a filtered batch");
+        for (int c = 0; c < columns.length; c++) {
+            Object col = columns[c];
+            if (col instanceof int[])
+                ((int[]) col)[numRows] = ((IntField) t.getField(c)).getValue();
+            else if (col instanceof long[])
+                ((long[]) col)[numRows] = ((LongField) t.getField(c)).getValue();
+            else
+                ((Field[]) col)[numRows] = t.getField(c);
+        }
+        numRows++;
+        size++;
+    }
+
+    /**
+     * Append the selected rows of another batch with the same types, growing
+     * the columns if they are full. The result has no selection vector.
+     */
+    public void append(Batch other) {
+        if (selection != null)
+            throw new IllegalStateException("cannot add rows to a filtered batch");
+        if (numRows + other.size > capacity)
+            grow(Math.max(capacity * 2, numRows + other.size));
+        for (int c = 0; c < columns.length; c++)
+            gather(c, numRows, other, c, other.selection, 0, other.size);
+        numRows += other.size;
+        size = numRows;
+    }
+
+    /**
+     * Copy values of a column of another batch into a column of this one:
+     * row rows[from + i] of the source (or row from + i, if rows is null) is
+     * written to row offset + i, for i from 0 to n - 1. The number of rows
+     * of this batch is not changed.
+     */
+    public void gather(int c, int offset, Batch src, int srcCol, int[] rows, int from, int n) {
+        Object source = src.columns[srcCol];
+        Object to = columns[c];
+        if (rows == null) {
+            System.arraycopy(source, from, to, offset, n);
+        } else if (source instanceof int[]) {
+            int[] f = (int[]) source;
+            int[] t = (int[]) to;
+            for (int i = 0; i < n; i++)
+                t[offset + i] = f[rows[from + i]];
+        } else if (source instanceof long[]) {
+            long[] f = (long[]) source;
+            long[] t = (long[]) to;
+            for (int i = 0; i < n; i++)
+                t[offset + i] = f[rows[from + i]];
+        } else {
+            Field[] f = (Field[]) source;
+            Field[] t = (Field[]) to;
+            for (int i = 0; i < n; i++)
+                t[offset + i] = f[rows[from + i]];
+        }
+    }
+
+    /**
+     * @return a batch of the specified columns of this one, with the same
+     *         rows and selection. It shares the arrays of this batch, so it
+     *         is only valid until this batch changes.
+     * @param td
+     *            the schema of the result, with the types of the columns
+     */
+    public Batch project(int[] cols, TupleDesc td) {
+        return new Batch(td, this, cols);
+    }
+
+    private void grow(int newCapacity) {
+        for (int c = 0; c < columns.length; c++) {
+            Object col = columns[c];
+            if (col instanceof int[])
+                columns[c] = Arrays.copyOf((int[]) col, newCapacity);
+            else if (col instanceof long[])
+                columns[c] = Arrays.copyOf((long[]) col, newCapacity);
+            else
+                columns[c] = Arrays.copyOf((Field[]) col, newCapacity);
+        }
+        capacity = newCapacity;
+    }
+}
@@ -0,0 +1,89 @@
+package simpledb;
+
+/**
+ * BatchAggregate is the batch version of {@link Aggregate}: it computes any
+ * number of aggregates, grouped by any number of fields, over the batches
+ * of its child, with the same results and schema. Each batch is merged
+ * into a {@link GroupAggregator} with {@link GroupAggregator#mergeBatch},
+ * which updates each aggregate in a loop over its column. The groups are
+ * kept in memory; Aggregate can spill them, and compute them in parallel.
+ */
+public class BatchAggregate extends BatchOperator {
+
+    private static final long serialVersionUID = 1L;
+
+    private BatchIterator child;
+    private final GroupAggregator aggregator;
+    private final TupleDesc td;
+
+    private transient Batch out;
+    // the next group to return
+    private int nextGroup;
+
+    /**
+     * Constructor.
+     *
+     * @param child
+     *            The BatchIterator that is feeding us rows.
+     * @param afields
+     *            For each aggregate, the column over which it is computed.
+     * @param aops
+     *            For each aggregate, the aggregation operator to use.
+     * @param gfields
+     *            The columns over which we are grouping the result, or an
+     *            empty array if there is no grouping
+     * @throws IllegalArgumentException
+     *             if an aggregate is not supported over its column
+     */
+    public BatchAggregate(BatchIterator child, int[] afields, Aggregator.Op[] aops, int[] gfields) {
+        this.child = child;
+        TupleDesc childTd = child.getTupleDesc();
+        Type[] gtypes = new Type[gfields.length];
+        Type[] atypes = new Type[afields.length];
+        for (int i = 0; i < gfields.length; i++)
+            gtypes[i] = childTd.getFieldType(gfields[i]);
+        for (int i = 0; i < afields.length; i++)
+            atypes[i] = childTd.getFieldType(afields[i]);
+        this.aggregator = new GroupAggregator(gfields, gtypes, afields, atypes, aops);
+        this.td = Aggregate.resultTupleDesc(childTd, aggregator, afields, aops, gfields);
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        child.open();
+        aggregator.clear();
+        while (child.hasNext())
+            aggregator.mergeBatch(child.next());
+        out = new Batch(td);
+        nextGroup = 0;
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        child.close();
+        aggregator.clear();
+        out = null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        nextGroup = 0;
+    }
+
+    /**
+     * BatchOperator.fetchNext implementation. Returns the results of the
+     * next groups.
+     *
+     * @return The next batch of results, or null if all groups have been
+     *         returned
+     */
+    protected Batch fetchNext() throws DbException, TransactionAbortedException {
+        out.clear();
+        while (nextGroup < aggregator.numGroups() && !out.isFull())
+            out.addTuple(aggregator.getResult(nextGroup++, td));
+        return out.isEmpty() ? null : out;
+    }
+}
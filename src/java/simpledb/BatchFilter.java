@@ -0,0 +1,133 @@
+package simpledb;
+
+/**
+ * BatchFilter is the batch version of {@link Filter}. It removes the rows
+ * that do not satisfy its predicate from the selection of each batch of its
+ * child, without moving any value. A predicate comparing an integer field
+ * with an integer constant is evaluated in a loop over the int column;
+ * other predicates compare the Fields of the rows.
+ */
+public class BatchFilter extends BatchOperator {
+
+    private static final long serialVersionUID = 1L;
+
+    private Predicate p;
+    private BatchIterator child;
+    private final boolean isInt;
+
+    /**
+     * Constructor accepts a predicate to apply and a child operator to read
+     * batches to filter from.
+     *
+     * @param p
+     *            The predicate to filter rows with
+     * @param child
+     *            The child operator
+     */
+    public BatchFilter(Predicate p, BatchIterator child) {
+        this.p = p;
+        this.child = child;
+        this.isInt = child.getTupleDesc().getFieldType(p.getField()) == Type.INT_TYPE
+                && p.getOperand() instanceof IntField;
+    }
+
+    public Predicate getPredicate() {
+        return p;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return child.getTupleDesc();
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        child.open();
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        child.close();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        child.rewind();
+    }
+
+    /**
+     * BatchOperator.fetchNext implementation. Filters the batches of the
+     * child until one has a row left.
+     *
+     * @return The next non-empty filtered batch, or null if there are no
+     *         more batches
+     */
+    protected Batch fetchNext() throws DbException, TransactionAbortedException {
+        while (child.hasNext()) {
+            Batch b = child.next();
+            filter(b);
+            if (!b.isEmpty())
+                return b;
+        }
+        return null;
+    }
+
+    /**
+     * Narrow the selection of a batch to the rows that satisfy the
+     * predicate.
+     */
+    void filter(Batch b) {
+        int n = b.size();
+        int[] sel = b.selection();
+        int[] out = b.selectionBuffer();
+        if (sel == null) {
+            for (int i = 0; i < n; i++)
+                out[i] = i;
+            sel = out;
+        }
+        int field = p.getField();
+        int k = 0;
+        if (isInt) {
+            int[] col = b.getInts(field);
+            int c = ((IntField) p.getOperand()).getValue();
+            switch (p.getOp()) {
+                case EQUALS:
+                case LIKE:
+                    for (int i = 0; i < n; i++)
+                        if (col[sel[i]] == c)
+                            out[k++] = sel[i];
+                    break;
+                case NOT_EQUALS:
+                    for (int i = 0; i < n; i++)
+                        if (col[sel[i]] != c)
+                            out[k++] = sel[i];
+                    break;
+                case GREATER_THAN:
+                    for (int i = 0; i < n; i++)
+                        if (col[sel[i]] > c)
+                            out[k++] = sel[i];
+                    break;
+                case GREATER_THAN_OR_EQ:
+                    for (int i = 0; i < n; i++)
+                        if (col[sel[i]] >= c)
+                            out[k++] = sel[i];
+                    break;
+                case LESS_THAN:
+                    for (int i = 0; i < n; i++)
+                        if (col[sel[i]] < c)
+                            out[k++] = sel[i];
+                    break;
+                case LESS_THAN_OR_EQ:
+                    for (int i = 0; i < n; i++)
+                        if (col[sel[i]] <= c)
+                            out[k++] = sel[i];
+                    break;
+            }
+        } else {
+            Predicate.Op op = p.getOp();
+            Field operand = p.getOperand();
+            for (int i = 0; i < n; i++)
+                if (b.getField(field, sel[i]).compare(op, operand))
+                    out[k++] = sel[i];
+        }
+        b.select(k);
+    }
+}
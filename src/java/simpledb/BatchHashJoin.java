@@ -0,0 +1,200 @@
+package simpledb;
+
+import java.util.Arrays;
+
+/**
+ * BatchHashJoin is the batch version of {@link HashEquiJoin}, for equality
+ * on integer fields. When it is opened, the batches of child2 are copied
+ * into one large batch, and a hash table of chained row numbers is built
+ * over its join column. The batches of child1 are then probed one row at a
+ * time against the int column, and the pairs of matching rows are gathered
+ * column by column into the output batches, whose rows are child1's fields
+ * followed by child2's.
+ * <p>
+ * The build side must fit in memory; a larger join should use HashEquiJoin,
+ * through the adapters if its inputs are batches.
+ */
+public class BatchHashJoin extends BatchOperator {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final int NONE = -1;
+
+    private JoinPredicate p;
+    private BatchIterator child1;
+    private BatchIterator child2;
+    private final TupleDesc td;
+
+    // the rows of child2, and for each hash bucket the first of its rows,
+    // whose next row in the bucket is chain[row]
+    private transient Batch build;
+    private transient int[] buckets;
+    private transient int[] chain;
+
+    // the batch of child1 being probed, the position in it of the next row
+    // to probe, and the row being joined with its matches
+    private transient Batch probe;
+    private int probePos;
+    private int probeRow;
+    private int probeKey;
+    private int match = NONE;
+
+    // the output batch, and the probe and build rows of its rows
+    private transient Batch out;
+    private transient int[] probeRows;
+    private transient int[] buildRows;
+
+    /**
+     * Constructor. Accepts two children to join and the predicate to join
+     * them on.
+     *
+     * @param p
+     *            The predicate to use to join the children
+     * @param child1
+     *            Iterator for the left (probe) relation to join
+     * @param child2
+     *            Iterator for the right (build) relation to join
+     * @throws IllegalArgumentException
+     *             if the predicate is not an equality of integer fields
+     */
+    public BatchHashJoin(JoinPredicate p, BatchIterator child1, BatchIterator child2) {
+        if (p.getOperator() != Predicate.Op.EQUALS
+                || child1.getTupleDesc().getFieldType(p.getField1()) != Type.INT_TYPE
+                || child2.getTupleDesc().getFieldType(p.getField2()) != Type.INT_TYPE)
+            throw new IllegalArgumentException("BatchHashJoin only joins integer fields on equality");
+        this.p = p;
+        this.child1 = child1;
+        this.child2 = child2;
+        this.td = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return p;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        child1.open();
+        child2.open();
+        buildTable();
+        out = new Batch(td);
+        probeRows = new int[out.capacity()];
+        buildRows = new int[out.capacity()];
+        probe = null;
+        match = NONE;
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        child1.close();
+        child2.close();
+        build = null;
+        buckets = null;
+        chain = null;
+        probe = null;
+        out = null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        child1.rewind();
+        probe = null;
+        match = NONE;
+    }
+
+    private void buildTable() throws DbException, TransactionAbortedException {
+        build = new Batch(child2.getTupleDesc());
+        while (child2.hasNext())
+            build.append(child2.next());
+        int n = build.numRows();
+        int numBuckets = 16;
+        while (numBuckets < 2 * n)
+            numBuckets *= 2;
+        buckets = new int[numBuckets];
+        Arrays.fill(buckets, NONE);
+        chain = new int[n];
+        int[] keys = build.getInts(p.getField2());
+        int mask = numBuckets - 1;
+        // insert backwards, so that the chains list rows in input order
+        for (int row = n - 1; row >= 0; row--) {
+            int h = hash(keys[row]) & mask;
+            chain[row] = buckets[h];
+            buckets[h] = row;
+        }
+    }
+
+    /**
+     * @return the first build row at or after row in its chain whose key is
+     *         key, or NONE
+     */
+    private int nextMatch(int row, int key) {
+        int[] keys = build.getInts(p.getField2());
+        while (row != NONE && keys[row] != key)
+            row = chain[row];
+        return row;
+    }
+
+    /**
+     * BatchOperator.fetchNext implementation. Probes rows of child1 until
+     * the output batch is full or child1 is done.
+     *
+     * @return The next batch of joined rows, or null if there are no more
+     */
+    protected Batch fetchNext() throws DbException, TransactionAbortedException {
+        out.clear();
+        int capacity = out.capacity();
+        int n = 0;
+        // the output rows whose child1 fields have been gathered; they are
+        // gathered before each new probe batch replaces the current one
+        int gathered = 0;
+        int mask = buckets.length - 1;
+        while (n < capacity) {
+            if (match != NONE) {
+                probeRows[n] = probeRow;
+                buildRows[n] = match;
+                n++;
+                match = nextMatch(chain[match], probeKey);
+            } else if (probe != null && probePos < probe.size()) {
+                probeRow = probe.row(probePos++);
+                probeKey = probe.getInts(p.getField1())[probeRow];
+                match = nextMatch(buckets[hash(probeKey) & mask], probeKey);
+            } else {
+                if (probe != null) {
+                    gatherProbe(gathered, n);
+                    gathered = n;
+                }
+                if (!child1.hasNext())
+                    break;
+                probe = child1.next();
+                probePos = 0;
+            }
+        }
+        if (n == 0)
+            return null;
+        gatherProbe(gathered, n);
+        int width1 = child1.getTupleDesc().numFields();
+        for (int c = 0; c < build.getTupleDesc().numFields(); c++)
+            out.gather(width1 + c, 0, build, c, buildRows, 0, n);
+        out.setNumRows(n);
+        return out;
+    }
+
+    /**
+     * Copy the child1 fields of output rows from to to - 1 from the probe
+     * batch.
+     */
+    private void gatherProbe(int from, int to) {
+        if (from == to)
+            return;
+        for (int c = 0; c < child1.getTupleDesc().numFields(); c++)
+            out.gather(c, from, probe, c, probeRows, from, to - from);
+    }
+
+    private static int hash(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,55 @@
+package simpledb;
+
+import java.io.Serializable;
+import java.util.NoSuchElementException;
+
+/**
+ * BatchIterator is the iterator interface of operators that return their
+ * results a Batch of rows at a time, rather than a Tuple at a time like a
+ * DbIterator. Its methods follow those of DbIterator.
+ * <p>
+ * A batch returned by next() belongs to the caller only until the next call
+ * to next(), rewind() or close(): operators reuse their batches, and the
+ * caller may change the selection of a batch but nothing else. Batches are
+ * never empty. {@link RowsToBatches} and {@link BatchesToRows} turn one kind
+ * of iterator into the other, so that both kinds of operators can be mixed
+ * in a plan.
+ */
+public interface BatchIterator extends Serializable {
+
+    /**
+     * Opens the iterator. This must be called before any of the other methods.
+     * @throws DbException when there are problems opening/accessing the database.
+     */
+    public void open() throws DbException, TransactionAbortedException;
+
+    /**
+     * @return true if the iterator has more batches
+     * @throws IllegalStateException If the iterator has not been opened
+     */
+    public boolean hasNext() throws DbException, TransactionAbortedException;
+
+    /**
+     * @return the next batch, which has at least one row
+     * @throws NoSuchElementException if there are no more batches.
+     * @throws IllegalStateException If the iterator has not been opened
+     */
+    public Batch next() throws DbException, TransactionAbortedException, NoSuchElementException;
+
+    /**
+     * Resets the iterator to the start.
+     * @throws DbException when rewind is unsupported.
+     * @throws IllegalStateException If the iterator has not been opened
+     */
+    public void rewind() throws DbException, TransactionAbortedException;
+
+    /**
+     * @return the schema of the rows of the batches
+     */
+    public TupleDesc getTupleDesc();
+
+    /**
+     * Closes the iterator.
+     */
+    public void close();
+}
@@ -0,0 +1,69 @@
+package simpledb;
+
+import java.util.NoSuchElementException;
+
+/**
+ * Abstract class for implementing batch operators, like {@link Operator}
+ * for tuple operators. It handles <code>close</code>, <code>next</code> and
+ * <code>hasNext</code>. Subclasses only need to implement <code>open</code>
+ * and <code>fetchNext</code>.
+ */
+public abstract class BatchOperator implements BatchIterator {
+
+    private static final long serialVersionUID = 1L;
+
+    private Batch next = null;
+    private boolean open = false;
+
+    public boolean hasNext() throws DbException, TransactionAbortedException {
+        if (!this.open)
+            throw new IllegalStateException("Operator not yet open");
+
+        if (next == null)
+            next = fetchNext();
+        return next != null;
+    }
+
+    public Batch next() throws DbException, TransactionAbortedException,
+            NoSuchElementException {
+        if (next == null) {
+            next = fetchNext();
+            if (next == null)
+                throw new NoSuchElementException();
+        }
+
+        Batch result = next;
+        next = null;
+        return result;
+    }
+
+    /**
+     * Returns the next batch, or null if the iteration is finished.
+     * BatchOperator uses this method to implement both <code>next</code>
+     * and <code>hasNext</code>.
+     *
+     * @return the next non-empty batch, or null if the iteration is
+     *         finished.
+     */
+    protected abstract Batch fetchNext() throws DbException,
+            TransactionAbortedException;
+
+    /**
+     * Closes this iterator. If overridden by a subclass, they should call
+     * super.close() in order for BatchOperator's internal state to be
+     * consistent.
+     */
+    public void close() {
+        next = null;
+        this.open = false;
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        this.open = true;
+    }
+
+    /**
+     * @return the schema of the rows of the output batches
+     */
+    public abstract TupleDesc getTupleDesc();
+}
@@ -0,0 +1,66 @@
+package simpledb;
+
+/**
+ * BatchProject is the batch version of {@link Project}. Its batches share
+ * the columns of the batches of its child, so projecting copies no values.
+ */
+public class BatchProject extends BatchOperator {
+
+    private static final long serialVersionUID = 1L;
+
+    private BatchIterator child;
+    private final int[] outFieldIds;
+    private final TupleDesc td;
+
+    /**
+     * Constructor.
+     *
+     * @param fields
+     *            The ids of the fields of the child's TupleDesc to project
+     *            out
+     * @param child
+     *            The child operator
+     */
+    public BatchProject(int[] fields, BatchIterator child) {
+        this.child = child;
+        this.outFieldIds = fields.clone();
+        TupleDesc childtd = child.getTupleDesc();
+        Type[] types = new Type[fields.length];
+        String[] names = new String[fields.length];
+        for (int i = 0; i < fields.length; i++) {
+            types[i] = childtd.getFieldType(fields[i]);
+            names[i] = childtd.getFieldName(fields[i]);
+        }
+        td = new TupleDesc(types, names);
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        child.open();
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        child.close();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        child.rewind();
+    }
+
+    /**
+     * BatchOperator.fetchNext implementation. Projects out the columns of
+     * the next batch of the child.
+     *
+     * @return The next batch, or null if there are no more batches
+     */
+    protected Batch fetchNext() throws DbException, TransactionAbortedException {
+        if (!child.hasNext())
+            return null;
+        return child.next().project(outFieldIds, td);
+    }
+}
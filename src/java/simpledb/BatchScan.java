@@ -0,0 +1,32 @@
+package simpledb;
+
+/**
+ * BatchScan is a sequential scan that returns the tuples of a table in
+ * batches, with the same schema as a {@link SeqScan} of the table. Pages
+ * hold their tuples as Tuples, so the values are copied from them into the
+ * columns of the batches.
+ */
+public class BatchScan extends RowsToBatches {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Creates a scan over the specified table as a part of the specified
+     * transaction.
+     *
+     * @param tid
+     *            The transaction this scan is running as a part of.
+     * @param tableid
+     *            the table to scan.
+     * @param tableAlias
+     *            the alias of this table, which prefixes the field names as
+     *            in SeqScan
+     */
+    public BatchScan(TransactionId tid, int tableid, String tableAlias) {
+        super(new SeqScan(tid, tableid, tableAlias));
+    }
+
+    public BatchScan(TransactionId tid, int tableid) {
+        this(tid, tableid, Database.getCatalog().getTableName(tableid));
+    }
+}
@@ -0,0 +1,83 @@
+package simpledb;
+
+/**
+ * BatchesToRows is the adapter from a batch operator to a tuple operator:
+ * it returns the selected rows of the batches of its child one Tuple at a
+ * time, so that a plan of batch operators can feed tuple operators.
+ */
+public class BatchesToRows extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    private BatchIterator child;
+    private transient Batch batch;
+    // the next row of batch to return
+    private int pos;
+
+    /**
+     * Constructor.
+     *
+     * @param child
+     *            The BatchIterator whose rows are returned as tuples
+     */
+    public BatchesToRows(BatchIterator child) {
+        this.child = child;
+    }
+
+    public BatchIterator getChild() {
+        return child;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return child.getTupleDesc();
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        child.open();
+        batch = null;
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        child.close();
+        batch = null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        child.rewind();
+        batch = null;
+    }
+
+    /**
+     * Operator.fetchNext implementation. Turns the next selected row of the
+     * current batch into a tuple, reading the next batch once it is done.
+     *
+     * @return The next tuple, or null if there are no more batches
+     */
+    protected Tuple fetchNext() throws DbException, TransactionAbortedException {
+        while (batch == null || pos == batch.size()) {
+            // the child may reuse the batch, so it is dropped before asking
+            // the child for more
+            batch = null;
+            if (!child.hasNext())
+                return null;
+            batch = child.next();
+            pos = 0;
+        }
+        return batch.getTuple(batch.row(pos++));
+    }
+
+    /**
+     * @return no children: the child of this operator is a BatchIterator
+     */
+    @Override
+    public DbIterator[] getChildren() {
+        return new DbIterator[0];
+    }
+
+    @Override
+    public void setChildren(DbIterator[] children) {
+        throw new UnsupportedOperationException("the child of BatchesToRows is a BatchIterator");
+    }
+}
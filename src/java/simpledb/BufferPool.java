@@ -159,12 +159,7 @@ public class BufferPool {
         // some code goes here
         DbFile file = Database.getCatalog().getDatabaseFile(tableId);
         ArrayList<Page> pageList = file.insertTuple(tid, t);
-        for (Page p : pageList) {
-            PageId pid = p.getId();
-            if (!pages.containsKey(pid) && pages.size() == numPages) evictPage();
-            pages.put(pid, p);
-            pages.get(pid).markDirty(true, tid);
-        }
+        updateDirtyPages(tid, pageList);
 
     }
 
@@ -186,6 +181,33 @@ public class BufferPool {
         // some code goes here
         DbFile file = Database.getCatalog().getDatabaseFile(t.getRecordId().getPageId().getTableId());
         ArrayList<Page> pageList = file.deleteTuple(tid, t);
+        updateDirtyPages(tid, pageList);
+    }
+
+    /**
+     * Rebalance the leaf pages of the specified B+ tree table which deletes
+     * left less than half full, on behalf of transaction tid.  Marks the 
+     * pages that were dirtied and adds them to the cache, as deleteTuple does.
+     * Does nothing for other kinds of tables.
+     *
+     * @param tid the transaction rebalancing the table
+     * @param tableId the table to rebalance
+     * @see BTreeFile#rebalance
+     */
+    public void rebalance(TransactionId tid, int tableId)
+        throws DbException, IOException, TransactionAbortedException {
+        DbFile file = Database.getCatalog().getDatabaseFile(tableId);
+        if (file instanceof BTreeFile) {
+            updateDirtyPages(tid, ((BTreeFile) file).rebalance(tid));
+        }
+    }
+
+    /**
+     * Marks the pages dirtied by an operation on a DbFile dirty, and adds
+     * them to the cache in place of any existing versions.
+     */
+    private synchronized void updateDirtyPages(TransactionId tid, ArrayList<Page> pageList)
+        throws DbException {
         for (Page p : pageList) {
             PageId pid = p.getId();
             if (!pages.containsKey(pid) && pages.size() == numPages) evictPage();
@@ -2,6 +2,7 @@ package simpledb;
 
 import javax.xml.crypto.Data;
 import java.io.IOException;
+import java.util.HashSet;
 
 /**
  * The delete operator. Delete reads tuples from its child operator and removes
@@ -74,15 +75,27 @@ public class Delete extends Operator {
         }
 
         int deletedCount = 0;
+        HashSet<Integer> tableIds = new HashSet<Integer>();
         while(child.hasNext()) {
             try {
-                Database.getBufferPool().deleteTuple(tid, child.next());
+                Tuple t = child.next();
+                tableIds.add(t.getRecordId().getPageId().getTableId());
+                Database.getBufferPool().deleteTuple(tid, t);
                 deletedCount++;
             } catch (IOException e) {
                 e.printStackTrace();
                 throw new DbException("Error while deleting tuple from table");
             }
         }
+        // the batch is done, so rebalance any B+ tree pages it left under-full
+        for (int tableId : tableIds) {
+            try {
+                Database.getBufferPool().rebalance(tid, tableId);
+            } catch (IOException e) {
+                e.printStackTrace();
+                throw new DbException("Error while rebalancing table");
+            }
+        }
 
         deleted = true;
 
@@ -0,0 +1,838 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * GroupAggregator computes several aggregates at once, grouped by zero or
+ * more fields, as in SELECT g, h, SUM(a), COUNT(*), MAX(b) ... GROUP BY g, h.
+ * One pass over the input is enough for all of the aggregates: each tuple
+ * is looked up once in a {@link GroupByHashTable}, and then every aggregate
+ * updates its state for that group.
+ * <p>
+ * The state of aggregate i for group g is kept at index g of primitive
+ * arrays: a long value (the sum for SUM, AVG and SUM_COUNT, the smallest or
+ * largest value for MIN and MAX) and the number of tuples in the group, a
+ * long too, which is shared by all the aggregates. The APPROX_ operators keep a sketch
+ * per group instead: a {@link HyperLogLog} for APPROX_COUNT_DISTINCT and a
+ * {@link KllSketch} for the percentiles. Only COUNT and APPROX_COUNT_DISTINCT
+ * may be applied to a string field.
+ * <p>
+ * The results have one field for each group-by field, in order, followed
+ * by the integer or long fields of each aggregate: two for SUM_COUNT (the
+ * sum and the count), and one for the other operators. Sums and counts are
+ * longs unless {@link #setLongResults} says otherwise.
+ * <p>
+ * Aggregation can also be split in two phases. Partial aggregators, made by
+ * {@link #partial}, each run over a part of the input, such as a partition
+ * or the tuples read by one thread, and return the mergeable state of the
+ * aggregates of each group instead of their values: an AVG is computed as a
+ * SUM_COUNT, and the others as themselves. The tuples they return are then
+ * combined by the aggregator returned by {@link #finalAggregator}, which
+ * computes the same results as a single aggregator over the whole input.
+ * Partial aggregators in the same process can also be combined directly,
+ * without building tuples, with {@link #merge}. Any aggregator can also
+ * return its state as the tuples a partial aggregator would, with
+ * {@link #partialIterator}; this is how Aggregate moves groups to disk.
+ * Sketches cannot be written to tuples, so aggregators with sketches only
+ * combine with merge().
+ */
+public class GroupAggregator implements Aggregator {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final int INITIAL_GROUPS = 64;
+
+    private final int[] gfields;
+    private final Type[] gtypes;
+    private final int[] afields;
+    private final Type[] atypes;
+    private final Op[] ops;
+    // rtypes[i] is the type of the results of aggregate i
+    private Type[] rtypes;
+    private boolean longResults = true;
+    // averages[i] is true if aggregate i is the SUM_COUNT of an AVG of a
+    // partial aggregator, which its final aggregator turns into an average
+    private final boolean[] averages;
+    private final GroupByHashTable groups;
+    // values[i][g] is the state of aggregate i for group g
+    private long[][] values;
+    // counts2[i][g] is the sum of the counts merged by SC_AVG aggregate i,
+    // or by a SUM_COUNT aggregate i of a final aggregator, for group g; null
+    // for the other aggregates
+    private long[][] counts2;
+    // per group: the number of tuples merged
+    private long[] counts;
+    // distinct[i][g] and quantiles[i][g] are the sketches of aggregate i
+    // for group g, created with its first tuple; null for the operators
+    // that do not use them
+    private HyperLogLog[][] distinct;
+    private KllSketch[][] quantiles;
+    private int precision = HyperLogLog.DEFAULT_PRECISION;
+    private int k = KllSketch.DEFAULT_K;
+    // the group of each row of the batch being merged
+    private transient int[] batchGroups;
+
+    /**
+     * Constructor.
+     *
+     * @param gfields
+     *            the 0-based indexes of the group-by fields in the input
+     *            tuples; empty if there is no grouping
+     * @param gtypes
+     *            the types of the group-by fields
+     * @param afields
+     *            for each aggregate, the 0-based index of the field it is
+     *            computed over. For SC_AVG, this is the sum of a SUM_COUNT,
+     *            and the field after it is the count.
+     * @param atypes
+     *            for each aggregate, the type of the field it is computed
+     *            over
+     * @param ops
+     *            for each aggregate, the aggregation operator
+     * @throws IllegalArgumentException
+     *             if the arrays do not match, there are no aggregates, an
+     *             operator other than COUNT or APPROX_COUNT_DISTINCT is
+     *             applied to a string, or a percentile to a long
+     */
+    public GroupAggregator(int[] gfields, Type[] gtypes, int[] afields, Type[] atypes, Op[] ops) {
+        if (gfields.length != gtypes.length)
+            throw new IllegalArgumentException("need one type for each group-by field");
+        if (afields.length == 0 || afields.length != atypes.length || afields.length != ops.length)
+            throw new IllegalArgumentException("need a field, a type and an operator for each aggregate");
+        for (int i = 0; i < ops.length; i++) {
+            if (ops[i] == Op.COUNT || ops[i] == Op.APPROX_COUNT_DISTINCT)
+                continue;
+            if (atypes[i] != Type.INT_TYPE && (atypes[i] != Type.LONG_TYPE || ops[i].quantile() >= 0))
+                throw new IllegalArgumentException(ops[i] + " is not supported over " + atypes[i]);
+        }
+        this.gfields = gfields.clone();
+        this.gtypes = gtypes.clone();
+        this.afields = afields.clone();
+        this.atypes = atypes.clone();
+        this.ops = ops.clone();
+        this.rtypes = resultTypes();
+        this.averages = new boolean[ops.length];
+        groups = new GroupByHashTable(gtypes);
+        values = new long[ops.length][INITIAL_GROUPS];
+        counts2 = new long[ops.length][];
+        for (int i = 0; i < ops.length; i++)
+            if (ops[i] == Op.SC_AVG)
+                counts2[i] = new long[INITIAL_GROUPS];
+        counts = new long[INITIAL_GROUPS];
+        distinct = new HyperLogLog[ops.length][];
+        quantiles = new KllSketch[ops.length][];
+        for (int i = 0; i < ops.length; i++) {
+            if (ops[i] == Op.APPROX_COUNT_DISTINCT)
+                distinct[i] = new HyperLogLog[INITIAL_GROUPS];
+            else if (ops[i].quantile() >= 0)
+                quantiles[i] = new KllSketch[INITIAL_GROUPS];
+        }
+    }
+
+    /**
+     * Set the error of the sketches of the APPROX_ aggregates. This must be
+     * done before any tuple is merged.
+     *
+     * @param distinctError
+     *            the relative standard error of APPROX_COUNT_DISTINCT, as a
+     *            fraction of the number of distinct values
+     * @param rankError
+     *            the error of the rank of the value the percentiles return,
+     *            as a fraction of the number of values in the group
+     * @throws IllegalArgumentException
+     *             if an error is not between 0 and 1
+     * @throws IllegalStateException
+     *             if tuples have already been merged
+     */
+    public void setSketchErrors(double distinctError, double rankError) {
+        int p = HyperLogLog.precisionFor(distinctError);
+        int kk = KllSketch.kFor(rankError);
+        if (groups.numGroups() > 0)
+            throw new IllegalStateException("sketch errors must be set before aggregating");
+        this.precision = p;
+        this.k = kk;
+    }
+
+    /**
+     * Choose whether SUM, COUNT, SUM_COUNT, SC_AVG and APPROX_COUNT_DISTINCT
+     * are returned as longs, which is the default, so that they are not
+     * truncated when they do not fit in an int. MIN, MAX and AVG are of the
+     * type of their input, and the percentiles are ints. With int results,
+     * SUM and SUM_COUNT are longs only over longs, and a result that does
+     * not fit in an int throws an ArithmeticException when it is returned.
+     * The state of the groups is the same either way, so this may be
+     * changed at any time.
+     */
+    public void setLongResults(boolean longResults) {
+        this.longResults = longResults;
+        this.rtypes = resultTypes();
+    }
+
+    /**
+     * @return true if large results are returned as longs
+     */
+    public boolean hasLongResults() {
+        return longResults;
+    }
+
+    private Type[] resultTypes() {
+        Type[] types = new Type[ops.length];
+        for (int i = 0; i < ops.length; i++) {
+            switch (ops[i]) {
+                case MIN:
+                case MAX:
+                case AVG:
+                    types[i] = atypes[i];
+                    break;
+                case SUM:
+                case SUM_COUNT:
+                    types[i] = longResults || atypes[i] == Type.LONG_TYPE ? Type.LONG_TYPE : Type.INT_TYPE;
+                    break;
+                case APPROX_MEDIAN:
+                case APPROX_P90:
+                case APPROX_P99:
+                    types[i] = Type.INT_TYPE;
+                    break;
+                default:
+                    types[i] = longResults ? Type.LONG_TYPE : Type.INT_TYPE;
+            }
+        }
+        return types;
+    }
+
+    /**
+     * @return a new, empty aggregator for the same aggregates, with the same
+     *         sketch errors and result types, whose state can be merged into
+     *         this one
+     */
+    public GroupAggregator emptyCopy() {
+        GroupAggregator copy = new GroupAggregator(gfields, gtypes, afields, atypes, ops);
+        copy.precision = precision;
+        copy.k = k;
+        copy.longResults = longResults;
+        copy.rtypes = rtypes;
+        for (int i = 0; i < ops.length; i++) {
+            copy.averages[i] = averages[i];
+            if (counts2[i] != null && copy.counts2[i] == null)
+                copy.counts2[i] = new long[INITIAL_GROUPS];
+        }
+        return copy;
+    }
+
+    /**
+     * @return true if the state of every aggregate can be returned as tuples
+     *         by partialIterator(), that is, none of them is estimated with a
+     *         sketch
+     */
+    public boolean hasPartialTuples() {
+        for (Op op : ops)
+            if (op == Op.APPROX_COUNT_DISTINCT || op.quantile() >= 0)
+                return false;
+        return true;
+    }
+
+    /**
+     * Create the partial aggregator for the first phase of a two-phase
+     * aggregation. Its arguments are those of the constructor; each AVG is
+     * computed as a SUM_COUNT.
+     *
+     * @return an aggregator that returns the mergeable state of each group,
+     *         to be combined by its {@link #finalAggregator}
+     */
+    public static GroupAggregator partial(int[] gfields, Type[] gtypes, int[] afields,
+            Type[] atypes, Op[] ops) {
+        Op[] partialOps = new Op[ops.length];
+        boolean[] averages = new boolean[ops.length];
+        for (int i = 0; i < ops.length; i++) {
+            switch (ops[i]) {
+                case AVG:
+                    partialOps[i] = Op.SUM_COUNT;
+                    averages[i] = true;
+                    break;
+                case SUM_COUNT:
+                case SC_AVG:
+                case APPROX_COUNT_DISTINCT:
+                case APPROX_MEDIAN:
+                case APPROX_P90:
+                case APPROX_P99:
+                    throw new IllegalArgumentException(ops[i] + " has no partial form");
+                default:
+                    partialOps[i] = ops[i];
+            }
+        }
+        GroupAggregator agg = new GroupAggregator(gfields, gtypes, afields, atypes, partialOps);
+        System.arraycopy(averages, 0, agg.averages, 0, averages.length);
+        return agg;
+    }
+
+    /**
+     * @return the aggregator for the second phase of a two-phase
+     *         aggregation: it combines the tuples returned by the
+     *         {@link #partialIterator} of this aggregator, and of others like
+     *         it over other parts of the input, into the results over the
+     *         whole input. Partial counts are summed, the sum and count of an
+     *         AVG (computed as a SUM_COUNT by a partial aggregator) become
+     *         the average of the whole group, the sums and counts of a
+     *         SUM_COUNT are summed into the sum and count of the whole
+     *         group, and MIN, MAX and SUM are combined as themselves. The
+     *         results of the final aggregator of an aggregator made by
+     *         {@link #partial} are those of the operators given to it;
+     *         otherwise they have the fields and types of the results of this
+     *         aggregator. Its own partial results have the same fields as
+     *         those of this aggregator.
+     * @throws UnsupportedOperationException
+     *             if an aggregate is estimated with a sketch
+     */
+    public GroupAggregator finalAggregator() {
+        if (!hasPartialTuples())
+            throw new UnsupportedOperationException("sketches cannot be combined from tuples");
+        int[] fgfields = new int[gtypes.length];
+        for (int i = 0; i < fgfields.length; i++)
+            fgfields[i] = i;
+        int[] fafields = new int[ops.length];
+        Type[] fatypes = new Type[ops.length];
+        Op[] fops = new Op[ops.length];
+        TupleDesc ptd = partialTupleDesc();
+        int field = gtypes.length;
+        for (int i = 0; i < ops.length; i++) {
+            fafields[i] = field;
+            fatypes[i] = ptd.getFieldType(field);
+            switch (ops[i]) {
+                case COUNT:
+                    fops[i] = Op.SUM;
+                    break;
+                case AVG:
+                case SC_AVG:
+                    fops[i] = Op.SC_AVG;
+                    break;
+                case SUM_COUNT:
+                    fops[i] = averages[i] ? Op.SC_AVG : Op.SUM_COUNT;
+                    break;
+                default:
+                    fops[i] = ops[i];
+            }
+            field += numStateFields(ops[i]);
+        }
+        GroupAggregator fin = new GroupAggregator(fgfields, gtypes, fafields, fatypes, fops);
+        // a SUM_COUNT stays a SUM_COUNT, whose count is the sum of the
+        // partial counts rather than the number of partial tuples
+        for (int i = 0; i < ops.length; i++)
+            if (fops[i] == Op.SUM_COUNT)
+                fin.counts2[i] = new long[fin.counts.length];
+        fin.precision = precision;
+        fin.k = k;
+        fin.longResults = longResults;
+        fin.rtypes = rtypes;
+        return fin;
+    }
+
+    /**
+     * @return the number of fields of the results of an operator: two for
+     *         SUM_COUNT, and one for the others
+     */
+    public static int numResultFields(Op op) {
+        return op == Op.SUM_COUNT ? 2 : 1;
+    }
+
+    /**
+     * @return the number of fields of the partial state of an operator: two
+     *         (the sum and the count) for AVG, SUM_COUNT and SC_AVG, and one
+     *         for the others
+     */
+    private static int numStateFields(Op op) {
+        return op == Op.AVG || op == Op.SUM_COUNT || op == Op.SC_AVG ? 2 : 1;
+    }
+
+    /**
+     * Merge a new tuple into the aggregates of its group, creating the group
+     * if its key has not been seen before.
+     *
+     * @param tup
+     *            the Tuple containing the aggregate and group-by fields
+     */
+    public void mergeTupleIntoGroup(Tuple tup) {
+        int g = groups.groupOf(tup, gfields);
+        if (g == counts.length)
+            grow();
+
+        boolean first = counts[g]++ == 0;
+        for (int i = 0; i < ops.length; i++) {
+            long[] state = values[i];
+            switch (ops[i]) {
+                case MIN: {
+                    long value = value(tup.getField(afields[i]));
+                    if (first || value < state[g])
+                        state[g] = value;
+                    break;
+                }
+                case MAX: {
+                    long value = value(tup.getField(afields[i]));
+                    if (first || value > state[g])
+                        state[g] = value;
+                    break;
+                }
+                case SUM:
+                case AVG:
+                    state[g] += value(tup.getField(afields[i]));
+                    break;
+                case SUM_COUNT:
+                case SC_AVG:
+                    state[g] += value(tup.getField(afields[i]));
+                    if (counts2[i] != null)
+                        counts2[i][g] += value(tup.getField(afields[i] + 1));
+                    break;
+                case APPROX_COUNT_DISTINCT:
+                    if (first)
+                        distinct[i][g] = new HyperLogLog(precision);
+                    distinct[i][g].add(tup.getField(afields[i]));
+                    break;
+                case APPROX_MEDIAN:
+                case APPROX_P90:
+                case APPROX_P99:
+                    if (first)
+                        quantiles[i][g] = new KllSketch(k);
+                    quantiles[i][g].add(((IntField) tup.getField(afields[i])).getValue());
+                    break;
+                default:
+                    // COUNT only needs the count of the group
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Merge the selected rows of a batch into the aggregates of their groups,
+     * as mergeTupleIntoGroup would merge the same rows as tuples. The group
+     * of every row is found first, and then each aggregate is updated in a
+     * loop over its column.
+     *
+     * @param b
+     *            a batch whose columns include the aggregate and group-by
+     *            fields, at the indexes given to the constructor
+     */
+    public void mergeBatch(Batch b) {
+        int n = b.size();
+        int[] sel = b.selection();
+        if (batchGroups == null || batchGroups.length < n)
+            batchGroups = new int[Math.max(n, Batch.DEFAULT_CAPACITY)];
+        int[] rowGroups = batchGroups;
+        int before = groups.numGroups();
+        for (int i = 0; i < n; i++) {
+            int g = groups.groupOf(b, sel == null ? i : sel[i], gfields);
+            if (g == counts.length)
+                grow();
+            rowGroups[i] = g;
+        }
+        // new groups start from the identity of MIN and MAX, so that the
+        // loops below need not know which row of a group is its first
+        for (int i = 0; i < ops.length; i++) {
+            if (ops[i] == Op.MIN)
+                Arrays.fill(values[i], before, groups.numGroups(), Long.MAX_VALUE);
+            else if (ops[i] == Op.MAX)
+                Arrays.fill(values[i], before, groups.numGroups(), Long.MIN_VALUE);
+        }
+        for (int i = 0; i < n; i++)
+            counts[rowGroups[i]]++;
+
+        for (int i = 0; i < ops.length; i++) {
+            long[] state = values[i];
+            int f = afields[i];
+            int[] ints = atypes[i] == Type.INT_TYPE ? b.getInts(f) : null;
+            long[] longs = atypes[i] == Type.LONG_TYPE ? b.getLongs(f) : null;
+            switch (ops[i]) {
+                case MIN:
+                    for (int j = 0; j < n; j++) {
+                        int row = sel == null ? j : sel[j];
+                        long value = ints != null ? ints[row] : longs[row];
+                        if (value < state[rowGroups[j]])
+                            state[rowGroups[j]] = value;
+                    }
+                    break;
+                case MAX:
+                    for (int j = 0; j < n; j++) {
+                        int row = sel == null ? j : sel[j];
+                        long value = ints != null ? ints[row] : longs[row];
+                        if (value > state[rowGroups[j]])
+                            state[rowGroups[j]] = value;
+                    }
+                    break;
+                case SUM:
+                case AVG:
+                case SUM_COUNT:
+                    if (counts2[i] == null) {
+                        for (int j = 0; j < n; j++) {
+                            int row = sel == null ? j : sel[j];
+                            state[rowGroups[j]] += ints != null ? ints[row] : longs[row];
+                        }
+                        break;
+                    }
+                    // a SUM_COUNT of a final aggregator, which also sums
+                    // the counts
+                case SC_AVG:
+                    for (int j = 0; j < n; j++) {
+                        int row = sel == null ? j : sel[j];
+                        state[rowGroups[j]] += value(b.getField(f, row));
+                        counts2[i][rowGroups[j]] += value(b.getField(f + 1, row));
+                    }
+                    break;
+                case APPROX_COUNT_DISTINCT:
+                    for (int j = 0; j < n; j++) {
+                        int row = sel == null ? j : sel[j];
+                        int g = rowGroups[j];
+                        if (distinct[i][g] == null)
+                            distinct[i][g] = new HyperLogLog(precision);
+                        if (ints != null)
+                            distinct[i][g].add(ints[row]);
+                        else
+                            distinct[i][g].add(b.getField(f, row));
+                    }
+                    break;
+                case APPROX_MEDIAN:
+                case APPROX_P90:
+                case APPROX_P99:
+                    for (int j = 0; j < n; j++) {
+                        int g = rowGroups[j];
+                        if (quantiles[i][g] == null)
+                            quantiles[i][g] = new KllSketch(k);
+                        quantiles[i][g].add(ints[sel == null ? j : sel[j]]);
+                    }
+                    break;
+                default:
+                    // COUNT only needs the count of the group
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Merge the state of another aggregator into this one, as if the tuples
+     * merged into it had been merged into this one. This is how partial
+     * aggregators over parts of the input in the same process are combined.
+     *
+     * @param other
+     *            an aggregator with the same group-by types and operators
+     * @throws IllegalArgumentException
+     *             if the other aggregator computes different aggregates, or
+     *             has sketches with different errors
+     */
+    public void merge(GroupAggregator other) {
+        if (!Arrays.equals(gtypes, other.gtypes) || !Arrays.equals(ops, other.ops))
+            throw new IllegalArgumentException("cannot merge different aggregates");
+        for (int i = 0; i < ops.length; i++)
+            if ((counts2[i] == null) != (other.counts2[i] == null))
+                throw new IllegalArgumentException("cannot merge a final aggregator with a partial one");
+        if (precision != other.precision || k != other.k)
+            throw new IllegalArgumentException("cannot merge sketches with different errors");
+        for (int og = 0; og < other.groups.numGroups(); og++) {
+            int g = groups.groupOf(other.groups, og);
+            if (g == counts.length)
+                grow();
+
+            boolean first = counts[g] == 0;
+            counts[g] += other.counts[og];
+            for (int i = 0; i < ops.length; i++) {
+                long[] state = values[i];
+                long value = other.values[i][og];
+                switch (ops[i]) {
+                    case MIN:
+                        if (first || value < state[g])
+                            state[g] = value;
+                        break;
+                    case MAX:
+                        if (first || value > state[g])
+                            state[g] = value;
+                        break;
+                    case SUM_COUNT:
+                    case SC_AVG:
+                        if (counts2[i] != null)
+                            counts2[i][g] += other.counts2[i][og];
+                        state[g] += value;
+                        break;
+                    case APPROX_COUNT_DISTINCT:
+                        if (first)
+                            distinct[i][g] = new HyperLogLog(precision);
+                        distinct[i][g].merge(other.distinct[i][og]);
+                        break;
+                    case APPROX_MEDIAN:
+                    case APPROX_P90:
+                    case APPROX_P99:
+                        if (first)
+                            quantiles[i][g] = new KllSketch(k);
+                        quantiles[i][g].merge(other.quantiles[i][og]);
+                        break;
+                    default:
+                        state[g] += value;
+                        break;
+                }
+            }
+        }
+    }
+
+    /** @return the number of groups seen so far */
+    public int numGroups() {
+        return groups.numGroups();
+    }
+
+    /**
+     * @return the number of bytes taken by the state of the groups, which
+     *         grows as groups are added. Sketches are counted at their
+     *         largest size.
+     */
+    public long memoryBytes() {
+        long n = groups.memoryBytes() + 8L * counts.length;
+        for (int i = 0; i < ops.length; i++) {
+            n += 8L * values[i].length;
+            if (counts2[i] != null)
+                n += 8L * counts2[i].length;
+            if (distinct[i] != null)
+                n += (8 + HyperLogLog.maxMemoryBytes(precision)) * distinct[i].length;
+            if (quantiles[i] != null)
+                n += (8 + KllSketch.maxMemoryBytes(k)) * quantiles[i].length;
+        }
+        return n;
+    }
+
+    /**
+     * Remove all groups, releasing their memory. If there were only a few
+     * groups, the arrays are zeroed and kept instead, so that an aggregator
+     * cleared after every group does not allocate.
+     */
+    public void clear() {
+        groups.clear();
+        if (counts.length > INITIAL_GROUPS) {
+            values = new long[ops.length][INITIAL_GROUPS];
+            for (int i = 0; i < ops.length; i++) {
+                if (counts2[i] != null)
+                    counts2[i] = new long[INITIAL_GROUPS];
+                if (distinct[i] != null)
+                    distinct[i] = new HyperLogLog[INITIAL_GROUPS];
+                if (quantiles[i] != null)
+                    quantiles[i] = new KllSketch[INITIAL_GROUPS];
+            }
+            counts = new long[INITIAL_GROUPS];
+        } else {
+            for (int i = 0; i < ops.length; i++) {
+                Arrays.fill(values[i], 0);
+                if (counts2[i] != null)
+                    Arrays.fill(counts2[i], 0);
+                if (distinct[i] != null)
+                    Arrays.fill(distinct[i], null);
+                if (quantiles[i] != null)
+                    Arrays.fill(quantiles[i], null);
+            }
+            Arrays.fill(counts, 0);
+        }
+    }
+
+    /**
+     * @return the schema of the results: the group-by fields, followed by
+     *         the integer or long fields of each aggregate, named after its
+     *         operator
+     */
+    public TupleDesc getTupleDesc() {
+        int n = gtypes.length;
+        for (Op op : ops)
+            n += numResultFields(op);
+        Type[] types = new Type[n];
+        String[] names = new String[n];
+        for (int i = 0; i < gtypes.length; i++) {
+            types[i] = gtypes[i];
+            names[i] = "group" + i;
+        }
+        int field = gtypes.length;
+        for (int i = 0; i < ops.length; i++) {
+            if (ops[i] == Op.SUM_COUNT) {
+                types[field] = rtypes[i];
+                names[field++] = Op.SUM.toString();
+                types[field] = longResults ? Type.LONG_TYPE : Type.INT_TYPE;
+                names[field++] = Op.COUNT.toString();
+            } else {
+                types[field] = rtypes[i];
+                names[field++] = ops[i].toString();
+            }
+        }
+        return new TupleDesc(types, names);
+    }
+
+    /**
+     * Create a DbIterator over the results, with one tuple per group.
+     */
+    public DbIterator iterator() {
+        return iterator(getTupleDesc());
+    }
+
+    /**
+     * Create a DbIterator over the results, with the specified field names.
+     *
+     * @param td
+     *            the schema of the results; it must have the types of
+     *            getTupleDesc()
+     */
+    public DbIterator iterator(TupleDesc td) {
+        ArrayList<Tuple> tuples = new ArrayList<Tuple>(groups.numGroups());
+        for (int g = 0; g < groups.numGroups(); g++)
+            tuples.add(getResult(g, td));
+        return new TupleIterator(td, tuples);
+    }
+
+    /**
+     * @return the result tuple of one group, with the specified schema,
+     *         which must have the types of getTupleDesc()
+     * @param group
+     *            a group number, less than numGroups(); groups are numbered
+     *            in the order they were first seen
+     */
+    public Tuple getResult(int group, TupleDesc td) {
+        Tuple t = new Tuple(td);
+        for (int i = 0; i < gtypes.length; i++)
+            t.setField(i, groups.getKey(group, i));
+        int field = gtypes.length;
+        for (int i = 0; i < ops.length; i++) {
+            if (ops[i] == Op.SUM_COUNT) {
+                t.setField(field, field(values[i][group], td.getFieldType(field)));
+                field++;
+                t.setField(field, field(count(i, group), td.getFieldType(field)));
+                field++;
+            } else {
+                t.setField(field, field(result(i, group), td.getFieldType(field)));
+                field++;
+            }
+        }
+        return t;
+    }
+
+    /**
+     * @return the schema of the partial results: the group-by fields,
+     *         followed by the fields of the state of each aggregate, two (the
+     *         sum and the count) for AVG, SUM_COUNT and SC_AVG. MIN and MAX
+     *         are of the type of their input, and sums and counts are longs,
+     *         so that partial results never overflow.
+     */
+    public TupleDesc partialTupleDesc() {
+        int n = gtypes.length;
+        for (Op op : ops)
+            n += numStateFields(op);
+        Type[] types = new Type[n];
+        String[] names = new String[n];
+        for (int i = 0; i < gtypes.length; i++) {
+            types[i] = gtypes[i];
+            names[i] = "group" + i;
+        }
+        int field = gtypes.length;
+        for (int i = 0; i < ops.length; i++) {
+            if (numStateFields(ops[i]) == 2) {
+                types[field] = Type.LONG_TYPE;
+                names[field++] = Op.SUM.toString();
+                types[field] = Type.LONG_TYPE;
+                names[field++] = Op.COUNT.toString();
+            } else {
+                types[field] = ops[i] == Op.MIN || ops[i] == Op.MAX ? atypes[i] : Type.LONG_TYPE;
+                names[field++] = ops[i].toString();
+            }
+        }
+        return new TupleDesc(types, names);
+    }
+
+    /**
+     * Create a DbIterator over the state of each group, as a partial
+     * aggregator for the same aggregates would return it, to be combined by
+     * {@link #finalAggregator}. For a partial aggregator, these are the
+     * results of iterator(), with sums and counts as longs.
+     *
+     * @throws UnsupportedOperationException
+     *             if an aggregate is estimated with a sketch
+     */
+    public DbIterator partialIterator() {
+        if (!hasPartialTuples())
+            throw new UnsupportedOperationException("sketches cannot be written to tuples");
+        TupleDesc td = partialTupleDesc();
+        ArrayList<Tuple> tuples = new ArrayList<Tuple>(groups.numGroups());
+        for (int g = 0; g < groups.numGroups(); g++) {
+            Tuple t = new Tuple(td);
+            for (int i = 0; i < gtypes.length; i++)
+                t.setField(i, groups.getKey(g, i));
+            int field = gtypes.length;
+            for (int i = 0; i < ops.length; i++) {
+                switch (ops[i]) {
+                    case AVG:
+                    case SUM_COUNT:
+                    case SC_AVG:
+                        t.setField(field++, new LongField(values[i][g]));
+                        t.setField(field++, new LongField(count(i, g)));
+                        break;
+                    default:
+                        t.setField(field, field(result(i, g), td.getFieldType(field)));
+                        field++;
+                }
+            }
+            tuples.add(t);
+        }
+        return new TupleIterator(td, tuples);
+    }
+
+    /**
+     * @return the value of aggregate i over group g
+     */
+    private long result(int i, int g) {
+        switch (ops[i]) {
+            case COUNT:
+                return counts[g];
+            case AVG:
+                return values[i][g] / counts[g];
+            case SC_AVG:
+                return counts2[i][g] == 0 ? 0 : values[i][g] / counts2[i][g];
+            case APPROX_COUNT_DISTINCT:
+                return distinct[i][g].estimate();
+            case APPROX_MEDIAN:
+            case APPROX_P90:
+            case APPROX_P99:
+                return quantiles[i][g].quantile(ops[i].quantile());
+            default:
+                return values[i][g];
+        }
+    }
+
+    /**
+     * @return the count of the tuples of group g summed by aggregate i: the
+     *         partial counts it merged if it has them, and otherwise the
+     *         number of tuples merged
+     */
+    private long count(int i, int g) {
+        return counts2[i] != null ? counts2[i][g] : counts[g];
+    }
+
+    /**
+     * @return the value of an integer or long field
+     */
+    private static long value(Field f) {
+        if (f instanceof LongField)
+            return ((LongField) f).getValue();
+        return ((IntField) f).getValue();
+    }
+
+    /**
+     * @return a field of the specified type, integer or long, holding value
+     * @throws ArithmeticException
+     *             if the type is integer and value does not fit in an int
+     */
+    private static Field field(long value, Type type) {
+        if (type == Type.LONG_TYPE)
+            return new LongField(value);
+        return new IntField(Math.toIntExact(value));
+    }
+
+    private void grow() {
+        int n = counts.length * 2;
+        counts = Arrays.copyOf(counts, n);
+        for (int i = 0; i < values.length; i++) {
+            values[i] = Arrays.copyOf(values[i], n);
+            if (counts2[i] != null)
+                counts2[i] = Arrays.copyOf(counts2[i], n);
+            if (distinct[i] != null)
+                distinct[i] = Arrays.copyOf(distinct[i], n);
+            if (quantiles[i] != null)
+                quantiles[i] = Arrays.copyOf(quantiles[i], n);
+        }
+    }
+}
@@ -0,0 +1,444 @@
+package simpledb;
+
+import java.io.*;
+import java.util.Arrays;
+
+/**
+ * GroupByHashTable numbers the distinct group-by keys seen by an
+ * aggregator: each key is mapped to a dense group number 0, 1, 2, ... in
+ * the order the keys first appear, so that the aggregator can keep its
+ * state for group g at index g of primitive arrays.
+ * <p>
+ * A key is made of the values of zero or more group-by fields. A key made
+ * of a single integer is kept as a primitive int. Other keys are kept as
+ * the serialized bytes of their fields, packed one after the other in a
+ * single byte array, and compared byte for byte; they are only turned back
+ * into Fields by getKey(). Either way, finding or adding a key takes a
+ * single probe of an open-addressing table and does not allocate.
+ */
+public class GroupByHashTable implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /** The group of every tuple when there is no grouping */
+    public static final int NO_GROUPING_GROUP = 0;
+
+    private static final int INITIAL_SLOTS = 64;
+    private static final int EMPTY = -1;
+
+    // the types of the group-by fields, empty if there is no grouping
+    private final Type[] keyTypes;
+    private final boolean isInt;
+
+    // open-addressing table: slots[slot] is the group whose key hashes
+    // there, or EMPTY; hashes[slot] caches the hash of that key
+    private int[] slots;
+    private int[] hashes;
+    private int numGroups;
+
+    // the key of each group, for a single integer field
+    private int[] intKeys;
+
+    // the serialized key of each group, for other keys; group g is at
+    // bytes[g * keyLen, (g + 1) * keyLen) and its field i at offsets[i]
+    // within that. Like in a serialized StringField, the bytes after a
+    // short string are zero.
+    private final int[] offsets;
+    private final int keyLen;
+    private byte[] bytes;
+    // reused to serialize each probed key
+    private transient KeyBuffer scratch;
+    private transient DataOutputStream scratchOut;
+
+    /**
+     * Create an empty table for keys of a single field.
+     *
+     * @param keyType
+     *            the type of the group-by field, or null if there is no
+     *            grouping, in which case every tuple is in group
+     *            NO_GROUPING_GROUP
+     */
+    public GroupByHashTable(Type keyType) {
+        this(keyType == null ? new Type[0] : new Type[] { keyType });
+    }
+
+    /**
+     * Create an empty table for keys made of several fields.
+     *
+     * @param keyTypes
+     *            the types of the group-by fields; if there are none, every
+     *            tuple is in group NO_GROUPING_GROUP
+     */
+    public GroupByHashTable(Type[] keyTypes) {
+        this.keyTypes = keyTypes.clone();
+        this.isInt = keyTypes.length == 1 && keyTypes[0] == Type.INT_TYPE;
+        this.offsets = new int[keyTypes.length];
+        int len = 0;
+        for (int i = 0; i < keyTypes.length; i++) {
+            offsets[i] = len;
+            len += keyTypes[i].getLen();
+        }
+        this.keyLen = len;
+        clear();
+    }
+
+    /**
+     * Remove all groups from the table, releasing its memory. A table that
+     * has not grown keeps its arrays.
+     */
+    public void clear() {
+        if (slots == null || slots.length > INITIAL_SLOTS) {
+            slots = new int[INITIAL_SLOTS];
+            hashes = new int[INITIAL_SLOTS];
+            if (isInt)
+                intKeys = new int[INITIAL_SLOTS];
+            else
+                bytes = new byte[INITIAL_SLOTS * keyLen];
+        } else if (!isInt && numGroups > 0) {
+            // short strings are compared with the zero padding after them
+            Arrays.fill(bytes, 0, Math.min(bytes.length, numGroups * keyLen), (byte) 0);
+        }
+        Arrays.fill(slots, EMPTY);
+        numGroups = 0;
+    }
+
+    /** @return the number of fields in a key */
+    public int numKeyFields() {
+        return keyTypes.length;
+    }
+
+    /**
+     * @return the group of the key made of the specified fields of a tuple,
+     *         which becomes the next group number if the key has not been
+     *         seen before
+     * @param t
+     *            the tuple
+     * @param fields
+     *            the indexes in t of the group-by fields, one for each key
+     *            type given to the constructor
+     */
+    public int groupOf(Tuple t, int[] fields) {
+        if (keyTypes.length == 0)
+            return groupOf((Field) null);
+        if (isInt)
+            return groupOf(((IntField) t.getField(fields[0])).getValue());
+
+        if (scratch == null) {
+            scratch = new KeyBuffer(keyLen);
+            scratchOut = new DataOutputStream(scratch);
+        }
+        scratch.reset();
+        for (int i = 0; i < fields.length; i++)
+            serialize(t.getField(fields[i]), i);
+        return groupOfScratch();
+    }
+
+    /**
+     * @return the group of the key made of the specified columns of a row
+     *         of a batch, which becomes the next group number if the key has
+     *         not been seen before
+     * @param b
+     *            the batch
+     * @param row
+     *            the row of the columns of b
+     * @param fields
+     *            the group-by columns of b, one for each key type given to
+     *            the constructor
+     */
+    public int groupOf(Batch b, int row, int[] fields) {
+        if (keyTypes.length == 0)
+            return groupOf((Field) null);
+        if (isInt)
+            return groupOf(b.getInts(fields[0])[row]);
+
+        if (scratch == null) {
+            scratch = new KeyBuffer(keyLen);
+            scratchOut = new DataOutputStream(scratch);
+        }
+        scratch.reset();
+        for (int i = 0; i < fields.length; i++) {
+            if (keyTypes[i] == Type.INT_TYPE)
+                scratch.writeInt(b.getInts(fields[i])[row], offsets[i]);
+            else
+                serialize(b.getField(fields[i], row), i);
+        }
+        return groupOfScratch();
+    }
+
+    /**
+     * @return the group of the specified value of a single group-by field,
+     *         which becomes the next group number if the value has not been
+     *         seen before
+     * @param key
+     *            the group-by value; ignored if there is no grouping
+     */
+    public int groupOf(Field key) {
+        if (keyTypes.length == 0) {
+            if (numGroups == 0)
+                numGroups = 1;
+            return NO_GROUPING_GROUP;
+        }
+        if (isInt)
+            return groupOf(((IntField) key).getValue());
+
+        if (scratch == null) {
+            scratch = new KeyBuffer(keyLen);
+            scratchOut = new DataOutputStream(scratch);
+        }
+        scratch.reset();
+        serialize(key, 0);
+        return groupOfScratch();
+    }
+
+    /**
+     * @return the group of the specified integer value, which becomes the
+     *         next group number if the value has not been seen before
+     */
+    public int groupOf(int key) {
+        int h = hash(key);
+        int mask = slots.length - 1;
+        int slot = h & mask;
+        int g;
+        while ((g = slots[slot]) != EMPTY) {
+            if (intKeys[g] == key)
+                return g;
+            slot = (slot + 1) & mask;
+        }
+        g = numGroups++;
+        if (g == intKeys.length)
+            intKeys = Arrays.copyOf(intKeys, g * 2);
+        intKeys[g] = key;
+        return insert(slot, h, g);
+    }
+
+    /**
+     * @return the group of the key of a group of another table with the
+     *         same key types, which becomes the next group number if the
+     *         key has not been seen before
+     * @param other
+     *            the other table
+     * @param group
+     *            a group of the other table
+     */
+    public int groupOf(GroupByHashTable other, int group) {
+        if (keyTypes.length == 0)
+            return groupOf((Field) null);
+        if (isInt)
+            return groupOf(other.intKeys[group]);
+
+        if (scratch == null) {
+            scratch = new KeyBuffer(keyLen);
+            scratchOut = new DataOutputStream(scratch);
+        }
+        // the stored key, without the padding of a last string field, as
+        // groupOf(Tuple, int[]) would have serialized it
+        int off = group * keyLen;
+        int len = keyLen;
+        int last = keyTypes.length - 1;
+        if (keyTypes[last] == Type.STRING_TYPE) {
+            int pos = off + offsets[last];
+            int strLen = ((other.bytes[pos] & 0xff) << 24) | ((other.bytes[pos + 1] & 0xff) << 16)
+                    | ((other.bytes[pos + 2] & 0xff) << 8) | (other.bytes[pos + 3] & 0xff);
+            len = offsets[last] + 4 + strLen;
+        }
+        scratch.reset();
+        scratch.write(other.bytes, off, len);
+        return groupOfScratch();
+    }
+
+    /**
+     * @return the value of the single group-by field of the specified
+     *         group, or null if there is no grouping
+     */
+    public Field getKey(int group) {
+        if (keyTypes.length == 0)
+            return null;
+        return getKey(group, 0);
+    }
+
+    /**
+     * @return the value of group-by field i of the specified group
+     */
+    public Field getKey(int group, int i) {
+        if (isInt)
+            return new IntField(intKeys[group]);
+        try {
+            return keyTypes[i].parse(new DataInputStream(new ByteArrayInputStream(
+                    bytes, group * keyLen + offsets[i], keyTypes[i].getLen())));
+        } catch (java.text.ParseException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /** @return the number of distinct groups in the table */
+    public int numGroups() {
+        return numGroups;
+    }
+
+    /**
+     * @return the number of bytes taken by the arrays of the table, which
+     *         grow as groups are added
+     */
+    public long memoryBytes() {
+        long n = 8L * slots.length;
+        return n + (isInt ? 4L * intKeys.length : bytes.length);
+    }
+
+    /**
+     * Write field i of a key to the scratch buffer at its offset.
+     */
+    private void serialize(Field f, int i) {
+        boolean last = i == keyTypes.length - 1;
+        if (f instanceof StringField) {
+            // the same bytes as StringField.serialize(), written without
+            // going through a stream byte by byte; the padding of the last
+            // field is left out, since it is always zero
+            scratch.writeString(((StringField) f).getValue(), offsets[i],
+                    last ? 0 : keyTypes[i].getLen());
+        } else if (f instanceof IntField) {
+            scratch.writeInt(((IntField) f).getValue(), offsets[i]);
+        } else {
+            scratch.seek(offsets[i]);
+            try {
+                f.serialize(scratchOut);
+            } catch (IOException e) {
+                // KeyBuffer never throws
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    /**
+     * @return the group of the key in the scratch buffer, adding it if it is
+     *         new
+     */
+    private int groupOfScratch() {
+        byte[] buf = scratch.buffer();
+        int len = scratch.size();
+        int h = hash(buf, len);
+        int mask = slots.length - 1;
+        int slot = h & mask;
+        int g;
+        while ((g = slots[slot]) != EMPTY) {
+            if (hashes[slot] == h && sameBytes(g, buf, len))
+                return g;
+            slot = (slot + 1) & mask;
+        }
+        g = numGroups++;
+        if (g * keyLen == bytes.length)
+            bytes = Arrays.copyOf(bytes, bytes.length * 2);
+        System.arraycopy(buf, 0, bytes, g * keyLen, len);
+        return insert(slot, h, g);
+    }
+
+    private int insert(int slot, int h, int g) {
+        slots[slot] = g;
+        hashes[slot] = h;
+        // keep the table at most half full
+        if (numGroups * 2 > slots.length)
+            grow();
+        return g;
+    }
+
+    private boolean sameBytes(int group, byte[] buf, int len) {
+        int off = group * keyLen;
+        for (int i = 0; i < len; i++)
+            if (bytes[off + i] != buf[i])
+                return false;
+        return true;
+    }
+
+    private void grow() {
+        int[] oldSlots = slots;
+        int[] oldHashes = hashes;
+        slots = new int[oldSlots.length * 2];
+        Arrays.fill(slots, EMPTY);
+        hashes = new int[oldSlots.length * 2];
+        int mask = slots.length - 1;
+        for (int i = 0; i < oldSlots.length; i++) {
+            if (oldSlots[i] == EMPTY)
+                continue;
+            int slot = oldHashes[i] & mask;
+            while (slots[slot] != EMPTY)
+                slot = (slot + 1) & mask;
+            slots[slot] = oldSlots[i];
+            hashes[slot] = oldHashes[i];
+        }
+    }
+
+    private static int hash(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private static int hash(byte[] buf, int len) {
+        int h = 0;
+        for (int i = 0; i < len; i++)
+            h = 31 * h + buf[i];
+        return hash(h);
+    }
+
+    /**
+     * A fixed-size output buffer for serializing one key, reused for every
+     * tuple.
+     */
+    private static class KeyBuffer extends OutputStream {
+        private final byte[] buf;
+        private int count;
+
+        KeyBuffer(int size) {
+            buf = new byte[size];
+        }
+
+        void reset() {
+            count = 0;
+        }
+
+        void seek(int pos) {
+            count = pos;
+        }
+
+        byte[] buffer() {
+            return buf;
+        }
+
+        int size() {
+            return count;
+        }
+
+        void writeInt(int v, int pos) {
+            buf[pos] = (byte) (v >>> 24);
+            buf[pos + 1] = (byte) (v >>> 16);
+            buf[pos + 2] = (byte) (v >>> 8);
+            buf[pos + 3] = (byte) v;
+            count = pos + 4;
+        }
+
+        /**
+         * Write a string the way StringField.serialize() does, zero padded
+         * to padTo bytes.
+         */
+        void writeString(String s, int pos, int padTo) {
+            int len = Math.min(s.length(), Type.STRING_LEN);
+            writeInt(len, pos);
+            for (int i = 0; i < len; i++)
+                buf[pos + 4 + i] = (byte) s.charAt(i);
+            count = pos + 4 + len;
+            if (count < pos + padTo) {
+                Arrays.fill(buf, count, pos + padTo, (byte) 0);
+                count = pos + padTo;
+            }
+        }
+
+        @Override
+        public void write(int b) {
+            buf[count++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            System.arraycopy(b, off, buf, count, len);
+            count += len;
+        }
+    }
+}
@@ -1,25 +1,66 @@
 package simpledb;
 
+import java.io.IOException;
 import java.util.*;
 
 /**
  * The Join operator implements the relational join operation.
+ * <p>
+ * HashEquiJoin is a hybrid hash join. The build side is loaded into an
+ * in-memory hash table as long as it fits in the join's memory budget. When
+ * it does not, the build side is split by hash into partitions and the
+ * largest partitions are written to temporary files until the rest fits.
+ * Probe tuples that fall into an in-memory partition are joined right away;
+ * the others are written to the file of their partition, and each pair of
+ * partition files is joined afterwards in the same way, with a different hash
+ * function. A partition that cannot be split any further, because most of it
+ * has the same key, is joined with a block nested-loops join instead.
+ * <p>
+ * When the join field is an integer the hash table is an
+ * {@link IntTupleHashTable}, which needs no boxed keys or per-key lists.
  */
 public class HashEquiJoin extends Operator {
 
     private static final long serialVersionUID = 1L;
+
+    /** Default memory budget of the hash table, in pages */
+    public static final int DEFAULT_MEMORY_PAGES = 1024;
+
+    /** Number of partitions the build side is split into */
+    static final int NUM_PARTITIONS = 16;
+
+    /** Partitions this many levels deep are joined with nested loops */
+    static final int MAX_DEPTH = 4;
+
     private JoinPredicate p;
     private DbIterator child1;
     private DbIterator child2;
     private HashMap<Object, ArrayList<Tuple>> map;
+    private transient IntTupleHashTable intTable;
     private Iterator<Tuple> tupleIt;
+    private int matchRow = IntTupleHashTable.NONE;
     private Tuple t1;
     private Tuple t2;
+    private boolean buildRight;
+    private int memoryBytes;
+    // the merged schema of the output, computed when the join is opened
+    private TupleDesc td;
+
+    // state of the partition being joined
+    private transient DbIterator probe;
+    private int depth;
+    private int passTuples;
+    private transient SpillFile[] buildSpills;
+    private transient SpillFile[] probeSpills;
+    private transient Partition current;
+    private transient DbIterator overflowJoin;
+    private transient LinkedList<Partition> pending;
+    private int spilledPartitions;
 
     /**
      * Constructor. Accepts to children to join and the predicate to join them
      * on
-     * 
+     *
      * @param p
      *            The predicate to use to join the children
      * @param child1
@@ -28,7 +69,48 @@ public class HashEquiJoin extends Operator {
      *            Iterator for the right(inner) relation to join
      */
     public HashEquiJoin(JoinPredicate p, DbIterator child1, DbIterator child2) {
-        // some code goes here
+        this(p, child1, child2, false);
+    }
+
+    /**
+     * Constructor that also chooses which child the hash table is built on.
+     * The other child is streamed past the table; the output tuples are
+     * child1's fields followed by child2's either way.
+     *
+     * @param p
+     *            The predicate to use to join the children
+     * @param child1
+     *            Iterator for the left(outer) relation to join
+     * @param child2
+     *            Iterator for the right(inner) relation to join
+     * @param buildRight
+     *            true to build the hash table on child2 instead of child1
+     */
+    public HashEquiJoin(JoinPredicate p, DbIterator child1, DbIterator child2, boolean buildRight) {
+        this(p, child1, child2, buildRight, DEFAULT_MEMORY_PAGES * BufferPool.getPageSize());
+    }
+
+    /**
+     * Constructor with an explicit memory budget.
+     *
+     * @param p
+     *            The predicate to use to join the children
+     * @param child1
+     *            Iterator for the left(outer) relation to join
+     * @param child2
+     *            Iterator for the right(inner) relation to join
+     * @param buildRight
+     *            true to build the hash table on child2 instead of child1
+     * @param memoryBytes
+     *            How many bytes of build tuples to keep in memory; the rest
+     *            of the build side is spilled to disk
+     */
+    public HashEquiJoin(JoinPredicate p, DbIterator child1, DbIterator child2,
+            boolean buildRight, int memoryBytes) {
+        if (memoryBytes <= 0)
+            throw new IllegalArgumentException("memory budget must be positive");
+        this.buildRight = buildRight;
+        this.memoryBytes = memoryBytes;
         this.p = p;
         this.child1 = child1;
         this.child2 = child2;
@@ -45,21 +127,38 @@ public class HashEquiJoin extends Operator {
 
     public TupleDesc getTupleDesc() {
         // some code goes here
+        if (td != null)
+            return td;
         return TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
     }
-    
+
     public String getJoinField1Name()
     {
         // some code goes here
 	return child1.getTupleDesc().getFieldName(p.getField1());
     }
 
+    /**
+     * @return true if the hash table is built on child2
+     */
+    public boolean buildsRight() {
+        return buildRight;
+    }
+
+    /**
+     * @return the number of partitions that have been written to disk since
+     *         the join was opened, at any level of partitioning
+     */
+    public int numSpilledPartitions() {
+        return spilledPartitions;
+    }
+
     public String getJoinField2Name()
     {
         // some code goes here
         return child1.getTupleDesc().getFieldName(p.getField1());
     }
-    
+
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         // some code goes here
@@ -68,8 +167,9 @@ public class HashEquiJoin extends Operator {
         }
         child1.open();
         child2.open();
+        td = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
         super.open();
-        createMap();
+        startJoin();
     }
 
     public void close() {
@@ -81,12 +181,25 @@ public class HashEquiJoin extends Operator {
         this.t2=null;
         this.listIt=null;
         this.map.clear();
+        this.intTable = null;
+        this.matchRow = IntTupleHashTable.NONE;
+        deleteSpills();
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
         // some code goes here
         child1.rewind();
         child2.rewind();
+        tupleIt = null;
+        matchRow = IntTupleHashTable.NONE;
+        if (spilledPartitions == 0) {
+            // the hash table still holds the whole build side
+            probe = buildRight ? child1 : child2;
+            depth = 0;
+        } else {
+            deleteSpills();
+            startJoin();
+        }
     }
 
     transient Iterator<Tuple> listIt = null;
@@ -105,27 +218,58 @@ public class HashEquiJoin extends Operator {
      * <p>
      * For example, if one tuple is {1,2,3} and the other tuple is {1,5,6},
      * joined on equality of the first column, then this returns {1,2,3,1,5,6}.
-     * 
+     *
      * @return The next matching tuple.
      * @see JoinPredicate#filter
      */
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
         // some code goes here
-        if (tupleIt != null && tupleIt.hasNext()) {
-            return combineTuples();
-        }
-
+        int probeField = buildRight ? p.getField1() : p.getField2();
+        while (true) {
+            if (tupleIt != null && tupleIt.hasNext()) {
+                return combineTuples(tupleIt.next());
+            }
+            if (matchRow != IntTupleHashTable.NONE) {
+                Tuple match = intTable.getTuple(matchRow);
+                matchRow = intTable.next(matchRow);
+                return combineTuples(match);
+            }
 
-        while (child2.hasNext()) {
-            t2 = child2.next();
-            ArrayList<Tuple> match = map.get(t2.getField(p.getField2()));
-            if (match != null) {
-                tupleIt = match.iterator();
-                return combineTuples();                
+            if (overflowJoin != null) {
+                if (overflowJoin.hasNext())
+                    return overflowJoin.next();
+                overflowJoin.close();
+                overflowJoin = null;
+                current.delete();
+                current = null;
+            } else if (probe != null && probe.hasNext()) {
+                Tuple t = probe.next();
+                Field key = t.getField(probeField);
+                int part = partition(key, depth);
+                if (buildSpills[part] != null) {
+                    spill(probeSpills[part], t);
+                    continue;
+                }
+                if (buildRight)
+                    t1 = t;
+                else
+                    t2 = t;
+                if (intTable != null) {
+                    matchRow = intTable.first(((IntField) key).getValue());
+                } else {
+                    ArrayList<Tuple> match = map.get(key);
+                    if (match != null)
+                        tupleIt = match.iterator();
+                }
+                continue;
+            } else if (probe != null) {
+                finishPass();
             }
-        }
 
-        return null;
+            if (pending.isEmpty())
+                return null;
+            joinPartition(pending.removeFirst());
+        }
     }
 
     @Override
@@ -139,39 +283,245 @@ public class HashEquiJoin extends Operator {
         // some code goes here
         this.child1 = children[0];
         this.child2 = children[1];
+        this.td = null;
+    }
+
+    private void startJoin() throws DbException, TransactionAbortedException {
+        pending = new LinkedList<Partition>();
+        spilledPartitions = 0;
+        tupleIt = null;
+        createMap(buildRight ? child2 : child1, buildRight ? child1 : child2, 0);
     }
 
-    private void createMap() throws DbException, TransactionAbortedException {
+    /**
+     * Loads the build input into the hash table, spilling partitions that do
+     * not fit, and makes probeInput the input to be probed next.
+     */
+    private void createMap(DbIterator build, DbIterator probeInput, int depth)
+            throws DbException, TransactionAbortedException {
         ArrayList<Tuple> currentList;
-        // Fill map with field 1 values 
+        int buildField = buildRight ? p.getField2() : p.getField1();
+        int tupleSize = build.getTupleDesc().getSize();
+        long[] partBytes = new long[NUM_PARTITIONS];
+        long bytes = 0;
+        int buildTuples = 0;
+
+        this.depth = depth;
+        this.probe = probeInput;
+        this.buildSpills = new SpillFile[NUM_PARTITIONS];
+        this.probeSpills = new SpillFile[NUM_PARTITIONS];
+        // Fill map with the join field values of the build side
         map.clear();
-        while (child1.hasNext()) {
-            t1 = child1.next();
-            if (map.containsKey(t1.getField(p.getField1()))) {
-                currentList = map.get(t1.getField(p.getField1()));
-                currentList.add(t1);
+        if (build.getTupleDesc().getFieldType(buildField) == Type.INT_TYPE)
+            intTable = new IntTupleHashTable();
+        else
+            intTable = null;
+        while (build.hasNext()) {
+            Tuple t = build.next();
+            buildTuples++;
+            Field key = t.getField(buildField);
+            int part = partition(key, depth);
+            if (buildSpills[part] != null) {
+                spill(buildSpills[part], t);
+                continue;
+            }
+            if (intTable != null) {
+                intTable.add(((IntField) key).getValue(), t);
+            } else if (map.containsKey(key)) {
+                currentList = map.get(key);
+                currentList.add(t);
             } else {
                 ArrayList<Tuple> list = new ArrayList<Tuple>();
-                list.add(t1);
-                map.put(t1.getField(p.getField1()), list);
+                list.add(t);
+                map.put(key, list);
+            }
+            partBytes[part] += tupleSize;
+            bytes += tupleSize;
+
+            if (bytes > memoryBytes) {
+                // spill the largest partition that is still in memory
+                int victim = 0;
+                for (int i = 1; i < NUM_PARTITIONS; i++) {
+                    if (partBytes[i] > partBytes[victim])
+                        victim = i;
+                }
+                spillPartition(victim, build.getTupleDesc(), probeInput.getTupleDesc(), buildField);
+                bytes -= partBytes[victim];
+                partBytes[victim] = 0;
             }
-            
         }
-        
+        passTuples = buildTuples;
+    }
+
+    /**
+     * Moves the in-memory tuples of a partition to a new spill file.
+     */
+    private void spillPartition(int part, TupleDesc buildTd, TupleDesc probeTd,
+            int buildField) throws DbException {
+        try {
+            buildSpills[part] = new SpillFile(buildTd);
+            probeSpills[part] = new SpillFile(probeTd);
+        } catch (IOException e) {
+            throw new DbException("could not create spill file: " + e);
+        }
+        if (intTable != null) {
+            // rebuild the table without the spilled partition
+            IntTupleHashTable old = intTable;
+            intTable = new IntTupleHashTable();
+            for (int row = 0; row < old.numRows(); row++) {
+                Tuple t = old.getTuple(row);
+                IntField key = (IntField) t.getField(buildField);
+                if (partition(key, depth) == part)
+                    spill(buildSpills[part], t);
+                else
+                    intTable.add(key.getValue(), t);
+            }
+        }
+        Iterator<Map.Entry<Object, ArrayList<Tuple>>> it = map.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Object, ArrayList<Tuple>> e = it.next();
+            if (partition((Field) e.getKey(), depth) != part)
+                continue;
+            for (Tuple t : e.getValue())
+                spill(buildSpills[part], t);
+            it.remove();
+        }
+        spilledPartitions++;
+    }
+
+    /**
+     * Called once the probe input of the current pass is exhausted: queues
+     * the pairs of spilled partitions to be joined later.
+     */
+    private void finishPass() throws DbException {
+        if (current != null) {
+            probe.close();
+            current.delete();
+            current = null;
+        }
+        probe = null;
+        for (int i = 0; i < NUM_PARTITIONS; i++) {
+            if (buildSpills[i] == null)
+                continue;
+            Partition part = new Partition(buildSpills[i], probeSpills[i], depth + 1, passTuples);
+            buildSpills[i] = null;
+            probeSpills[i] = null;
+            try {
+                part.build.finish();
+                part.probe.finish();
+            } catch (IOException e) {
+                part.delete();
+                throw new DbException("could not write spill file: " + e);
+            }
+            // a partition with no tuples on either side has no matches
+            if (part.build.numTuples() == 0 || part.probe.numTuples() == 0)
+                part.delete();
+            else
+                pending.add(part);
+        }
+    }
+
+    /**
+     * Starts joining a pair of spilled partitions, either by partitioning
+     * them again or, if that did not make the build side any smaller, with a
+     * nested-loops join.
+     */
+    private void joinPartition(Partition part) throws DbException, TransactionAbortedException {
+        current = part;
+        DbIterator build = part.build.iterator();
+        DbIterator probeInput = part.probe.iterator();
+        if (part.depth > MAX_DEPTH || part.build.numTuples() >= part.parentSize) {
+            // the partition is skewed; a block nested-loops join needs no
+            // more memory than the budget whatever the key distribution
+            overflowJoin = buildRight ? new Join(p, probeInput, build, memoryBytes)
+                    : new Join(p, build, probeInput, memoryBytes);
+            overflowJoin.open();
+            return;
+        }
+        build.open();
+        probeInput.open();
+        createMap(build, probeInput, part.depth);
+        build.close();
+    }
+
+    private void spill(SpillFile f, Tuple t) throws DbException {
+        try {
+            f.add(t);
+        } catch (IOException e) {
+            throw new DbException("could not write spill file: " + e);
+        }
     }
 
-    private Tuple combineTuples(){
-        t1 = tupleIt.next();
-        int t1Len = t1.getTupleDesc().numFields();
-        int t2Len = t2.getTupleDesc().numFields();
-        Tuple newTuple = new Tuple(getTupleDesc());
-        for (int i=0; i < t1Len; i++) {
-            newTuple.setField(i, t1.getField(i));
+    private void deleteSpills() {
+        if (overflowJoin != null)
+            overflowJoin.close();
+        overflowJoin = null;
+        if (current != null) {
+            if (probe != null)
+                probe.close();
+            current.delete();
+        }
+        current = null;
+        probe = null;
+        for (int i = 0; buildSpills != null && i < NUM_PARTITIONS; i++) {
+            if (buildSpills[i] != null)
+                buildSpills[i].delete();
+            if (probeSpills[i] != null)
+                probeSpills[i].delete();
         }
-        for (int j=0; j < t2Len; j++) {
-            newTuple.setField(t1Len+j, t2.getField(j));
+        buildSpills = null;
+        probeSpills = null;
+        if (pending != null) {
+            for (Partition part : pending)
+                part.delete();
+            pending.clear();
         }
-        return newTuple;
     }
-    
+
+    /**
+     * @return the partition of a key at the specified level of partitioning.
+     *         Each level uses a different hash function, so that a partition
+     *         is split further when it is partitioned again.
+     */
+    static int partition(Field key, int depth) {
+        int h = key.hashCode() ^ (depth * 0x9E3779B9);
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        h *= 0xC2B2AE35;
+        h ^= h >>> 16;
+        return (h & Integer.MAX_VALUE) % NUM_PARTITIONS;
+    }
+
+    private Tuple combineTuples(Tuple match){
+        if (buildRight)
+            t2 = match;
+        else
+            t1 = match;
+        return new JoinedTuple(getTupleDesc(), t1, t2);
+    }
+
+    /**
+     * A pair of spilled partitions waiting to be joined. parentSize is the
+     * number of build tuples in the pass that produced them.
+     */
+    private static class Partition {
+        SpillFile build;
+        SpillFile probe;
+        int depth;
+        int parentSize;
+
+        Partition(SpillFile build, SpillFile probe, int depth, int parentSize) {
+            this.build = build;
+            this.probe = probe;
+            this.depth = depth;
+            this.parentSize = parentSize;
+        }
+
+        void delete() {
+            build.delete();
+            probe.delete();
+        }
+    }
+
 }
@@ -0,0 +1,263 @@
+package simpledb;
+
+import java.io.Serializable;
+
+/**
+ * HyperLogLog estimates the number of distinct values added to it in a
+ * fixed amount of memory, as described by Flajolet et al. Each value is
+ * hashed to 64 bits; the first p bits of the hash pick one of m = 2^p
+ * registers, which keeps the longest run of leading zeros seen in the rest
+ * of the hashes that went to it. The relative standard error of the
+ * estimate is about 1.04 / sqrt(m).
+ * <p>
+ * Until it has seen m / 8 distinct hashes, the sketch keeps the hashes
+ * themselves, which is exact and takes less memory than the registers; this
+ * matters when there are many small groups. Two sketches with the same
+ * precision can be merged, giving the sketch of the union of their values.
+ */
+public class HyperLogLog implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /** The smallest and largest supported precisions */
+    public static final int MIN_PRECISION = 4;
+    public static final int MAX_PRECISION = 18;
+
+    /** The default precision, for a relative error of about 1.6% */
+    public static final int DEFAULT_PRECISION = 12;
+
+    private static final int INITIAL_SPARSE = 8;
+
+    private final int p;
+    // the dense registers, or null while the sketch is sparse
+    private byte[] registers;
+    // the distinct hashes seen, in an open-addressing set where 0 is empty,
+    // while the sketch is sparse
+    private long[] sparse;
+    private int sparseCount;
+
+    /**
+     * Create an empty sketch.
+     *
+     * @param precision
+     *            the number of bits of the hash that pick a register,
+     *            between MIN_PRECISION and MAX_PRECISION
+     */
+    public HyperLogLog(int precision) {
+        if (precision < MIN_PRECISION || precision > MAX_PRECISION)
+            throw new IllegalArgumentException("precision must be between " + MIN_PRECISION
+                    + " and " + MAX_PRECISION);
+        this.p = precision;
+        this.sparse = new long[INITIAL_SPARSE];
+    }
+
+    /**
+     * @return the smallest precision whose relative standard error is at
+     *         most relativeError, within the supported precisions
+     */
+    public static int precisionFor(double relativeError) {
+        if (!(relativeError > 0 && relativeError < 1))
+            throw new IllegalArgumentException("relative error must be between 0 and 1");
+        double m = (1.04 / relativeError) * (1.04 / relativeError);
+        int precision = (int) Math.ceil(Math.log(m) / Math.log(2));
+        return Math.max(MIN_PRECISION, Math.min(MAX_PRECISION, precision));
+    }
+
+    /** @return the relative standard error of a sketch of the given precision */
+    public static double relativeError(int precision) {
+        return 1.04 / Math.sqrt(1 << precision);
+    }
+
+    public int getPrecision() {
+        return p;
+    }
+
+    /**
+     * Add the value of a field to the sketch.
+     */
+    public void add(Field f) {
+        if (f instanceof IntField)
+            addHash(mix(((IntField) f).getValue()));
+        else if (f instanceof LongField)
+            addHash(mix(((LongField) f).getValue()));
+        else
+            addHash(hash(((StringField) f).getValue()));
+    }
+
+    /**
+     * Add an integer value to the sketch.
+     */
+    public void add(int value) {
+        addHash(mix(value));
+    }
+
+    private void addHash(long h) {
+        if (registers != null) {
+            update(h);
+            return;
+        }
+        if (h == 0)
+            h = 1;
+        int mask = sparse.length - 1;
+        int slot = (int) h & mask;
+        while (sparse[slot] != 0) {
+            if (sparse[slot] == h)
+                return;
+            slot = (slot + 1) & mask;
+        }
+        sparse[slot] = h;
+        sparseCount++;
+        if (sparseCount > (1 << p) / 8)
+            toDense();
+        else if (sparseCount * 2 > sparse.length)
+            growSparse();
+    }
+
+    /**
+     * Update the register picked by a hash.
+     */
+    private void update(long h) {
+        int idx = (int) (h >>> (64 - p));
+        // the run of zeros is at most 64 - p bits long
+        int rank = Long.numberOfLeadingZeros((h << p) | (1L << (p - 1))) + 1;
+        if (rank > registers[idx])
+            registers[idx] = (byte) rank;
+    }
+
+    private void growSparse() {
+        long[] old = sparse;
+        sparse = new long[old.length * 2];
+        int mask = sparse.length - 1;
+        for (long h : old) {
+            if (h == 0)
+                continue;
+            int slot = (int) h & mask;
+            while (sparse[slot] != 0)
+                slot = (slot + 1) & mask;
+            sparse[slot] = h;
+        }
+    }
+
+    private void toDense() {
+        registers = new byte[1 << p];
+        for (long h : sparse)
+            if (h != 0)
+                update(h);
+        sparse = null;
+        sparseCount = 0;
+    }
+
+    /**
+     * Merge another sketch into this one, so that it estimates the number
+     * of distinct values added to either.
+     *
+     * @throws IllegalArgumentException
+     *             if the other sketch has a different precision
+     */
+    public void merge(HyperLogLog other) {
+        if (other.p != p)
+            throw new IllegalArgumentException("cannot merge sketches of precision " + p
+                    + " and " + other.p);
+        if (other.registers == null) {
+            for (long h : other.sparse)
+                if (h != 0)
+                    addHash(h);
+            return;
+        }
+        if (registers == null)
+            toDense();
+        for (int i = 0; i < registers.length; i++)
+            if (other.registers[i] > registers[i])
+                registers[i] = other.registers[i];
+    }
+
+    /**
+     * @return the estimated number of distinct values added to the sketch
+     */
+    public long estimate() {
+        if (registers == null)
+            return sparseCount;
+        // the estimator of Ertl, "New cardinality estimation algorithms for
+        // HyperLogLog sketches" (2017), which unlike the original one has
+        // no bias to correct for at small or large cardinalities
+        int m = registers.length;
+        int q = 64 - p;
+        int[] histogram = new int[q + 2];
+        for (byte r : registers)
+            histogram[r]++;
+        double z = m * tau(1 - (double) histogram[q + 1] / m);
+        for (int r = q; r >= 1; r--)
+            z = 0.5 * (z + histogram[r]);
+        z += m * sigma((double) histogram[0] / m);
+        return Math.round(m / (2 * Math.log(2)) * m / z);
+    }
+
+    private static double sigma(double x) {
+        if (x == 1)
+            return Double.POSITIVE_INFINITY;
+        double y = 1;
+        double z = x;
+        double old;
+        do {
+            x *= x;
+            old = z;
+            z += x * y;
+            y += y;
+        } while (z != old);
+        return z;
+    }
+
+    private static double tau(double x) {
+        if (x == 0 || x == 1)
+            return 0;
+        double y = 1;
+        double z = 1 - x;
+        double old;
+        do {
+            x = Math.sqrt(x);
+            old = z;
+            y *= 0.5;
+            z -= (1 - x) * (1 - x) * y;
+        } while (z != old);
+        return z / 3;
+    }
+
+    /**
+     * @return the number of bytes of memory taken by the sketch
+     */
+    public long memoryBytes() {
+        return registers != null ? registers.length : 8L * sparse.length;
+    }
+
+    /**
+     * @return the most memory a sketch of the given precision takes
+     */
+    public static long maxMemoryBytes(int precision) {
+        return 1L << precision;
+    }
+
+    /** The finalizer of MurmurHash3, which spreads the bits of x */
+    private static long mix(long x) {
+        x ^= x >>> 33;
+        x *= 0xff51afd7ed558ccdL;
+        x ^= x >>> 33;
+        x *= 0xc4ceb9fe1a85ec53L;
+        x ^= x >>> 33;
+        return x;
+    }
+
+    /** A 64-bit FNV-1a hash of the characters of s, mixed */
+    private static long hash(String s) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < s.length(); i++) {
+            h ^= s.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        return mix(h);
+    }
+
+    @Override
+    public String toString() {
+        return "HyperLogLog(p=" + p + ", estimate=" + estimate() + ")";
+    }
+}
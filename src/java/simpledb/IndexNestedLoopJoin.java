@@ -0,0 +1,252 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * IndexNestedLoopJoin implements an equality join whose inner relation is a
+ * BTreeFile keyed on the join field. Instead of rescanning the inner table,
+ * it looks up the matches of each outer tuple with an equality probe of the
+ * index.
+ * <p>
+ * Probes are batched: a block of outer tuples is buffered and sorted on the
+ * join field, so that consecutive probes walk down the same part of the tree
+ * and visit the leaf pages in key order, and each distinct key in the block
+ * is probed only once. As a consequence the output is grouped by key within
+ * each block rather than in the order of the outer relation.
+ */
+public class IndexNestedLoopJoin extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    private JoinPredicate p;
+    private DbIterator child;
+    private TransactionId tid;
+    private int innerTableId;
+    private String innerAlias;
+    private int blockBytes;
+    private TupleDesc innerTd;
+    // the merged schema of the output, computed when the join is opened
+    private TupleDesc outTd;
+
+    private transient ArrayList<Tuple> block = new ArrayList<Tuple>();
+    private int blockPos;
+    private Tuple outer;
+    private Field matchKey;
+    private transient ArrayList<Tuple> matches = new ArrayList<Tuple>();
+    private int matchPos;
+    private int numProbes;
+
+    /**
+     * Constructor.
+     *
+     * @param p
+     *            The predicate to join on. It must be an equality, and its
+     *            second field the key field of the inner table.
+     * @param child
+     *            Iterator for the left(outer) relation to join
+     * @param tid
+     *            The transaction the index probes run as a part of
+     * @param innerTableId
+     *            The BTreeFile to probe
+     * @param innerAlias
+     *            The alias of the inner table; the fields of the inner table
+     *            are named innerAlias.fieldName, as in a SeqScan
+     */
+    public IndexNestedLoopJoin(JoinPredicate p, DbIterator child,
+            TransactionId tid, int innerTableId, String innerAlias) {
+        this(p, child, tid, innerTableId, innerAlias,
+                Join.DEFAULT_BLOCK_PAGES * BufferPool.getPageSize());
+    }
+
+    /**
+     * Constructor with an explicit memory budget for the block of outer
+     * tuples whose probes are sorted together.
+     *
+     * @param blockBytes
+     *            How many bytes of outer tuples to buffer and sort. At least
+     *            one tuple is always buffered.
+     */
+    public IndexNestedLoopJoin(JoinPredicate p, DbIterator child,
+            TransactionId tid, int innerTableId, String innerAlias,
+            int blockBytes) {
+        if (p.getOperator() != Predicate.Op.EQUALS)
+            throw new IllegalArgumentException("an index nested-loop join needs an equality predicate");
+        if (blockBytes <= 0)
+            throw new IllegalArgumentException("block size must be positive");
+        DbFile f = Database.getCatalog().getDatabaseFile(innerTableId);
+        if (!(f instanceof BTreeFile) || ((BTreeFile) f).keyField() != p.getField2())
+            throw new IllegalArgumentException("the inner table must be a BTreeFile keyed on the join field");
+        this.p = p;
+        this.child = child;
+        this.tid = tid;
+        this.innerTableId = innerTableId;
+        this.innerAlias = innerAlias;
+        this.blockBytes = blockBytes;
+
+        TupleDesc td = f.getTupleDesc();
+        Type[] types = new Type[td.numFields()];
+        String[] names = new String[td.numFields()];
+        for (int i = 0; i < td.numFields(); i++) {
+            types[i] = td.getFieldType(i);
+            names[i] = innerAlias + "." + td.getFieldName(i);
+        }
+        this.innerTd = new TupleDesc(types, names);
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return p;
+    }
+
+    /**
+     * @return
+     *       the field name of join field1. Should be quantified by
+     *       alias or table name.
+     * */
+    public String getJoinField1Name() {
+        return child.getTupleDesc().getFieldName(p.getField1());
+    }
+
+    /**
+     * @return
+     *       the field name of join field2. Should be quantified by
+     *       alias or table name.
+     * */
+    public String getJoinField2Name() {
+        return innerTd.getFieldName(p.getField2());
+    }
+
+    /**
+     * @return the id of the BTreeFile that is probed
+     */
+    public int getInnerTableId() {
+        return innerTableId;
+    }
+
+    /**
+     * @return the alias of the inner table
+     */
+    public String getInnerAlias() {
+        return innerAlias;
+    }
+
+    /**
+     * @return the number of index probes made since the join was opened
+     */
+    public int numProbes() {
+        return numProbes;
+    }
+
+    public TupleDesc getTupleDesc() {
+        if (outTd != null)
+            return outTd;
+        return TupleDesc.merge(child.getTupleDesc(), innerTd);
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        if (child == null) {
+            throw new NoSuchElementException("Child is null!");
+        }
+        child.open();
+        outTd = TupleDesc.merge(child.getTupleDesc(), innerTd);
+        super.open();
+        reset();
+        numProbes = 0;
+    }
+
+    public void close() {
+        child.close();
+        super.close();
+        reset();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        child.rewind();
+        reset();
+    }
+
+    private void reset() {
+        if (block == null)
+            block = new ArrayList<Tuple>();
+        if (matches == null)
+            matches = new ArrayList<Tuple>();
+        block.clear();
+        blockPos = 0;
+        outer = null;
+        matchKey = null;
+        matches.clear();
+        matchPos = 0;
+    }
+
+    /**
+     * Replaces the current block with the next block of outer tuples, sorted
+     * on the join field.
+     *
+     * @return false if the outer relation is exhausted
+     */
+    private boolean fillBlock() throws DbException, TransactionAbortedException {
+        int capacity = Join.tuplesPerBlock(child.getTupleDesc().getSize(), blockBytes);
+        block.clear();
+        blockPos = 0;
+        while (block.size() < capacity && child.hasNext())
+            block.add(child.next());
+        Collections.sort(block, new BTreeFileEncoder.TupleComparator(p.getField1()));
+        return !block.isEmpty();
+    }
+
+    /**
+     * Replaces the current matches with the inner tuples whose key equals
+     * key.
+     */
+    private void probe(Field key) throws DbException, TransactionAbortedException {
+        matches.clear();
+        matchKey = key;
+        numProbes++;
+        BTreeFile f = (BTreeFile) Database.getCatalog().getDatabaseFile(innerTableId);
+        DbFileIterator it = f.indexIterator(tid, new IndexPredicate(Predicate.Op.EQUALS, key));
+        it.open();
+        while (it.hasNext())
+            matches.add(it.next());
+        it.close();
+    }
+
+    /**
+     * Returns the next tuple generated by the join, or null if there are no
+     * more tuples. The tuples are the concatenation of an outer tuple and a
+     * matching tuple of the inner table.
+     *
+     * @return The next matching tuple.
+     */
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        while (true) {
+            if (outer != null && matchPos < matches.size())
+                return combine(outer, matches.get(matchPos++));
+
+            if (blockPos == block.size() && !fillBlock())
+                return null;
+            outer = block.get(blockPos++);
+            matchPos = 0;
+            Field key = outer.getField(p.getField1());
+            // the block is sorted, so outer tuples with the same key are
+            // adjacent and share the matches of one probe
+            if (matchKey == null || !key.equals(matchKey))
+                probe(key);
+        }
+    }
+
+    private Tuple combine(Tuple t1, Tuple t2) {
+        return new JoinedTuple(getTupleDesc(), t1, t2);
+    }
+
+    @Override
+    public DbIterator[] getChildren() {
+        return new DbIterator[] { child };
+    }
+
+    @Override
+    public void setChildren(DbIterator[] children) {
+        child = children[0];
+        outTd = null;
+    }
+
+}
@@ -0,0 +1,136 @@
+package simpledb;
+
+import java.util.Arrays;
+
+/**
+ * IntTupleHashTable is a multimap from int keys to tuples, used by
+ * HashEquiJoin when the join field is an integer. It avoids the per-tuple
+ * boxing of a HashMap&lt;Field, ArrayList&lt;Tuple&gt;&gt;: distinct keys live in
+ * an open-addressing table of primitive ints, and the tuples with the same
+ * key are chained through a parallel array of row numbers.
+ * <p>
+ * Matches are read by following the chain of a key:
+ * <pre>
+ * for (int row = table.first(key); row != IntTupleHashTable.NONE; row = table.next(row))
+ *     ... table.getTuple(row) ...
+ * </pre>
+ */
+public class IntTupleHashTable {
+
+    /** Returned by first() and next() when there are no more matches */
+    public static final int NONE = -1;
+
+    private static final int INITIAL_SLOTS = 64;
+
+    // open-addressing table of distinct keys; heads[slot] is the most
+    // recently added row with keys[slot], or NONE if the slot is unused
+    private int[] keys;
+    private int[] heads;
+    private int numKeys;
+
+    // rows in insertion order; next[row] is the previous row with the same key
+    private Tuple[] tuples;
+    private int[] next;
+    private int numRows;
+
+    public IntTupleHashTable() {
+        clear();
+    }
+
+    /**
+     * Remove all tuples from the table, releasing its memory.
+     */
+    public void clear() {
+        keys = new int[INITIAL_SLOTS];
+        heads = new int[INITIAL_SLOTS];
+        Arrays.fill(heads, NONE);
+        numKeys = 0;
+        tuples = new Tuple[INITIAL_SLOTS];
+        next = new int[INITIAL_SLOTS];
+        numRows = 0;
+    }
+
+    /**
+     * Add a tuple under the specified key.
+     */
+    public void add(int key, Tuple t) {
+        if (numRows == tuples.length) {
+            tuples = Arrays.copyOf(tuples, numRows * 2);
+            next = Arrays.copyOf(next, numRows * 2);
+        }
+        int slot = find(key);
+        if (heads[slot] == NONE) {
+            keys[slot] = key;
+            numKeys++;
+        }
+        tuples[numRows] = t;
+        next[numRows] = heads[slot];
+        heads[slot] = numRows;
+        numRows++;
+        // keep the table at most half full
+        if (numKeys * 2 > keys.length)
+            grow();
+    }
+
+    /**
+     * @return the first row with the specified key, or NONE
+     */
+    public int first(int key) {
+        return heads[find(key)];
+    }
+
+    /**
+     * @return the next row with the same key as row, or NONE
+     */
+    public int next(int row) {
+        return next[row];
+    }
+
+    /**
+     * @return the tuple stored in the specified row
+     */
+    public Tuple getTuple(int row) {
+        return tuples[row];
+    }
+
+    /** @return the number of tuples in the table */
+    public int numRows() {
+        return numRows;
+    }
+
+    /** @return the number of distinct keys in the table */
+    public int numKeys() {
+        return numKeys;
+    }
+
+    /**
+     * @return the slot holding key, or the empty slot where it belongs
+     */
+    private int find(int key) {
+        int mask = keys.length - 1;
+        int slot = hash(key) & mask;
+        while (heads[slot] != NONE && keys[slot] != key)
+            slot = (slot + 1) & mask;
+        return slot;
+    }
+
+    private void grow() {
+        int[] oldKeys = keys;
+        int[] oldHeads = heads;
+        keys = new int[oldKeys.length * 2];
+        heads = new int[oldKeys.length * 2];
+        Arrays.fill(heads, NONE);
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldHeads[i] == NONE)
+                continue;
+            int slot = find(oldKeys[i]);
+            keys[slot] = oldKeys[i];
+            heads[slot] = oldHeads[i];
+        }
+    }
+
+    private static int hash(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
@@ -1,22 +1,17 @@
 package simpledb;
 
-import java.util.HashMap;
-import java.util.LinkedList;
-import java.util.Map;
-
 /**
- * Knows how to compute some aggregate over a set of IntFields.
+ * Knows how to compute some aggregate over a set of IntFields. It is a
+ * {@link GroupAggregator} with a single aggregate and at most one group-by
+ * field.
  */
 public class IntegerAggregator implements Aggregator {
 
     private static final long serialVersionUID = 1L;
 
     private int gbfield;
-    private int afield;
-    private Type gbfieldtype;
     private Op what;
-    private HashMap<String, Double> aggregatedValues;
-    private HashMap<String, Integer> mergedCount;
+    private GroupAggregator agg;
 
     /**
      * Aggregate constructor
@@ -36,11 +31,13 @@ public class IntegerAggregator implements Aggregator {
     public IntegerAggregator(int gbfield, Type gbfieldtype, int afield, Op what) {
 
         this.gbfield = gbfield;
-        this.afield = afield;
-        this.gbfieldtype = gbfieldtype;
         this.what = what;
-        aggregatedValues = new HashMap<>();
-        mergedCount = new HashMap<>();
+        if (gbfield == NO_GROUPING)
+            agg = new GroupAggregator(new int[0], new Type[0], new int[] { afield },
+                    new Type[] { Type.INT_TYPE }, new Op[] { what });
+        else
+            agg = new GroupAggregator(new int[] { gbfield }, new Type[] { gbfieldtype },
+                    new int[] { afield }, new Type[] { Type.INT_TYPE }, new Op[] { what });
 
     }
 
@@ -52,61 +49,7 @@ public class IntegerAggregator implements Aggregator {
      *            the Tuple containing an aggregate field and a group-by field
      */
     public void mergeTupleIntoGroup(Tuple tup) {
-
-        IntField intField = (IntField) tup.getField(afield);
-        double currentInt = intField.getValue();
-        String gbfieldString;
-        if (gbfield == NO_GROUPING) {
-            gbfieldString = "";
-        } else {
-            gbfieldString= tup.getField(gbfield).toString();
-        }
-
-        mergedCount.putIfAbsent(gbfieldString, 0);
-        mergedCount.put(gbfieldString, mergedCount.get(gbfieldString) + 1);
-
-        switch (what) {
-            case MIN:
-                if (aggregatedValues.get(gbfieldString) == null) {
-                    aggregatedValues.put(gbfieldString, currentInt);
-                } else {
-                    aggregatedValues.put(gbfieldString, Math.min(currentInt, aggregatedValues.get(gbfieldString)));
-                }
-                break;
-            case AVG:
-                if (aggregatedValues.get(gbfieldString) == null) {
-                    aggregatedValues.put(gbfieldString, currentInt);
-                } else {
-                    // pre incremented counter - we take into account the current merging value in that counter
-                    // weight aggregatedValue by number of ints it represents
-                    aggregatedValues.put(gbfieldString, (((mergedCount.get(gbfieldString) - 1) *
-                            aggregatedValues.get(gbfieldString)) + currentInt) / mergedCount.get(gbfieldString));
-                }
-                break;
-            case SUM:
-                if (aggregatedValues.get(gbfieldString) == null) {
-                    aggregatedValues.put(gbfieldString, currentInt);
-                } else {
-                    aggregatedValues.put(gbfieldString, aggregatedValues.get(gbfieldString) + currentInt);
-                }
-                break;
-            case MAX:
-                if (aggregatedValues.get(gbfieldString) == null) {
-                    aggregatedValues.put(gbfieldString, currentInt);
-                } else {
-                    aggregatedValues.put(gbfieldString, Math.max(currentInt, aggregatedValues.get(gbfieldString)));
-                }
-                break;
-            case COUNT:
-                aggregatedValues.put(gbfieldString, Double.valueOf(mergedCount.get(gbfieldString)));
-                break;
-            case SC_AVG:
-                // how do we structure this? see comment in Aggregator
-                break;
-            case SUM_COUNT:
-                // how do we structure this? see comment in Aggregator
-                break;
-        }
+        agg.mergeTupleIntoGroup(tup);
     }
 
     /**
@@ -118,47 +61,20 @@ public class IntegerAggregator implements Aggregator {
      *         the constructor.
      */
     public DbIterator iterator() {
-        // some code goes here
-
-        LinkedList<Tuple> tuples = new LinkedList<>();
-        Type[] types;
-        String[] fieldNames;
-
-        if (gbfield == NO_GROUPING) {
-            types = new Type[]{Type.INT_TYPE};
-            fieldNames = new String[]{what.toString()};
-        } else {
-            types = new Type[]{gbfieldtype, Type.INT_TYPE};
-            fieldNames = new String[]{"AGGREGATE_VALUE", what.toString()};
-        }
-
-        TupleDesc td = new TupleDesc(types, fieldNames);
-        Tuple tuple;
-
-        for (Map.Entry<String, Double> entry : aggregatedValues.entrySet()) {
-            tuple = new Tuple(td);
-            String key = entry.getKey();
-            Double value = entry.getValue();
-
-            if (gbfieldtype != null) {
-                switch (gbfieldtype) {
-                    case INT_TYPE:
-                        tuple.setField(0, new IntField(Integer.parseInt(key)));
-                        tuple.setField(1, new IntField(value.intValue()));
-                        break;
-                    case STRING_TYPE:
-                        tuple.setField(0, new StringField(key, Type.STRING_LEN));
-                        tuple.setField(1, new IntField(value.intValue()));
-                        break;
-                }
-            } else {
-                tuple.setField(0, new IntField(value.intValue()));
-            }
-
-            tuples.add(tuple);
+        // a SUM_COUNT has two result fields, named by the aggregator
+        TupleDesc td = agg.getTupleDesc();
+        Type[] types = new Type[td.numFields()];
+        String[] fieldNames = new String[td.numFields()];
+        for (int i = 0; i < types.length; i++) {
+            types[i] = td.getFieldType(i);
+            fieldNames[i] = td.getFieldName(i);
         }
+        if (gbfield != NO_GROUPING)
+            fieldNames[0] = "AGGREGATE_VALUE";
+        if (what != Op.SUM_COUNT)
+            fieldNames[types.length - 1] = what.toString();
 
-        return new TupleIterator(td, tuples);
+        return agg.iterator(new TupleDesc(types, fieldNames));
     }
 
 }
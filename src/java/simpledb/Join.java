@@ -4,14 +4,29 @@ import java.util.*;
 
 /**
  * The Join operator implements the relational join operation.
+ * <p>
+ * It is a block nested-loops join: it reads as many outer tuples as fit in
+ * its memory budget and then scans the inner relation once for the whole
+ * block, so the inner side is rescanned once per block instead of once per
+ * outer tuple.
  */
 public class Join extends Operator {
 
     private static final long serialVersionUID = 1L;
+
+    /** Default size of the outer block, in pages */
+    public static final int DEFAULT_BLOCK_PAGES = 32;
+
     private JoinPredicate p;
     private DbIterator child1;
     private DbIterator child2;
-    private Tuple current;
+    private int blockBytes;
+    private transient ArrayList<Tuple> block;
+    private int blockPos;
+    private Tuple inner;
+    private boolean innerFresh;
+    // the merged schema of the output, computed when the join is opened
+    private TupleDesc td;
 
 
     /**
@@ -26,11 +41,45 @@ public class Join extends Operator {
      *            Iterator for the right(inner) relation to join
      */
     public Join(JoinPredicate p, DbIterator child1, DbIterator child2) {
-        // some code goes here
+        this(p, child1, child2, DEFAULT_BLOCK_PAGES * BufferPool.getPageSize());
+    }
+
+    /**
+     * Constructor with an explicit memory budget for the outer block.
+     * 
+     * @param p
+     *            The predicate to use to join the children
+     * @param child1
+     *            Iterator for the left(outer) relation to join
+     * @param child2
+     *            Iterator for the right(inner) relation to join
+     * @param blockBytes
+     *            How many bytes of outer tuples to buffer per scan of the
+     *            inner relation. At least one tuple is always buffered.
+     */
+    public Join(JoinPredicate p, DbIterator child1, DbIterator child2, int blockBytes) {
+        if (blockBytes <= 0)
+            throw new IllegalArgumentException("block size must be positive");
         this.p = p;
         this.child1 = child1;
         this.child2 = child2;
-        this.current = null;
+        this.blockBytes = blockBytes;
+        this.block = new ArrayList<Tuple>();
+    }
+
+    /**
+     * @return the number of tuples of the given size that fit in a block of
+     *         blockBytes bytes (at least one)
+     */
+    public static int tuplesPerBlock(int tupleSize, int blockBytes) {
+        return Math.max(1, blockBytes / Math.max(1, tupleSize));
+    }
+
+    /**
+     * @return the memory budget for the outer block, in bytes
+     */
+    public int getBlockBytes() {
+        return blockBytes;
     }
 
     public JoinPredicate getJoinPredicate() {
@@ -64,6 +113,8 @@ public class Join extends Operator {
      */
     public TupleDesc getTupleDesc() {
         // some code goes here
+        if (td != null)
+            return td;
         return TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
     }
 
@@ -75,8 +126,10 @@ public class Join extends Operator {
         }
         child1.open();
         child2.open();
+        td = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
         super.open();
-        current = null;
+        resetBlock();
+        innerFresh = true;
     }
 
     public void close() {
@@ -84,14 +137,36 @@ public class Join extends Operator {
         child1.close();
         child2.close();
         super.close();
-        current = null;
+        resetBlock();
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
         // some code goes here
         child1.rewind();
         child2.rewind();
-        current = null;
+        resetBlock();
+        innerFresh = true;
+    }
+
+    private void resetBlock() {
+        if (block == null)
+            block = new ArrayList<Tuple>();
+        block.clear();
+        blockPos = 0;
+        inner = null;
+    }
+
+    /**
+     * Replaces the current block with the next block of outer tuples.
+     * 
+     * @return false if the outer relation is exhausted
+     */
+    private boolean fillBlock() throws DbException, TransactionAbortedException {
+        int capacity = tuplesPerBlock(child1.getTupleDesc().getSize(), blockBytes);
+        block.clear();
+        while (block.size() < capacity && child1.hasNext())
+            block.add(child1.next());
+        return !block.isEmpty();
     }
 
     /**
@@ -118,39 +193,34 @@ public class Join extends Operator {
         if (child1 == null || child2 == null) {
             return null;
         }
-        if (current == null) {
-            if (child1.hasNext()) {
-                current = child1.next();
-            } 
-        }
         while (true) {
-            while (child2.hasNext()) {
-                Tuple t2 = child2.next();
-                if (p.filter(current, t2)) {
-                    Tuple combinedTuple = new Tuple(getTupleDesc());
-                    int pos = 0;
-                    Iterator<Field> fieldIter = current.fields();
-                    while (fieldIter.hasNext()) {
-                        combinedTuple.setField(pos, fieldIter.next());
-                        pos ++;
-                    }
-                    fieldIter = t2.fields();
-                    while (fieldIter.hasNext()) {
-                        combinedTuple.setField(pos, fieldIter.next());
-                        pos ++;
-                    }
-                    return combinedTuple;
+            if (inner != null) {
+                while (blockPos < block.size()) {
+                    Tuple outer = block.get(blockPos++);
+                    if (p.filter(outer, inner))
+                        return combine(outer, inner);
                 }
+                inner = null;
             }
-            if (child1.hasNext()) {
-                current = child1.next();
+            if (!block.isEmpty() && child2.hasNext()) {
+                inner = child2.next();
+                blockPos = 0;
             } else {
-                return null;
+                // the inner relation has been matched against the whole
+                // block; move on to the next block and scan it again
+                if (!fillBlock())
+                    return null;
+                if (!innerFresh)
+                    child2.rewind();
+                innerFresh = false;
             }
-            child2.rewind();
         }
     }
 
+    private Tuple combine(Tuple outer, Tuple inner) {
+        return new JoinedTuple(getTupleDesc(), outer, inner);
+    }
+
     @Override
     public DbIterator[] getChildren() {
         // some code goes here
@@ -165,6 +235,7 @@ public class Join extends Operator {
         // some code goes here
         child1 = children[0];
         child2 = children[1];
+        td = null;
     }
 
 }
@@ -14,6 +14,102 @@ public class JoinOptimizer {
     LogicalPlan p;
     Vector<LogicalJoinNode> joins;
 
+    /**
+     * The physical join operators that the optimizer chooses between.
+     */
+    public enum JoinAlgorithm {
+        NESTED_LOOPS("block nested-loops join"),
+        HASH("hash join"),
+        SORT_MERGE("sort-merge join"),
+        INDEX_NESTED_LOOPS("index nested-loops join");
+
+        private final String description;
+
+        private JoinAlgorithm(String description) {
+            this.description = description;
+        }
+
+        /** @return true if this algorithm can evaluate the predicate op */
+        public boolean supports(Predicate.Op op) {
+            return this == NESTED_LOOPS || op == Predicate.Op.EQUALS;
+        }
+
+        public String toString() {
+            return description;
+        }
+    }
+
+    /**
+     * Cost of inserting a tuple into a hash table, relative to probing it
+     */
+    static final double HASH_BUILD_COST = 2.0;
+
+    /**
+     * Approximate fanout of a B+ tree internal page, used to estimate the
+     * height of an index from the number of pages in its table
+     */
+    static final int BTREE_FANOUT = 200;
+
+    /**
+     * Return the field that the output of a plan is sorted on in ascending
+     * order, as far as can be told from its operators: scans of B+ trees are
+     * sorted on their key, and filters, ascending OrderBys and merge joins
+     * keep or produce an order.
+     * 
+     * @return the index of the field in plan's TupleDesc, or -1 if the
+     *         output is not known to be sorted
+     */
+    public static int sortedField(DbIterator plan) {
+        if (plan instanceof SeqScan) {
+            SeqScan scan = (SeqScan) plan;
+            DbFile f = Database.getCatalog().getDatabaseFile(
+                    Database.getCatalog().getTableId(scan.getTableName()));
+            return f instanceof BTreeFile ? ((BTreeFile) f).keyField() : -1;
+        } else if (plan instanceof BTreeScan) {
+            BTreeScan scan = (BTreeScan) plan;
+            DbFile f = Database.getCatalog().getDatabaseFile(
+                    Database.getCatalog().getTableId(scan.getTableName()));
+            return ((BTreeFile) f).keyField();
+        } else if (plan instanceof BTreeKeyScan) {
+            return 0;
+        } else if (plan instanceof Filter) {
+            return sortedField(((Filter) plan).getChildren()[0]);
+        } else if (plan instanceof OrderBy) {
+            OrderBy o = (OrderBy) plan;
+            return o.isASC() ? o.getOrderByField() : -1;
+        } else if (plan instanceof SortMergeJoin) {
+            return ((SortMergeJoin) plan).getJoinPredicate().getField1();
+        }
+        return -1;
+    }
+
+    /**
+     * @return true if the output of plan is sorted in ascending order on the
+     *         field with the specified name
+     */
+    public static boolean isSortedOn(DbIterator plan, String fieldName) {
+        int field = sortedField(plan);
+        return field >= 0 && plan.getTupleDesc().getFieldName(field) != null
+                && plan.getTupleDesc().getFieldName(field).equals(fieldName);
+    }
+
+    /**
+     * @return true if plan is a plain scan of a BTreeFile keyed on the field
+     *         with the specified name, so that an index nested-loops join can
+     *         probe the index instead of reading the plan
+     */
+    public static boolean isIndexedOn(DbIterator plan, String fieldName) {
+        if (!(plan instanceof SeqScan))
+            return false;
+        SeqScan scan = (SeqScan) plan;
+        DbFile f = Database.getCatalog().getDatabaseFile(
+                Database.getCatalog().getTableId(scan.getTableName()));
+        if (!(f instanceof BTreeFile))
+            return false;
+        String keyName = plan.getTupleDesc().getFieldName(((BTreeFile) f).keyField());
+        return keyName != null && keyName.equals(fieldName);
+    }
+
     /**
      * Constructor
      * 
@@ -44,6 +140,35 @@ public class JoinOptimizer {
      */
     public static DbIterator instantiateJoin(LogicalJoinNode lj,
             DbIterator plan1, DbIterator plan2) throws ParsingException {
+        JoinAlgorithm algorithm = JoinAlgorithm.HASH.supports(lj.p) ?
+                JoinAlgorithm.HASH : JoinAlgorithm.NESTED_LOOPS;
+        return instantiateJoin(lj, plan1, plan2, algorithm, false);
+    }
+
+    /**
+     * Return an iterator computing the given logical join with the specified
+     * algorithm.
+     * 
+     * @param lj
+     *            The join being considered
+     * @param plan1
+     *            The left join node's child
+     * @param plan2
+     *            The right join node's child
+     * @param algorithm
+     *            The join algorithm to use, as chosen by
+     *            {@link #chooseJoinAlgorithm}
+     * @param buildRight
+     *            For a hash join, whether to build the hash table on plan2
+     *            rather than plan1. For a sort-merge join, inputs that are
+     *            not sorted on the join fields are sorted first. An index
+     *            nested-loops join needs plan2 to be a scan of a BTreeFile
+     *            keyed on the join field (see {@link #isIndexedOn}); the
+     *            scan itself is replaced by probes of the index.
+     */
+    public static DbIterator instantiateJoin(LogicalJoinNode lj,
+            DbIterator plan1, DbIterator plan2, JoinAlgorithm algorithm,
+            boolean buildRight) throws ParsingException {
 
         int t1id = 0, t2id = 0;
         DbIterator j;
@@ -68,7 +193,32 @@ public class JoinOptimizer {
 
         JoinPredicate p = new JoinPredicate(t1id, lj.p, t2id);
 
-        j = new Join(p,plan1,plan2);
+        if (!algorithm.supports(lj.p))
+            throw new ParsingException("Cannot evaluate " + lj.p + " with a " + algorithm);
+        switch (algorithm) {
+        case HASH:
+            j = new HashEquiJoin(p, plan1, plan2, buildRight);
+            break;
+        case SORT_MERGE:
+            if (sortedField(plan1) != t1id)
+                plan1 = new OrderBy(t1id, true, plan1);
+            if (sortedField(plan2) != t2id)
+                plan2 = new OrderBy(t2id, true, plan2);
+            j = new SortMergeJoin(p, plan1, plan2);
+            break;
+        case INDEX_NESTED_LOOPS: {
+            if (lj instanceof LogicalSubplanJoinNode
+                    || !isIndexedOn(plan2, lj.f2QuantifiedName))
+                throw new ParsingException("No index on " + lj.f2QuantifiedName);
+            SeqScan scan = (SeqScan) plan2;
+            j = new IndexNestedLoopJoin(p, plan1, scan.getTransactionId(),
+                    Database.getCatalog().getTableId(scan.getTableName()),
+                    scan.getAlias());
+            break;
+        }
+        default:
+            j = new Join(p, plan1, plan2);
+        }
 
         return j;
 
@@ -107,14 +257,181 @@ public class JoinOptimizer {
             // You do not need to implement proper support for these for Lab 5.
             return card1 + cost1 + cost2;
         } else {
-            // Insert your code here.
-            // HINT: You may need to use the variable "j" if you implemented
-            // a join algorithm that's more complicated than a basic
-            // nested-loops join.
-            return -1.0;
+            JoinAlgorithm algorithm = chooseJoinAlgorithm(j, card1, card2,
+                    cost1, cost2);
+            return estimateJoinCost(algorithm, j, card1, card2, cost1, cost2);
         }
     }
 
+    /**
+     * Estimate the cost of a join evaluated with a specific algorithm, when
+     * neither input is known to be sorted on its join field.
+     */
+    public double estimateJoinCost(JoinAlgorithm algorithm, LogicalJoinNode j,
+            int card1, int card2, double cost1, double cost2) {
+        return estimateJoinCost(algorithm, j, card1, card2, cost1, cost2,
+                false, false);
+    }
+
+    /**
+     * Estimate the cost of a join evaluated with a specific algorithm. The
+     * other arguments are the same as those of
+     * {@link #estimateJoinCost(LogicalJoinNode, int, int, double, double)}.
+     * A hash join is assumed to build its table on the smaller input, and a
+     * sort-merge join to sort the inputs that are not sorted already.
+     * 
+     * @param sorted1
+     *            Whether the left-hand input is sorted on its join field
+     * @param sorted2
+     *            Whether the right-hand input is sorted on its join field
+     */
+    public double estimateJoinCost(JoinAlgorithm algorithm, LogicalJoinNode j,
+            int card1, int card2, double cost1, double cost2, boolean sorted1,
+            boolean sorted2) {
+        switch (algorithm) {
+        case HASH: {
+            double cost = cost1 + cost2 + HASH_BUILD_COST * Math.min(card1, card2)
+                    + Math.max(card1, card2);
+            // the share of both inputs that does not fit in memory is
+            // written to disk and read back
+            double buildBytes = (double) Math.min(card1, card2) * outerTupleSize(j);
+            double memory = (double) HashEquiJoin.DEFAULT_MEMORY_PAGES * BufferPool.getPageSize();
+            if (buildBytes > memory)
+                cost += 2 * (1 - memory / buildBytes) * (cost1 + cost2);
+            return cost;
+        }
+        case SORT_MERGE:
+            return cost1 + cost2 + card1 + card2
+                    + (sorted1 ? 0 : estimateSortCost(card1))
+                    + (sorted2 ? 0 : estimateSortCost(card2));
+        case INDEX_NESTED_LOOPS: {
+            int blockTuples = Join.tuplesPerBlock(outerTupleSize(j),
+                    Join.DEFAULT_BLOCK_PAGES * BufferPool.getPageSize());
+            return estimateIndexNestedLoopCost(card1, cost1, cost2,
+                    TableStats.IOCOSTPERPAGE, blockTuples);
+        }
+        default:
+            int blockTuples = Join.tuplesPerBlock(outerTupleSize(j),
+                    Join.DEFAULT_BLOCK_PAGES * BufferPool.getPageSize());
+            return estimateBlockNestedLoopCost(card1, card2, cost1, cost2,
+                    blockTuples);
+        }
+    }
+
+    /**
+     * @return the number of comparisons needed to sort card tuples
+     */
+    static double estimateSortCost(int card) {
+        return card <= 1 ? 0 : card * (Math.log(card) / Math.log(2));
+    }
+
+    /**
+     * Choose the cheapest algorithm that can evaluate a join, when neither
+     * input is known to be sorted on its join field.
+     */
+    public JoinAlgorithm chooseJoinAlgorithm(LogicalJoinNode j, int card1,
+            int card2, double cost1, double cost2) {
+        return chooseJoinAlgorithm(j, card1, card2, cost1, cost2, false, false);
+    }
+
+    /**
+     * Choose the cheapest algorithm that can evaluate a join, given estimates
+     * of the cardinality and cost of its inputs and whether they are already
+     * sorted on their join fields. A negative cardinality means that it is
+     * unknown, in which case a hash join is used if the predicate allows it.
+     */
+    public JoinAlgorithm chooseJoinAlgorithm(LogicalJoinNode j, int card1,
+            int card2, double cost1, double cost2, boolean sorted1,
+            boolean sorted2) {
+        return chooseJoinAlgorithm(j, card1, card2, cost1, cost2, sorted1,
+                sorted2, false);
+    }
+
+    /**
+     * Choose the cheapest algorithm that can evaluate a join, as above. An
+     * index nested-loops join is only considered when indexed2 is true.
+     * 
+     * @param indexed2
+     *            Whether the right-hand input is a scan of a BTreeFile keyed
+     *            on its join field
+     */
+    public JoinAlgorithm chooseJoinAlgorithm(LogicalJoinNode j, int card1,
+            int card2, double cost1, double cost2, boolean sorted1,
+            boolean sorted2, boolean indexed2) {
+        if (card1 < 0 || card2 < 0) {
+            return JoinAlgorithm.HASH.supports(j.p) ? JoinAlgorithm.HASH
+                    : JoinAlgorithm.NESTED_LOOPS;
+        }
+        JoinAlgorithm best = JoinAlgorithm.NESTED_LOOPS;
+        double bestCost = Double.MAX_VALUE;
+        for (JoinAlgorithm algorithm : JoinAlgorithm.values()) {
+            if (!algorithm.supports(j.p))
+                continue;
+            if (algorithm == JoinAlgorithm.INDEX_NESTED_LOOPS && !indexed2)
+                continue;
+            double cost = estimateJoinCost(algorithm, j, card1, card2, cost1,
+                    cost2, sorted1, sorted2);
+            if (cost < bestCost) {
+                best = algorithm;
+                bestCost = cost;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Estimate the cost of a block nested-loops join. The outer side is
+     * scanned once and the inner side once per block of outer tuples, and
+     * the predicate is applied to every pair of tuples.
+     * 
+     * @param tuplesPerBlock
+     *            How many outer tuples fit in one block; 1 gives the cost of
+     *            a tuple-at-a-time nested-loops join
+     */
+    public static double estimateBlockNestedLoopCost(int card1, int card2,
+            double cost1, double cost2, int tuplesPerBlock) {
+        double blocks = Math.ceil((double) card1 / tuplesPerBlock);
+        return cost1 + blocks * cost2 + (double) card1 * card2;
+    }
+
+    /**
+     * Estimate the cost of an index nested-loops join. The outer side is
+     * scanned once, and each block of outer tuples is sorted and probes the
+     * index once per tuple. A probe reads a path from the root to a leaf,
+     * but because the probes of a block are made in key order the internal
+     * pages are read once per block and each leaf page at most once per
+     * block.
+     * 
+     * @param cost2
+     *            Estimated cost of one full scan of the indexed table, which
+     *            gives the number of pages in it
+     * @param ioCostPerPage
+     *            The cost of reading one page
+     * @param tuplesPerBlock
+     *            How many outer tuples are sorted together
+     */
+    public static double estimateIndexNestedLoopCost(int card1, double cost1,
+            double cost2, int ioCostPerPage, int tuplesPerBlock) {
+        double pages2 = Math.max(1, cost2 / ioCostPerPage);
+        double internalPages = Math.ceil(Math.log(pages2) / Math.log(BTREE_FANOUT));
+        int blockTuples = Math.max(1, Math.min(card1, tuplesPerBlock));
+        double blocks = Math.ceil((double) card1 / tuplesPerBlock);
+        double pagesPerBlock = internalPages + Math.min(blockTuples, pages2);
+        return cost1 + blocks * pagesPerBlock * ioCostPerPage
+                + card1 + estimateSortCost(blockTuples) * blocks;
+    }
+
+    /**
+     * @return the size in bytes of a tuple of the outer table of j, or of an
+     *         integer field if the table is unknown
+     */
+    private int outerTupleSize(LogicalJoinNode j) {
+        Integer tableId = p == null ? null : p.getTableId(j.t1Alias);
+        if (tableId == null)
+            return Type.INT_TYPE.getLen();
+        return Database.getCatalog().getTupleDesc(tableId).getSize();
+    }
+
     /**
      * Estimate the cardinality of a join. The cardinality of a join is the
      * number of tuples produced by the join.
@@ -155,9 +472,25 @@ public class JoinOptimizer {
             String field2PureName, int card1, int card2, boolean t1pkey,
             boolean t2pkey, Map<String, TableStats> stats,
             Map<String, Integer> tableAliasToId) {
-        int card = 1;
-        // some code goes here
-        return card <= 0 ? 1 : card;
+        long card;
+        if (joinOp == Predicate.Op.EQUALS) {
+            // a key matches at most one tuple on the other side
+            if (t1pkey && t2pkey)
+                card = Math.min(card1, card2);
+            else if (t1pkey)
+                card = card2;
+            else if (t2pkey)
+                card = card1;
+            else
+                card = Math.max(card1, card2);
+        } else if (joinOp == Predicate.Op.NOT_EQUALS) {
+            card = (long) card1 * card2;
+        } else {
+            // range joins are assumed to keep a fixed fraction of the pairs
+            card = (long) (0.3 * card1 * card2);
+        }
+        card = Math.min(card, Integer.MAX_VALUE);
+        return card <= 0 ? 1 : (int) card;
     }
 
     /**
@@ -397,11 +730,11 @@ public class JoinOptimizer {
      * @param field
      *            The pure name of the field
      */
-    private boolean isPkey(String tableAlias, String field) {
+    boolean isPkey(String tableAlias, String field) {
         int tid1 = p.getTableId(tableAlias);
         String pkey1 = Database.getCatalog().getPrimaryKey(tid1);
 
-        return pkey1.equals(field);
+        return field.equals(pkey1);
     }
 
     /**
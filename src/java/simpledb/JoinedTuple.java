@@ -0,0 +1,91 @@
+package simpledb;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * JoinedTuple is the concatenation of two tuples, as produced by the join
+ * operators. Instead of copying the fields of both inputs into a new array,
+ * it keeps references to the two tuples and reads their fields on demand, so
+ * producing an output row costs one small object however wide the inputs
+ * are.
+ * <p>
+ * The input tuples are not modified: setting a field of a JoinedTuple first
+ * copies the fields into a private array.
+ */
+public class JoinedTuple extends Tuple {
+
+    private static final long serialVersionUID = 1L;
+
+    private final Tuple left;
+    private final Tuple right;
+    private final int leftWidth;
+    private Field[] copy;
+
+    /**
+     * @param td
+     *            the schema of the result, which must be the merge of the
+     *            schemas of left and right. Joins compute it once and share
+     *            it between all of their output tuples.
+     * @param left
+     *            the tuple providing the first fields
+     * @param right
+     *            the tuple providing the remaining fields
+     */
+    public JoinedTuple(TupleDesc td, Tuple left, Tuple right) {
+        super();
+        resetTupleDesc(td);
+        this.left = left;
+        this.right = right;
+        this.leftWidth = left.getTupleDesc().numFields();
+    }
+
+    public Field getField(int i) {
+        if (copy != null)
+            return copy[i];
+        return i < leftWidth ? left.getField(i) : right.getField(i - leftWidth);
+    }
+
+    public void setField(int i, Field f) {
+        if (f.getType() != getTupleDesc().getFieldType(i)) {
+            throw new RuntimeException("Invalid field type in Tuple.setField()");
+        }
+        if (copy == null) {
+            Field[] fields = new Field[getTupleDesc().numFields()];
+            for (int j = 0; j < fields.length; j++)
+                fields[j] = getField(j);
+            copy = fields;
+        }
+        copy[i] = f;
+    }
+
+    public String toString() {
+        StringBuilder out = new StringBuilder();
+        for (int i = 0; i < getTupleDesc().numFields(); i++) {
+            if (i > 0)
+                out.append('\t');
+            out.append(getField(i));
+        }
+        return out.toString();
+    }
+
+    public Iterator<Field> fields() {
+        return new Iterator<Field>() {
+            private int next = 0;
+
+            public boolean hasNext() {
+                return next < getTupleDesc().numFields();
+            }
+
+            public Field next() {
+                if (!hasNext())
+                    throw new NoSuchElementException();
+                return getField(next++);
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+}
@@ -0,0 +1,245 @@
+package simpledb;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * KllSketch estimates quantiles of a stream of integers in memory that does
+ * not grow with the length of the stream, as described by Karnin, Lang and
+ * Liberty. Values are kept in a stack of levels, where each value at level h
+ * stands for 2^h values of the stream. When a level fills up it is
+ * compacted: its values are sorted, and every other one, starting at a
+ * random offset, moves up a level while the rest are dropped. Lower levels
+ * are smaller, by a factor of 2/3 per level from the top one, which holds
+ * about k values.
+ * <p>
+ * The rank of the value returned for a quantile q is within about
+ * rankError(k) * n of q * n, where n is the number of values added. Two
+ * sketches can be merged, giving a sketch of both streams.
+ */
+public class KllSketch implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /** The default size parameter, for a rank error of about 1.3% */
+    public static final int DEFAULT_K = 200;
+
+    /** The smallest and largest supported size parameters */
+    public static final int MIN_K = 8;
+    public static final int MAX_K = 65535;
+
+    private static final double C = 2.0 / 3.0;
+    private static final int INITIAL_LEVEL_SIZE = 8;
+
+    private final int k;
+    // levels[h][0, sizes[h]) are the values of weight 2^h
+    private int[][] levels;
+    private int[] sizes;
+    private int numLevels;
+    // the number of values kept, and the number that triggers a compaction
+    private int size;
+    private int maxSize;
+    // the number of values added, and the exact extremes
+    private long n;
+    private int min;
+    private int max;
+    // state of the generator of compaction offsets
+    private int random = 0x2545F491;
+
+    /**
+     * Create an empty sketch.
+     *
+     * @param k
+     *            the size parameter, between MIN_K and MAX_K; the error
+     *            falls roughly as 1 / k
+     */
+    public KllSketch(int k) {
+        if (k < MIN_K || k > MAX_K)
+            throw new IllegalArgumentException("k must be between " + MIN_K + " and " + MAX_K);
+        this.k = k;
+        this.levels = new int[1][INITIAL_LEVEL_SIZE];
+        this.sizes = new int[1];
+        this.numLevels = 1;
+        this.maxSize = capacity(0);
+    }
+
+    /**
+     * @return the smallest k whose rank error is at most rankError, within
+     *         the supported values of k
+     */
+    public static int kFor(double rankError) {
+        if (!(rankError > 0 && rankError < 1))
+            throw new IllegalArgumentException("rank error must be between 0 and 1");
+        double k = Math.ceil(Math.pow(2.296 / rankError, 1 / 0.9723));
+        return (int) Math.max(MIN_K, Math.min(MAX_K, k));
+    }
+
+    /**
+     * @return the rank error, as a fraction of the number of values, of a
+     *         sketch with size parameter k; this is the empirical bound of
+     *         the KLL sketch of Apache DataSketches
+     */
+    public static double rankError(int k) {
+        return 2.296 / Math.pow(k, 0.9723);
+    }
+
+    public int getK() {
+        return k;
+    }
+
+    /** @return the number of values added to the sketch */
+    public long getN() {
+        return n;
+    }
+
+    /**
+     * Add a value to the sketch.
+     */
+    public void add(int value) {
+        if (n == 0 || value < min)
+            min = value;
+        if (n == 0 || value > max)
+            max = value;
+        n++;
+        append(0, value);
+        size++;
+        if (size >= maxSize)
+            compress();
+    }
+
+    /**
+     * Merge another sketch into this one, so that it describes the values
+     * added to either.
+     */
+    public void merge(KllSketch other) {
+        if (other.n == 0)
+            return;
+        if (n == 0 || other.min < min)
+            min = other.min;
+        if (n == 0 || other.max > max)
+            max = other.max;
+        n += other.n;
+        while (numLevels < other.numLevels)
+            addLevel();
+        for (int h = 0; h < other.numLevels; h++)
+            for (int i = 0; i < other.sizes[h]; i++)
+                append(h, other.levels[h][i]);
+        size += other.size;
+        compress();
+    }
+
+    /**
+     * @return an estimate of the value of rank q * n among the values added,
+     *         or 0 if there are none
+     * @param q
+     *            the quantile, between 0 (the smallest value) and 1 (the
+     *            largest value)
+     */
+    public int quantile(double q) {
+        if (q < 0 || q > 1)
+            throw new IllegalArgumentException("quantile must be between 0 and 1");
+        if (n == 0)
+            return 0;
+        if (q == 0)
+            return min;
+        if (q == 1)
+            return max;
+
+        // sort the values with their level, and find the first one whose
+        // cumulative weight reaches the rank
+        long[] items = new long[size];
+        int j = 0;
+        for (int h = 0; h < numLevels; h++)
+            for (int i = 0; i < sizes[h]; i++)
+                items[j++] = ((long) levels[h][i] << 6) | h;
+        Arrays.sort(items);
+        double rank = q * n;
+        long weight = 0;
+        for (long item : items) {
+            weight += 1L << (item & 63);
+            if (weight >= rank)
+                return (int) (item >> 6);
+        }
+        return max;
+    }
+
+    /**
+     * @return the number of bytes of memory taken by the values of the
+     *         sketch
+     */
+    public long memoryBytes() {
+        long bytes = 0;
+        for (int h = 0; h < numLevels; h++)
+            bytes += 4L * levels[h].length;
+        return bytes;
+    }
+
+    /**
+     * @return about the most memory a sketch with size parameter k takes:
+     *         its levels hold about 3k values together, in arrays that may
+     *         be up to twice as large
+     */
+    public static long maxMemoryBytes(int k) {
+        return 4L * 6 * k;
+    }
+
+    /**
+     * @return the number of values level h holds before it is compacted
+     */
+    private int capacity(int h) {
+        int height = numLevels - h - 1;
+        return Math.max(2, (int) Math.ceil(Math.pow(C, height) * k));
+    }
+
+    private void addLevel() {
+        levels = Arrays.copyOf(levels, numLevels + 1);
+        levels[numLevels] = new int[INITIAL_LEVEL_SIZE];
+        sizes = Arrays.copyOf(sizes, numLevels + 1);
+        numLevels++;
+        maxSize = 0;
+        for (int h = 0; h < numLevels; h++)
+            maxSize += capacity(h);
+    }
+
+    private void append(int h, int value) {
+        if (sizes[h] == levels[h].length)
+            levels[h] = Arrays.copyOf(levels[h], levels[h].length * 2);
+        levels[h][sizes[h]++] = value;
+    }
+
+    /**
+     * Compact the lowest full level, until the sketch is below its maximum
+     * size.
+     */
+    private void compress() {
+        while (size >= maxSize) {
+            for (int h = 0; h < numLevels; h++) {
+                if (sizes[h] >= capacity(h)) {
+                    if (h + 1 == numLevels)
+                        addLevel();
+                    compact(h);
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Move every other value of level h, in sorted order, to level h + 1,
+     * and drop the others. If there is an odd number of values, the
+     * smallest stays at level h.
+     */
+    private void compact(int h) {
+        int[] level = levels[h];
+        int count = sizes[h];
+        Arrays.sort(level, 0, count);
+        int start = count & 1;
+        random ^= random << 13;
+        random ^= random >>> 17;
+        random ^= random << 5;
+        for (int i = start + (random & 1); i < count; i += 2)
+            append(h + 1, level[i]);
+        sizes[h] = start;
+        size -= (count - start) / 2;
+    }
+}
@@ -2,6 +2,7 @@ package simpledb;
 import java.util.Map;
 import java.util.Vector;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.io.File;
 import java.util.ArrayList;
@@ -12,9 +13,9 @@ import java.util.NoSuchElementException;
  * the parser and is ready to be processed by the optimizer.
  * <p>
  * A LogicalPlan consits of a collection of table scan nodes, join
- * nodes, filter nodes, a select list, and a group by field.
- * LogicalPlans can only represent queries with one aggregation field
- * and one group by field.
+ * nodes, filter nodes, a select list, and a list of group by fields.
+ * All of the aggregates of a query are computed by a single
+ * {@link Aggregate} operator.
  * <p>
  * LogicalPlans can be converted to physical (optimized) plans using
  * the {@link #physicalPlan} method, which uses the
@@ -29,15 +30,20 @@ public class LogicalPlan {
     private HashMap<String,Integer> tableMap;
 
     private Vector<LogicalSelectListNode> selectList;
-    private String groupByField = null;
+    private Vector<String> groupByFields = new Vector<String>();
     private boolean hasAgg = false;
-    private String aggOp;
-    private String aggField;
-    private boolean oByAsc, hasOrderBy = false;
-    private String oByField;
+    private Vector<String> aggOps = new Vector<String>();
+    private Vector<String> aggFields = new Vector<String>();
+    private boolean hasOrderBy = false;
+    private Vector<String> oByFields = new Vector<String>();
+    private Vector<Boolean> oByAscs = new Vector<Boolean>();
+    private int limit = NO_LIMIT;
     private String query;
 //    private Query owner;
 
+    /** Value of {@link #getLimit} for a query without a LIMIT clause */
+    public static final int NO_LIMIT = -1;
+
     /** Constructor -- generate an empty logical plan */
     public LogicalPlan() {
         joins = new Vector<LogicalJoinNode>();
@@ -186,36 +192,73 @@ public class LogicalPlan {
     }
     
     /** Add an aggregate over the field with the specified grouping to
-        the query.  SimpleDb only supports a single aggregate
-        expression and GROUP BY field.
+        the query.
         @param op the aggregation operator
         @param afield the field to aggregate over
-        @param gfield the field to group by
+        @param gfield the field to group by, or null
      * @throws ParsingException 
     */
     public void addAggregate(String op, String afield, String gfield) throws ParsingException {
-        afield=disambiguateName(afield);
-        if (gfield!=null)
-            gfield=disambiguateName(gfield);
-        aggOp = op;
-        aggField = afield;
-        groupByField = gfield;
+        addAggregate(op, afield);
+        if (gfield != null)
+            addGroupBy(gfield);
+    }
+
+    /** Add an aggregate over the field to the query.  A query may have
+        several aggregates, which are all computed in one pass over
+        the tuples of each group.
+        @param op the aggregation operator
+        @param afield the field to aggregate over, or "*"
+     * @throws ParsingException 
+    */
+    public void addAggregate(String op, String afield) throws ParsingException {
+        getAggOp(op);
+        aggOps.addElement(op);
+        aggFields.addElement(disambiguateName(afield));
         hasAgg = true;
     }
 
-    /** Add an ORDER BY expression in the specified order on the specified field.  SimpleDb only supports
-        a single ORDER BY field.
+    /** Add a field to the GROUP BY list of the query.  The groups are
+        the distinct combinations of values of the fields added.
+        @param gfield the field to group by
+     * @throws ParsingException 
+    */
+    public void addGroupBy(String gfield) throws ParsingException {
+        gfield = disambiguateName(gfield);
+        if (!groupByFields.contains(gfield))
+            groupByFields.addElement(gfield);
+    }
+
+    /** Add an ORDER BY expression in the specified order on the specified field.  Each call adds
+        a sort key that orders the tuples that are equal on the keys added before it, so
+        ORDER BY a, b DESC is added as addOrderBy("a", true) followed by addOrderBy("b", false).
         @param field the field to order by
         @param asc true if should be ordered in ascending order, false for descending order
      * @throws ParsingException 
     */
     public void addOrderBy(String field, boolean asc) throws ParsingException {
         field=disambiguateName(field);
-        oByField = field;
-        oByAsc = asc;
+        oByFields.add(field);
+        oByAscs.add(asc);
         hasOrderBy = true;
     }
 
+    /** Add a LIMIT clause: only the first n result tuples are returned.  With an ORDER BY,
+        the plan keeps the best n tuples instead of sorting the whole result.
+        @param n the number of tuples to return
+        @throws ParsingException if n is negative
+    */
+    public void addLimit(int n) throws ParsingException {
+        if (n < 0)
+            throw new ParsingException("LIMIT must not be negative");
+        limit = n;
+    }
+
+    /** @return the number of tuples the query returns, or NO_LIMIT */
+    public int getLimit() {
+        return limit;
+    }
+
     /** Given a name of a field, try to figure out what table it belongs to by looking
      *   through all of the tables added via {@link #addScan}. 
      *  @return A fully qualified name of the form tableAlias.name.  If the name parameter is already qualified
@@ -268,6 +311,10 @@ public class LogicalPlan {
         if (s.equals("COUNT")) return Aggregator.Op.COUNT;
         if (s.equals("MIN")) return Aggregator.Op.MIN;
         if (s.equals("MAX")) return Aggregator.Op.MAX;
+        if (s.equals("APPROX_COUNT_DISTINCT")) return Aggregator.Op.APPROX_COUNT_DISTINCT;
+        if (s.equals("APPROX_MEDIAN")) return Aggregator.Op.APPROX_MEDIAN;
+        if (s.equals("APPROX_P90")) return Aggregator.Op.APPROX_P90;
+        if (s.equals("APPROX_P99")) return Aggregator.Op.APPROX_P99;
         throw new ParsingException("Unknown predicate " + s);
     }
 
@@ -289,12 +336,20 @@ public class LogicalPlan {
         HashMap<String,String> equivMap = new HashMap<String,String>();
         HashMap<String,Double> filterSelectivities = new HashMap<String, Double>();
         HashMap<String,TableStats> statsMap = new HashMap<String,TableStats>();
+        HashSet<LogicalFilterNode> indexFilters = new HashSet<LogicalFilterNode>();
 
         while (tableIt.hasNext()) {
             LogicalScanNode table = tableIt.next();
-            SeqScan ss = null;
+            DbIterator ss = null;
             try {
-                 ss = new SeqScan(t, Database.getCatalog().getDatabaseFile(table.t).getId(), table.alias);
+                DbFile file = Database.getCatalog().getDatabaseFile(table.t);
+                if (file instanceof BTreeFile && isCoveredByKey(table.alias, (BTreeFile) file)) {
+                    ss = keyScan(t, (BTreeFile) file, table.alias, indexFilters);
+                    if (explain)
+                        System.out.println("Using index-only scan on " + table.alias);
+                } else {
+                    ss = new SeqScan(t, file.getId(), table.alias);
+                }
             } catch (NoSuchElementException e) {
                 throw new ParsingException("Unknown table " + table.t);
             }
@@ -334,11 +389,15 @@ public class LogicalPlan {
             } catch (NoSuchElementException e) {
                 throw new ParsingException("Unknown field " + lf.fieldQuantifiedName);
             }
-            subplanMap.put(lf.tableAlias, new Filter(p, subplan));
+            //filters on the key of an index-only scan are already applied by its key range
+            if (!indexFilters.contains(lf))
+                subplanMap.put(lf.tableAlias, new Filter(p, subplan));
 
             TableStats s = statsMap.get(Database.getCatalog().getTableName(this.getTableId(lf.tableAlias)));
             
-            double sel= s.estimateSelectivity(subplan.getTupleDesc().fieldNameToIndex(lf.fieldQuantifiedName), lf.p, f);
+            //statistics are kept by position in the base table, which an index-only scan does not preserve
+            TupleDesc baseTd = Database.getCatalog().getTupleDesc(this.getTableId(lf.tableAlias));
+            double sel= s.estimateSelectivity(baseTd.fieldNameToIndex(lf.fieldPureName), lf.p, f);
             filterSelectivities.put(lf.tableAlias, filterSelectivities.get(lf.tableAlias) * sel);
 
             //s.addSelectivityFactor(estimateFilterSelectivity(lf,statsMap));
@@ -348,6 +407,17 @@ public class LogicalPlan {
 
         joins = jo.orderJoins(statsMap,filterSelectivities,explain);
 
+        //estimated cardinality and cost of each subplan, for choosing join algorithms
+        HashMap<String,Integer> subplanCards = new HashMap<String,Integer>();
+        HashMap<String,Double> subplanCosts = new HashMap<String,Double>();
+        for (LogicalScanNode table : tables) {
+            TableStats s = statsMap.get(Database.getCatalog().getTableName(table.t));
+            if (s != null) {
+                subplanCards.put(table.alias, s.estimateTableCardinality(filterSelectivities.get(table.alias)));
+                subplanCosts.put(table.alias, s.estimateScanCost());
+            }
+        }
+
         Iterator<LogicalJoinNode> joinIt = joins.iterator();
         while (joinIt.hasNext()) {
             LogicalJoinNode lj = joinIt.next();
@@ -381,9 +451,39 @@ public class LogicalPlan {
             if (plan2 == null)
                 throw new ParsingException("Unknown table in WHERE clause " + lj.t2Alias);
             
+            //unknown cardinalities (subqueries, missing stats) are passed as -1
+            int card1 = subplanCards.containsKey(t1name) ? subplanCards.get(t1name) : -1;
+            int card2 = !isSubqueryJoin && subplanCards.containsKey(t2name) ? subplanCards.get(t2name) : -1;
+            double cost1 = card1 < 0 ? 0 : subplanCosts.get(t1name);
+            double cost2 = card2 < 0 ? 0 : subplanCosts.get(t2name);
+            boolean sorted1 = JoinOptimizer.isSortedOn(plan1, lj.f1QuantifiedName);
+            boolean sorted2 = !isSubqueryJoin && JoinOptimizer.isSortedOn(plan2, lj.f2QuantifiedName);
+            boolean indexed2 = !isSubqueryJoin && JoinOptimizer.isIndexedOn(plan2, lj.f2QuantifiedName);
+            JoinOptimizer.JoinAlgorithm algorithm = jo.chooseJoinAlgorithm(lj, card1, card2, cost1, cost2, sorted1, sorted2, indexed2);
+            boolean buildRight = card1 >= 0 && card2 >= 0 && card2 < card1;
+
             DbIterator j;
-            j = jo.instantiateJoin(lj,plan1,plan2);
+            j = JoinOptimizer.instantiateJoin(lj,plan1,plan2,algorithm,buildRight);
             subplanMap.put(t1name, j);
+            if (explain) {
+                String inner = isSubqueryJoin ? "subquery" : lj.t2Alias;
+                String build = "";
+                if (algorithm == JoinOptimizer.JoinAlgorithm.HASH)
+                    build = " building on " + (buildRight ? inner : lj.t1Alias);
+                else if (algorithm == JoinOptimizer.JoinAlgorithm.SORT_MERGE && !(sorted1 && sorted2))
+                    build = " sorting " + (sorted1 ? inner : sorted2 ? lj.t1Alias : "both inputs");
+                else if (algorithm == JoinOptimizer.JoinAlgorithm.INDEX_NESTED_LOOPS)
+                    build = " probing the index on " + lj.f2QuantifiedName;
+                System.out.println("Joining " + lj.t1Alias + " and " + inner + " using " + algorithm + build);
+            }
+
+            if (card1 >= 0 && card2 >= 0) {
+                subplanCards.put(t1name, jo.estimateJoinCardinality(lj, card1, card2,
+                        jo.isPkey(lj.t1Alias, lj.f1PureName), jo.isPkey(lj.t2Alias, lj.f2PureName), statsMap));
+                subplanCosts.put(t1name, jo.estimateJoinCost(algorithm, lj, card1, card2, cost1, cost2, sorted1, sorted2));
+            } else {
+                subplanCards.remove(t1name);
+            }
 
             if (!isSubqueryJoin) {
                 subplanMap.remove(t2name);
@@ -414,28 +514,33 @@ public class LogicalPlan {
         for (int i = 0; i < selectList.size(); i++) {
             LogicalSelectListNode si = selectList.elementAt(i);
             if (si.aggOp != null) {
-                outFields.add(groupByField!=null?1:0);
+                int agg = findAggregate(si);
+                if (agg < 0)
+                    throw new ParsingException("Aggregate " + si.aggOp + "(" + si.fname + ") is not in the query");
+                outFields.add(groupByFields.size() + agg);
                 TupleDesc td = node.getTupleDesc();
 //                int  id;
                 try {
 //                    id = 
-                    td.fieldNameToIndex(si.fname);
+                    if (!si.fname.equals("null.*"))
+                        td.fieldNameToIndex(si.fname);
                 } catch (NoSuchElementException e) {
                     throw new ParsingException("Unknown field " +  si.fname + " in SELECT list");
                 }
-                outTypes.add(Type.INT_TYPE);  //the type of all aggregate functions is INT
+                outTypes.add(null);  //set from the schema of the Aggregate once it is built
 
             } else if (hasAgg) {
-                    if (groupByField == null) {
+                    int group = groupByFields.indexOf(si.fname);
+                    if (group < 0) {
                         throw new ParsingException("Field " + si.fname + " does not appear in GROUP BY list");
                     }
-                    outFields.add(0);
+                    outFields.add(group);
                     TupleDesc td = node.getTupleDesc();
                     int  id;
                     try {
-                        id = td.fieldNameToIndex(groupByField);
+                        id = td.fieldNameToIndex(si.fname);
                     } catch (NoSuchElementException e) {
-                        throw new ParsingException("Unknown field " +  groupByField + " in GROUP BY statement");
+                        throw new ParsingException("Unknown field " +  si.fname + " in GROUP BY statement");
                     }
                     outTypes.add(td.getFieldType(id));
             } else if (si.fname.equals("null.*")) {
@@ -460,27 +565,189 @@ public class LogicalPlan {
 
         if (hasAgg) {
             TupleDesc td = node.getTupleDesc();
-            Aggregate aggNode;
+            int[] afields = new int[aggFields.size()];
+            Aggregator.Op[] aops = new Aggregator.Op[aggFields.size()];
+            for (int i = 0; i < afields.length; i++) {
+                aops[i] = getAggOp(aggOps.get(i));
+                if (aggFields.get(i).equals("*")) {
+                    //COUNT(*) counts rows, so any field will do
+                    if (aops[i] != Aggregator.Op.COUNT)
+                        throw new ParsingException("Only COUNT may be applied to *");
+                    afields[i] = 0;
+                } else {
+                    try {
+                        afields[i] = td.fieldNameToIndex(aggFields.get(i));
+                    } catch (NoSuchElementException e) {
+                        throw new simpledb.ParsingException(e);
+                    }
+                }
+            }
+            int[] gfields = new int[groupByFields.size()];
             try {
-                aggNode = new Aggregate(node,
-                                        td.fieldNameToIndex(aggField),
-                                        groupByField == null?Aggregator.NO_GROUPING:td.fieldNameToIndex(groupByField),
-                                getAggOp(aggOp));
+                for (int i = 0; i < gfields.length; i++)
+                    gfields[i] = td.fieldNameToIndex(groupByFields.get(i));
+                Aggregate agg = new Aggregate(node, afields, aops, gfields);
+                HeapFile scanned = Aggregate.heapFileOf(node);
+                if (Aggregate.isGroupedOn(node, gfields)) {
+                    //the input is sorted on the group by fields, so each group can be
+                    //returned as soon as the next one starts
+                    agg.setStreaming(true);
+                    if (explain)
+                        System.out.println("Streaming aggregation on " + groupByFields
+                                + ", the order of its input");
+                } else if (scanned != null && scanned.numPages() >= Aggregate.PARALLEL_MIN_PAGES
+                        && Aggregate.DEFAULT_PARALLELISM > 1) {
+                    agg.setParallelism(Aggregate.DEFAULT_PARALLELISM);
+                    if (explain)
+                        System.out.println("Aggregating " + scanned.numPages() + " pages with "
+                                + agg.getParallelism() + " threads");
+                }
+                node = agg;
+                //sums and counts are longs, so take the aggregate types from its results
+                for (int i = 0; i < outTypes.size(); i++)
+                    if (outTypes.get(i) == null)
+                        outTypes.set(i, agg.getTupleDesc().getFieldType(outFields.get(i)));
             } catch (NoSuchElementException e) {
                 throw new simpledb.ParsingException(e);
             } catch (IllegalArgumentException e) {
                 throw new simpledb.ParsingException(e);
             }
-            node = aggNode;
         }
 
         if (hasOrderBy) {
-            node = new OrderBy(node.getTupleDesc().fieldNameToIndex(oByField), oByAsc, node);
+            int[] oByIndexes = new int[oByFields.size()];
+            boolean[] ascs = new boolean[oByFields.size()];
+            for (int i = 0; i < oByIndexes.length; i++) {
+                try {
+                    oByIndexes[i] = node.getTupleDesc().fieldNameToIndex(oByFields.get(i));
+                } catch (NoSuchElementException e) {
+                    throw new ParsingException("Unknown field " + oByFields.get(i) + " in ORDER BY");
+                }
+                ascs[i] = oByAscs.get(i);
+            }
+            if (limit != NO_LIMIT) {
+                //only the first tuples of the ordering are needed, so keep them in a bounded heap
+                node = new TopN(oByIndexes, ascs, limit, node);
+                if (explain)
+                    System.out.println("Using top-" + limit + " sort for ORDER BY " + oByFields);
+            } else {
+                node = new OrderBy(oByIndexes, ascs, node);
+            }
+        } else if (limit != NO_LIMIT) {
+            node = new Limit(limit, node);
         }
 
         return new Project(outFields, outTypes, node);
     }
 
+    /** Returns true if the only field of the table with the specified alias
+     *  that this plan refers to is the key of its B+ tree, so that the table
+     *  can be read with an index-only scan.
+     */
+    private boolean isCoveredByKey(String alias, BTreeFile file) {
+        String key = file.getTupleDesc().getFieldName(file.keyField());
+        String qualifiedKey = alias + "." + key;
+
+        for (LogicalSelectListNode si : selectList) {
+            if (si.fname.equals("null.*")) {
+                if (si.aggOp == null)
+                    return false;
+            } else if (!isCoveredName(si.fname, alias, qualifiedKey)) {
+                return false;
+            }
+        }
+        for (LogicalFilterNode lf : filters) {
+            if (lf.tableAlias.equals(alias) && !lf.fieldPureName.equals(key))
+                return false;
+        }
+        for (LogicalJoinNode lj : joins) {
+            if (lj.t1Alias.equals(alias) && !lj.f1PureName.equals(key))
+                return false;
+            if (alias.equals(lj.t2Alias) && !lj.f2PureName.equals(key))
+                return false;
+        }
+        for (String oByField : oByFields) {
+            if (!isCoveredName(oByField, alias, qualifiedKey))
+                return false;
+        }
+        for (String gfield : groupByFields) {
+            if (!isCoveredName(gfield, alias, qualifiedKey))
+                return false;
+        }
+        for (String afield : aggFields) {
+            if (!isCoveredName(afield, alias, qualifiedKey))
+                return false;
+        }
+        return true;
+    }
+
+    /** Returns the index of the aggregate computed for the specified
+     *  select list item, or -1 if there is none.
+     */
+    private int findAggregate(LogicalSelectListNode si) {
+        for (int i = 0; i < aggFields.size(); i++) {
+            String afield = aggFields.get(i);
+            boolean sameField = afield.equals(si.fname) ||
+                (afield.equals("*") && si.fname.equals("null.*"));
+            if (sameField && aggOps.get(i).equalsIgnoreCase(si.aggOp))
+                return i;
+        }
+        return -1;
+    }
+
+    private static boolean isCoveredName(String name, String alias, String qualifiedKey) {
+        return name == null || !name.startsWith(alias + ".") || name.equals(qualifiedKey);
+    }
+
+    /** Build an index-only scan of the table with the specified alias.  Range
+     *  predicates on the key are turned into bounds of the scan; the filters
+     *  they came from are added to indexFilters.
+     */
+    private BTreeKeyScan keyScan(TransactionId t, BTreeFile file, String alias,
+                                 HashSet<LogicalFilterNode> indexFilters) throws ParsingException {
+        Type keyType = file.getTupleDesc().getFieldType(file.keyField());
+        IndexPredicate lower = null, upper = null;
+
+        for (LogicalFilterNode lf : filters) {
+            if (!lf.tableAlias.equals(alias))
+                continue;
+            Field f;
+            try {
+                if (keyType == Type.INT_TYPE)
+                    f = new IntField(Integer.parseInt(lf.c));
+                else
+                    f = new StringField(lf.c, Type.STRING_LEN);
+            } catch (NumberFormatException e) {
+                throw new ParsingException("Invalid constant " + lf.c + " in filter on " + lf.fieldQuantifiedName);
+            }
+
+            switch (lf.p) {
+            case GREATER_THAN:
+            case GREATER_THAN_OR_EQ:
+                if (lower != null)
+                    continue;
+                lower = new IndexPredicate(lf.p, f);
+                break;
+            case LESS_THAN:
+            case LESS_THAN_OR_EQ:
+                if (upper != null)
+                    continue;
+                upper = new IndexPredicate(lf.p, f);
+                break;
+            case EQUALS:
+                if (lower != null || upper != null)
+                    continue;
+                lower = new IndexPredicate(Predicate.Op.GREATER_THAN_OR_EQ, f);
+                upper = new IndexPredicate(Predicate.Op.LESS_THAN_OR_EQ, f);
+                break;
+            default:
+                continue;
+            }
+            indexFilters.add(lf);
+        }
+        return new BTreeKeyScan(t, file.getId(), alias, lower, upper);
+    }
+
     public static void main(String argv[]) {
         // construct a 3-column table schema
         Type types[] = new Type[]{ Type.INT_TYPE, Type.INT_TYPE, Type.INT_TYPE };
@@ -0,0 +1,102 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * LoserTree merges k sorted inputs into one sorted stream. It is a
+ * tournament tree: each internal node remembers the input that lost the
+ * comparison there, and the overall winner is kept at the root. After the
+ * winner's tuple is returned only the path from its input to the root is
+ * replayed, so each output tuple costs about log2(k) comparisons, with no
+ * element moves as in a binary heap.
+ * <p>
+ * Ties are broken in favour of the input with the smaller index, so merging
+ * runs that were produced from consecutive parts of a stream in order keeps
+ * a stable sort stable.
+ */
+public class LoserTree {
+
+    private final DbIterator[] inputs;
+    private final Comparator<Tuple> comparator;
+    // the current tuple of each input, or null once the input is exhausted
+    private final Tuple[] heads;
+    // tree[0] is the winner; tree[1..k-1] are the losers of the internal
+    // nodes, whose children are 2n and 2n+1, and input i is the leaf k+i
+    private final int[] tree;
+
+    /**
+     * @param inputs
+     *            The inputs to merge. They must be open and sorted according
+     *            to comparator.
+     * @param comparator
+     *            The order of the inputs and of the output
+     */
+    public LoserTree(DbIterator[] inputs, Comparator<Tuple> comparator)
+            throws DbException, TransactionAbortedException {
+        if (inputs.length == 0)
+            throw new IllegalArgumentException("nothing to merge");
+        this.inputs = inputs;
+        this.comparator = comparator;
+        this.heads = new Tuple[inputs.length];
+        this.tree = new int[inputs.length];
+        for (int i = 0; i < inputs.length; i++)
+            heads[i] = inputs[i].hasNext() ? inputs[i].next() : null;
+        tree[0] = play(1);
+    }
+
+    /**
+     * Fill in the losers of the subtree rooted at node.
+     *
+     * @return the winner of the subtree
+     */
+    private int play(int node) {
+        int k = inputs.length;
+        if (node >= k)
+            return node - k;
+        int left = play(2 * node);
+        int right = play(2 * node + 1);
+        if (beats(left, right)) {
+            tree[node] = right;
+            return left;
+        }
+        tree[node] = left;
+        return right;
+    }
+
+    /**
+     * @return true if the head of input a comes before the head of input b;
+     *         exhausted inputs come after everything else
+     */
+    private boolean beats(int a, int b) {
+        if (heads[a] == null)
+            return false;
+        if (heads[b] == null)
+            return true;
+        int cmp = comparator.compare(heads[a], heads[b]);
+        return cmp < 0 || (cmp == 0 && a < b);
+    }
+
+    /**
+     * @return the next tuple in the merged order, or null when all the inputs
+     *         are exhausted
+     */
+    public Tuple next() throws DbException, TransactionAbortedException {
+        int winner = tree[0];
+        Tuple result = heads[winner];
+        if (result == null)
+            return null;
+        heads[winner] = inputs[winner].hasNext() ? inputs[winner].next() : null;
+
+        // replay the matches on the path from the winner's leaf to the root
+        int s = winner;
+        for (int node = (winner + inputs.length) / 2; node > 0; node /= 2) {
+            if (beats(tree[node], s)) {
+                int t = tree[node];
+                tree[node] = s;
+                s = t;
+            }
+        }
+        tree[0] = s;
+        return result;
+    }
+}
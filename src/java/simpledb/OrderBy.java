@@ -3,18 +3,40 @@ package simpledb;
 import java.util.*;
 
 /**
- * OrderBy is an operator that implements a relational ORDER BY.
+ * OrderBy is an operator that implements a relational ORDER BY, on one or
+ * more fields.
+ * <p>
+ * Tuples are sorted in memory until they exceed a memory budget. Beyond that
+ * the sort is an external merge sort: each time the buffered tuples fill the
+ * budget they are sorted and written to a temporary file as a run, and the
+ * runs are then merged with a {@link LoserTree}. As many runs are merged at
+ * once as there are pages in the budget, reading a page of each. The last
+ * run is merged straight from memory if that is the only merge; if there
+ * are more runs than that, it is written out as well, and intermediate
+ * passes merge the runs into longer ones first, one page short of the
+ * budget at a time to leave a page for the run they write.
  */
 public class OrderBy extends Operator {
 
     private static final long serialVersionUID = 1L;
+
+    /** Default memory budget of the sort, in pages */
+    public static final int DEFAULT_MEMORY_PAGES = 1024;
+
     private DbIterator child;
     private TupleDesc td;
     private ArrayList<Tuple> childTups = new ArrayList<Tuple>();
-    private int orderByField;
-    private String orderByFieldName;
+    private int[] orderByFields;
+    private boolean[] ascs;
     private Iterator<Tuple> it;
-    private boolean asc;
+    private int memoryBytes;
+
+    // state of an external sort
+    private transient ArrayList<SpillFile> runs = new ArrayList<SpillFile>();
+    private transient DbIterator[] mergeInputs;
+    private transient LoserTree merge;
+    private int runsWritten;
+    private int mergePasses;
 
     /**
      * Creates a new OrderBy node over the tuples from the iterator.
@@ -27,26 +49,95 @@ public class OrderBy extends Operator {
      *            the tuples to sort.
      */
     public OrderBy(int orderbyField, boolean asc, DbIterator child) {
+        this(orderbyField, asc, child, DEFAULT_MEMORY_PAGES * BufferPool.getPageSize());
+    }
+
+    /**
+     * Creates a new OrderBy node with an explicit memory budget.
+     * 
+     * @param memoryBytes
+     *            how many bytes of tuples to sort in memory before spilling
+     *            sorted runs to disk. This is also the budget for the input
+     *            buffers of a merge, one page per run.
+     */
+    public OrderBy(int orderbyField, boolean asc, DbIterator child, int memoryBytes) {
+        this(new int[] { orderbyField }, new boolean[] { asc }, child, memoryBytes);
+    }
+
+    /**
+     * Creates a new OrderBy node that sorts on several fields: on the first
+     * one, then ties on the second one, and so on.
+     * 
+     * @param orderbyFields
+     *            the fields to which the sort is applied, most significant
+     *            first.
+     * @param ascs
+     *            for each field, true if its sort order is ascending.
+     * @param child
+     *            the tuples to sort.
+     */
+    public OrderBy(int[] orderbyFields, boolean[] ascs, DbIterator child) {
+        this(orderbyFields, ascs, child, DEFAULT_MEMORY_PAGES * BufferPool.getPageSize());
+    }
+
+    /**
+     * Creates a new OrderBy node that sorts on several fields, with an
+     * explicit memory budget.
+     */
+    public OrderBy(int[] orderbyFields, boolean[] ascs, DbIterator child, int memoryBytes) {
+        if (memoryBytes <= 0)
+            throw new IllegalArgumentException("memory budget must be positive");
+        if (orderbyFields.length == 0 || orderbyFields.length != ascs.length)
+            throw new IllegalArgumentException("need one direction for each sort field");
         this.child = child;
         td = child.getTupleDesc();
-        this.orderByField = orderbyField;
-        this.orderByFieldName = td.getFieldName(orderbyField);
-        this.asc = asc;
+        this.orderByFields = orderbyFields.clone();
+        this.ascs = ascs.clone();
+        this.memoryBytes = memoryBytes;
     }
     
+    /** @return true if the first sort field is in ascending order */
     public boolean isASC()
     {
-	return this.asc;
+	return this.ascs[0];
     }
     
+    /** @return the first (most significant) sort field */
     public int getOrderByField()
     {
-        return this.orderByField;
+        return this.orderByFields[0];
     }
     
     public String getOrderFieldName()
     {
-	return this.orderByFieldName;
+	return td.getFieldName(this.orderByFields[0]);
+    }
+
+    /** @return all the sort fields, most significant first */
+    public int[] getOrderByFields() {
+        return orderByFields.clone();
+    }
+
+    /** @return for each sort field, true if it is in ascending order */
+    public boolean[] getAscending() {
+        return ascs.clone();
+    }
+
+    /**
+     * @return the number of sorted runs written to disk by the last open,
+     *         including those written by intermediate merge passes
+     */
+    public int numRunsWritten() {
+        return runsWritten;
+    }
+
+    /**
+     * @return the number of merge passes made by the last open, counting the
+     *         final merge that produces the output; 0 if the sort fit in
+     *         memory
+     */
+    public int numMergePasses() {
+        return mergePasses;
     }
     
     public TupleDesc getTupleDesc() {
@@ -56,21 +147,137 @@ public class OrderBy extends Operator {
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         child.open();
-        // load all the tuples in a collection, and sort it
-        while (child.hasNext())
-            childTups.add((Tuple) child.next());
-        Collections.sort(childTups, new TupleComparator(orderByField, asc));
-        it = childTups.iterator();
+        deleteRuns();
+        childTups.clear();
+        runsWritten = 0;
+        mergePasses = 0;
+        Comparator<Tuple> comparator = new TupleComparator(td, orderByFields, ascs);
+        int tupleSize = td.getSize();
+        long bytes = 0;
+        try {
+            // sort the tuples in memory-sized pieces, spilling all but the last
+            while (child.hasNext()) {
+                if (bytes + tupleSize > memoryBytes && !childTups.isEmpty()) {
+                    writeRun(comparator);
+                    bytes = 0;
+                }
+                childTups.add(child.next());
+                bytes += tupleSize;
+            }
+            Collections.sort(childTups, comparator);
+
+            // the final merge reads a page of each run, and of the tuples in
+            // memory. If that is over budget, write those tuples out too, so
+            // that the intermediate passes only hold a page of each run they
+            // merge and one of the run they write
+            int fanIn = Math.max(2, memoryBytes / BufferPool.getPageSize());
+            if (runs.size() + 1 > fanIn) {
+                writeRun(comparator);
+                int passFanIn = Math.max(2, fanIn - 1);
+                while (runs.size() > fanIn) {
+                    ArrayList<SpillFile> merged = new ArrayList<SpillFile>();
+                    for (int i = 0; i < runs.size(); i += passFanIn) {
+                        List<SpillFile> group = runs.subList(i, Math.min(i + passFanIn, runs.size()));
+                        merged.add(mergeRuns(group, comparator));
+                    }
+                    for (SpillFile run : runs)
+                        run.delete();
+                    runs = merged;
+                    mergePasses++;
+                }
+            }
+        } catch (java.io.IOException e) {
+            deleteRuns();
+            throw new DbException("could not write sorted run: " + e);
+        }
+        if (!runs.isEmpty())
+            mergePasses++;
+        startOutput();
         super.open();
     }
 
+    /**
+     * Sort the tuples in memory and write them to disk as a new run.
+     */
+    private void writeRun(Comparator<Tuple> comparator) throws java.io.IOException {
+        Collections.sort(childTups, comparator);
+        SpillFile run = new SpillFile(td);
+        for (Tuple t : childTups)
+            run.add(t);
+        run.finish();
+        runs.add(run);
+        runsWritten++;
+        childTups.clear();
+    }
+
+    /**
+     * Merge a group of runs into a new run.
+     */
+    private SpillFile mergeRuns(List<SpillFile> group, Comparator<Tuple> comparator)
+            throws DbException, TransactionAbortedException, java.io.IOException {
+        DbIterator[] inputs = new DbIterator[group.size()];
+        for (int i = 0; i < inputs.length; i++) {
+            inputs[i] = group.get(i).iterator();
+            inputs[i].open();
+        }
+        SpillFile out = new SpillFile(td);
+        LoserTree tree = new LoserTree(inputs, comparator);
+        for (Tuple t = tree.next(); t != null; t = tree.next())
+            out.add(t);
+        out.finish();
+        runsWritten++;
+        for (DbIterator input : inputs)
+            input.close();
+        return out;
+    }
+
+    /**
+     * Start returning the sorted tuples from the beginning: straight from
+     * memory if nothing was spilled, and otherwise from a merge of the runs
+     * on disk and the tuples in memory.
+     */
+    private void startOutput() throws DbException, TransactionAbortedException {
+        closeMergeInputs();
+        if (runs.isEmpty()) {
+            it = childTups.iterator();
+            return;
+        }
+        mergeInputs = new DbIterator[runs.size() + 1];
+        for (int i = 0; i < runs.size(); i++)
+            mergeInputs[i] = runs.get(i).iterator();
+        mergeInputs[runs.size()] = new TupleIterator(td, childTups);
+        for (DbIterator input : mergeInputs)
+            input.open();
+        merge = new LoserTree(mergeInputs, new TupleComparator(td, orderByFields, ascs));
+    }
+
+    private void closeMergeInputs() {
+        if (mergeInputs != null)
+            for (DbIterator input : mergeInputs)
+                input.close();
+        mergeInputs = null;
+        merge = null;
+        it = null;
+    }
+
+    private void deleteRuns() {
+        closeMergeInputs();
+        if (runs == null)
+            runs = new ArrayList<SpillFile>();
+        for (SpillFile run : runs)
+            run.delete();
+        runs.clear();
+    }
+
     public void close() {
         super.close();
-        it = null;
+        child.close();
+        deleteRuns();
+        childTups.clear();
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
-        it = childTups.iterator();
+        startOutput();
     }
 
     /**
@@ -82,6 +289,8 @@ public class OrderBy extends Operator {
      */
     protected Tuple fetchNext() throws NoSuchElementException,
             TransactionAbortedException, DbException {
+        if (merge != null)
+            return merge.next();
         if (it != null && it.hasNext()) {
             return it.next();
         } else
@@ -99,25 +308,3 @@ public class OrderBy extends Operator {
     }
 
 }
-
-class TupleComparator implements Comparator<Tuple> {
-    int field;
-    boolean asc;
-
-    public TupleComparator(int field, boolean asc) {
-        this.field = field;
-        this.asc = asc;
-    }
-
-    public int compare(Tuple o1, Tuple o2) {
-        Field t1 = (o1).getField(field);
-        Field t2 = (o2).getField(field);
-        if (t1.compare(Predicate.Op.EQUALS, t2))
-            return 0;
-        if (t1.compare(Predicate.Op.GREATER_THAN, t2))
-            return asc ? 1 : -1;
-        else
-            return asc ? -1 : 1;
-    }
-    
-}
@@ -0,0 +1,77 @@
+package simpledb;
+
+/**
+ * RowsToBatches is the adapter from a tuple operator to a batch operator:
+ * it reads the tuples of its child into batches of up to a fixed number of
+ * rows, so that batch operators can run over any DbIterator.
+ */
+public class RowsToBatches extends BatchOperator {
+
+    private static final long serialVersionUID = 1L;
+
+    private DbIterator child;
+    private final int capacity;
+    private transient Batch batch;
+
+    /**
+     * Constructor, for batches of Batch.DEFAULT_CAPACITY rows.
+     *
+     * @param child
+     *            The DbIterator whose tuples are returned in batches
+     */
+    public RowsToBatches(DbIterator child) {
+        this(child, Batch.DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param child
+     *            The DbIterator whose tuples are returned in batches
+     * @param capacity
+     *            The largest number of rows in a batch
+     */
+    public RowsToBatches(DbIterator child, int capacity) {
+        if (capacity <= 0)
+            throw new IllegalArgumentException("capacity must be positive");
+        this.child = child;
+        this.capacity = capacity;
+    }
+
+    public DbIterator getChild() {
+        return child;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return child.getTupleDesc();
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        child.open();
+        batch = new Batch(child.getTupleDesc(), capacity);
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        child.close();
+        batch = null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        child.rewind();
+    }
+
+    /**
+     * BatchOperator.fetchNext implementation. Fills the batch with the next
+     * tuples of the child.
+     *
+     * @return The next batch, or null if the child has no more tuples
+     */
+    protected Batch fetchNext() throws DbException, TransactionAbortedException {
+        batch.clear();
+        while (!batch.isFull() && child.hasNext())
+            batch.addTuple(child.next());
+        return batch.isEmpty() ? null : batch;
+    }
+}
@@ -0,0 +1,167 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * SortMergeJoin implements an equality join of two children that are both
+ * sorted in ascending order on their join fields, as produced by a scan of a
+ * B+ tree keyed on the join field or by an ascending OrderBy. It reads each
+ * child once and needs no hash table: only the run of child2 tuples that
+ * share the current key is kept in memory, so that duplicate keys on both
+ * sides produce every matching pair.
+ */
+public class SortMergeJoin extends Operator {
+
+    private static final long serialVersionUID = 1L;
+    private JoinPredicate p;
+    private DbIterator child1;
+    private DbIterator child2;
+
+    private Tuple left;
+    private Field runKey;
+    private ArrayList<Tuple> run = new ArrayList<Tuple>();
+    private int runPos;
+    private Tuple nextRight;
+    // the merged schema of the output, computed when the join is opened
+    private TupleDesc td;
+
+    /**
+     * Constructor. Accepts two children to join and the predicate to join
+     * them on.
+     *
+     * @param p
+     *            The predicate to use to join the children; it must be an
+     *            equality
+     * @param child1
+     *            Iterator for the left relation, sorted ascending on the join
+     *            field
+     * @param child2
+     *            Iterator for the right relation, sorted ascending on the join
+     *            field
+     */
+    public SortMergeJoin(JoinPredicate p, DbIterator child1, DbIterator child2) {
+        if (p.getOperator() != Predicate.Op.EQUALS)
+            throw new IllegalArgumentException("a sort-merge join needs an equality predicate");
+        this.p = p;
+        this.child1 = child1;
+        this.child2 = child2;
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return p;
+    }
+
+    /**
+     * @return
+     *       the field name of join field1. Should be quantified by
+     *       alias or table name.
+     * */
+    public String getJoinField1Name() {
+        return child1.getTupleDesc().getFieldName(p.getField1());
+    }
+
+    /**
+     * @return
+     *       the field name of join field2. Should be quantified by
+     *       alias or table name.
+     * */
+    public String getJoinField2Name() {
+        return child2.getTupleDesc().getFieldName(p.getField2());
+    }
+
+    public TupleDesc getTupleDesc() {
+        if (td != null)
+            return td;
+        return TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        if (child1 == null || child2 == null) {
+            throw new NoSuchElementException("Child is null!");
+        }
+        child1.open();
+        child2.open();
+        td = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+        super.open();
+        reset();
+    }
+
+    public void close() {
+        child1.close();
+        child2.close();
+        super.close();
+        reset();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        child1.rewind();
+        child2.rewind();
+        reset();
+    }
+
+    private void reset() {
+        left = null;
+        runKey = null;
+        run.clear();
+        runPos = 0;
+        nextRight = null;
+    }
+
+    /**
+     * Returns the next tuple generated by the join, or null if there are no
+     * more tuples. The output is sorted on the join field, and the tuples are
+     * the concatenation of the joining tuples from child1 and child2.
+     *
+     * @return The next matching tuple.
+     */
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        while (true) {
+            if (left != null && runPos < run.size())
+                return combine(left, run.get(runPos++));
+
+            if (!child1.hasNext())
+                return null;
+            left = child1.next();
+            runPos = 0;
+            Field key = left.getField(p.getField1());
+            if (runKey != null && key.equals(runKey))
+                continue; // another left tuple with the same key: replay the run
+
+            // skip the right tuples with smaller keys and collect the run of
+            // tuples with this key
+            run.clear();
+            runKey = key;
+            while (nextRight != null || child2.hasNext()) {
+                if (nextRight == null)
+                    nextRight = child2.next();
+                Field rightKey = nextRight.getField(p.getField2());
+                if (rightKey.compare(Predicate.Op.LESS_THAN, key)) {
+                    nextRight = null;
+                } else if (rightKey.equals(key)) {
+                    run.add(nextRight);
+                    nextRight = null;
+                } else {
+                    break;
+                }
+            }
+        }
+    }
+
+    private Tuple combine(Tuple t1, Tuple t2) {
+        return new JoinedTuple(getTupleDesc(), t1, t2);
+    }
+
+    @Override
+    public DbIterator[] getChildren() {
+        return new DbIterator[] { child1, child2 };
+    }
+
+    @Override
+    public void setChildren(DbIterator[] children) {
+        child1 = children[0];
+        child2 = children[1];
+        td = null;
+    }
+
+}
@@ -0,0 +1,210 @@
+package simpledb;
+
+import java.io.*;
+import java.util.NoSuchElementException;
+
+/**
+ * SpillFile is a temporary file of tuples that operators use to move
+ * intermediate results out of memory. Tuples are appended with
+ * {@link #add}, and once {@link #finish} has been called the file can be read
+ * back, in the order the tuples were written, any number of times.
+ * <p>
+ * Unlike pages, the format is compact: integers take four bytes, longs eight
+ * and strings only as many bytes as they have characters, plus a length.
+ * Record ids are not preserved.
+ */
+public class SpillFile {
+
+    private final TupleDesc td;
+    private final File file;
+    private DataOutputStream out;
+    private int numTuples;
+
+    /**
+     * Create a new, empty spill file for tuples with the specified schema.
+     */
+    public SpillFile(TupleDesc td) throws IOException {
+        this.td = td;
+        this.file = File.createTempFile("spill", ".dat");
+        this.file.deleteOnExit();
+        this.out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(file)));
+    }
+
+    /**
+     * Append a tuple to the end of the file.
+     *
+     * @throws IllegalStateException if the file has been finished
+     */
+    public void add(Tuple t) throws IOException {
+        if (out == null)
+            throw new IllegalStateException("spill file is finished");
+        writeTuple(out, t);
+        numTuples++;
+    }
+
+    /**
+     * Flush the tuples written so far and close the file for writing. Calling
+     * this more than once has no effect.
+     */
+    public void finish() throws IOException {
+        if (out != null) {
+            out.close();
+            out = null;
+        }
+    }
+
+    /** @return the number of tuples written to the file */
+    public int numTuples() {
+        return numTuples;
+    }
+
+    /** @return the size of the file in bytes, once it is finished */
+    public long length() {
+        return file.length();
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    /**
+     * @return an iterator over the tuples of this file. The file must be
+     *         finished.
+     */
+    public DbIterator iterator() {
+        if (out != null)
+            throw new IllegalStateException("spill file is still being written");
+        return new SpillFileIterator();
+    }
+
+    /**
+     * Remove the file from disk. The file cannot be used afterwards.
+     */
+    public void delete() {
+        try {
+            finish();
+        } catch (IOException e) {
+            // the contents are being thrown away anyway
+        }
+        file.delete();
+    }
+
+    /**
+     * Write the fields of a tuple to out in the format of a spill file.
+     */
+    static void writeTuple(DataOutputStream out, Tuple t) throws IOException {
+        TupleDesc td = t.getTupleDesc();
+        for (int i = 0; i < td.numFields(); i++) {
+            Field f = t.getField(i);
+            if (td.getFieldType(i) == Type.INT_TYPE)
+                out.writeInt(((IntField) f).getValue());
+            else if (td.getFieldType(i) == Type.LONG_TYPE)
+                out.writeLong(((LongField) f).getValue());
+            else
+                out.writeUTF(((StringField) f).getValue());
+        }
+    }
+
+    /**
+     * Read a tuple written by {@link #writeTuple}.
+     *
+     * @return the tuple, or null at the end of the stream
+     */
+    static Tuple readTuple(DataInputStream in, TupleDesc td) throws IOException {
+        Tuple t = new Tuple(td);
+        for (int i = 0; i < td.numFields(); i++) {
+            if (td.getFieldType(i) == Type.INT_TYPE) {
+                int v;
+                try {
+                    v = in.readInt();
+                } catch (EOFException e) {
+                    if (i == 0)
+                        return null;
+                    throw e;
+                }
+                t.setField(i, new IntField(v));
+            } else if (td.getFieldType(i) == Type.LONG_TYPE) {
+                long v;
+                try {
+                    v = in.readLong();
+                } catch (EOFException e) {
+                    if (i == 0)
+                        return null;
+                    throw e;
+                }
+                t.setField(i, new LongField(v));
+            } else {
+                String s;
+                try {
+                    s = in.readUTF();
+                } catch (EOFException e) {
+                    if (i == 0)
+                        return null;
+                    throw e;
+                }
+                t.setField(i, new StringField(s, Type.STRING_LEN));
+            }
+        }
+        return t;
+    }
+
+    private class SpillFileIterator implements DbIterator {
+
+        private static final long serialVersionUID = 1L;
+        private transient DataInputStream in;
+        private Tuple next;
+
+        public void open() throws DbException {
+            try {
+                in = new DataInputStream(new BufferedInputStream(
+                        new FileInputStream(file)));
+            } catch (IOException e) {
+                throw new DbException("could not open spill file: " + e);
+            }
+            next = null;
+        }
+
+        public boolean hasNext() throws DbException {
+            if (in == null)
+                throw new IllegalStateException("iterator is closed");
+            if (next == null) {
+                try {
+                    next = readTuple(in, td);
+                } catch (IOException e) {
+                    throw new DbException("could not read spill file: " + e);
+                }
+            }
+            return next != null;
+        }
+
+        public Tuple next() throws DbException {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            Tuple result = next;
+            next = null;
+            return result;
+        }
+
+        public void rewind() throws DbException {
+            close();
+            open();
+        }
+
+        public TupleDesc getTupleDesc() {
+            return td;
+        }
+
+        public void close() {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // nothing was written, so nothing is lost
+                }
+            }
+            in = null;
+            next = null;
+        }
+    }
+}
@@ -1,22 +1,17 @@
 package simpledb;
 
-import java.util.HashMap;
-import java.util.LinkedList;
-import java.util.Map;
-
 /**
- * Knows how to compute some aggregate over a set of StringFields.
+ * Knows how to compute some aggregate over a set of StringFields. It is a
+ * {@link GroupAggregator} with a single COUNT and at most one group-by
+ * field.
  */
 public class StringAggregator implements Aggregator {
 
     private static final long serialVersionUID = 1L;
 
     private int gbfield;
-    private int afield;
-    private Type gbfieldtype;
     private Op what;
-    private HashMap<String, Integer> mergedCount;
-    private HashMap<String, Integer> aggregatedValues;
+    private GroupAggregator agg;
 
     /**
      * Aggregate constructor
@@ -28,13 +23,14 @@ public class StringAggregator implements Aggregator {
      */
 
     public StringAggregator(int gbfield, Type gbfieldtype, int afield, Op what) {
-        // some code goes here
         this.gbfield = gbfield;
-        this.afield = afield;
-        this.gbfieldtype = gbfieldtype;
         this.what = what;
-        aggregatedValues = new HashMap<>();
-        mergedCount = new HashMap<>();
+        if (gbfield == NO_GROUPING)
+            agg = new GroupAggregator(new int[0], new Type[0], new int[] { afield },
+                    new Type[] { Type.STRING_TYPE }, new Op[] { what });
+        else
+            agg = new GroupAggregator(new int[] { gbfield }, new Type[] { gbfieldtype },
+                    new int[] { afield }, new Type[] { Type.STRING_TYPE }, new Op[] { what });
     }
 
     /**
@@ -42,23 +38,7 @@ public class StringAggregator implements Aggregator {
      * @param tup the Tuple containing an aggregate field and a group-by field
      */
     public void mergeTupleIntoGroup(Tuple tup) {
-
-        String gbfieldString;
-        if (gbfield == NO_GROUPING) {
-            gbfieldString = "";
-        } else {
-            gbfieldString= tup.getField(gbfield).toString();
-        }
-
-        mergedCount.putIfAbsent(gbfieldString, 0);
-        mergedCount.put(gbfieldString, mergedCount.get(gbfieldString) + 1);
-
-        switch (what) {
-            case COUNT:
-                aggregatedValues.put(gbfieldString, mergedCount.get(gbfieldString));
-                break;
-        }
-
+        agg.mergeTupleIntoGroup(tup);
     }
 
     /**
@@ -70,47 +50,20 @@ public class StringAggregator implements Aggregator {
      *   aggregate specified in the constructor.
      */
     public DbIterator iterator() {
-        LinkedList<Tuple> tuples = new LinkedList<>();
-        Type[] types;
-        String[] fieldNames;
-
-        if (gbfield == NO_GROUPING) {
-            types = new Type[]{Type.INT_TYPE};
-            fieldNames = new String[]{what.toString()};
-        } else {
-            types = new Type[]{gbfieldtype, Type.INT_TYPE};
-            fieldNames = new String[]{"AGGREGATE_VALUE", what.toString()};
+        // a SUM_COUNT has two result fields, named by the aggregator
+        TupleDesc td = agg.getTupleDesc();
+        Type[] types = new Type[td.numFields()];
+        String[] fieldNames = new String[td.numFields()];
+        for (int i = 0; i < types.length; i++) {
+            types[i] = td.getFieldType(i);
+            fieldNames[i] = td.getFieldName(i);
         }
+        if (gbfield != NO_GROUPING)
+            fieldNames[0] = "AGGREGATE_VALUE";
+        if (what != Op.SUM_COUNT)
+            fieldNames[types.length - 1] = what.toString();
 
-        TupleDesc td = new TupleDesc(types, fieldNames);
-        Tuple tuple;
-
-        for (Map.Entry<String, Integer> entry : aggregatedValues.entrySet()) {
-            tuple = new Tuple(td);
-            String key = entry.getKey();
-            Integer value = entry.getValue();
-
-            switch (gbfieldtype) {
-                case INT_TYPE:
-                    if (gbfield == NO_GROUPING) {
-                        tuple.setField(0, new IntField(value));
-                    } else {
-                        tuple.setField(0, new IntField(Integer.parseInt(key)));
-                        tuple.setField(1, new IntField(value));
-                    }
-                    break;
-                case STRING_TYPE:
-                    if (gbfield == NO_GROUPING) {
-                        tuple.setField(0, new IntField(value));
-                    } else {
-                        tuple.setField(0, new StringField(key, Type.STRING_LEN));
-                        tuple.setField(1, new IntField(value));
-                    }
-                    break;
-            }
-            tuples.add(tuple);
-        }
-        return new TupleIterator(td, tuples);
+        return agg.iterator(new TupleDesc(types, fieldNames));
     }
 
 }
@@ -0,0 +1,163 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * TopN implements ORDER BY ... LIMIT n. Instead of sorting its whole input
+ * like {@link OrderBy}, it keeps the best n tuples seen so far in a bounded
+ * heap whose root is the worst of them, so a tuple that does not make the
+ * cut is rejected with one comparison. Sorting n out of m tuples costs
+ * O(m log n) time and O(n) memory.
+ * <p>
+ * Like OrderBy, TopN is stable: among tuples that compare equal, the ones
+ * that come first in the input are kept and returned first.
+ */
+public class TopN extends Operator {
+
+    private static final long serialVersionUID = 1L;
+    private DbIterator child;
+    private int[] orderByFields;
+    private boolean[] ascs;
+    private int limit;
+    private transient ArrayList<Tuple> result = new ArrayList<Tuple>();
+    private int pos;
+
+    /** A tuple kept in the heap, with its position in the input */
+    private static class Entry {
+        final Tuple t;
+        final long seq;
+
+        Entry(Tuple t, long seq) {
+            this.t = t;
+            this.seq = seq;
+        }
+    }
+
+    /**
+     * Creates a new TopN node over the tuples from the iterator.
+     *
+     * @param orderbyField
+     *            the field to which the sort is applied.
+     * @param asc
+     *            true if the sort order is ascending.
+     * @param limit
+     *            how many tuples to return
+     * @param child
+     *            the tuples to sort.
+     */
+    public TopN(int orderbyField, boolean asc, int limit, DbIterator child) {
+        this(new int[] { orderbyField }, new boolean[] { asc }, limit, child);
+    }
+
+    /**
+     * Creates a new TopN node that sorts on several fields, as an OrderBy
+     * does.
+     *
+     * @param orderbyFields
+     *            the fields to which the sort is applied, most significant
+     *            first.
+     * @param ascs
+     *            for each field, true if its sort order is ascending.
+     */
+    public TopN(int[] orderbyFields, boolean[] ascs, int limit, DbIterator child) {
+        if (limit < 0)
+            throw new IllegalArgumentException("limit must not be negative");
+        if (orderbyFields.length == 0 || orderbyFields.length != ascs.length)
+            throw new IllegalArgumentException("need one direction for each sort field");
+        this.child = child;
+        this.orderByFields = orderbyFields.clone();
+        this.ascs = ascs.clone();
+        this.limit = limit;
+    }
+
+    /** @return true if the first sort field is in ascending order */
+    public boolean isASC() {
+        return ascs[0];
+    }
+
+    /** @return the first (most significant) sort field */
+    public int getOrderByField() {
+        return orderByFields[0];
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return child.getTupleDesc();
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child.open();
+        final Comparator<Tuple> tuples = new TupleComparator(getTupleDesc(), orderByFields, ascs);
+        // orders entries from best to worst, breaking ties by input order
+        Comparator<Entry> entries = new Comparator<Entry>() {
+            public int compare(Entry a, Entry b) {
+                int cmp = tuples.compare(a.t, b.t);
+                if (cmp != 0)
+                    return cmp;
+                return a.seq < b.seq ? -1 : (a.seq == b.seq ? 0 : 1);
+            }
+        };
+
+        // the root of the heap is the worst tuple kept so far
+        PriorityQueue<Entry> heap = new PriorityQueue<Entry>(Math.max(1, limit),
+                Collections.reverseOrder(entries));
+        long seq = 0;
+        while (limit > 0 && child.hasNext()) {
+            Tuple t = child.next();
+            if (heap.size() < limit) {
+                heap.add(new Entry(t, seq));
+            } else if (tuples.compare(t, heap.peek().t) < 0) {
+                // a later tuple must be strictly better to replace the worst
+                heap.poll();
+                heap.add(new Entry(t, seq));
+            }
+            seq++;
+        }
+
+        ArrayList<Entry> sorted = new ArrayList<Entry>(heap);
+        Collections.sort(sorted, entries);
+        if (result == null)
+            result = new ArrayList<Tuple>();
+        result.clear();
+        for (Entry e : sorted)
+            result.add(e.t);
+        pos = 0;
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        child.close();
+        result.clear();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        pos = 0;
+    }
+
+    /**
+     * Returns the next of the first limit tuples in the ordering, or null if
+     * there are no more.
+     */
+    protected Tuple fetchNext() throws NoSuchElementException,
+            TransactionAbortedException, DbException {
+        if (pos < result.size())
+            return result.get(pos++);
+        return null;
+    }
+
+    @Override
+    public DbIterator[] getChildren() {
+        return new DbIterator[] { child };
+    }
+
+    @Override
+    public void setChildren(DbIterator[] children) {
+        child = children[0];
+    }
+
+}
@@ -29,6 +29,15 @@ public class Tuple implements Serializable {
         this.td = td;
     }
 
+    /**
+     * Constructor for subclasses that store their fields themselves; they
+     * must set the schema with {@link #resetTupleDesc} and override
+     * {@link #getField}, {@link #setField}, {@link #fields} and
+     * {@link #toString}.
+     */
+    protected Tuple() {
+    }
+
     /**
      * @return The TupleDesc representing the schema of this tuple.
      */
@@ -0,0 +1,100 @@
+package simpledb;
+
+import java.util.Comparator;
+
+/**
+ * TupleComparator orders tuples on one or more sort keys, each ascending or
+ * descending, as in ORDER BY a, b DESC. The keys are compiled once for a
+ * schema: integer keys are compared as primitive ints and string keys with a
+ * single compareTo, so each key costs one three-way comparison instead of
+ * the two Field.compare calls of a Predicate.
+ */
+public class TupleComparator implements Comparator<Tuple> {
+
+    private final int[] fields;
+    // 1 for ascending keys, -1 for descending ones
+    private final int[] signs;
+    private final boolean[] isInt;
+    // the first key, which decides most comparisons
+    private final int field0;
+    private final int sign0;
+    private final boolean isInt0;
+
+    /**
+     * Construct a comparator on a single field.
+     *
+     * @param td
+     *            the schema of the tuples to compare
+     * @param field
+     *            the index of the field to sort on
+     * @param asc
+     *            true if the order is ascending
+     */
+    public TupleComparator(TupleDesc td, int field, boolean asc) {
+        this(td, new int[] { field }, new boolean[] { asc });
+    }
+
+    /**
+     * Construct a comparator on several fields; tuples are ordered on the
+     * first field, then ties on the second, and so on.
+     *
+     * @param td
+     *            the schema of the tuples to compare
+     * @param fields
+     *            the indexes of the fields to sort on, most significant first
+     * @param asc
+     *            for each field, true if its order is ascending
+     */
+    public TupleComparator(TupleDesc td, int[] fields, boolean[] asc) {
+        if (fields.length == 0 || fields.length != asc.length)
+            throw new IllegalArgumentException("need one direction for each sort key");
+        this.fields = fields.clone();
+        this.signs = new int[fields.length];
+        this.isInt = new boolean[fields.length];
+        for (int i = 0; i < fields.length; i++) {
+            signs[i] = asc[i] ? 1 : -1;
+            isInt[i] = td.getFieldType(fields[i]) == Type.INT_TYPE;
+        }
+        field0 = fields[0];
+        sign0 = signs[0];
+        isInt0 = isInt[0];
+    }
+
+    public int compare(Tuple o1, Tuple o2) {
+        // kept small so that it can be inlined into the sort: the common
+        // case of a first integer key that differs is decided right here
+        if (isInt0) {
+            int v1 = ((IntField) o1.getField(field0)).getValue();
+            int v2 = ((IntField) o2.getField(field0)).getValue();
+            if (v1 != v2)
+                return v1 < v2 ? -sign0 : sign0;
+            return fields.length == 1 ? 0 : compareFrom(1, o1, o2);
+        }
+        return compareFrom(0, o1, o2);
+    }
+
+    /**
+     * Compare two tuples on the keys from the specified one on.
+     */
+    private int compareFrom(int first, Tuple o1, Tuple o2) {
+        for (int i = first; i < fields.length; i++) {
+            Field f1 = o1.getField(fields[i]);
+            Field f2 = o2.getField(fields[i]);
+            int cmp;
+            if (isInt[i]) {
+                int v1 = ((IntField) f1).getValue();
+                int v2 = ((IntField) f2).getValue();
+                cmp = v1 < v2 ? -1 : (v1 == v2 ? 0 : 1);
+            } else if (f1 instanceof LongField) {
+                long v1 = ((LongField) f1).getValue();
+                long v2 = ((LongField) f2).getValue();
+                cmp = v1 < v2 ? -1 : (v1 == v2 ? 0 : 1);
+            } else {
+                cmp = ((StringField) f1).getValue().compareTo(((StringField) f2).getValue());
+            }
+            if (cmp != 0)
+                return cmp < 0 ? -signs[i] : signs[i];
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,133 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Benchmark of grouped aggregation. It compares the String-keyed
+ * HashMap&lt;String, Double&gt; state that IntegerAggregator used to keep with
+ * the current IntegerAggregator, grouping on an integer and on a string
+ * field.
+ * <p>
+ * Usage (all options are optional):
+ * <pre>
+ * ant runbenchmark -Dbenchmark=AggregateBenchmark -Dargs="--rows=2000000"
+ *
+ *   --rows=N         input tuples (default 2000000)
+ *   --groups=N       distinct group-by values (default 100000)
+ *   --iterations=N   measured iterations (default 5)
+ *   --warmup=N       unmeasured iterations (default 2)
+ * </pre>
+ */
+public class AggregateBenchmark {
+
+    int rows = 2000000;
+    int groups = 100000;
+    int iterations = 5;
+    int warmup = 2;
+
+    private ArrayList<Tuple> input;
+
+    void parseOption(String arg) {
+        int eq = arg.indexOf('=');
+        if (!arg.startsWith("--") || eq < 0)
+            throw new IllegalArgumentException("expected --name=value, got " + arg);
+        String name = arg.substring(2, eq);
+        int value = Integer.parseInt(arg.substring(eq + 1));
+        if (name.equals("rows")) rows = value;
+        else if (name.equals("groups")) groups = value;
+        else if (name.equals("iterations")) iterations = value;
+        else if (name.equals("warmup")) warmup = value;
+        else throw new IllegalArgumentException("unknown option --" + name);
+    }
+
+    void run() throws Exception {
+        // (int group, string group, value)
+        TupleDesc td = new TupleDesc(new Type[] { Type.INT_TYPE, Type.STRING_TYPE, Type.INT_TYPE });
+        input = new ArrayList<Tuple>(rows);
+        for (int i = 0; i < rows; i++) {
+            Tuple t = new Tuple(td);
+            int g = (int) ((i * 2654435761L) % groups);
+            t.setField(0, new IntField(g));
+            // a new string for every tuple, as a scan would return
+            t.setField(1, new StringField("user" + g, Type.STRING_LEN));
+            t.setField(2, new IntField(i));
+            input.add(t);
+        }
+
+        System.out.println("rows=" + rows + " groups=" + groups);
+        System.out.println(String.format("%-22s %12s %14s", "aggregator", "merge ms", "tuples/s"));
+        for (final int gbfield : new int[] { 0, 1 }) {
+            final Type gbtype = td.getFieldType(gbfield);
+            measure("boxed, " + gbtype, new Factory() {
+                public Aggregator create() {
+                    return new BoxedAggregator(gbfield);
+                }
+            });
+            measure("primitive, " + gbtype, new Factory() {
+                public Aggregator create() {
+                    return new IntegerAggregator(gbfield, gbtype, 2, Aggregator.Op.AVG);
+                }
+            });
+        }
+    }
+
+    /** Creates a fresh aggregator for each iteration */
+    private interface Factory {
+        Aggregator create();
+    }
+
+    /** The AVG state IntegerAggregator kept before it had GroupByHashTable */
+    private static class BoxedAggregator implements Aggregator {
+        private static final long serialVersionUID = 1L;
+        private final int gbfield;
+        private HashMap<String, Double> values = new HashMap<String, Double>();
+        private HashMap<String, Integer> counts = new HashMap<String, Integer>();
+
+        BoxedAggregator(int gbfield) {
+            this.gbfield = gbfield;
+        }
+
+        public void mergeTupleIntoGroup(Tuple tup) {
+            double v = ((IntField) tup.getField(2)).getValue();
+            String key = tup.getField(gbfield).toString();
+            counts.putIfAbsent(key, 0);
+            counts.put(key, counts.get(key) + 1);
+            Double avg = values.get(key);
+            if (avg == null)
+                values.put(key, v);
+            else
+                values.put(key, ((counts.get(key) - 1) * avg + v) / counts.get(key));
+        }
+
+        public DbIterator iterator() {
+            return null;
+        }
+    }
+
+    private void measure(String name, Factory factory) {
+        long nanos = 0;
+        for (int i = 0; i < warmup + iterations; i++) {
+            Aggregator agg = factory.create();
+            long start = System.nanoTime();
+            for (Tuple t : input)
+                agg.mergeTupleIntoGroup(t);
+            if (i >= warmup)
+                nanos += System.nanoTime() - start;
+        }
+        System.out.println(String.format("%-22s %12.1f %14.0f", name,
+                nanos / 1e6 / iterations, (double) rows * iterations / (nanos / 1e9)));
+    }
+
+    public static void main(String[] args) throws Exception {
+        AggregateBenchmark b = new AggregateBenchmark();
+        try {
+            for (String arg : args)
+                b.parseOption(arg);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+        }
+        b.run();
+    }
+}
@@ -3,12 +3,19 @@ package simpledb;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import junit.framework.JUnit4TestAdapter;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Random;
+
 import org.junit.Before;
 import org.junit.Test;
 
 import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
 
 public class AggregateTest extends SimpleDbTestBase {
 
@@ -55,13 +62,13 @@ public class AggregateTest extends SimpleDbTestBase {
                     "c", 7 });
 
     this.sum = TestUtil.createTupleList(width1,
-        new int[] { 1, 12,
-                    3, 12,
-                    5, 7 });
+        new Object[] { 1, 12L,
+                    3, 12L,
+                    5, 7L });
     this.sumstring = TestUtil.createTupleList(width1,
-        new Object[] { "a", 12,
-                    "b", 12,
-                    "c", 7 });
+        new Object[] { "a", 12L,
+                    "b", 12L,
+                    "c", 7L });
 
     this.avg = TestUtil.createTupleList(width1,
         new int[] { 1, 4,
@@ -76,9 +83,9 @@ public class AggregateTest extends SimpleDbTestBase {
                     3, 6,
                     5, 7 });
     this.count = TestUtil.createTupleList(width1,
-        new int[] { 1, 3,
-                    3, 3,
-                    5, 1 });
+        new Object[] { 1, 3L,
+                    3, 3L,
+                    5, 1L });
 
   }
 
@@ -176,6 +183,298 @@ public class AggregateTest extends SimpleDbTestBase {
     TestUtil.matchAllTuples(min, op);
   }
 
+  /**
+   * Unit test for Aggregate over several aggregates and a composite group
+   * key of a string and an integer field
+   */
+  @Test public void multipleAggregates() throws Exception {
+    DbIterator input = TestUtil.createTupleList(3,
+        new Object[] { "a", 1, 2,
+                       "a", 1, 4,
+                       "a", 2, 6,
+                       "b", 1, 2,
+                       "b", 1, 7,
+                       "a", 2, 1 });
+    Aggregate op = new Aggregate(input, new int[] { 2, 2, 2, 0 },
+        new Aggregator.Op[] { Aggregator.Op.SUM, Aggregator.Op.MAX,
+                              Aggregator.Op.AVG, Aggregator.Op.COUNT },
+        new int[] { 0, 1 });
+    TupleDesc td = op.getTupleDesc();
+    assertEquals(6, td.numFields());
+    assertEquals(Type.STRING_TYPE, td.getFieldType(0));
+    assertEquals(Type.INT_TYPE, td.getFieldType(3));
+    assertEquals(Type.LONG_TYPE, td.getFieldType(5));
+    assertEquals(0, op.groupField());
+    assertEquals(2, op.aggregateField());
+    op.open();
+    DbIterator expected = TestUtil.createTupleList(6,
+        new Object[] { "a", 1, 6L, 4, 3, 2L,
+                       "a", 2, 7L, 6, 3, 2L,
+                       "b", 1, 9L, 7, 4, 2L });
+    TestUtil.matchAllTuples(expected, op);
+
+    op.rewind();
+    expected.rewind();
+    TestUtil.matchAllTuples(expected, op);
+    op.close();
+  }
+
+  /**
+   * The parser and planner compute several aggregates grouped by several
+   * fields with one Aggregate
+   */
+  @Test public void planMultipleAggregates() throws Exception {
+    ArrayList<ArrayList<Integer>> rows = new ArrayList<ArrayList<Integer>>();
+    HeapFile f = SystemTestUtil.createRandomHeapFile(3, 1000, 4, null, rows, "c");
+    Database.getCatalog().addTable(f, "agg_test");
+    TransactionId tid = new TransactionId();
+    LogicalPlan lp = new Parser().generateLogicalPlan(tid,
+        "SELECT t.c1, SUM(t.c2), COUNT(*), t.c0, MIN(t.c2) FROM agg_test t GROUP BY t.c0, t.c1;");
+    DbIterator plan = lp.physicalPlan(tid, new HashMap<String, TableStats>(), false);
+    assertTrue(((Operator) plan).getChildren()[0] instanceof Aggregate);
+    assertEquals(Type.LONG_TYPE, plan.getTupleDesc().getFieldType(1));
+    assertEquals(Type.LONG_TYPE, plan.getTupleDesc().getFieldType(2));
+    assertEquals(Type.INT_TYPE, plan.getTupleDesc().getFieldType(4));
+
+    HashMap<String, int[]> expected = new HashMap<String, int[]>();
+    for (ArrayList<Integer> row : rows) {
+      String key = row.get(1) + "," + row.get(0);
+      int[] e = expected.get(key);
+      if (e == null) {
+        e = new int[] { 0, 0, Integer.MAX_VALUE };
+        expected.put(key, e);
+      }
+      e[0] += row.get(2);
+      e[1]++;
+      e[2] = Math.min(e[2], row.get(2));
+    }
+
+    plan.open();
+    int n = 0;
+    while (plan.hasNext()) {
+      Tuple t = plan.next();
+      int[] e = expected.get(t.getField(0) + "," + t.getField(3));
+      assertNotNull(e);
+      assertEquals(e[0], ((LongField) t.getField(1)).getValue());
+      assertEquals(e[1], ((LongField) t.getField(2)).getValue());
+      assertEquals(e[2], ((IntField) t.getField(4)).getValue());
+      n++;
+    }
+    assertEquals(expected.size(), n);
+    plan.close();
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /** @return the tuples of an opened operator, as strings */
+  private HashSet<String> results(DbIterator op) throws Exception {
+    HashSet<String> out = new HashSet<String>();
+    while (op.hasNext())
+      out.add(op.next().toString());
+    return out;
+  }
+
+  /**
+   * Aggregates over more groups than fit in the memory budget are spilled
+   * to disk, partitioned again where needed, and give the same results as
+   * in memory
+   */
+  @Test public void spill() throws Exception {
+    TupleDesc td = new TupleDesc(new Type[] { Type.STRING_TYPE, Type.INT_TYPE, Type.INT_TYPE });
+    ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+    Random rand = new Random(46);
+    for (int i = 0; i < 20000; i++) {
+      Tuple t = new Tuple(td);
+      t.setField(0, new StringField("u" + rand.nextInt(50), Type.STRING_LEN));
+      t.setField(1, new IntField(rand.nextInt(100)));
+      t.setField(2, new IntField(rand.nextInt(1000)));
+      tuples.add(t);
+    }
+    int[] afields = { 2, 2, 2, 0, 2, 2, 1 };
+    Aggregator.Op[] ops = { Aggregator.Op.SUM, Aggregator.Op.AVG, Aggregator.Op.MIN,
+        Aggregator.Op.COUNT, Aggregator.Op.SUM_COUNT, Aggregator.Op.MAX, Aggregator.Op.SUM_COUNT };
+    int[] gfields = { 0, 1 };
+
+    Aggregate inMemory = new Aggregate(new TupleIterator(td, tuples), afields, ops, gfields);
+    inMemory.open();
+    HashSet<String> expected = results(inMemory);
+    inMemory.close();
+    assertEquals(0, inMemory.numPasses());
+    assertEquals(0, inMemory.spilledBytes());
+
+    Aggregate op = new Aggregate(new TupleIterator(td, tuples), afields, ops, gfields, 4096);
+    op.open();
+    assertEquals(expected, results(op));
+    assertTrue(op.spilledBytes() > 0);
+    // 16 partitions of about 300 groups each still do not fit
+    assertTrue(op.numPasses() > 1);
+
+    op.rewind();
+    assertEquals(expected, results(op));
+    op.close();
+  }
+
+  /**
+   * Sums past the range of an int survive spilling, whose partial sums are
+   * longs
+   */
+  @Test public void spillLongResults() throws Exception {
+    TupleDesc td = new TupleDesc(new Type[] { Type.INT_TYPE, Type.INT_TYPE });
+    ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+    HashMap<Integer, Long> sums = new HashMap<Integer, Long>();
+    Random rand = new Random(49);
+    for (int i = 0; i < 20000; i++) {
+      int g = rand.nextInt(1000);
+      int v = Integer.MAX_VALUE - rand.nextInt(1000);
+      Tuple t = new Tuple(td);
+      t.setField(0, new IntField(g));
+      t.setField(1, new IntField(v));
+      tuples.add(t);
+      Long sum = sums.get(g);
+      sums.put(g, (sum == null ? 0 : sum) + v);
+    }
+
+    Aggregate op = new Aggregate(new TupleIterator(td, tuples), new int[] { 1 },
+        new Aggregator.Op[] { Aggregator.Op.SUM }, new int[] { 0 }, 4096);
+    assertEquals(Type.LONG_TYPE, op.getTupleDesc().getFieldType(1));
+    op.open();
+    HashMap<Integer, Long> actual = new HashMap<Integer, Long>();
+    while (op.hasNext()) {
+      Tuple t = op.next();
+      actual.put(((IntField) t.getField(0)).getValue(), ((LongField) t.getField(1)).getValue());
+    }
+    op.close();
+    assertTrue(op.spilledBytes() > 0);
+    assertEquals(sums, actual);
+  }
+
+  /**
+   * Sums and counts are longs by default, so a sum past the range of an int
+   * is exact; with int results it fails rather than wrapping around
+   */
+  @Test public void sumPastIntRange() throws Exception {
+    DbIterator input = TestUtil.createTupleList(width1,
+        new int[] { 1, Integer.MAX_VALUE,
+                    1, Integer.MAX_VALUE,
+                    3, 5 });
+    Aggregate op = new Aggregate(input, 1, 0, Aggregator.Op.SUM);
+    op.open();
+    DbIterator expected = TestUtil.createTupleList(width1,
+        new Object[] { 1, 2L * Integer.MAX_VALUE,
+                       3, 5L });
+    TestUtil.matchAllTuples(expected, op);
+    op.close();
+
+    input.rewind();
+    op = new Aggregate(input, 1, 0, Aggregator.Op.SUM);
+    op.setLongResults(false);
+    assertEquals(Type.INT_TYPE, op.getTupleDesc().getFieldType(1));
+    try {
+      op.open();
+      while (op.hasNext())
+        op.next();
+      fail("expected the sum to overflow");
+    } catch (ArithmeticException e) {
+      // expected
+    }
+    op.close();
+  }
+
+  /**
+   * A streaming Aggregate over input sorted on the group by field returns
+   * each group as soon as the next one starts, with the same results as
+   * aggregating in a hash table
+   */
+  @Test public void streaming() throws Exception {
+    ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+    DbIterator sorted = TestUtil.createTupleList(width1,
+        new int[] { 1, 2,
+                    1, 4,
+                    1, 6,
+                    3, 2,
+                    3, 4,
+                    5, 7 });
+    sorted.open();
+    while (sorted.hasNext())
+      tuples.add(sorted.next());
+    final int[] read = new int[1];
+    TupleIterator input = new TupleIterator(Utility.getTupleDesc(width1), tuples) {
+      private static final long serialVersionUID = 1L;
+      public Tuple next() {
+        read[0]++;
+        return super.next();
+      }
+    };
+    Aggregate op = new Aggregate(input, new int[] { 1, 1 },
+        new Aggregator.Op[] { Aggregator.Op.SUM, Aggregator.Op.COUNT }, new int[] { 0 });
+    op.setStreaming(true);
+    assertTrue(op.isStreaming());
+    op.open();
+    assertEquals(0, read[0]);
+    Tuple first = op.next();
+    assertEquals("1\t12\t3", first.toString().trim());
+    // the first group ends at the first tuple of the second
+    assertEquals(4, read[0]);
+    DbIterator expected = TestUtil.createTupleList(3,
+        new Object[] { 3, 6L, 2L,
+                    5, 7L, 1L });
+    expected.open();
+    while (expected.hasNext())
+      assertTrue(TestUtil.compareTuples(expected.next(), op.next()));
+    assertTrue(!op.hasNext());
+
+    op.rewind();
+    assertEquals(first.toString(), op.next().toString());
+    op.close();
+  }
+
+  /**
+   * The input of an Aggregate is known to be grouped when it is sorted on
+   * its only group by field, or ordered by all of its group by fields first
+   */
+  @Test public void isGroupedOn() throws Exception {
+    assertTrue(!Aggregate.isGroupedOn(scan1, new int[] { 0 }));
+    assertTrue(!Aggregate.isGroupedOn(scan1, new int[0]));
+
+    OrderBy byBoth = new OrderBy(new int[] { 1, 0 }, new boolean[] { true, false }, scan1);
+    assertTrue(Aggregate.isGroupedOn(byBoth, new int[] { 0, 1 }));
+    assertTrue(Aggregate.isGroupedOn(byBoth, new int[] { 1 }));
+    assertTrue(!Aggregate.isGroupedOn(byBoth, new int[] { 0 }));
+    OrderBy byFirst = new OrderBy(0, true, scan1);
+    assertTrue(Aggregate.isGroupedOn(byFirst, new int[] { 0 }));
+    assertTrue(!Aggregate.isGroupedOn(byFirst, new int[] { 0, 1 }));
+
+    BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, 100, null, null, 1);
+    SeqScan scan = new SeqScan(new TransactionId(), bf.getId(), "t");
+    assertTrue(Aggregate.isGroupedOn(scan, new int[] { 1 }));
+    assertTrue(!Aggregate.isGroupedOn(scan, new int[] { 0 }));
+  }
+
+  /**
+   * The parser and planner accept the approximate aggregates, which are
+   * close to the exact values
+   */
+  @Test public void planApproximateAggregates() throws Exception {
+    ArrayList<ArrayList<Integer>> rows = new ArrayList<ArrayList<Integer>>();
+    HeapFile f = SystemTestUtil.createRandomHeapFile(3, 5000, 1000, null, rows, "c");
+    Database.getCatalog().addTable(f, "approx_test");
+    TransactionId tid = new TransactionId();
+    LogicalPlan lp = new Parser().generateLogicalPlan(tid,
+        "SELECT APPROX_COUNT_DISTINCT(t.c1), APPROX_P90(t.c2) FROM approx_test t;");
+    DbIterator plan = lp.physicalPlan(tid, new HashMap<String, TableStats>(), false);
+
+    HashSet<Integer> distinct = new HashSet<Integer>();
+    for (ArrayList<Integer> row : rows)
+      distinct.add(row.get(1));
+    plan.open();
+    Tuple t = plan.next();
+    assertEquals(distinct.size(), ((LongField) t.getField(0)).getValue(), distinct.size() * 0.1);
+    // the values are uniform in [0, 1000)
+    assertEquals(900, ((IntField) t.getField(1)).getValue(), 50);
+    assertTrue(!plan.hasNext());
+    plan.close();
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
   /**
    * JUnit suite target
    */
@@ -0,0 +1,343 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import simpledb.Predicate.Op;
+
+/**
+ * Concurrent stress benchmark for BTreeFile. A number of worker threads run a
+ * configurable mix of point lookups, inserts and deletes against a single
+ * two-column B+ tree and the harness reports throughput and latency
+ * percentiles for each kind of operation.
+ * <p>
+ * Inserts and deletes are run through {@link BTreeUtility.BTreeInserter} and
+ * {@link BTreeUtility.BTreeDeleter}, so each one is its own transaction, and
+ * deletes remove the oldest tuples that were inserted (or preloaded). Reads
+ * are equality lookups on the key.
+ * <p>
+ * By default every operation takes a tree-wide read/write latch, which is the
+ * baseline that finer-grained latching should be measured against. Running
+ * with <code>--latch=none</code> drops it, which is only safe once BTreeFile
+ * and BufferPool synchronize their own page accesses.
+ * <p>
+ * Usage (all options are optional):
+ * <pre>
+ * ant runbenchmark -Dbenchmark=BTreeBenchmark -Dargs="--threads=8 --mix=50,25,25"
+ *
+ *   --threads=N      worker threads (default 4)
+ *   --ops=N          measured operations per thread (default 20000)
+ *   --warmup=N       unmeasured operations per thread (default 2000)
+ *   --mix=R,I,D      percentage of reads, inserts and deletes (default 80,10,10)
+ *   --dist=D         key distribution: uniform, zipfian or sequential
+ *   --keys=N         size of the key space (default 100000)
+ *   --preload=N      tuples loaded before the run (default 50000)
+ *   --pool=N         buffer pool size in pages (default 1000)
+ *   --seed=N         random seed (default 660)
+ *   --latch=L        tree or none (default tree)
+ * </pre>
+ */
+public class BTreeBenchmark {
+
+	private static final int READ = 0;
+	private static final int INSERT = 1;
+	private static final int DELETE = 2;
+	private static final String[] OP_NAMES = {"read", "insert", "delete"};
+
+	int threads = 4;
+	int ops = 20000;
+	int warmup = 2000;
+	int[] mix = {80, 10, 10};
+	String dist = "uniform";
+	int keys = 100000;
+	int preload = 50000;
+	int pool = 1000;
+	long seed = 660;
+	boolean latch = true;
+
+	private BTreeFile bf;
+	private BlockingQueue<ArrayList<Integer>> insertedTuples;
+	private ReadWriteLock treeLatch = new ReentrantReadWriteLock();
+	private ZipfianGenerator zipf;
+	private AtomicInteger sequence = new AtomicInteger();
+
+	/**
+	 * Parses a command line option of the form --name=value
+	 */
+	void parseOption(String arg) {
+		int eq = arg.indexOf('=');
+		if (!arg.startsWith("--") || eq < 0)
+			throw new IllegalArgumentException("expected --name=value, got " + arg);
+		String name = arg.substring(2, eq);
+		String value = arg.substring(eq + 1);
+		if (name.equals("threads")) threads = Integer.parseInt(value);
+		else if (name.equals("ops")) ops = Integer.parseInt(value);
+		else if (name.equals("warmup")) warmup = Integer.parseInt(value);
+		else if (name.equals("keys")) keys = Integer.parseInt(value);
+		else if (name.equals("preload")) preload = Integer.parseInt(value);
+		else if (name.equals("pool")) pool = Integer.parseInt(value);
+		else if (name.equals("seed")) seed = Long.parseLong(value);
+		else if (name.equals("dist")) {
+			if (!value.equals("uniform") && !value.equals("zipfian") && !value.equals("sequential"))
+				throw new IllegalArgumentException("unknown key distribution " + value);
+			dist = value;
+		}
+		else if (name.equals("latch")) {
+			if (!value.equals("tree") && !value.equals("none"))
+				throw new IllegalArgumentException("unknown latch mode " + value);
+			latch = value.equals("tree");
+		}
+		else if (name.equals("mix")) {
+			String[] parts = value.split(",");
+			if (parts.length != 3)
+				throw new IllegalArgumentException("mix must be reads,inserts,deletes");
+			for (int i = 0; i < 3; i++)
+				mix[i] = Integer.parseInt(parts[i].trim());
+			if (mix[READ] + mix[INSERT] + mix[DELETE] != 100)
+				throw new IllegalArgumentException("mix must add up to 100");
+		}
+		else throw new IllegalArgumentException("unknown option --" + name);
+	}
+
+	/**
+	 * Builds the tree, runs the workload and prints the results.
+	 */
+	void run() throws Exception {
+		ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+		bf = BTreeUtility.createRandomBTreeFile(2, preload, keys, null, tuples, 0);
+		// the encoder leaves a small buffer pool behind
+		Database.resetBufferPool(pool);
+		insertedTuples = new LinkedBlockingQueue<ArrayList<Integer>>(tuples);
+		if (dist.equals("zipfian"))
+			zipf = new ZipfianGenerator(keys, 0.99);
+
+		System.out.println("threads=" + threads + " ops/thread=" + ops + " mix="
+				+ mix[READ] + "," + mix[INSERT] + "," + mix[DELETE] + " dist=" + dist
+				+ " keys=" + keys + " preload=" + preload + " pool=" + pool
+				+ " latch=" + (latch ? "tree" : "none"));
+
+		final Worker[] workers = new Worker[threads];
+		final CountDownLatch start = new CountDownLatch(1);
+		for (int i = 0; i < threads; i++) {
+			workers[i] = new Worker(new Random(seed + i), start);
+			workers[i].start();
+		}
+		start.countDown();
+		long begin = System.nanoTime();
+		for (Worker w : workers)
+			w.join();
+		long elapsed = System.nanoTime() - begin;
+		report(workers, elapsed);
+	}
+
+	private void report(Worker[] workers, long elapsed) {
+		int errors = 0;
+		long total = 0;
+		for (Worker w : workers) {
+			errors += w.errors;
+			for (int op = READ; op <= DELETE; op++)
+				total += w.latencies[op].size;
+		}
+		System.out.println(String.format("%d operations in %.2f s: %.0f ops/s, %d errors",
+				total, elapsed / 1e9, total / (elapsed / 1e9), errors));
+		System.out.println(String.format("%-8s %10s %10s %10s %10s %10s",
+				"op", "count", "ops/s", "p50 us", "p99 us", "p999 us"));
+		for (int op = READ; op <= DELETE; op++) {
+			LongList all = new LongList();
+			for (Worker w : workers)
+				all.addAll(w.latencies[op]);
+			if (all.size == 0)
+				continue;
+			long[] sorted = Arrays.copyOf(all.values, all.size);
+			Arrays.sort(sorted);
+			System.out.println(String.format("%-8s %10d %10.0f %10.1f %10.1f %10.1f",
+					OP_NAMES[op], sorted.length, sorted.length / (elapsed / 1e9),
+					percentile(sorted, 0.50) / 1e3, percentile(sorted, 0.99) / 1e3,
+					percentile(sorted, 0.999) / 1e3));
+		}
+	}
+
+	private static long percentile(long[] sorted, double p) {
+		int i = (int) Math.ceil(p * sorted.length) - 1;
+		return sorted[Math.max(0, Math.min(i, sorted.length - 1))];
+	}
+
+	/**
+	 * @return the next key to read or insert under the configured distribution
+	 */
+	int nextKey(Random rand) {
+		if (dist.equals("sequential"))
+			return (sequence.getAndIncrement() & Integer.MAX_VALUE) % keys;
+		else if (dist.equals("zipfian"))
+			return (int) zipf.next(rand);
+		else
+			return rand.nextInt(keys);
+	}
+
+	private int nextOp(Random rand) {
+		int r = rand.nextInt(100);
+		if (r < mix[READ])
+			return READ;
+		else if (r < mix[READ] + mix[INSERT])
+			return INSERT;
+		else
+			return DELETE;
+	}
+
+	/**
+	 * One benchmark thread. It runs its warmup operations and then its
+	 * measured operations, recording the latency of each measured one.
+	 */
+	class Worker extends Thread {
+		final Random rand;
+		final CountDownLatch start;
+		final LongList[] latencies = {new LongList(), new LongList(), new LongList()};
+		final BTreeUtility.BTreeInserter inserter;
+		final BTreeUtility.BTreeDeleter deleter;
+		int errors = 0;
+
+		Worker(Random rand, CountDownLatch start) {
+			this.rand = rand;
+			this.start = start;
+			this.inserter = new BTreeUtility.BTreeInserter(bf, new int[] {0, 0}, insertedTuples);
+			this.deleter = new BTreeUtility.BTreeDeleter(bf, insertedTuples);
+		}
+
+		public void run() {
+			try {
+				start.await();
+			} catch (InterruptedException e) {
+				return;
+			}
+			for (int i = 0; i < warmup + ops; i++) {
+				int op = nextOp(rand);
+				long begin = System.nanoTime();
+				boolean ok = execute(op);
+				long latency = System.nanoTime() - begin;
+				if (!ok)
+					errors++;
+				else if (i >= warmup)
+					latencies[op].add(latency);
+			}
+		}
+
+		private boolean execute(int op) {
+			if (op == READ)
+				return read(nextKey(rand));
+			int[] tupdata = {nextKey(rand), rand.nextInt(BTreeUtility.MAX_RAND_VALUE)};
+			if (latch)
+				treeLatch.writeLock().lock();
+			try {
+				// deleting from an empty tree would block forever, so insert instead
+				if (op == INSERT || insertedTuples.isEmpty()) {
+					inserter.rerun(bf, tupdata, insertedTuples);
+					return inserter.succeeded();
+				}
+				deleter.rerun(bf, insertedTuples);
+				return deleter.succeeded();
+			} finally {
+				if (latch)
+					treeLatch.writeLock().unlock();
+			}
+		}
+
+		private boolean read(int key) {
+			if (latch)
+				treeLatch.readLock().lock();
+			TransactionId tid = new TransactionId();
+			try {
+				IndexPredicate ipred = new IndexPredicate(Op.EQUALS, new IntField(key));
+				DbFileIterator it = bf.indexIterator(tid, ipred);
+				it.open();
+				while (it.hasNext())
+					it.next();
+				it.close();
+				Database.getBufferPool().transactionComplete(tid);
+				return true;
+			} catch (Exception e) {
+				e.printStackTrace();
+				return false;
+			} finally {
+				if (latch)
+					treeLatch.readLock().unlock();
+			}
+		}
+	}
+
+	/**
+	 * Zipfian distribution over [0, items), following Gray et al., "Quickly
+	 * Generating Billion-Record Synthetic Databases". Smaller keys are hotter,
+	 * so the hot set is clustered in the leftmost leaves of the tree.
+	 */
+	static class ZipfianGenerator {
+		private final long items;
+		private final double theta;
+		private final double zetan;
+		private final double alpha;
+		private final double eta;
+
+		ZipfianGenerator(long items, double theta) {
+			this.items = items;
+			this.theta = theta;
+			this.zetan = zeta(items, theta);
+			this.alpha = 1.0 / (1.0 - theta);
+			this.eta = (1 - Math.pow(2.0 / items, 1 - theta)) / (1 - zeta(2, theta) / zetan);
+		}
+
+		private static double zeta(long n, double theta) {
+			double sum = 0;
+			for (long i = 1; i <= n; i++)
+				sum += 1 / Math.pow(i, theta);
+			return sum;
+		}
+
+		long next(Random rand) {
+			double u = rand.nextDouble();
+			double uz = u * zetan;
+			if (uz < 1.0)
+				return 0;
+			if (uz < 1.0 + Math.pow(0.5, theta))
+				return 1;
+			return Math.min(items - 1, (long) (items * Math.pow(eta * u - eta + 1, alpha)));
+		}
+	}
+
+	/**
+	 * Growable array of longs, so recording a latency does not box it.
+	 */
+	static class LongList {
+		long[] values = new long[1024];
+		int size = 0;
+
+		void add(long v) {
+			if (size == values.length)
+				values = Arrays.copyOf(values, size * 2);
+			values[size++] = v;
+		}
+
+		void addAll(LongList other) {
+			for (int i = 0; i < other.size; i++)
+				add(other.values[i]);
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		BTreeBenchmark b = new BTreeBenchmark();
+		try {
+			for (String arg : args)
+				b.parseOption(arg);
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			System.exit(1);
+		}
+		b.run();
+		System.exit(0);
+	}
+}
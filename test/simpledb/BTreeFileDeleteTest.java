@@ -83,7 +83,7 @@ public class BTreeFileDeleteTest extends SimpleDbTestBase {
 		
 		int totalTuples = page.getNumTuples() + sibling.getNumTuples();
 		
-		empty.stealFromLeafPage(page, sibling, parent, entry, false);
+		empty.stealFromLeafPage(tid, new HashMap<PageId, Page>(), page, sibling, parent, entry, false);
 		assertEquals(totalTuples, page.getNumTuples() + sibling.getNumTuples());
 		assertTrue(page.getNumTuples() == totalTuples/2 || page.getNumTuples() == totalTuples/2 + 1);
 		assertTrue(sibling.getNumTuples() == totalTuples/2 || sibling.getNumTuples() == totalTuples/2 + 1);
@@ -122,7 +122,7 @@ public class BTreeFileDeleteTest extends SimpleDbTestBase {
 		
 		int totalTuples = page.getNumTuples() + sibling.getNumTuples();
 		
-		empty.stealFromLeafPage(page, sibling, parent, entry, true);
+		empty.stealFromLeafPage(tid, new HashMap<PageId, Page>(), page, sibling, parent, entry, true);
 		assertEquals(totalTuples, page.getNumTuples() + sibling.getNumTuples());
 		assertTrue(page.getNumTuples() == totalTuples/2 || page.getNumTuples() == totalTuples/2 + 1);
 		assertTrue(sibling.getNumTuples() == totalTuples/2 || sibling.getNumTuples() == totalTuples/2 + 1);
@@ -370,6 +370,81 @@ public class BTreeFileDeleteTest extends SimpleDbTestBase {
 		}
 	}    
 
+	@Test
+	public void testDeleteStringKeys() throws Exception {
+		File emptyFile = File.createTempFile("empty", ".dat");
+		emptyFile.deleteOnExit();
+		Database.reset();
+		Database.resetBufferPool(1000);
+		TupleDesc td = new TupleDesc(new Type[] {Type.STRING_TYPE, Type.INT_TYPE});
+		BTreeFile bf = new BTreeFile(emptyFile, 0, td);
+		Database.getCatalog().addTable(bf, UUID.randomUUID().toString());
+
+		// keys of very different lengths, so a redistribution may replace a short
+		// separator in a compact parent with a much longer one
+		Random rand = new Random(1);
+		HashSet<String> distinct = new HashSet<String>();
+		ArrayList<String> keys = new ArrayList<String>();
+		while(keys.size() < 10000) {
+			char[] key = new char[1 + rand.nextInt(120)];
+			for(int j = 0; j < key.length; ++j) {
+				key[j] = (char) ('a' + rand.nextInt(3));
+			}
+			if(!distinct.add(new String(key))) {
+				continue;
+			}
+			Tuple t = new Tuple(td);
+			t.setField(0, new StringField(new String(key), Type.STRING_LEN));
+			t.setField(1, new IntField(keys.size()));
+			bf.insertTuple(tid, t);
+			keys.add(new String(key));
+		}
+
+		// delete three quarters of the keys in random order, finding each through the index
+		Collections.shuffle(keys, rand);
+		int numDeleted = keys.size() * 3 / 4;
+		for(int i = 0; i < numDeleted; ++i) {
+			Tuple t = lookup(bf, keys.get(i));
+			assertNotNull(t);
+			bf.deleteTuple(tid, t);
+		}
+		BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), false);
+
+		// the deleted keys are gone and the others can still be found
+		for(int i = 0; i < keys.size(); ++i) {
+			Tuple t = lookup(bf, keys.get(i));
+			if(i < numDeleted) {
+				assertNull(t);
+			}
+			else {
+				assertNotNull(t);
+				assertEquals(new StringField(keys.get(i), Type.STRING_LEN), t.getField(0));
+			}
+		}
+
+		// and deleting the rest empties the tree
+		for(int i = numDeleted; i < keys.size(); ++i) {
+			bf.deleteTuple(tid, lookup(bf, keys.get(i)));
+		}
+		BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), false);
+		DbFileIterator it = bf.iterator(tid);
+		it.open();
+		assertFalse(it.hasNext());
+		it.close();
+	}
+
+	/**
+	 * @return the first tuple with the given string key, or null if there is none
+	 */
+	private Tuple lookup(BTreeFile bf, String key) throws Exception {
+		DbFileIterator it = bf.indexIterator(tid, 
+				new IndexPredicate(Op.EQUALS, new StringField(key, Type.STRING_LEN)));
+		it.open();
+		Tuple t = it.hasNext() ? it.next() : null;
+		it.close();
+		return t;
+	}
+
 	/**
 	 * JUnit suite target
 	 */
@@ -172,6 +172,109 @@ public class BTreeFileInsertTest extends SimpleDbTestBase {
 		assertTrue(page.getId().pageNumber() == 2 || otherPage.getId().pageNumber() == 2);
 	}
 
+	@Test
+	public void testPageAllocation() throws Exception {
+		File emptyFile = File.createTempFile("empty", ".dat");
+		emptyFile.deleteOnExit();
+		Database.reset();
+		BTreeFile empty = BTreeUtility.createEmptyBTreeFile(emptyFile.getAbsolutePath(), 2, 0, 3);
+		HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
+
+		// growing the file preallocates a whole extent, but only the pages in use are counted
+		assertEquals(4, empty.getEmptyPageNo(tid, dirtypages));
+		assertEquals(5, empty.getEmptyPageNo(tid, dirtypages));
+		assertEquals(5, empty.numPages());
+		long extentBytes = (long) BTreeFile.EXTENT_PAGES * BufferPool.getPageSize();
+		assertEquals(BTreeRootPtrPage.getPageSize() + 3 * BufferPool.getPageSize() + extentBytes,
+				emptyFile.length());
+
+		// freed pages are reused lowest first. The header page for them is page 6
+		empty.setEmptyPage(tid, dirtypages, 5);
+		empty.setEmptyPage(tid, dirtypages, 2);
+		assertEquals(6, empty.numPages());
+		assertEquals(2, empty.getEmptyPageNo(tid, dirtypages));
+
+		// the free pages and the unused part of the extent survive reopening the file
+		for(Page p : dirtypages.values()) {
+			empty.writePage(p);
+		}
+		Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+		BTreeFile reopened = BTreeUtility.openBTreeFile(2, emptyFile, 0);
+		dirtypages.clear();
+		assertEquals(6, reopened.numPages());
+		assertEquals(5, reopened.getEmptyPageNo(tid, dirtypages));
+		assertEquals(7, reopened.getEmptyPageNo(tid, dirtypages));
+		assertEquals(7, reopened.numPages());
+	}
+
+	@Test
+	public void testStringKeyCompression() throws Exception {
+		File emptyFile = File.createTempFile("empty", ".dat");
+		emptyFile.deleteOnExit();
+		Database.reset();
+		Database.resetBufferPool(500);
+		TupleDesc td = new TupleDesc(new Type[] {Type.STRING_TYPE, Type.INT_TYPE});
+		BTreeFile bf = new BTreeFile(emptyFile, 0, td);
+		Database.getCatalog().addTable(bf, UUID.randomUUID().toString());
+
+		// keys with a long common prefix, inserted in random order
+		ArrayList<Integer> values = new ArrayList<Integer>();
+		for(int i = 0; i < 1500; ++i) {
+			values.add(i);
+		}
+		Collections.shuffle(values);
+		for(int v : values) {
+			Tuple t = new Tuple(td);
+			t.setField(0, new StringField(String.format("customer-account-%05d", v), Type.STRING_LEN));
+			t.setField(1, new IntField(v));
+			bf.insertTuple(tid, t);
+		}
+		BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), false);
+
+		// separators are truncated to at most the full key, and the root holds more
+		// entries than a page of fixed-width string keys could
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
+				tid, BTreeRootPtrPage.getId(bf.getId()), Permissions.READ_ONLY);
+		BTreeInternalPage root = (BTreeInternalPage) Database.getBufferPool().getPage(
+				tid, rootPtr.getRootId(), Permissions.READ_ONLY);
+		assertTrue(root.isCompact());
+		int fixedEntriesPerPage = (BufferPool.getPageSize() * 8 - (2 * BTreePage.INDEX_SIZE * 8 + 8 + 1)) /
+				((Type.STRING_TYPE.getLen() + BTreePage.INDEX_SIZE) * 8 + 1);
+		assertTrue(root.getNumEntries() > fixedEntriesPerPage);
+		Iterator<BTreeEntry> it = root.iterator();
+		while(it.hasNext()) {
+			BTreeEntry e = it.next();
+			assertEquals(BTreePageId.LEAF, e.getLeftChild().pgcateg());
+			assertTrue(((StringField) e.getKey()).getValue().length() <= "customer-account-00000".length());
+		}
+
+		// the compact format round trips
+		BTreeInternalPage copy = new BTreeInternalPage(root.getId(), root.getPageData(), 0);
+		assertEquals(root.getNumEntries(), copy.getNumEntries());
+		Iterator<BTreeEntry> it1 = root.iterator();
+		Iterator<BTreeEntry> it2 = copy.iterator();
+		while(it1.hasNext()) {
+			assertTrue(it2.hasNext());
+			BTreeEntry e1 = it1.next();
+			BTreeEntry e2 = it2.next();
+			assertEquals(e1.getKey(), e2.getKey());
+			assertEquals(e1.getLeftChild(), e2.getLeftChild());
+			assertEquals(e1.getRightChild(), e2.getRightChild());
+		}
+		assertFalse(it2.hasNext());
+
+		// and every key can still be found
+		DbFileIterator scan = bf.iterator(tid);
+		scan.open();
+		int count = 0;
+		while(scan.hasNext()) {
+			assertEquals(new IntField(count), scan.next().getField(1));
+			count++;
+		}
+		scan.close();
+		assertEquals(1500, count);
+	}
+
 	/**
 	 * JUnit suite target
 	 */
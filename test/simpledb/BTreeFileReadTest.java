@@ -201,6 +201,139 @@ public class BTreeFileReadTest extends SimpleDbTestBase {
 
 	}
 
+	/**
+	 * Unit test for BTreeFile.rangeIterator()
+	 */
+	@Test public void rangeIterator() throws Exception {
+		BTreeFile twoLeafPageFile = BTreeUtility.createBTreeFile(2, 520,
+				null, null, 0);
+		IndexPredicate lower = new IndexPredicate(Op.GREATER_THAN_OR_EQ, new IntField(5));
+		IndexPredicate upper = new IndexPredicate(Op.LESS_THAN, new IntField(300));
+
+		// ascending, spanning both leaf pages
+		DbFileIterator it = twoLeafPageFile.rangeIterator(tid, lower, upper, false);
+		it.open();
+		int expected = 5;
+		while(it.hasNext()) {
+			assertEquals(new IntField(expected), it.next().getField(0));
+			expected++;
+		}
+		assertEquals(300, expected);
+		it.close();
+
+		// descending
+		it = twoLeafPageFile.rangeIterator(tid, lower, upper, true);
+		it.open();
+		expected = 299;
+		while(it.hasNext()) {
+			assertEquals(new IntField(expected), it.next().getField(0));
+			expected--;
+		}
+		assertEquals(4, expected);
+
+		// rewinding restarts the range
+		it.rewind();
+		assertEquals(new IntField(299), it.next().getField(0));
+		it.close();
+
+		// one-sided and exclusive bounds
+		it = twoLeafPageFile.rangeIterator(tid, null,
+				new IndexPredicate(Op.LESS_THAN_OR_EQ, new IntField(10)), true);
+		it.open();
+		int count = 0;
+		while(it.hasNext()) {
+			assertTrue(it.next().getField(0).compare(Op.LESS_THAN_OR_EQ, new IntField(10)));
+			count++;
+		}
+		assertEquals(10, count);
+		it.close();
+
+		it = twoLeafPageFile.rangeIterator(tid,
+				new IndexPredicate(Op.GREATER_THAN, new IntField(515)), null, false);
+		it.open();
+		count = 0;
+		while(it.hasNext()) {
+			it.next();
+			count++;
+		}
+		assertEquals(5, count);
+		it.close();
+
+		// duplicates on a bound are all returned in either direction
+		twoLeafPageFile.insertTuple(tid, BTreeUtility.getBTreeTuple(5, 2));
+		IndexPredicate eqLower = new IndexPredicate(Op.GREATER_THAN_OR_EQ, new IntField(5));
+		IndexPredicate eqUpper = new IndexPredicate(Op.LESS_THAN_OR_EQ, new IntField(5));
+		for(boolean descending : new boolean[] {false, true}) {
+			it = twoLeafPageFile.rangeIterator(tid, eqLower, eqUpper, descending);
+			it.open();
+			count = 0;
+			while(it.hasNext()) {
+				assertEquals(new IntField(5), it.next().getField(0));
+				count++;
+			}
+			assertEquals(2, count);
+			it.close();
+		}
+
+		// empty range
+		it = twoLeafPageFile.rangeIterator(tid,
+				new IndexPredicate(Op.GREATER_THAN, new IntField(20)),
+				new IndexPredicate(Op.LESS_THAN, new IntField(10)), false);
+		it.open();
+		assertFalse(it.hasNext());
+		it.close();
+
+		// bounds must point in the right direction
+		try {
+			twoLeafPageFile.rangeIterator(tid, upper, null, false);
+			fail("expected exception");
+		} catch (IllegalArgumentException e) {
+		}
+	}
+
+	/**
+	 * Unit test for BTreeFile.keyIterator()
+	 */
+	@Test public void keyIterator() throws Exception {
+		BTreeFile twoLeafPageFile = BTreeUtility.createBTreeFile(2, 520,
+				null, null, 0);
+		TupleDesc keyTd = twoLeafPageFile.getKeyTupleDesc();
+		assertEquals(1, keyTd.numFields());
+		assertEquals(Type.INT_TYPE, keyTd.getFieldType(0));
+
+		IndexPredicate lower = new IndexPredicate(Op.GREATER_THAN, new IntField(100));
+		IndexPredicate upper = new IndexPredicate(Op.LESS_THAN_OR_EQ, new IntField(400));
+		DbFileIterator it = twoLeafPageFile.keyIterator(tid, lower, upper, false);
+		DbFileIterator full = twoLeafPageFile.rangeIterator(tid, lower, upper, false);
+		it.open();
+		full.open();
+		int count = 0;
+		while(it.hasNext()) {
+			assertTrue(full.hasNext());
+			Tuple key = it.next();
+			Tuple t = full.next();
+			assertEquals(keyTd, key.getTupleDesc());
+			assertEquals(t.getField(0), key.getField(0));
+			assertEquals(t.getRecordId(), key.getRecordId());
+			count++;
+		}
+		assertFalse(full.hasNext());
+		assertEquals(300, count);
+		it.close();
+		full.close();
+
+		// unbounded and descending
+		it = twoLeafPageFile.keyIterator(tid, null, null, true);
+		it.open();
+		int expected = 520;
+		while(it.hasNext()) {
+			assertEquals(new IntField(expected), it.next().getField(0));
+			expected--;
+		}
+		assertEquals(0, expected);
+		it.close();
+	}
+
 	/**
 	 * JUnit suite target
 	 */
@@ -0,0 +1,148 @@
+package simpledb;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * Benchmark of batch execution against tuple-at-a-time execution. It times
+ * two plans over tables that are already in the buffer pool, built once
+ * from tuple operators and once from batch operators:
+ * <pre>
+ *   SELECT c0, SUM(c1), COUNT(c1), MAX(c2) FROM t WHERE c2 &gt; ... GROUP BY c0
+ *   SELECT COUNT(*) FROM t, d WHERE t.c0 = d.c0 AND d.c1 &lt; ...
+ * </pre>
+ * Usage (all options are optional):
+ * <pre>
+ * ant runbenchmark -Dbenchmark=BatchBenchmark -Dargs="--rows=4000000"
+ *
+ *   --rows=N         rows in the fact table t (default 2000000)
+ *   --groups=N       distinct values of c0, and rows of d (default 1000)
+ *   --selectivity=N  percentage of rows the filters keep (default 50)
+ *   --iterations=N   measured iterations (default 5)
+ *   --warmup=N       unmeasured iterations (default 3)
+ * </pre>
+ */
+public class BatchBenchmark {
+
+    int rows = 2000000;
+    int groups = 1000;
+    int selectivity = 50;
+    int iterations = 5;
+    int warmup = 3;
+
+    HeapFile fact;
+    HeapFile dim;
+
+    void parseOption(String arg) {
+        int eq = arg.indexOf('=');
+        if (!arg.startsWith("--") || eq < 0)
+            throw new IllegalArgumentException("expected --name=value, got " + arg);
+        String name = arg.substring(2, eq);
+        int value = Integer.parseInt(arg.substring(eq + 1));
+        if (name.equals("rows")) rows = value;
+        else if (name.equals("groups")) groups = value;
+        else if (name.equals("selectivity")) selectivity = value;
+        else if (name.equals("iterations")) iterations = value;
+        else if (name.equals("warmup")) warmup = value;
+        else throw new IllegalArgumentException("unknown option --" + name);
+    }
+
+    private HeapFile createTable(int numRows, int maxKey) throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>(numRows);
+        Random rand = new Random(50);
+        for (int i = 0; i < numRows; i++) {
+            ArrayList<Integer> t = new ArrayList<Integer>(3);
+            t.add(maxKey < numRows ? rand.nextInt(maxKey) : i);
+            t.add(rand.nextInt(100));
+            t.add(rand.nextInt(100));
+            tuples.add(t);
+        }
+        File f = File.createTempFile("batchbench", ".dat");
+        f.deleteOnExit();
+        HeapFileEncoder.convert(tuples, f, BufferPool.getPageSize(), 3);
+        return Utility.openHeapFile(3, f);
+    }
+
+    void run() throws Exception {
+        fact = createTable(rows, groups);
+        dim = createTable(groups, groups);
+        // keep both tables in memory, so that the benchmark measures the
+        // operators rather than reading the files
+        Database.resetBufferPool(fact.numPages() + dim.numPages() + 16);
+
+        System.out.println("rows=" + rows + " groups=" + groups + " selectivity=" + selectivity
+                + "% pages=" + fact.numPages());
+        System.out.println(String.format("%-10s %12s %12s %8s", "plan", "tuples ms", "batches ms",
+                "speedup"));
+        for (int plan = 0; plan < 2; plan++) {
+            double tupleMs = measure(plan, false);
+            double batchMs = measure(plan, true);
+            System.out.println(String.format("%-10s %12.1f %12.1f %8.2f",
+                    plan == 0 ? "aggregate" : "join", tupleMs, batchMs, tupleMs / batchMs));
+        }
+    }
+
+    private DbIterator plan(int plan, boolean batches, TransactionId tid) {
+        Predicate p = new Predicate(plan == 0 ? 2 : 1, Predicate.Op.LESS_THAN,
+                new IntField(selectivity));
+        if (plan == 0) {
+            int[] afields = { 1, 1, 2 };
+            Aggregator.Op[] ops = { Aggregator.Op.SUM, Aggregator.Op.COUNT, Aggregator.Op.MAX };
+            if (batches)
+                return new BatchesToRows(new BatchAggregate(new BatchFilter(p,
+                        new BatchScan(tid, fact.getId(), "t")), afields, ops, new int[] { 0 }));
+            return new Aggregate(new Filter(p, new SeqScan(tid, fact.getId(), "t")), afields,
+                    ops, new int[] { 0 });
+        }
+        JoinPredicate jp = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+        int[] afields = { 0 };
+        Aggregator.Op[] ops = { Aggregator.Op.COUNT };
+        if (batches)
+            return new BatchesToRows(new BatchAggregate(new BatchHashJoin(jp,
+                    new BatchScan(tid, fact.getId(), "t"),
+                    new BatchFilter(p, new BatchScan(tid, dim.getId(), "d"))), afields, ops,
+                    new int[0]));
+        return new Aggregate(new HashEquiJoin(jp, new SeqScan(tid, fact.getId(), "t"),
+                new Filter(p, new SeqScan(tid, dim.getId(), "d")), true), afields, ops, new int[0]);
+    }
+
+    private double measure(int plan, boolean batches) throws Exception {
+        long nanos = 0;
+        String first = null;
+        for (int i = 0; i < warmup + iterations; i++) {
+            TransactionId tid = new TransactionId();
+            DbIterator it = plan(plan, batches, tid);
+            long start = System.nanoTime();
+            it.open();
+            StringBuilder result = new StringBuilder();
+            int n = 0;
+            while (it.hasNext()) {
+                Tuple t = it.next();
+                if (n++ < 10)
+                    result.append(t).append(';');
+            }
+            it.close();
+            if (i >= warmup)
+                nanos += System.nanoTime() - start;
+            if (first == null)
+                first = n + ":" + result;
+            else if (!first.equals(n + ":" + result))
+                throw new IllegalStateException("results differ between iterations");
+            Database.getBufferPool().transactionComplete(tid);
+        }
+        return nanos / 1e6 / iterations;
+    }
+
+    public static void main(String[] args) throws Exception {
+        BatchBenchmark b = new BatchBenchmark();
+        try {
+            for (String arg : args)
+                b.parseOption(arg);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+        }
+        b.run();
+    }
+}
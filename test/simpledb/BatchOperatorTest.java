@@ -0,0 +1,160 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class BatchOperatorTest extends SimpleDbTestBase {
+
+  // (string, int, int), over a few batches
+  TupleDesc td = new TupleDesc(new Type[] { Type.STRING_TYPE, Type.INT_TYPE, Type.INT_TYPE });
+  ArrayList<Tuple> tuples;
+
+  /**
+   * Initialize each unit test: more rows than fit in two batches
+   */
+  @Before public void createTuples() {
+    tuples = new ArrayList<Tuple>();
+    Random rand = new Random(50);
+    for (int i = 0; i < 2500; i++) {
+      Tuple t = new Tuple(td);
+      t.setField(0, new StringField("g" + rand.nextInt(10), Type.STRING_LEN));
+      t.setField(1, new IntField(rand.nextInt(300)));
+      t.setField(2, new IntField(rand.nextInt(2000) - 1000));
+      tuples.add(t);
+    }
+  }
+
+  private BatchIterator batches() {
+    return new RowsToBatches(new TupleIterator(td, tuples));
+  }
+
+  /** @return the tuples of an iterator, as sorted strings */
+  private ArrayList<String> results(DbIterator it) throws Exception {
+    ArrayList<String> out = new ArrayList<String>();
+    it.open();
+    while (it.hasNext())
+      out.add(it.next().toString());
+    it.close();
+    Collections.sort(out);
+    return out;
+  }
+
+  /**
+   * BatchFilter keeps the same rows as Filter, for every operator over an
+   * int column and over a string column, and when filters are stacked
+   */
+  @Test public void filter() throws Exception {
+    for (Predicate.Op op : Predicate.Op.values()) {
+      Predicate p = new Predicate(2, op, new IntField(17));
+      assertEquals(results(new Filter(p, new TupleIterator(td, tuples))),
+          results(new BatchesToRows(new BatchFilter(p, batches()))));
+    }
+    Predicate s = new Predicate(0, Predicate.Op.LESS_THAN, new StringField("g4", Type.STRING_LEN));
+    Predicate i = new Predicate(1, Predicate.Op.GREATER_THAN_OR_EQ, new IntField(150));
+    assertEquals(results(new Filter(i, new Filter(s, new TupleIterator(td, tuples)))),
+        results(new BatchesToRows(new BatchFilter(i, new BatchFilter(s, batches())))));
+  }
+
+  /**
+   * BatchProject returns the same fields and names as Project, also over a
+   * filtered batch
+   */
+  @Test public void project() throws Exception {
+    ArrayList<Integer> fields = new ArrayList<Integer>();
+    fields.add(2);
+    fields.add(0);
+    Predicate p = new Predicate(1, Predicate.Op.LESS_THAN, new IntField(100));
+    Project expected = new Project(fields, new Type[] { Type.INT_TYPE, Type.STRING_TYPE },
+        new Filter(p, new TupleIterator(td, tuples)));
+    BatchProject actual = new BatchProject(new int[] { 2, 0 }, new BatchFilter(p, batches()));
+    assertEquals(expected.getTupleDesc(), actual.getTupleDesc());
+    assertEquals(results(expected), results(new BatchesToRows(actual)));
+  }
+
+  /**
+   * BatchHashJoin returns the same rows as HashEquiJoin, with many matches
+   * per key, so that output batches fill up in the middle of a probe batch
+   */
+  @Test public void join() throws Exception {
+    Predicate small = new Predicate(1, Predicate.Op.LESS_THAN, new IntField(50));
+    JoinPredicate jp = new JoinPredicate(1, Predicate.Op.EQUALS, 1);
+    HashEquiJoin expected = new HashEquiJoin(jp, new TupleIterator(td, tuples),
+        new Filter(small, new TupleIterator(td, tuples)));
+    BatchHashJoin actual = new BatchHashJoin(jp, batches(), new BatchFilter(small, batches()));
+    assertEquals(expected.getTupleDesc(), actual.getTupleDesc());
+    ArrayList<String> rows = results(expected);
+    assertTrue(rows.size() > 3 * Batch.DEFAULT_CAPACITY);
+    assertEquals(rows, results(new BatchesToRows(actual)));
+
+    BatchesToRows again = new BatchesToRows(actual);
+    again.open();
+    again.rewind();
+    int n = 0;
+    while (again.hasNext()) {
+      again.next();
+      n++;
+    }
+    again.close();
+    assertEquals(rows.size(), n);
+  }
+
+  @Test(expected = IllegalArgumentException.class) public void joinOnStrings() {
+    new BatchHashJoin(new JoinPredicate(0, Predicate.Op.EQUALS, 0), batches(), batches());
+  }
+
+  /**
+   * BatchAggregate gives the results of Aggregate, grouped on strings, on
+   * ints, on both, and without grouping
+   */
+  @Test public void aggregate() throws Exception {
+    int[] afields = { 2, 2, 2, 2, 0, 2 };
+    Aggregator.Op[] ops = { Aggregator.Op.MIN, Aggregator.Op.MAX, Aggregator.Op.SUM,
+        Aggregator.Op.AVG, Aggregator.Op.COUNT, Aggregator.Op.SUM_COUNT };
+    int[][] groupings = { { 0 }, { 1 }, { 0, 1 }, {} };
+    for (int[] gfields : groupings) {
+      Aggregate expected = new Aggregate(new TupleIterator(td, tuples), afields, ops, gfields);
+      BatchAggregate actual = new BatchAggregate(batches(), afields, ops, gfields);
+      assertEquals(expected.getTupleDesc(), actual.getTupleDesc());
+      assertEquals(results(expected), results(new BatchesToRows(actual)));
+    }
+  }
+
+  /**
+   * A plan of batch operators over a heap file, with a tuple operator in
+   * the middle, gives the same results as the same plan of tuple operators
+   */
+  @Test public void mixedPlan() throws Exception {
+    ArrayList<ArrayList<Integer>> rows = new ArrayList<ArrayList<Integer>>();
+    HeapFile table = SystemTestUtil.createRandomHeapFile(3, 3000, 100, null, rows);
+    TransactionId tid = new TransactionId();
+    Predicate p = new Predicate(2, Predicate.Op.GREATER_THAN, new IntField(30));
+    int[] afields = { 1, 1 };
+    Aggregator.Op[] ops = { Aggregator.Op.SUM, Aggregator.Op.COUNT };
+
+    Aggregate expected = new Aggregate(new Filter(p, new SeqScan(tid, table.getId(), "t")),
+        afields, ops, new int[] { 0 });
+    BatchAggregate actual = new BatchAggregate(new RowsToBatches(new Filter(p,
+        new BatchesToRows(new BatchScan(tid, table.getId(), "t")))), afields, ops, new int[] { 0 });
+    assertEquals(expected.getTupleDesc(), actual.getTupleDesc());
+    assertEquals(results(expected), results(new BatchesToRows(actual)));
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(BatchOperatorTest.class);
+  }
+}
@@ -0,0 +1,144 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import java.util.ArrayList;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class BatchTest extends SimpleDbTestBase {
+
+  // (string, int, long)
+  TupleDesc td = new TupleDesc(new Type[] { Type.STRING_TYPE, Type.INT_TYPE, Type.LONG_TYPE });
+  ArrayList<Tuple> tuples;
+
+  @Before public void createTuples() {
+    tuples = new ArrayList<Tuple>();
+    for (int i = 0; i < 10; i++) {
+      Tuple t = new Tuple(td);
+      t.setField(0, new StringField("s" + i, Type.STRING_LEN));
+      t.setField(1, new IntField(i));
+      t.setField(2, new LongField(1L << 40 + i));
+      tuples.add(t);
+    }
+  }
+
+  private Batch fill(int capacity) {
+    Batch b = new Batch(td, capacity);
+    for (Tuple t : tuples)
+      b.addTuple(t);
+    return b;
+  }
+
+  /**
+   * Tuples are stored by column and read back unchanged
+   */
+  @Test public void addAndGetTuples() {
+    Batch b = fill(16);
+    assertEquals(10, b.size());
+    assertEquals(10, b.numRows());
+    assertFalse(b.isFull());
+    assertNull(b.selection());
+    assertEquals(7, b.getInts(1)[7]);
+    assertEquals(1L << 47, b.getLongs(2)[7]);
+    assertEquals(new StringField("s7", Type.STRING_LEN), b.getFields(0)[7]);
+    for (int i = 0; i < b.size(); i++)
+      assertTrue(TestUtil.compareTuples(tuples.get(i), b.getTuple(b.row(i))));
+
+    b.clear();
+    assertTrue(b.isEmpty());
+    assertEquals(0, b.numRows());
+  }
+
+  @Test(expected = IllegalStateException.class) public void addToFullBatch() {
+    Batch b = fill(10);
+    assertTrue(b.isFull());
+    b.addTuple(tuples.get(0));
+  }
+
+  /**
+   * A selection narrows the rows of the batch without moving values; append
+   * copies only the selected rows, growing the columns
+   */
+  @Test public void selectAndAppend() {
+    Batch b = fill(10);
+    int[] sel = b.selectionBuffer();
+    int n = 0;
+    for (int i = 0; i < b.size(); i++)
+      if (i % 3 == 0)
+        sel[n++] = i;
+    b.select(n);
+    assertEquals(4, b.size());
+    assertEquals(10, b.numRows());
+    assertEquals(6, b.row(2));
+
+    Batch all = fill(10);
+    all.append(b);
+    assertEquals(14, all.size());
+    assertTrue(all.capacity() >= 14);
+    assertNull(all.selection());
+    for (int i = 0; i < 4; i++)
+      assertTrue(TestUtil.compareTuples(tuples.get(3 * i), all.getTuple(10 + i)));
+  }
+
+  /**
+   * A projection shares the columns and selection of its batch
+   */
+  @Test public void project() {
+    Batch b = fill(10);
+    b.selectionBuffer()[0] = 4;
+    b.select(1);
+    TupleDesc ptd = new TupleDesc(new Type[] { Type.INT_TYPE, Type.STRING_TYPE });
+    Batch p = b.project(new int[] { 1, 0 }, ptd);
+    assertEquals(1, p.size());
+    assertEquals(ptd, p.getTupleDesc());
+    assertTrue(b.getInts(1) == p.getInts(0));
+    Tuple t = p.getTuple(p.row(0));
+    assertEquals(new IntField(4), t.getField(0));
+    assertEquals(new StringField("s4", Type.STRING_LEN), t.getField(1));
+  }
+
+  /**
+   * Tuples read into small batches and turned back into tuples are
+   * unchanged, including after a rewind
+   */
+  @Test public void adapters() throws Exception {
+    RowsToBatches batches = new RowsToBatches(new TupleIterator(td, tuples), 4);
+    BatchesToRows rows = new BatchesToRows(batches);
+    assertEquals(td, rows.getTupleDesc());
+    rows.open();
+    for (int pass = 0; pass < 2; pass++) {
+      for (Tuple t : tuples) {
+        assertTrue(rows.hasNext());
+        assertTrue(TestUtil.compareTuples(t, rows.next()));
+      }
+      assertTrue(TestUtil.checkExhausted(rows));
+      rows.rewind();
+    }
+    rows.close();
+
+    batches.open();
+    int sizes = 0;
+    while (batches.hasNext()) {
+      Batch b = batches.next();
+      assertTrue(b.size() > 0 && b.size() <= 4);
+      sizes += b.size();
+    }
+    assertEquals(tuples.size(), sizes);
+    batches.close();
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(BatchTest.class);
+  }
+}
@@ -0,0 +1,300 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import junit.framework.JUnit4TestAdapter;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class GroupAggregatorTest extends SimpleDbTestBase {
+
+  static final Aggregator.Op[] OPS = { Aggregator.Op.MIN, Aggregator.Op.MAX,
+      Aggregator.Op.SUM, Aggregator.Op.AVG, Aggregator.Op.COUNT };
+
+  // (string group, int group, value)
+  TupleDesc td = new TupleDesc(new Type[] { Type.STRING_TYPE, Type.INT_TYPE, Type.INT_TYPE });
+  ArrayList<Tuple> tuples;
+
+  /**
+   * Initialize each unit test: a few hundred groups on a composite key
+   */
+  @Before public void createTuples() {
+    tuples = new ArrayList<Tuple>();
+    Random rand = new Random(44);
+    for (int i = 0; i < 5000; i++) {
+      Tuple t = new Tuple(td);
+      t.setField(0, new StringField("g" + rand.nextInt(20), Type.STRING_LEN));
+      t.setField(1, new IntField(rand.nextInt(15)));
+      t.setField(2, new IntField(rand.nextInt(2000) - 1000));
+      tuples.add(t);
+    }
+  }
+
+  private GroupAggregator partial() {
+    return GroupAggregator.partial(new int[] { 0, 1 }, new Type[] { Type.STRING_TYPE, Type.INT_TYPE },
+        new int[] { 2, 2, 2, 2, 2 }, new Type[] { Type.INT_TYPE, Type.INT_TYPE, Type.INT_TYPE,
+            Type.INT_TYPE, Type.INT_TYPE }, OPS);
+  }
+
+  /** @return the results of an aggregator, keyed by the group fields */
+  private HashMap<String, String> results(Aggregator agg) throws Exception {
+    HashMap<String, String> out = new HashMap<String, String>();
+    DbIterator it = agg.iterator();
+    it.open();
+    while (it.hasNext()) {
+      Tuple t = it.next();
+      StringBuilder values = new StringBuilder();
+      for (int i = 2; i < t.getTupleDesc().numFields(); i++)
+        values.append(t.getField(i)).append(' ');
+      out.put(t.getField(0) + "," + t.getField(1), values.toString());
+    }
+    it.close();
+    return out;
+  }
+
+  private HashMap<String, String> onePhase() throws Exception {
+    GroupAggregator agg = new GroupAggregator(new int[] { 0, 1 },
+        new Type[] { Type.STRING_TYPE, Type.INT_TYPE }, new int[] { 2, 2, 2, 2, 2 },
+        new Type[] { Type.INT_TYPE, Type.INT_TYPE, Type.INT_TYPE, Type.INT_TYPE, Type.INT_TYPE }, OPS);
+    for (Tuple t : tuples)
+      agg.mergeTupleIntoGroup(t);
+    return results(agg);
+  }
+
+  /**
+   * Partial aggregates over separate parts of the input, combined by the
+   * final aggregator, give the same results as a single aggregator
+   */
+  @Test public void partialAndFinal() throws Exception {
+    GroupAggregator[] parts = new GroupAggregator[3];
+    for (int i = 0; i < parts.length; i++)
+      parts[i] = partial();
+    for (int i = 0; i < tuples.size(); i++)
+      parts[i % parts.length].mergeTupleIntoGroup(tuples.get(i));
+
+    // AVG becomes a SUM_COUNT, with two fields
+    assertEquals(2 + OPS.length + 1, parts[0].getTupleDesc().numFields());
+
+    GroupAggregator fin = parts[0].finalAggregator();
+    for (GroupAggregator part : parts) {
+      DbIterator it = part.iterator();
+      it.open();
+      while (it.hasNext())
+        fin.mergeTupleIntoGroup(it.next());
+    }
+    assertEquals(onePhase(), results(fin));
+  }
+
+  /**
+   * Partial aggregators merged directly give the same results as a single
+   * aggregator
+   */
+  @Test public void merge() throws Exception {
+    GroupAggregator a = partial();
+    GroupAggregator b = partial();
+    for (int i = 0; i < tuples.size(); i++)
+      (i < 1000 ? a : b).mergeTupleIntoGroup(tuples.get(i));
+    a.merge(b);
+
+    GroupAggregator fin = a.finalAggregator();
+    DbIterator it = a.iterator();
+    it.open();
+    while (it.hasNext())
+      fin.mergeTupleIntoGroup(it.next());
+    assertEquals(onePhase(), results(fin));
+  }
+
+  /**
+   * The partial state of a one-phase aggregator, combined by its final
+   * aggregator, gives the same results as the aggregator itself; so do the
+   * partial states of that final aggregator
+   */
+  @Test public void partialIterator() throws Exception {
+    GroupAggregator agg = new GroupAggregator(new int[] { 0, 1 },
+        new Type[] { Type.STRING_TYPE, Type.INT_TYPE }, new int[] { 2, 2, 2, 2, 2 },
+        new Type[] { Type.INT_TYPE, Type.INT_TYPE, Type.INT_TYPE, Type.INT_TYPE, Type.INT_TYPE }, OPS);
+    for (int i = 0; i < tuples.size(); i++)
+      agg.mergeTupleIntoGroup(tuples.get(i));
+    assertEquals(2 + OPS.length + 1, agg.partialTupleDesc().numFields());
+
+    GroupAggregator fin = agg.finalAggregator();
+    DbIterator it = agg.partialIterator();
+    it.open();
+    while (it.hasNext())
+      fin.mergeTupleIntoGroup(it.next());
+    assertEquals(onePhase(), results(fin));
+
+    GroupAggregator again = fin.finalAggregator();
+    it = fin.partialIterator();
+    it.open();
+    while (it.hasNext())
+      again.mergeTupleIntoGroup(it.next());
+    assertEquals(onePhase(), results(again));
+  }
+
+  /**
+   * A SUM_COUNT combined by a final aggregator is still a sum and a count,
+   * through several levels of partial states and merges
+   */
+  @Test public void finalSumCount() throws Exception {
+    Aggregator.Op[] ops = { Aggregator.Op.SUM_COUNT, Aggregator.Op.MAX };
+    GroupAggregator agg = new GroupAggregator(new int[] { 0, 1 },
+        new Type[] { Type.STRING_TYPE, Type.INT_TYPE }, new int[] { 2, 2 },
+        new Type[] { Type.INT_TYPE, Type.INT_TYPE }, ops);
+    for (Tuple t : tuples)
+      agg.mergeTupleIntoGroup(t);
+    HashMap<String, String> expected = results(agg);
+
+    GroupAggregator fin = agg.finalAggregator();
+    DbIterator it = agg.partialIterator();
+    it.open();
+    while (it.hasNext())
+      fin.mergeTupleIntoGroup(it.next());
+    assertEquals(agg.getTupleDesc(), fin.getTupleDesc());
+    assertEquals(expected, results(fin));
+
+    GroupAggregator again = fin.finalAggregator();
+    GroupAggregator other = again.emptyCopy();
+    it = fin.partialIterator();
+    it.open();
+    while (it.hasNext())
+      other.mergeTupleIntoGroup(it.next());
+    again.merge(other);
+    assertEquals(expected, results(again));
+  }
+
+  /**
+   * Aggregators with sketches merge like the others; the distinct counts of
+   * small groups are exact
+   */
+  @Test public void sketches() throws Exception {
+    Aggregator.Op[] ops = { Aggregator.Op.APPROX_COUNT_DISTINCT, Aggregator.Op.APPROX_MEDIAN,
+        Aggregator.Op.COUNT };
+    int[] afields = { 2, 2, 2 };
+    Type[] atypes = { Type.INT_TYPE, Type.INT_TYPE, Type.INT_TYPE };
+    GroupAggregator a = new GroupAggregator(new int[] { 0, 1 },
+        new Type[] { Type.STRING_TYPE, Type.INT_TYPE }, afields, atypes, ops);
+    a.setSketchErrors(0.05, 0.05);
+    GroupAggregator b = a.emptyCopy();
+    assertTrue(!a.hasPartialTuples());
+
+    HashMap<String, HashSet<Integer>> distinct = new HashMap<String, HashSet<Integer>>();
+    for (int i = 0; i < tuples.size(); i++) {
+      Tuple t = tuples.get(i);
+      (i % 2 == 0 ? a : b).mergeTupleIntoGroup(t);
+      String key = t.getField(0) + "," + t.getField(1);
+      if (!distinct.containsKey(key))
+        distinct.put(key, new HashSet<Integer>());
+      distinct.get(key).add(((IntField) t.getField(2)).getValue());
+    }
+    a.merge(b);
+
+    DbIterator it = a.iterator();
+    it.open();
+    int n = 0;
+    while (it.hasNext()) {
+      Tuple t = it.next();
+      HashSet<Integer> values = distinct.get(t.getField(0) + "," + t.getField(1));
+      assertEquals(values.size(), ((LongField) t.getField(2)).getValue());
+      int median = ((IntField) t.getField(3)).getValue();
+      assertTrue(median > -1000 && median < 1000);
+      n++;
+    }
+    assertEquals(distinct.size(), n);
+  }
+
+  @Test(expected = IllegalStateException.class) public void sketchErrorsAfterMerging() {
+    GroupAggregator agg = new GroupAggregator(new int[0], new Type[0], new int[] { 2 },
+        new Type[] { Type.INT_TYPE }, new Aggregator.Op[] { Aggregator.Op.APPROX_P90 });
+    agg.mergeTupleIntoGroup(tuples.get(0));
+    agg.setSketchErrors(0.01, 0.01);
+  }
+
+  @Test(expected = IllegalArgumentException.class) public void mergeDifferentSketchErrors() {
+    GroupAggregator a = new GroupAggregator(new int[0], new Type[0], new int[] { 0 },
+        new Type[] { Type.STRING_TYPE }, new Aggregator.Op[] { Aggregator.Op.APPROX_COUNT_DISTINCT });
+    GroupAggregator b = a.emptyCopy();
+    b.setSketchErrors(0.001, 0.01);
+    a.merge(b);
+  }
+
+  /**
+   * Sums past the range of an int are exact in the state of the groups, and
+   * are returned whole with long results, the default, including through
+   * partial states; with int results they fail rather than wrap around
+   */
+  @Test public void longResults() throws Exception {
+    TupleDesc intTd = new TupleDesc(new Type[] { Type.INT_TYPE });
+    Aggregator.Op[] ops = { Aggregator.Op.SUM, Aggregator.Op.AVG, Aggregator.Op.MAX,
+        Aggregator.Op.COUNT };
+    GroupAggregator agg = new GroupAggregator(new int[0], new Type[0], new int[] { 0, 0, 0, 0 },
+        new Type[] { Type.INT_TYPE, Type.INT_TYPE, Type.INT_TYPE, Type.INT_TYPE }, ops);
+    long sum = 0;
+    for (int i = 0; i < 1000; i++) {
+      Tuple t = new Tuple(intTd);
+      t.setField(0, new IntField(Integer.MAX_VALUE - i));
+      agg.mergeTupleIntoGroup(t);
+      sum += Integer.MAX_VALUE - i;
+    }
+
+    assertTrue(agg.hasLongResults());
+    TupleDesc resultTd = agg.getTupleDesc();
+    assertEquals(Type.LONG_TYPE, resultTd.getFieldType(0));
+    assertEquals(Type.INT_TYPE, resultTd.getFieldType(1));
+    assertEquals(Type.INT_TYPE, resultTd.getFieldType(2));
+    assertEquals(Type.LONG_TYPE, resultTd.getFieldType(3));
+    Tuple t = agg.getResult(0, resultTd);
+    assertEquals(sum, ((LongField) t.getField(0)).getValue());
+    assertEquals((int) (sum / 1000), ((IntField) t.getField(1)).getValue());
+    assertEquals(Integer.MAX_VALUE, ((IntField) t.getField(2)).getValue());
+    assertEquals(1000, ((LongField) t.getField(3)).getValue());
+
+    GroupAggregator fin = agg.finalAggregator();
+    DbIterator it = agg.partialIterator();
+    it.open();
+    while (it.hasNext())
+      fin.mergeTupleIntoGroup(it.next());
+    assertEquals(resultTd, fin.getTupleDesc());
+    assertEquals(t.toString(), fin.getResult(0, resultTd).toString());
+
+    agg.setLongResults(false);
+    assertEquals(Type.INT_TYPE, agg.getTupleDesc().getFieldType(0));
+    try {
+      agg.getResult(0, agg.getTupleDesc());
+      fail("expected the sum to overflow");
+    } catch (ArithmeticException e) {
+      // expected
+    }
+
+    // SUM over longs is a long even with int results
+    GroupAggregator overLongs = new GroupAggregator(new int[0], new Type[0], new int[] { 0 },
+        new Type[] { Type.LONG_TYPE }, new Aggregator.Op[] { Aggregator.Op.SUM });
+    overLongs.setLongResults(false);
+    overLongs.mergeTupleIntoGroup(t);
+    overLongs.mergeTupleIntoGroup(t);
+    assertEquals(Type.LONG_TYPE, overLongs.getTupleDesc().getFieldType(0));
+    assertEquals(2 * sum,
+        ((LongField) overLongs.getResult(0, overLongs.getTupleDesc()).getField(0)).getValue());
+  }
+
+  @Test(expected = IllegalArgumentException.class) public void percentileOverLongs() {
+    new GroupAggregator(new int[0], new Type[0], new int[] { 0 },
+        new Type[] { Type.LONG_TYPE }, new Aggregator.Op[] { Aggregator.Op.APPROX_MEDIAN });
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(GroupAggregatorTest.class);
+  }
+}
@@ -67,6 +67,109 @@ public class HashEquiJoinTest extends SimpleDbTestBase {
     TestUtil.matchAllTuples(eqJoin, op);
   }
 
+  /**
+   * Unit test for Join.getNext() with the hash table built on child2
+   */
+  @Test public void eqJoinBuildRight() throws Exception {
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+    HashEquiJoin op = new HashEquiJoin(pred, scan1, scan2, true);
+    assertTrue(op.buildsRight());
+    assertEquals(Utility.getTupleDesc(width1 + width2), op.getTupleDesc());
+    op.open();
+    int count = 0;
+    while (op.hasNext()) {
+      assertNotNull(op.next());
+      count++;
+    }
+    assertEquals(3, count);
+    eqJoin.open();
+    TestUtil.matchAllTuples(eqJoin, op);
+  }
+
+  /**
+   * Unit test for Join.getNext() on a string join field
+   */
+  @Test public void stringJoin() throws Exception {
+    DbIterator left = TestUtil.createTupleList(2,
+        new Object[] { "a", 1, "b", 2, "b", 3, "c", 4 });
+    DbIterator right = TestUtil.createTupleList(1,
+        new Object[] { "b", "c", "d", "b" });
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+    HashEquiJoin op = new HashEquiJoin(pred, left, right);
+    op.open();
+    int count = 0;
+    while (op.hasNext()) {
+      Tuple t = op.next();
+      assertEquals(t.getField(0), t.getField(2));
+      count++;
+    }
+    assertEquals(5, count);
+  }
+
+  /**
+   * Unit test for Join.getNext() when the build side does not fit in memory
+   */
+  @Test public void spillingJoin() throws Exception {
+    // 2000 tuples on each side with 500 distinct keys: 16 matches per key
+    int[] left = new int[2000 * 2];
+    int[] right = new int[2000 * 2];
+    for (int i = 0; i < 2000; i++) {
+      left[2 * i] = i % 500;
+      left[2 * i + 1] = i;
+      right[2 * i] = (i * 7) % 500;
+      right[2 * i + 1] = -i;
+    }
+    for (boolean buildRight : new boolean[] { false, true }) {
+      JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+      HashEquiJoin op = new HashEquiJoin(pred, TestUtil.createTupleList(2, left),
+          TestUtil.createTupleList(2, right), buildRight, 1024);
+      op.open();
+      assertEquals(8000, countMatches(op));
+      assertTrue(op.numSpilledPartitions() > 0);
+
+      op.rewind();
+      assertEquals(8000, countMatches(op));
+      op.close();
+    }
+  }
+
+  /**
+   * Unit test for Join.getNext() when a spilled partition is a single key
+   * and cannot be split any further
+   */
+  @Test public void skewedSpillingJoin() throws Exception {
+    int[] left = new int[300 * 2];
+    for (int i = 0; i < 300; i++) {
+      left[2 * i] = 7;
+      left[2 * i + 1] = i;
+    }
+    int[] right = new int[20 * 2];
+    for (int i = 0; i < 20; i++) {
+      right[2 * i] = i % 2 == 0 ? 7 : 100 + i;
+      right[2 * i + 1] = i;
+    }
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+    HashEquiJoin op = new HashEquiJoin(pred, TestUtil.createTupleList(2, left),
+        TestUtil.createTupleList(2, right), false, 256);
+    op.open();
+    assertEquals(300 * 10, countMatches(op));
+    op.close();
+  }
+
+  /**
+   * @return the number of tuples returned by a join, after checking that
+   *   the join fields of each one are equal
+   */
+  private static int countMatches(HashEquiJoin op) throws Exception {
+    int count = 0;
+    while (op.hasNext()) {
+      Tuple t = op.next();
+      assertEquals(t.getField(0), t.getField(2));
+      count++;
+    }
+    return count;
+  }
+
     private static final int COLUMNS = 2;
     public void validateJoin(int table1ColumnValue, int table1Rows, int table2ColumnValue,
             int table2Rows)
@@ -0,0 +1,212 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Random;
+
+/**
+ * Benchmark of the build and probe phases of HashEquiJoin on integer keys.
+ * It compares the boxed HashMap&lt;Field, ArrayList&lt;Tuple&gt;&gt; table that
+ * HashEquiJoin used to build with IntTupleHashTable, and then times a whole
+ * in-memory HashEquiJoin.
+ * <p>
+ * Usage (all options are optional):
+ * <pre>
+ * ant runbenchmark -Dbenchmark=HashJoinBenchmark -Dargs="--rows=1000000"
+ *
+ *   --rows=N         build tuples (default 1000000)
+ *   --keys=N         distinct build keys (default: one per row)
+ *   --probes=N       probe tuples (default 4000000)
+ *   --iterations=N   measured iterations (default 5)
+ *   --warmup=N       unmeasured iterations (default 2)
+ * </pre>
+ */
+public class HashJoinBenchmark {
+
+    int rows = 1000000;
+    int keys = -1;
+    int probes = 4000000;
+    int iterations = 5;
+    int warmup = 2;
+
+    private ArrayList<Tuple> build;
+    private int[] probeKeys;
+
+    void parseOption(String arg) {
+        int eq = arg.indexOf('=');
+        if (!arg.startsWith("--") || eq < 0)
+            throw new IllegalArgumentException("expected --name=value, got " + arg);
+        String name = arg.substring(2, eq);
+        int value = Integer.parseInt(arg.substring(eq + 1));
+        if (name.equals("rows")) rows = value;
+        else if (name.equals("keys")) keys = value;
+        else if (name.equals("probes")) probes = value;
+        else if (name.equals("iterations")) iterations = value;
+        else if (name.equals("warmup")) warmup = value;
+        else throw new IllegalArgumentException("unknown option --" + name);
+    }
+
+    void run() throws Exception {
+        if (keys <= 0)
+            keys = rows;
+        TupleDesc td = Utility.getTupleDesc(2);
+        build = new ArrayList<Tuple>(rows);
+        for (int i = 0; i < rows; i++) {
+            Tuple t = new Tuple(td);
+            t.setField(0, new IntField(i % keys));
+            t.setField(1, new IntField(i));
+            build.add(t);
+        }
+        // half of the probes find a match
+        probeKeys = new int[probes];
+        Random rand = new Random(660);
+        for (int i = 0; i < probes; i++)
+            probeKeys[i] = rand.nextInt(keys * 2);
+
+        System.out.println("rows=" + rows + " keys=" + keys + " probes=" + probes);
+        System.out.println(String.format("%-10s %12s %14s %16s",
+                "table", "build ms", "probes/s", "bytes/build row"));
+        measure("boxed", new BoxedTable());
+        measure("primitive", new PrimitiveTable());
+        measureJoin();
+    }
+
+    /** The operations being compared, so both tables run the same loop */
+    private interface Table {
+        void build(ArrayList<Tuple> tuples);
+        /** @return the sum of the payloads of the matches */
+        long probe(int[] keys);
+        void clear();
+    }
+
+    /** The table HashEquiJoin built before it had IntTupleHashTable */
+    private static class BoxedTable implements Table {
+        HashMap<Object, ArrayList<Tuple>> map = new HashMap<Object, ArrayList<Tuple>>();
+
+        public void build(ArrayList<Tuple> tuples) {
+            for (Tuple t : tuples) {
+                Field key = t.getField(0);
+                ArrayList<Tuple> list = map.get(key);
+                if (list == null) {
+                    list = new ArrayList<Tuple>();
+                    map.put(key, list);
+                }
+                list.add(t);
+            }
+        }
+
+        public long probe(int[] keys) {
+            long sum = 0;
+            for (int k : keys) {
+                ArrayList<Tuple> list = map.get(new IntField(k));
+                if (list != null)
+                    for (Tuple t : list)
+                        sum += ((IntField) t.getField(1)).getValue();
+            }
+            return sum;
+        }
+
+        public void clear() {
+            map = new HashMap<Object, ArrayList<Tuple>>();
+        }
+    }
+
+    private static class PrimitiveTable implements Table {
+        IntTupleHashTable table = new IntTupleHashTable();
+
+        public void build(ArrayList<Tuple> tuples) {
+            for (Tuple t : tuples)
+                table.add(((IntField) t.getField(0)).getValue(), t);
+        }
+
+        public long probe(int[] keys) {
+            long sum = 0;
+            for (int k : keys)
+                for (int row = table.first(k); row != IntTupleHashTable.NONE; row = table.next(row))
+                    sum += ((IntField) table.getTuple(row).getField(1)).getValue();
+            return sum;
+        }
+
+        public void clear() {
+            table = new IntTupleHashTable();
+        }
+    }
+
+    private void measure(String name, Table table) {
+        long buildNanos = 0, probeNanos = 0, bytes = 0, sum = 0;
+        for (int i = 0; i < warmup + iterations; i++) {
+            table.clear();
+            long before = usedMemory();
+            long start = System.nanoTime();
+            table.build(build);
+            long built = System.nanoTime();
+            long after = usedMemory();
+            long probeStart = System.nanoTime();
+            sum += table.probe(probeKeys);
+            long probed = System.nanoTime();
+            if (i >= warmup) {
+                buildNanos += built - start;
+                probeNanos += probed - probeStart;
+                bytes += after - before;
+            }
+        }
+        // keeps the probe loop from being optimized away
+        if (sum == 42)
+            System.out.println();
+        System.out.println(String.format("%-10s %12.1f %14.0f %16.1f", name,
+                buildNanos / 1e6 / iterations,
+                (double) probes * iterations / (probeNanos / 1e9),
+                (double) bytes / iterations / rows));
+        table.clear();
+    }
+
+    /** Time an in-memory HashEquiJoin of the build tuples with the probes */
+    private void measureJoin() throws Exception {
+        TupleDesc td = Utility.getTupleDesc(1);
+        ArrayList<Tuple> probeTuples = new ArrayList<Tuple>(probes);
+        for (int k : probeKeys) {
+            Tuple t = new Tuple(td);
+            t.setField(0, new IntField(k));
+            probeTuples.add(t);
+        }
+        long nanos = 0, out = 0;
+        for (int i = 0; i < warmup + iterations; i++) {
+            HashEquiJoin j = new HashEquiJoin(new JoinPredicate(0, Predicate.Op.EQUALS, 0),
+                    new TupleIterator(build.get(0).getTupleDesc(), build),
+                    new TupleIterator(td, probeTuples), false, Integer.MAX_VALUE);
+            long start = System.nanoTime();
+            j.open();
+            long n = 0;
+            while (j.hasNext()) {
+                j.next();
+                n++;
+            }
+            j.close();
+            if (i >= warmup) {
+                nanos += System.nanoTime() - start;
+                out = n;
+            }
+        }
+        System.out.println(String.format("HashEquiJoin: %d output tuples, %.1f ms, %.0f probe tuples/s",
+                out, nanos / 1e6 / iterations, (double) probes * iterations / (nanos / 1e9)));
+    }
+
+    private static long usedMemory() {
+        Runtime r = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++)
+            System.gc();
+        return r.totalMemory() - r.freeMemory();
+    }
+
+    public static void main(String[] args) throws Exception {
+        HashJoinBenchmark b = new HashJoinBenchmark();
+        try {
+            for (String arg : args)
+                b.parseOption(arg);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+        }
+        b.run();
+    }
+}
@@ -0,0 +1,74 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+public class HyperLogLogTest {
+
+  /**
+   * Small cardinalities are counted exactly, and duplicates are ignored
+   */
+  @Test public void small() {
+    HyperLogLog h = new HyperLogLog(HyperLogLog.DEFAULT_PRECISION);
+    assertEquals(0, h.estimate());
+    for (int rep = 0; rep < 3; rep++)
+      for (int i = 0; i < 100; i++)
+        h.add(i);
+    assertEquals(100, h.estimate());
+  }
+
+  /**
+   * Large cardinalities are estimated within a few standard errors, for
+   * integers and strings
+   */
+  @Test public void large() {
+    int p = HyperLogLog.precisionFor(0.02);
+    assertTrue(HyperLogLog.relativeError(p) <= 0.02);
+    int n = 200000;
+    HyperLogLog ints = new HyperLogLog(p);
+    HyperLogLog strings = new HyperLogLog(p);
+    for (int i = 0; i < n; i++) {
+      ints.add(i * 31);
+      strings.add(new StringField("user" + i, Type.STRING_LEN));
+    }
+    double bound = 4 * HyperLogLog.relativeError(p) * n;
+    assertEquals(n, ints.estimate(), bound);
+    assertEquals(n, strings.estimate(), bound);
+  }
+
+  /**
+   * A merged sketch estimates the union of the values of both sketches,
+   * whether they are sparse or dense
+   */
+  @Test public void merge() {
+    HyperLogLog all = new HyperLogLog(10);
+    HyperLogLog a = new HyperLogLog(10);
+    HyperLogLog b = new HyperLogLog(10);
+    HyperLogLog c = new HyperLogLog(10);
+    for (int i = 0; i < 50000; i++) {
+      all.add(i);
+      (i < 40000 ? a : b).add(i);
+    }
+    c.add(7);
+    c.add(50001);
+    a.merge(b);
+    assertEquals(all.estimate(), a.estimate());
+    c.merge(a);
+    a.add(50001);
+    assertEquals(a.estimate(), c.estimate());
+  }
+
+  @Test(expected = IllegalArgumentException.class) public void mergeDifferentPrecision() {
+    new HyperLogLog(10).merge(new HyperLogLog(11));
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(HyperLogLogTest.class);
+  }
+}
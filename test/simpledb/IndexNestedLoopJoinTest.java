@@ -0,0 +1,142 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import junit.framework.JUnit4TestAdapter;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.UUID;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class IndexNestedLoopJoinTest extends SimpleDbTestBase {
+
+  TransactionId tid;
+  BTreeFile inner;
+  ArrayList<ArrayList<Integer>> innerTuples;
+  ArrayList<Integer> outerKeys;
+
+  /**
+   * Initialize each unit test: a B+ tree keyed on its first field, with
+   * duplicate keys, and an unsorted list of outer keys, some of which appear
+   * more than once and some of which have no match.
+   */
+  @Before public void createTables() throws Exception {
+    tid = new TransactionId();
+    innerTuples = new ArrayList<ArrayList<Integer>>();
+    inner = BTreeUtility.createRandomBTreeFile(2, 2000, 400, null, innerTuples, 0);
+    Database.getCatalog().addTable(inner, UUID.randomUUID().toString());
+
+    outerKeys = new ArrayList<Integer>();
+    for (int i = 0; i < 500; i++) {
+      outerKeys.add(i);
+      outerKeys.add(i);
+    }
+    Collections.shuffle(outerKeys, new Random(37));
+  }
+
+  private DbIterator outer() {
+    ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+    for (int i = 0; i < outerKeys.size(); i++)
+      tuples.add(Utility.getHeapTuple(new int[] { outerKeys.get(i), i }));
+    return new TupleIterator(Utility.getTupleDesc(2), tuples);
+  }
+
+  /** @return the joined tuples, as lists of ints, in a canonical order */
+  private ArrayList<String> drain(DbIterator op) throws Exception {
+    ArrayList<String> out = new ArrayList<String>();
+    while (op.hasNext()) {
+      Tuple t = op.next();
+      assertEquals(t.getField(0), t.getField(2));
+      out.add(t.toString());
+    }
+    Collections.sort(out);
+    return out;
+  }
+
+  private ArrayList<String> expected() {
+    ArrayList<String> out = new ArrayList<String>();
+    for (int i = 0; i < outerKeys.size(); i++)
+      for (ArrayList<Integer> t : innerTuples)
+        if (t.get(0).equals(outerKeys.get(i)))
+          out.add(Utility.getHeapTuple(new int[] { outerKeys.get(i), i, t.get(0), t.get(1) }).toString());
+    Collections.sort(out);
+    return out;
+  }
+
+  /**
+   * Unit test for IndexNestedLoopJoin.getTupleDesc()
+   */
+  @Test public void getTupleDesc() {
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+    IndexNestedLoopJoin op = new IndexNestedLoopJoin(pred, outer(), tid, inner.getId(), "t");
+    TupleDesc td = op.getTupleDesc();
+    assertEquals(4, td.numFields());
+    assertEquals("t." + inner.getTupleDesc().getFieldName(0), td.getFieldName(2));
+    assertEquals("t." + inner.getTupleDesc().getFieldName(0), op.getJoinField2Name());
+  }
+
+  /**
+   * Unit test for IndexNestedLoopJoin.getNext(): every outer tuple is
+   * matched with all the inner tuples with its key, and each distinct key
+   * in a block is probed once
+   */
+  @Test public void eqJoin() throws Exception {
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+    IndexNestedLoopJoin op = new IndexNestedLoopJoin(pred, outer(), tid, inner.getId(), "t");
+    op.open();
+    ArrayList<String> expected = expected();
+    assertEquals(expected, drain(op));
+    assertEquals(new HashSet<Integer>(outerKeys).size(), op.numProbes());
+
+    // rewinding produces the same result
+    op.rewind();
+    assertEquals(expected, drain(op));
+    op.close();
+  }
+
+  /**
+   * Unit test for IndexNestedLoopJoin with blocks of a few outer tuples
+   */
+  @Test public void smallBlocks() throws Exception {
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+    int tupleSize = Utility.getTupleDesc(2).getSize();
+    IndexNestedLoopJoin op = new IndexNestedLoopJoin(pred, outer(), tid, inner.getId(), "t",
+        3 * tupleSize);
+    op.open();
+    assertEquals(expected(), drain(op));
+    assertTrue(op.numProbes() > new HashSet<Integer>(outerKeys).size());
+    op.close();
+  }
+
+  /**
+   * The inner join field must be the key of the B+ tree, and the predicate
+   * an equality
+   */
+  @Test public void unsupportedPredicates() {
+    try {
+      new IndexNestedLoopJoin(new JoinPredicate(0, Predicate.Op.EQUALS, 1), outer(), tid, inner.getId(), "t");
+      fail("expected exception");
+    } catch (IllegalArgumentException e) {
+    }
+    try {
+      new IndexNestedLoopJoin(new JoinPredicate(0, Predicate.Op.LESS_THAN, 0), outer(), tid, inner.getId(), "t");
+      fail("expected exception");
+    } catch (IllegalArgumentException e) {
+    }
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(IndexNestedLoopJoinTest.class);
+  }
+}
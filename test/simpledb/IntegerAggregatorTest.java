@@ -15,7 +15,7 @@ public class IntegerAggregatorTest extends SimpleDbTestBase {
 
   int width1 = 2;
   DbIterator scan1;
-  int[][] sum = null;
+  Object[][] sum = null;
   int[][] min = null;
   int[][] max = null;
   int[][] avg = null;
@@ -34,11 +34,12 @@ public class IntegerAggregatorTest extends SimpleDbTestBase {
                     5, 7 });
 
     // verify how the results progress after a few merges
-    this.sum = new int[][] {
-      { 1, 2 },
-      { 1, 6 },
-      { 1, 12 },
-      { 1, 12, 3, 2 }
+    // sums are longs
+    this.sum = new Object[][] {
+      { 1, 2L },
+      { 1, 6L },
+      { 1, 12L },
+      { 1, 12L, 3, 2L }
     };
 
     this.min = new int[][] {
@@ -70,7 +71,7 @@ public class IntegerAggregatorTest extends SimpleDbTestBase {
     scan1.open();
     IntegerAggregator agg = new IntegerAggregator(0, Type.INT_TYPE, 1, Aggregator.Op.SUM);
     
-    for (int[] step : sum) {
+    for (Object[] step : sum) {
       agg.mergeTupleIntoGroup(scan1.next());
       DbIterator it = agg.iterator();
       it.open();
@@ -126,6 +127,71 @@ public class IntegerAggregatorTest extends SimpleDbTestBase {
     }
   }
 
+  /**
+   * Test IntegerAggregator over many groups with string and integer keys,
+   * and without grouping
+   */
+  @Test public void manyGroups() throws Exception {
+    TupleDesc std = new TupleDesc(new Type[] { Type.STRING_TYPE, Type.INT_TYPE, Type.INT_TYPE });
+    IntegerAggregator byString = new IntegerAggregator(0, Type.STRING_TYPE, 2, Aggregator.Op.AVG);
+    IntegerAggregator byInt = new IntegerAggregator(1, Type.INT_TYPE, 2, Aggregator.Op.MIN);
+    IntegerAggregator all = new IntegerAggregator(Aggregator.NO_GROUPING, null, 2, Aggregator.Op.COUNT);
+    int groups = 1000;
+    for (int i = 0; i < 3 * groups; i++) {
+      int g = i % groups;
+      Tuple t = new Tuple(std);
+      t.setField(0, new StringField("group " + g, Type.STRING_LEN));
+      t.setField(1, new IntField(-g));
+      // each group averages (g - 1 + g + g + 1) / 3 = g
+      t.setField(2, new IntField(g + i / groups - 1));
+      byString.mergeTupleIntoGroup(t);
+      byInt.mergeTupleIntoGroup(t);
+      all.mergeTupleIntoGroup(t);
+    }
+
+    DbIterator it = byString.iterator();
+    it.open();
+    int n = 0;
+    while (it.hasNext()) {
+      Tuple t = it.next();
+      String key = ((StringField) t.getField(0)).getValue();
+      assertEquals("group " + ((IntField) t.getField(1)).getValue(), key);
+      n++;
+    }
+    assertEquals(groups, n);
+
+    it = byInt.iterator();
+    it.open();
+    n = 0;
+    while (it.hasNext()) {
+      Tuple t = it.next();
+      assertEquals(-((IntField) t.getField(0)).getValue() - 1, ((IntField) t.getField(1)).getValue());
+      n++;
+    }
+    assertEquals(groups, n);
+
+    it = all.iterator();
+    it.open();
+    TestUtil.matchAllTuples(TestUtil.createTupleList(1, new Object[] { 3L * groups }), it);
+  }
+
+  /**
+   * Test that a sum past the range of an int is returned whole
+   */
+  @Test public void sumPastIntRange() throws Exception {
+    IntegerAggregator agg = new IntegerAggregator(0, Type.INT_TYPE, 1, Aggregator.Op.SUM);
+    DbIterator input = TestUtil.createTupleList(width1,
+        new int[] { 1, Integer.MAX_VALUE,
+                    1, Integer.MAX_VALUE,
+                    1, 2 });
+    while (input.hasNext())
+      agg.mergeTupleIntoGroup(input.next());
+    DbIterator it = agg.iterator();
+    it.open();
+    TestUtil.matchAllTuples(TestUtil.createTupleList(width1,
+        new Object[] { 1, 2L * Integer.MAX_VALUE + 2 }), it);
+  }
+
   /**
    * Test IntegerAggregator.iterator() for DbIterator behaviour
    */
@@ -5,6 +5,9 @@ import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 import junit.framework.JUnit4TestAdapter;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import org.junit.Before;
 import org.junit.Test;
 
@@ -105,6 +108,48 @@ public class JoinTest extends SimpleDbTestBase {
     TestUtil.matchAllTuples(eqJoin, op);
   }
 
+  /**
+   * Unit test for Join.getNext() with outer blocks smaller than the outer
+   * relation: the inner relation is scanned once per block
+   */
+  @Test public void blockJoin() throws Exception {
+    int[] blockBytes = { 1, 16, 1 << 20 };
+    int[] innerScans = { 4, 2, 1 };
+    for (int i = 0; i < blockBytes.length; i++) {
+      final int[] rewinds = { 0 };
+      scan1.rewind();
+      TupleIterator inner = new TupleIterator(Utility.getTupleDesc(width2),
+          tupleList(scan2)) {
+        private static final long serialVersionUID = 1L;
+        public void rewind() {
+          rewinds[0]++;
+          super.rewind();
+        }
+      };
+      JoinPredicate pred = new JoinPredicate(0, Predicate.Op.GREATER_THAN, 0);
+      Join op = new Join(pred, scan1, inner, blockBytes[i]);
+      op.open();
+      int count = 0;
+      while (op.hasNext()) {
+        assertNotNull(op.next());
+        count++;
+      }
+      assertEquals(11, count);
+      assertEquals(innerScans[i], rewinds[0] + 1);
+
+      gtJoin.rewind();
+      TestUtil.matchAllTuples(gtJoin, op);
+    }
+  }
+
+  private static List<Tuple> tupleList(DbIterator it) throws Exception {
+    List<Tuple> tuples = new ArrayList<Tuple>();
+    it.rewind();
+    while (it.hasNext())
+      tuples.add(it.next());
+    return tuples;
+  }
+
   /**
    * JUnit suite target
    */
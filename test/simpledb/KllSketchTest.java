@@ -0,0 +1,85 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class KllSketchTest {
+
+  static final double[] QUANTILES = { 0.01, 0.1, 0.5, 0.9, 0.99 };
+
+  /** @return how far the rank of value in sorted is from q, as a fraction */
+  private static double rankError(int[] sorted, int value, double q) {
+    int lo = 0;
+    while (lo < sorted.length && sorted[lo] < value)
+      lo++;
+    int hi = lo;
+    while (hi < sorted.length && sorted[hi] == value)
+      hi++;
+    double rank = q * sorted.length;
+    if (rank >= lo && rank <= hi)
+      return 0;
+    return Math.min(Math.abs(rank - lo), Math.abs(rank - hi)) / sorted.length;
+  }
+
+  /**
+   * Few values are kept exactly
+   */
+  @Test public void small() {
+    KllSketch s = new KllSketch(KllSketch.DEFAULT_K);
+    assertEquals(0, s.quantile(0.5));
+    for (int i = 100; i >= 1; i--)
+      s.add(i);
+    assertEquals(100, s.getN());
+    assertEquals(1, s.quantile(0));
+    assertEquals(50, s.quantile(0.5));
+    assertEquals(90, s.quantile(0.9));
+    assertEquals(100, s.quantile(1));
+  }
+
+  /**
+   * The quantiles of many values, added to one sketch or merged from
+   * several, are within the rank error of the sketch
+   */
+  @Test public void largeAndMerged() {
+    int k = KllSketch.kFor(0.02);
+    double bound = 2 * KllSketch.rankError(k);
+    assertTrue(KllSketch.rankError(k) <= 0.02);
+
+    int n = 300000;
+    int[] values = new int[n];
+    Random rand = new Random(48);
+    KllSketch all = new KllSketch(k);
+    KllSketch[] parts = { new KllSketch(k), new KllSketch(k), new KllSketch(k) };
+    for (int i = 0; i < n; i++) {
+      values[i] = (int) (rand.nextGaussian() * 10000);
+      all.add(values[i]);
+      parts[i % 3].add(values[i]);
+    }
+    parts[0].merge(parts[1]);
+    parts[0].merge(parts[2]);
+    assertEquals(n, parts[0].getN());
+    // the sketch does not keep every value
+    assertTrue(all.memoryBytes() < 4L * n / 10);
+
+    Arrays.sort(values);
+    for (double q : QUANTILES) {
+      assertTrue(rankError(values, all.quantile(q), q) <= bound);
+      assertTrue(rankError(values, parts[0].quantile(q), q) <= bound);
+    }
+    assertEquals(values[0], all.quantile(0));
+    assertEquals(values[n - 1], parts[0].quantile(1));
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(KllSketchTest.class);
+  }
+}
@@ -0,0 +1,174 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class OrderByTest extends SimpleDbTestBase {
+
+  static final int ROWS = 5000;
+
+  TupleDesc td = Utility.getTupleDesc(2);
+  ArrayList<Tuple> tuples;
+
+  /**
+   * Initialize each unit test: random keys with many duplicates, and the
+   * position of each tuple in the input as its second field
+   */
+  @Before public void createTuples() {
+    tuples = new ArrayList<Tuple>();
+    Random rand = new Random(11);
+    for (int i = 0; i < ROWS; i++)
+      tuples.add(Utility.getHeapTuple(new int[] { rand.nextInt(500), i }));
+  }
+
+  /**
+   * Check that op returns all the input tuples sorted on the first field,
+   * keeping the input order of equal keys
+   */
+  private void checkSorted(OrderBy op, boolean asc) throws Exception {
+    int n = 0;
+    Tuple prev = null;
+    while (op.hasNext()) {
+      Tuple t = op.next();
+      if (prev != null) {
+        int k1 = ((IntField) prev.getField(0)).getValue();
+        int k2 = ((IntField) t.getField(0)).getValue();
+        assertTrue(asc ? k1 <= k2 : k1 >= k2);
+        if (k1 == k2)
+          assertTrue(((IntField) prev.getField(1)).getValue() < ((IntField) t.getField(1)).getValue());
+      }
+      prev = t;
+      n++;
+    }
+    assertEquals(ROWS, n);
+  }
+
+  /**
+   * Unit test for OrderBy on input that fits in memory
+   */
+  @Test public void inMemory() throws Exception {
+    OrderBy op = new OrderBy(0, true, new TupleIterator(td, tuples));
+    op.open();
+    checkSorted(op, true);
+    assertEquals(0, op.numRunsWritten());
+    assertEquals(0, op.numMergePasses());
+    op.rewind();
+    checkSorted(op, true);
+    op.close();
+
+    // opening again does not duplicate the tuples
+    op.open();
+    checkSorted(op, true);
+    op.close();
+  }
+
+  /**
+   * Unit test for OrderBy with a budget that forces runs to disk, merged
+   * in a single pass
+   */
+  @Test public void externalSort() throws Exception {
+    int memory = 8 * BufferPool.getPageSize();
+    OrderBy op = new OrderBy(0, false, new TupleIterator(td, tuples), memory);
+    op.open();
+    checkSorted(op, false);
+    int runs = op.numRunsWritten();
+    assertEquals(ROWS * td.getSize() / memory, runs);
+    assertEquals(1, op.numMergePasses());
+    op.rewind();
+    checkSorted(op, false);
+    op.close();
+  }
+
+  /**
+   * Unit test for OrderBy with more runs than can be merged at once
+   */
+  @Test public void multiPassMerge() throws Exception {
+    // two pages allow a two-way merge, so the tuples left in memory are
+    // written out as a fifth run, and the five runs take three passes: two
+    // intermediate ones writing three and then two runs, and the final merge
+    OrderBy op = new OrderBy(0, true, new TupleIterator(td, tuples),
+        2 * BufferPool.getPageSize());
+    op.open();
+    checkSorted(op, true);
+    int initialRuns = ROWS * td.getSize() / (2 * BufferPool.getPageSize());
+    assertEquals(4, initialRuns);
+    assertEquals(3, op.numMergePasses());
+    assertEquals(initialRuns + 1 + 3 + 2, op.numRunsWritten());
+    op.rewind();
+    checkSorted(op, true);
+    op.close();
+  }
+
+  /**
+   * Unit test for OrderBy on two fields: ascending on the first, and
+   * descending on the second among equal values of the first
+   */
+  @Test public void multipleFields() throws Exception {
+    ArrayList<Tuple> input = new ArrayList<Tuple>();
+    Random rand = new Random(3);
+    for (int i = 0; i < ROWS; i++)
+      input.add(Utility.getHeapTuple(new int[] { rand.nextInt(20), rand.nextInt(20) }));
+    for (int memory : new int[] { OrderBy.DEFAULT_MEMORY_PAGES * BufferPool.getPageSize(),
+        2 * BufferPool.getPageSize() }) {
+      OrderBy op = new OrderBy(new int[] { 0, 1 }, new boolean[] { true, false },
+          new TupleIterator(td, input), memory);
+      op.open();
+      int n = 0;
+      Tuple prev = null;
+      while (op.hasNext()) {
+        Tuple t = op.next();
+        if (prev != null) {
+          int a1 = ((IntField) prev.getField(0)).getValue();
+          int a2 = ((IntField) t.getField(0)).getValue();
+          assertTrue(a1 <= a2);
+          if (a1 == a2)
+            assertTrue(((IntField) prev.getField(1)).getValue() >= ((IntField) t.getField(1)).getValue());
+        }
+        prev = t;
+        n++;
+      }
+      assertEquals(ROWS, n);
+      op.close();
+    }
+  }
+
+  /**
+   * Unit test for TupleComparator on string and integer fields
+   */
+  @Test public void tupleComparator() {
+    TupleDesc std = new TupleDesc(new Type[] { Type.STRING_TYPE, Type.INT_TYPE });
+    Tuple t1 = new Tuple(std);
+    t1.setField(0, new StringField("apple", Type.STRING_LEN));
+    t1.setField(1, new IntField(Integer.MIN_VALUE));
+    Tuple t2 = new Tuple(std);
+    t2.setField(0, new StringField("apple", Type.STRING_LEN));
+    t2.setField(1, new IntField(Integer.MAX_VALUE));
+    Tuple t3 = new Tuple(std);
+    t3.setField(0, new StringField("banana", Type.STRING_LEN));
+    t3.setField(1, new IntField(0));
+
+    TupleComparator c = new TupleComparator(std, new int[] { 0, 1 }, new boolean[] { true, true });
+    assertTrue(c.compare(t1, t2) < 0);
+    assertTrue(c.compare(t2, t3) < 0);
+    assertEquals(0, c.compare(t3, t3));
+    c = new TupleComparator(std, new int[] { 0, 1 }, new boolean[] { false, false });
+    assertTrue(c.compare(t1, t2) > 0);
+    assertTrue(c.compare(t3, t1) < 0);
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(OrderByTest.class);
+  }
+}
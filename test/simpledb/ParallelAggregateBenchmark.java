@@ -0,0 +1,115 @@
+package simpledb;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * Scaling benchmark of parallel Aggregate over a heap file. It times SELECT
+ * c0, SUM(c1), COUNT(*), MAX(c2) ... GROUP BY c0 over a table that is
+ * already in the buffer pool, with 1, 2, 4, ... threads, and reports the
+ * speedup over one thread.
+ * <p>
+ * Usage (all options are optional):
+ * <pre>
+ * ant runbenchmark -Dbenchmark=ParallelAggregateBenchmark -Dargs="--rows=4000000"
+ *
+ *   --rows=N         rows in the table (default 2000000)
+ *   --groups=N       distinct group-by values (default 10000)
+ *   --threads=N      the largest number of threads (default 16)
+ *   --iterations=N   measured iterations (default 5)
+ *   --warmup=N       unmeasured iterations (default 2)
+ * </pre>
+ */
+public class ParallelAggregateBenchmark {
+
+    int rows = 2000000;
+    int groups = 10000;
+    int maxThreads = 16;
+    int iterations = 5;
+    int warmup = 2;
+
+    void parseOption(String arg) {
+        int eq = arg.indexOf('=');
+        if (!arg.startsWith("--") || eq < 0)
+            throw new IllegalArgumentException("expected --name=value, got " + arg);
+        String name = arg.substring(2, eq);
+        int value = Integer.parseInt(arg.substring(eq + 1));
+        if (name.equals("rows")) rows = value;
+        else if (name.equals("groups")) groups = value;
+        else if (name.equals("threads")) maxThreads = value;
+        else if (name.equals("iterations")) iterations = value;
+        else if (name.equals("warmup")) warmup = value;
+        else throw new IllegalArgumentException("unknown option --" + name);
+    }
+
+    void run() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>(rows);
+        Random rand = new Random(45);
+        for (int i = 0; i < rows; i++) {
+            ArrayList<Integer> t = new ArrayList<Integer>(3);
+            t.add(rand.nextInt(groups));
+            t.add(rand.nextInt(1000));
+            t.add(rand.nextInt());
+            tuples.add(t);
+        }
+        File f = File.createTempFile("aggbench", ".dat");
+        f.deleteOnExit();
+        HeapFileEncoder.convert(tuples, f, BufferPool.getPageSize(), 3);
+        tuples = null;
+        HeapFile table = Utility.openHeapFile(3, f);
+        // keep the whole table in memory, so that the benchmark measures
+        // aggregation rather than reading the file
+        Database.resetBufferPool(table.numPages() + 16);
+
+        System.out.println("rows=" + rows + " groups=" + groups + " pages=" + table.numPages()
+                + " processors=" + Runtime.getRuntime().availableProcessors());
+        System.out.println(String.format("%-8s %12s %14s %8s", "threads", "ms", "tuples/s", "speedup"));
+        double base = 0;
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            double ms = measure(table, threads);
+            if (threads == 1)
+                base = ms;
+            System.out.println(String.format("%-8d %12.1f %14.0f %8.2f", threads, ms,
+                    rows / (ms / 1e3), base / ms));
+        }
+    }
+
+    private double measure(HeapFile table, int threads) throws Exception {
+        long nanos = 0;
+        for (int i = 0; i < warmup + iterations; i++) {
+            TransactionId tid = new TransactionId();
+            Aggregate agg = new Aggregate(new SeqScan(tid, table.getId(), "t"),
+                    new int[] { 1, 1, 2 },
+                    new Aggregator.Op[] { Aggregator.Op.SUM, Aggregator.Op.COUNT, Aggregator.Op.MAX },
+                    new int[] { 0 });
+            agg.setParallelism(threads);
+            long start = System.nanoTime();
+            agg.open();
+            int n = 0;
+            while (agg.hasNext()) {
+                agg.next();
+                n++;
+            }
+            agg.close();
+            if (i >= warmup)
+                nanos += System.nanoTime() - start;
+            if (n != groups)
+                throw new IllegalStateException("expected " + groups + " groups, got " + n);
+            Database.getBufferPool().transactionComplete(tid);
+        }
+        return nanos / 1e6 / iterations;
+    }
+
+    public static void main(String[] args) throws Exception {
+        ParallelAggregateBenchmark b = new ParallelAggregateBenchmark();
+        try {
+            for (String arg : args)
+                b.parseOption(arg);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+        }
+        b.run();
+    }
+}
@@ -0,0 +1,94 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class SortMergeJoinTest extends SimpleDbTestBase {
+
+  int width1 = 2;
+  int width2 = 3;
+  DbIterator scan1;
+  DbIterator scan2;
+  DbIterator eqJoin;
+
+  /**
+   * Initialize each unit test. Both inputs are sorted on their first field
+   * and have runs of duplicate keys.
+   */
+  @Before public void createTupleLists() throws Exception {
+    this.scan1 = TestUtil.createTupleList(width1,
+        new int[] { 1, 2,
+                    3, 4,
+                    3, 5,
+                    5, 6,
+                    7, 8,
+                    9, 1 });
+    this.scan2 = TestUtil.createTupleList(width2,
+        new int[] { 0, 1, 1,
+                    3, 2, 2,
+                    3, 3, 3,
+                    4, 4, 4,
+                    7, 5, 5,
+                    8, 6, 6 });
+    this.eqJoin = TestUtil.createTupleList(width1 + width2,
+        new int[] { 3, 4, 3, 2, 2,
+                    3, 4, 3, 3, 3,
+                    3, 5, 3, 2, 2,
+                    3, 5, 3, 3, 3,
+                    7, 8, 7, 5, 5 });
+  }
+
+  /**
+   * Unit test for SortMergeJoin.getTupleDesc()
+   */
+  @Test public void getTupleDesc() {
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+    SortMergeJoin op = new SortMergeJoin(pred, scan1, scan2);
+    assertEquals(Utility.getTupleDesc(width1 + width2), op.getTupleDesc());
+  }
+
+  /**
+   * Unit test for SortMergeJoin.getNext(): every pair of a run of duplicates
+   * is returned, in order
+   */
+  @Test public void eqJoin() throws Exception {
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+    SortMergeJoin op = new SortMergeJoin(pred, scan1, scan2);
+    op.open();
+    while (eqJoin.hasNext()) {
+      assertTrue(op.hasNext());
+      assertTrue(TestUtil.compareTuples(eqJoin.next(), op.next()));
+    }
+    assertTrue(TestUtil.checkExhausted(op));
+
+    // rewinding produces the same result
+    op.rewind();
+    eqJoin.rewind();
+    TestUtil.matchAllTuples(eqJoin, op);
+  }
+
+  /**
+   * Unit test for SortMergeJoin on a non-equality predicate
+   */
+  @Test public void rangePredicate() {
+    try {
+      new SortMergeJoin(new JoinPredicate(0, Predicate.Op.LESS_THAN, 0), scan1, scan2);
+      fail("expected exception");
+    } catch (IllegalArgumentException e) {
+    }
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(SortMergeJoinTest.class);
+  }
+}
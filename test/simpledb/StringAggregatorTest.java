@@ -13,7 +13,7 @@ public class StringAggregatorTest extends SimpleDbTestBase {
 
   int width1 = 2;
   DbIterator scan1;
-  int[][] count = null;
+  Object[][] count = null;
 
   /**
    * Initialize each unit test
@@ -29,11 +29,12 @@ public class StringAggregatorTest extends SimpleDbTestBase {
                     5, "g" });
 
     // verify how the results progress after a few merges
-    this.count = new int[][] {
-      { 1, 1 },
-      { 1, 2 },
-      { 1, 3 },
-      { 1, 3, 3, 1 }
+    // counts are longs
+    this.count = new Object[][] {
+      { 1, 1L },
+      { 1, 2L },
+      { 1, 3L },
+      { 1, 3L, 3, 1L }
     };
 
   }
@@ -45,7 +46,7 @@ public class StringAggregatorTest extends SimpleDbTestBase {
     scan1.open();
     StringAggregator agg = new StringAggregator(0, Type.INT_TYPE, 1, Aggregator.Op.COUNT);
 
-    for (int[] step : count) {
+    for (Object[] step : count) {
       agg.mergeTupleIntoGroup(scan1.next());
       DbIterator it = agg.iterator();
       it.open();
@@ -0,0 +1,181 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class TopNTest extends SimpleDbTestBase {
+
+  TupleDesc td = Utility.getTupleDesc(2);
+  ArrayList<Tuple> tuples;
+
+  /**
+   * Initialize each unit test: random keys with many duplicates, and the
+   * position of each tuple in the input as its second field
+   */
+  @Before public void createTuples() {
+    tuples = new ArrayList<Tuple>();
+    Random rand = new Random(5);
+    for (int i = 0; i < 1000; i++)
+      tuples.add(Utility.getHeapTuple(new int[] { rand.nextInt(50), i }));
+  }
+
+  private ArrayList<String> drain(DbIterator op, int max) throws Exception {
+    ArrayList<String> out = new ArrayList<String>();
+    while (op.hasNext() && out.size() < max)
+      out.add(op.next().toString());
+    return out;
+  }
+
+  /**
+   * TopN returns the same tuples as the start of a full OrderBy, including
+   * the order of tuples with equal keys
+   */
+  @Test public void matchesOrderBy() throws Exception {
+    for (boolean asc : new boolean[] { true, false }) {
+      OrderBy sort = new OrderBy(0, asc, new TupleIterator(td, tuples));
+      sort.open();
+      ArrayList<String> sorted = drain(sort, Integer.MAX_VALUE);
+      sort.close();
+      for (int limit : new int[] { 0, 1, 7, 100, 1000, 2000 }) {
+        TopN op = new TopN(0, asc, limit, new TupleIterator(td, tuples));
+        op.open();
+        ArrayList<String> top = drain(op, Integer.MAX_VALUE);
+        assertEquals(sorted.subList(0, Math.min(limit, sorted.size())), top);
+        op.rewind();
+        assertEquals(top, drain(op, Integer.MAX_VALUE));
+        op.close();
+      }
+    }
+  }
+
+  /**
+   * Unit test for Limit: it stops after the first n tuples
+   */
+  @Test public void limit() throws Exception {
+    Limit op = new Limit(10, new TupleIterator(td, tuples));
+    op.open();
+    ArrayList<String> out = drain(op, Integer.MAX_VALUE);
+    assertEquals(10, out.size());
+    assertEquals(tuples.get(9).toString(), out.get(9));
+    op.rewind();
+    assertEquals(out, drain(op, Integer.MAX_VALUE));
+    op.close();
+  }
+
+  /**
+   * Unit test for Parser.parseLimit() and Parser.stripLimit()
+   */
+  @Test public void parseLimit() throws Exception {
+    assertEquals(5, Parser.parseLimit("SELECT * FROM t ORDER BY t.a LIMIT 5;"));
+    assertEquals(LogicalPlan.NO_LIMIT, Parser.parseLimit("SELECT * FROM t;"));
+    assertEquals("SELECT * FROM t ORDER BY t.a;",
+        Parser.stripLimit("SELECT * FROM t ORDER BY t.a\n limit 5 ;"));
+    assertEquals("SELECT * FROM t;", Parser.stripLimit("SELECT * FROM t;"));
+  }
+
+  /**
+   * Unit test for Parser.firstStatement(), which ends a statement at the
+   * first ';' outside of quotes
+   */
+  @Test public void firstStatement() throws Exception {
+    assertEquals("SELECT * FROM t LIMIT 2;",
+        Parser.firstStatement("SELECT * FROM t LIMIT 2;\nSELECT * FROM u LIMIT 7;"));
+    assertEquals("SELECT * FROM t WHERE t.s = 'a;b';",
+        Parser.firstStatement("SELECT * FROM t WHERE t.s = 'a;b'; SELECT * FROM u;"));
+    assertEquals("SELECT * FROM t", Parser.firstStatement("SELECT * FROM t"));
+  }
+
+  /**
+   * With two statements in the text, as in a query file, the LIMIT of the
+   * first one is applied to it, and that of the second one is not
+   */
+  @Test public void limitOfFirstStatement() throws Exception {
+    ArrayList<ArrayList<Integer>> rows = new ArrayList<ArrayList<Integer>>();
+    HeapFile f = SystemTestUtil.createRandomHeapFile(2, 500, 10, null, rows, "c");
+    Database.getCatalog().addTable(f, "topn_test");
+    TransactionId tid = new TransactionId();
+    Parser p = new Parser();
+
+    LogicalPlan lp = p.generateLogicalPlan(tid,
+        "SELECT * FROM topn_test t LIMIT 3;\nSELECT * FROM topn_test t ORDER BY t.c0 LIMIT 20;");
+    assertEquals(3, lp.getLimit());
+    lp = p.generateLogicalPlan(tid,
+        "SELECT * FROM topn_test t;\nSELECT * FROM topn_test t ORDER BY t.c0 LIMIT 20;");
+    assertEquals(LogicalPlan.NO_LIMIT, lp.getLimit());
+    Database.getBufferPool().transactionComplete(tid);
+
+    PrintStream out = System.out;
+    ByteArrayOutputStream printed = new ByteArrayOutputStream();
+    System.setOut(new PrintStream(printed));
+    try {
+      p.processNextStatement(
+          "SELECT * FROM topn_test t LIMIT 3;\nSELECT * FROM topn_test t ORDER BY t.c0 LIMIT 20;");
+    } finally {
+      System.setOut(out);
+    }
+    assertTrue(printed.toString().contains("\n 3 rows."));
+  }
+
+  /**
+   * The planner turns ORDER BY ... LIMIT into a TopN, and LIMIT alone into
+   * a Limit
+   */
+  @Test public void planLimit() throws Exception {
+    ArrayList<ArrayList<Integer>> rows = new ArrayList<ArrayList<Integer>>();
+    HeapFile f = SystemTestUtil.createRandomHeapFile(2, 500, 10, null, rows, "c");
+    Database.getCatalog().addTable(f, "topn_test");
+    TransactionId tid = new TransactionId();
+    Parser p = new Parser();
+
+    LogicalPlan lp = p.generateLogicalPlan(tid,
+        "SELECT * FROM topn_test t ORDER BY t.c0 DESC, t.c1 LIMIT 20;");
+    assertEquals(20, lp.getLimit());
+    DbIterator plan = lp.physicalPlan(tid, new HashMap<String, TableStats>(), false);
+    assertTrue(((Operator) plan).getChildren()[0] instanceof TopN);
+    plan.open();
+    int n = 0;
+    Tuple prev = null;
+    while (plan.hasNext()) {
+      Tuple t = plan.next();
+      if (prev != null) {
+        int a1 = ((IntField) prev.getField(0)).getValue();
+        int a2 = ((IntField) t.getField(0)).getValue();
+        assertTrue(a1 >= a2);
+        if (a1 == a2)
+          assertTrue(((IntField) prev.getField(1)).getValue() <= ((IntField) t.getField(1)).getValue());
+      }
+      prev = t;
+      n++;
+    }
+    assertEquals(20, n);
+    plan.close();
+
+    lp = p.generateLogicalPlan(tid, "SELECT * FROM topn_test t LIMIT 3;");
+    plan = lp.physicalPlan(tid, new HashMap<String, TableStats>(), false);
+    assertTrue(((Operator) plan).getChildren()[0] instanceof Limit);
+    plan.open();
+    assertEquals(3, drain(plan, Integer.MAX_VALUE).size());
+    plan.close();
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(TopNTest.class);
+  }
+}
@@ -1,6 +1,10 @@
 package simpledb;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.util.Iterator;
+
 import junit.framework.JUnit4TestAdapter;
 
 import org.junit.Test;
@@ -57,6 +61,32 @@ public class TupleTest extends SimpleDbTestBase {
 	}
     }
 
+    /**
+     * Unit test for JoinedTuple: it reads the fields of both inputs, and
+     * setting a field does not change them
+     */
+    @Test public void joinedTuple() {
+        Tuple left = Utility.getHeapTuple(new int[] { 1, 2 });
+        Tuple right = Utility.getHeapTuple(new int[] { 3, 4, 5 });
+        TupleDesc td = TupleDesc.merge(left.getTupleDesc(), right.getTupleDesc());
+        Tuple tup = new JoinedTuple(td, left, right);
+
+        assertEquals(td, tup.getTupleDesc());
+        assertEquals(new IntField(1), tup.getField(0));
+        assertEquals(new IntField(3), tup.getField(2));
+        assertEquals(new IntField(5), tup.getField(4));
+        assertEquals("1\t2\t3\t4\t5", tup.toString());
+        Iterator<Field> it = tup.fields();
+        for (int i = 1; i <= 5; i++)
+            assertEquals(new IntField(i), it.next());
+        assertFalse(it.hasNext());
+
+        tup.setField(3, new IntField(37));
+        assertEquals(new IntField(37), tup.getField(3));
+        assertEquals(new IntField(5), tup.getField(4));
+        assertEquals(new IntField(4), right.getField(1));
+    }
+
     /**
      * JUnit suite target
      */
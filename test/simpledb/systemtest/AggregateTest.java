@@ -9,12 +9,22 @@ import simpledb.*;
 
 import org.junit.Test;
 
+import static org.junit.Assert.assertEquals;
+
 public class AggregateTest extends SimpleDbTestBase {
     public void validateAggregate(DbFile table, Aggregator.Op operation, int aggregateColumn, int groupColumn, ArrayList<ArrayList<Integer>> expectedResult)
             throws DbException, TransactionAbortedException, IOException {
+        validateAggregate(table, operation, aggregateColumn, groupColumn, expectedResult, 1);
+    }
+
+    public void validateAggregate(DbFile table, Aggregator.Op operation, int aggregateColumn, int groupColumn,
+            ArrayList<ArrayList<Integer>> expectedResult, int threads)
+            throws DbException, TransactionAbortedException, IOException {
         TransactionId tid = new TransactionId();
         SeqScan ss = new SeqScan(tid, table.getId(), "");
         Aggregate ag = new Aggregate(ss, aggregateColumn, groupColumn, operation);
+        ag.setParallelism(threads);
+        assertEquals(threads > 1, ag.isParallel());
 
         SystemTestUtil.matchTuples(ag, expectedResult);
         Database.getBufferPool().transactionComplete(tid);
@@ -113,6 +123,22 @@ public class AggregateTest extends SimpleDbTestBase {
         doAggregate(Aggregator.Op.AVG, Aggregator.NO_GROUPING);
     }
 
+    @Test public void testParallel()
+            throws IOException, DbException, TransactionAbortedException {
+        // enough rows for a few dozen pages
+        ArrayList<ArrayList<Integer>> createdTuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile table = SystemTestUtil.createRandomHeapFile(
+                COLUMNS, ROWS * 20, MAX_VALUE, null, createdTuples);
+        for (Aggregator.Op operation : new Aggregator.Op[] { Aggregator.Op.SUM, Aggregator.Op.MIN,
+                Aggregator.Op.MAX, Aggregator.Op.COUNT, Aggregator.Op.AVG }) {
+            for (int groupColumn : new int[] { 0, Aggregator.NO_GROUPING }) {
+                ArrayList<ArrayList<Integer>> expected =
+                        aggregate(createdTuples, operation, 1, groupColumn);
+                validateAggregate(table, operation, 1, groupColumn, expected, 4);
+            }
+        }
+    }
+
     /** Make test compatible with older version of ant. */
     public static junit.framework.Test suite() {
         return new junit.framework.JUnit4TestAdapter(AggregateTest.class);
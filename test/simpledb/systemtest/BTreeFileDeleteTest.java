@@ -351,7 +351,61 @@ public class BTreeFileDeleteTest extends SimpleDbTestBase {
 		assertTrue(root.getParentId().equals(rootPtrId));
 
 		it.close();
-	}    
+	}
+
+	@Test
+	public void testDeferredRebalancing() throws Exception {
+		BufferPool.setPageSize(1024);
+
+		// delete the same random 70% of the keys with immediate and deferred rebalancing
+		double immediate = pageWritesPerDelete(0.5);
+		double deferred = pageWritesPerDelete(0.2);
+		System.out.println(String.format("page writes per delete: %.3f immediate, %.3f deferred",
+				immediate, deferred));
+		assertTrue(deferred < immediate);
+	}
+
+	/**
+	 * Delete a random 70% of the tuples of a B+ tree one at a time with the given minimum
+	 * leaf fill, rebalance at the end of the batch, and return the number of pages dirtied
+	 * per deleted tuple
+	 */
+	private double pageWritesPerDelete(double minFill) throws Exception {
+		Database.reset();
+		ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+		BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, 31125,
+				null, tuples, 0);
+		bf.setMinLeafFill(minFill);
+		Database.resetBufferPool(1000); // keep the whole tree in memory
+
+		Collections.shuffle(tuples, new Random(660));
+		int numDeletes = tuples.size() * 7 / 10;
+		long pageWrites = 0;
+		for(int i = 0; i < numDeletes; ++i) {
+			// tuples move between pages when they are rebalanced, so look each one up again
+			IntField key = new IntField(tuples.get(i).get(0));
+			DbFileIterator it = bf.indexIterator(tid, new IndexPredicate(Op.EQUALS, key));
+			it.open();
+			Tuple t = it.next();
+			it.close();
+			pageWrites += bf.deleteTuple(tid, t).size();
+		}
+		pageWrites += bf.rebalance(tid).size();
+		assertEquals(0, bf.numUnderfullLeaves());
+		BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), true);
+
+		int count = 0;
+		DbFileIterator it = bf.iterator(tid);
+		it.open();
+		while(it.hasNext()) {
+			it.next();
+			count++;
+		}
+		it.close();
+		assertEquals(tuples.size() - numDeletes, count);
+
+		return (double) pageWrites / numDeletes;
+	}
 
 	/**
 	 * JUnit suite target
@@ -88,7 +88,9 @@ public class SystemTestUtil {
     public static ArrayList<Integer> tupleToList(Tuple tuple) {
         ArrayList<Integer> list = new ArrayList<Integer>();
         for (int i = 0; i < tuple.getTupleDesc().numFields(); ++i) {
-            int value = ((IntField)tuple.getField(i)).getValue();
+            Field f = tuple.getField(i);
+            int value = f instanceof LongField ? Math.toIntExact(((LongField)f).getValue())
+                    : ((IntField)f).getValue();
             list.add(value);
         }
         return list;